@@ -71,6 +71,19 @@ typedef struct liq_histogram_entry {
     unsigned int count;
 } liq_histogram_entry;
 
+// One image of a batch: `offset` is in pixels, into both the batch pixel buffer and the batch index buffer
+typedef struct liq_batch_image {
+    size_t offset;
+    unsigned int width, height;
+} liq_batch_image;
+
+typedef struct liq_batch_result {
+    liq_error error;
+    int quality;
+    double mse;
+    liq_palette palette;
+} liq_batch_result;
+
 LIQ_EXPORT LIQ_USERESULT liq_attr* liq_attr_create(void);
 LIQ_EXPORT LIQ_USERESULT liq_attr* liq_attr_create_with_allocator(void* removed, void *unsupported);
 LIQ_EXPORT LIQ_USERESULT liq_attr* liq_attr_copy(const liq_attr *orig) LIQ_NONNULL;
@@ -86,6 +99,9 @@ LIQ_EXPORT liq_error liq_set_max_colors(liq_attr* attr, int colors) LIQ_NONNULL;
 LIQ_EXPORT LIQ_USERESULT int liq_get_max_colors(const liq_attr* attr) LIQ_NONNULL;
 LIQ_EXPORT liq_error liq_set_speed(liq_attr* attr, int speed) LIQ_NONNULL;
 LIQ_EXPORT LIQ_USERESULT int liq_get_speed(const liq_attr* attr) LIQ_NONNULL;
+// Runs calls made with this attr (and remapping of its results) on a private one-thread pool of the calling thread
+LIQ_EXPORT liq_error liq_set_single_threaded(liq_attr* attr, int single_threaded) LIQ_NONNULL;
+LIQ_EXPORT LIQ_USERESULT int liq_get_single_threaded(const liq_attr* attr) LIQ_NONNULL;
 LIQ_EXPORT liq_error liq_set_min_opacity(liq_attr* attr, int min) LIQ_NONNULL;
 LIQ_EXPORT LIQ_USERESULT int liq_get_min_opacity(const liq_attr* attr) LIQ_NONNULL;
 LIQ_EXPORT liq_error liq_set_min_posterization(liq_attr* attr, int bits) LIQ_NONNULL;
@@ -132,6 +148,17 @@ LIQ_EXPORT LIQ_USERESULT const liq_palette *liq_get_palette(liq_result *result)
 LIQ_EXPORT liq_error liq_write_remapped_image(liq_result *result, liq_image *input_image, void *buffer, size_t buffer_size) LIQ_NONNULL;
 LIQ_EXPORT liq_error liq_write_remapped_image_rows(liq_result *result, liq_image *input_image, unsigned char **row_pointers) LIQ_NONNULL;
 
+// Quantizes and remaps `count` images packed back-to-back in `pixels`, in parallel. Each image gets its own palette.
+// Indices of image i are written to `indices + images[i].offset`, so `indices` must hold `pixels_count` bytes.
+// Per-image failures are reported in `results[i].error`; the return value covers only invalid arguments.
+LIQ_EXPORT liq_error liq_quantize_batch(const liq_attr *options, const liq_color *pixels, size_t pixels_count, const liq_batch_image images[], unsigned int count, float dither_level, unsigned char *indices, liq_batch_result results[]) LIQ_NONNULL;
+
+// Same layout as liq_quantize_batch, but all images share one palette: a histogram of every image is built in parallel
+// and quantized once, then each image is remapped against it. On success `result_output` receives the shared result
+// (free with liq_result_destroy), which can also remap further images; results[i].palette is a copy of the shared palette.
+// If building the shared palette fails, its error is returned and `results` is left untouched.
+LIQ_EXPORT LIQ_USERESULT liq_error liq_quantize_shared_batch(const liq_attr *options, const liq_color *pixels, size_t pixels_count, const liq_batch_image images[], unsigned int count, float dither_level, unsigned char *indices, liq_batch_result results[], liq_result **result_output) LIQ_NONNULL;
+
 LIQ_EXPORT double liq_get_quantization_error(const liq_result *result) LIQ_NONNULL;
 LIQ_EXPORT int liq_get_quantization_quality(const liq_result *result) LIQ_NONNULL;
 LIQ_EXPORT double liq_get_remapping_error(const liq_result *result) LIQ_NONNULL;
@@ -139,6 +166,11 @@ LIQ_EXPORT int liq_get_remapping_quality(const liq_result *result) LIQ_NONNULL;
 
 LIQ_EXPORT void liq_result_destroy(liq_result *) LIQ_NONNULL;
 
+// Size of the thread pool shared by all calls. 0 restores the default (one thread per CPU).
+// Returns LIQ_UNSUPPORTED when the library was built without threads.
+LIQ_EXPORT liq_error liq_set_thread_pool_size(unsigned int threads);
+LIQ_EXPORT LIQ_USERESULT unsigned int liq_get_thread_pool_size(void);
+
 LIQ_EXPORT int liq_version(void);
 
 
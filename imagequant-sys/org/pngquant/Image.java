@@ -1,6 +1,7 @@
 package org.pngquant;
 
 import org.pngquant.*;
+import java.lang.ref.Reference;
 import java.awt.image.*;
 
 /**
@@ -18,17 +19,23 @@ public class Image extends LiqObject {
     }
 
     public Image(PngQuant attr, BufferedImage image) throws PngQuantException {
-        handle = handleFromImage(attr, image);
+        long h;
+        try {
+            h = handleFromImage(attr, image);
 
-        if (handle == 0) {
-            BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
-            converted.getGraphics().drawImage(image, 0, 0, null);
-            handle = handleFromImage(attr, converted);
-
-            if (handle == 0) {
-                throw new PngQuantException();
+            if (h == 0) {
+                BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+                converted.getGraphics().drawImage(image, 0, 0, null);
+                h = handleFromImage(attr, converted);
             }
+        } finally {
+            // attr.handle must stay valid until liq_image_create returns
+            Reference.reachabilityFence(attr);
+        }
+        if (h == 0) {
+            throw new PngQuantException();
         }
+        own(h, Image::liq_image_destroy, (long)image.getWidth() * image.getHeight() * PngQuant.IMAGE_BYTES_PER_PIXEL);
     }
 
     /**
@@ -42,13 +49,6 @@ public class Image extends LiqObject {
     public native int getWidth();
     public native int getHeight();
 
-    public void close() {
-        if (handle != 0) {
-            liq_image_destroy(handle);
-            handle = 0;
-        }
-    }
-
     private static long handleFromImage(PngQuant attr, BufferedImage image) {
         // The JNI wrapper will accept non-premultiplied ABGR and BGR only.
         int type = image.getType();
@@ -46,38 +46,63 @@ JNIEXPORT jboolean JNICALL Java_org_pngquant_PngQuant_setQuality__II(JNIEnv *env
     return LIQ_OK == liq_set_quality(handle(env, obj), qmin, qmax);
 }
 
-static void convert_abgr(liq_color row_out[], int row_index, int width, void* user_info) {
-    liq_jni_image *jniimg = user_info;
-    int column_index;
-    for(column_index=0; column_index < width; column_index++) {
-        row_out[column_index].r = jniimg->data[4*(width*row_index + column_index) + 3];
-        row_out[column_index].g = jniimg->data[4*(width*row_index + column_index) + 2];
-        row_out[column_index].b = jniimg->data[4*(width*row_index + column_index) + 1];
-        row_out[column_index].a = jniimg->data[4*(width*row_index + column_index) + 0];
+/* Converts the whole image to contiguous RGBA once, so that every pass over the pixels
+   (histogram, remapping, dithering) reads plain memory instead of calling back per row.
+   The loops are branch-free, so compilers vectorize them into byte shuffles. */
+static void swizzle_abgr_to_rgba(const unsigned char *restrict src, unsigned char *restrict dst, size_t pixels) {
+    size_t i;
+    for(i=0; i < pixels; i++) {
+        dst[4*i + 0] = src[4*i + 3];
+        dst[4*i + 1] = src[4*i + 2];
+        dst[4*i + 2] = src[4*i + 1];
+        dst[4*i + 3] = src[4*i + 0];
     }
 }
 
-static void convert_bgr(liq_color row_out[], int row_index, int width, void* user_info) {
-    liq_jni_image *jniimg = user_info;
-    int column_index;
-    for(column_index=0; column_index < width; column_index++) {
-        row_out[column_index].r = jniimg->data[3*(width*row_index + column_index) + 2];
-        row_out[column_index].g = jniimg->data[3*(width*row_index + column_index) + 1];
-        row_out[column_index].b = jniimg->data[3*(width*row_index + column_index) + 0];
-        row_out[column_index].a = 255;
+static void swizzle_bgr_to_rgba(const unsigned char *restrict src, unsigned char *restrict dst, size_t pixels) {
+    size_t i;
+    for(i=0; i < pixels; i++) {
+        dst[4*i + 0] = src[3*i + 2];
+        dst[4*i + 1] = src[3*i + 1];
+        dst[4*i + 2] = src[3*i + 0];
+        dst[4*i + 3] = 255;
     }
 }
 
 JNIEXPORT jlong JNICALL Java_org_pngquant_Image_liq_1image_1create(JNIEnv *env, jclass class, jlong attr, jbyteArray bytearray, jint w, jint h, jint components) {
+    size_t pixels = (size_t)w * (size_t)h;
+    jsize size = (*env)->GetArrayLength(env, bytearray);
+    if (w <= 0 || h <= 0 || (size_t)size < pixels * components) {
+        return 0;
+    }
+
     /* liq_image needs to be wrapped to keep track of allocated buffer */
     liq_jni_image *jniimg = malloc(sizeof(liq_jni_image));
+    if (!jniimg) {
+        return 0;
+    }
+    jniimg->data = malloc(pixels * 4);
+    if (!jniimg->data) {
+        free(jniimg);
+        return 0;
+    }
 
-    /* copying buffer, since ReleaseByteArrayElements was crashing when called from finalize() */
-    jsize size = (*env)->GetArrayLength(env, bytearray);
-    jniimg->data = malloc(size);
-    (*env)->GetByteArrayRegion(env, bytearray, 0, size, jniimg->data);
+    /* the Java array is released right here (not from finalize()), and converting straight
+       out of it saves the separate copy */
+    unsigned char *src = (*env)->GetPrimitiveArrayCritical(env, bytearray, NULL);
+    if (!src) {
+        free(jniimg->data);
+        free(jniimg);
+        return 0;
+    }
+    if (components == 4) {
+        swizzle_abgr_to_rgba(src, (unsigned char*)jniimg->data, pixels);
+    } else {
+        swizzle_bgr_to_rgba(src, (unsigned char*)jniimg->data, pixels);
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, bytearray, src, JNI_ABORT);
 
-    jniimg->image = liq_image_create_custom((liq_attr*)attr, components == 4 ? convert_abgr : convert_bgr, jniimg, w, h, 0);
+    jniimg->image = liq_image_create_rgba((liq_attr*)attr, jniimg->data, w, h, 0);
 
     if (!jniimg->image) {
         free(jniimg->data);
@@ -111,6 +136,24 @@ JNIEXPORT jlong JNICALL Java_org_pngquant_Result_liq_1quantize_1image(JNIEnv *en
     return (jlong)liq_quantize_image((liq_attr*)attr, ((liq_jni_image*)handle)->image);
 }
 
+JNIEXPORT jlong JNICALL Java_org_pngquant_Result_liq_1result_1from_1palette(JNIEnv *env, jclass class, jlong attr, jbyteArray bytearray, jdouble gamma) {
+    jsize count = (*env)->GetArrayLength(env, bytearray) / 4;
+
+    // max colors must cover the whole palette, so work on a copy instead of changing the caller's settings
+    liq_attr *copy = liq_attr_copy((liq_attr*)attr);
+    if (!copy) return 0;
+    liq_result *result = NULL;
+    if (LIQ_OK == liq_set_max_colors(copy, count)) {
+        jbyte *palette = (*env)->GetByteArrayElements(env, bytearray, 0);
+        if (LIQ_OK != liq_result_from_palette(copy, (const liq_color*)palette, count, gamma, &result)) {
+            result = NULL;
+        }
+        (*env)->ReleaseByteArrayElements(env, bytearray, palette, JNI_ABORT);
+    }
+    liq_attr_destroy(copy);
+    return (jlong)result;
+}
+
 JNIEXPORT jboolean JNICALL Java_org_pngquant_Result_setDitheringLevel(JNIEnv *env, jobject obj, jfloat l) {
     return LIQ_OK == liq_set_dithering_level(handle(env, obj), l);
 }
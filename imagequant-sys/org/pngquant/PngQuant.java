@@ -1,6 +1,7 @@
 package org.pngquant;
 
 import org.pngquant.*;
+import java.lang.ref.Reference;
 import java.awt.image.*;
 
 /**
@@ -12,11 +13,17 @@ public class PngQuant extends LiqObject {
      * Single instance can be "recycled" for many remappings.
      */
     public PngQuant() {
-        handle = liq_attr_create();
+        own(liq_attr_create(), PngQuant::liq_attr_destroy, ATTR_BYTES);
     }
 
     public PngQuant(PngQuant other) {
-        handle = liq_attr_copy(other.handle);
+        long h;
+        try {
+            h = liq_attr_copy(other.handle);
+        } finally {
+            Reference.reachabilityFence(other);
+        }
+        own(h, PngQuant::liq_attr_destroy, ATTR_BYTES);
     }
 
     /**
@@ -98,13 +105,27 @@ public class PngQuant extends LiqObject {
      */
     public native boolean setMinPosterization(int bits);
 
-    public void close() {
-        if (handle != 0) {
-            liq_attr_destroy(handle);
-            handle = 0;
-        }
+    /**
+     * Number of PngQuant, Image and Result objects whose native memory hasn't been freed yet.
+     */
+    public static long getLiveNativeHandles() {
+        return liveHandles();
     }
 
+    /**
+     * Estimate of native memory held by objects that haven't been closed or collected yet, in bytes.
+     * Images count their pixel copy plus what libimagequant may cache per pixel; attributes and results
+     * are counted as fixed-size objects.
+     */
+    public static long getLiveNativeBytes() {
+        return liveBytes();
+    }
+
+    // native memory estimates used by getLiveNativeBytes()
+    static final long ATTR_BYTES = 256;
+    static final long RESULT_BYTES = 16 * 1024;
+    static final long IMAGE_BYTES_PER_PIXEL = 4 + 18; // RGBA copy + float pixels, importance and dither maps
+
     private static native long liq_attr_create();
     private static native long liq_attr_copy(long orig);
     private static native void liq_attr_destroy(long handle);
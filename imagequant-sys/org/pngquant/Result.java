@@ -1,6 +1,7 @@
 package org.pngquant;
 
 import org.pngquant.*;
+import java.lang.ref.Reference;
 import java.awt.image.*;
 
 /**
@@ -12,17 +13,57 @@ public class Result extends LiqObject {
      * Throws when quantization fails (e.g. due to failing to achieve minimum quality)
      */
     public Result(PngQuant pngquant, Image image) throws PngQuantException {
-        handle = liq_quantize_image(pngquant.handle, image.handle);
+        long h;
+        try {
+            h = liq_quantize_image(pngquant.handle, image.handle);
+        } finally {
+            Reference.reachabilityFence(pngquant);
+            Reference.reachabilityFence(image);
+        }
+        own(h, Result::liq_result_destroy, PngQuant.RESULT_BYTES);
+        if (handle == 0) {
+            throw new PngQuantException();
+        }
+    }
+
+    /**
+     * Skips quantization and remaps to the given palette instead (e.g. a brand palette loaded at startup).
+     * @link http://pngquant.org/lib/#liq_result_from_palette
+     *
+     * @param palette RGBA colors, 4 bytes per color, 1-256 colors (same layout as getPalette())
+     */
+    public Result(PngQuant pngquant, byte[] palette) throws PngQuantException {
+        if (palette.length == 0 || palette.length % 4 != 0 || palette.length > 256 * 4) {
+            throw new IllegalArgumentException("Palette must have 1-256 RGBA colors");
+        }
+        long h;
+        try {
+            h = liq_result_from_palette(pngquant.handle, palette, 0);
+        } finally {
+            Reference.reachabilityFence(pngquant);
+        }
+        own(h, Result::liq_result_destroy, PngQuant.RESULT_BYTES);
         if (handle == 0) {
             throw new PngQuantException();
         }
     }
 
+    /**
+     * @return RGBA colors of the palette, 4 bytes per color. Can be stored and passed to Result(PngQuant, byte[]) later.
+     */
+    public byte[] getPalette() {
+        try {
+            return liq_get_palette(handle);
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
     /**
      * @return BufferedImage remapped to palette this Result has been created with or null on failure.
      */
     public BufferedImage getRemapped(Image orig_image) {
-        byte[] pal = liq_get_palette(handle);
+        byte[] pal = getPalette();
         IndexColorModel color = new IndexColorModel(8, pal.length/4, pal, 0, true);
         BufferedImage img = new BufferedImage(
             orig_image.getWidth(), orig_image.getHeight(),
@@ -31,7 +72,12 @@ public class Result extends LiqObject {
         byte[] data = get8bitDataFromImage(img);
         if (data == null) return null;
 
-        if (!liq_write_remapped_image(handle, orig_image.handle, data)) return null;
+        try {
+            if (!liq_write_remapped_image(handle, orig_image.handle, data)) return null;
+        } finally {
+            Reference.reachabilityFence(this);
+            Reference.reachabilityFence(orig_image);
+        }
 
         return img;
     }
@@ -66,13 +112,6 @@ public class Result extends LiqObject {
      */
     public native int getQuality();
 
-    public void close() {
-        if (handle != 0) {
-            liq_result_destroy(handle);
-            handle = 0;
-        }
-    }
-
     private static byte[] get8bitDataFromImage(BufferedImage image) {
         if (image.getType() == BufferedImage.TYPE_BYTE_INDEXED) {
             DataBuffer buffer = image.getRaster().getDataBuffer();
@@ -85,6 +124,7 @@ public class Result extends LiqObject {
 
     private static native byte[] liq_get_palette(long handle);
     private static native long liq_quantize_image(long attr, long image);
+    private static native long liq_result_from_palette(long attr, byte[] palette, double gamma);
     private static native boolean liq_write_remapped_image(long handle, long image, byte[] buffer);
     private static native void liq_result_destroy(long handle);
 }
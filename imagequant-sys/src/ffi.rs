@@ -21,6 +21,7 @@ use imagequant::Error::LIQ_OK;
 use imagequant::*;
 use std::ffi::CString;
 use std::boxed::Box;
+use std::vec::Vec;
 
 pub use imagequant::Error as liq_error;
 
@@ -29,6 +30,7 @@ pub struct liq_attr {
     magic_header: MagicTag,
     inner: Attributes,
     c_api_free: unsafe extern "C" fn(*mut c_void),
+    single_threaded: bool,
 }
 
 #[repr(C)]
@@ -42,6 +44,8 @@ pub struct liq_image<'pixels> {
 pub struct liq_result {
     magic_header: MagicTag,
     inner: QuantizationResult,
+    /// copied from the attr that created it, so that remapping runs the same way
+    single_threaded: bool,
 }
 
 #[repr(C)]
@@ -50,6 +54,21 @@ pub struct liq_histogram {
     inner: Histogram,
 }
 
+#[repr(C)]
+pub struct liq_batch_image {
+    pub offset: usize,
+    pub width: c_uint,
+    pub height: c_uint,
+}
+
+#[repr(C)]
+pub struct liq_batch_result {
+    pub error: liq_error,
+    pub quality: c_int,
+    pub mse: f64,
+    pub palette: liq_palette,
+}
+
 pub type liq_palette = Palette;
 pub type liq_histogram_entry = HistogramEntry;
 pub type liq_color = RGBA;
@@ -290,11 +309,13 @@ pub extern "C" fn liq_quantize_image(attr: &mut liq_attr, img: &mut liq_image) -
     if bad_object!(attr, LIQ_ATTR_MAGIC) ||
        bad_object!(img, LIQ_IMAGE_MAGIC) { return None; }
     let img = &mut img.inner;
+    let single_threaded = attr.single_threaded;
     let attr = &mut attr.inner;
 
-    attr.quantize(img).ok().map(|inner| Box::new(liq_result {
+    liq_install_impl(single_threaded, || attr.quantize(img)).ok().map(|inner| Box::new(liq_result {
         magic_header: LIQ_RESULT_MAGIC,
         inner,
+        single_threaded,
     }))
 }
 
@@ -304,6 +325,7 @@ pub unsafe extern "C" fn liq_write_remapped_image(result: &mut liq_result, input
     if bad_object!(result, LIQ_RESULT_MAGIC) ||
        bad_object!(input_image, LIQ_IMAGE_MAGIC) { return Error::InvalidPointer; }
     let input_image = &mut input_image.inner;
+    let single_threaded = result.single_threaded;
     let result = &mut result.inner;
 
     if liq_received_invalid_pointer(buffer_bytes.cast()) { return Error::InvalidPointer; }
@@ -311,7 +333,7 @@ pub unsafe extern "C" fn liq_write_remapped_image(result: &mut liq_result, input
     let required_size = (input_image.width()) * (input_image.height());
     if buffer_size < required_size { return Error::BufferTooSmall; }
     let buffer_bytes = slice::from_raw_parts_mut(buffer_bytes, required_size);
-    liq_write_remapped_image_impl(result, input_image, buffer_bytes).err().unwrap_or(LIQ_OK)
+    liq_write_remapped_image_impl(result, input_image, buffer_bytes, single_threaded).err().unwrap_or(LIQ_OK)
 }
 
 #[no_mangle]
@@ -320,12 +342,13 @@ pub unsafe extern "C" fn liq_write_remapped_image_rows(result: &mut liq_result,
     if bad_object!(result, LIQ_RESULT_MAGIC) ||
        bad_object!(input_image, LIQ_IMAGE_MAGIC) { return Error::InvalidPointer; }
     let input_image = &mut input_image.inner;
+    let single_threaded = result.single_threaded;
     let result = &mut result.inner;
 
     if liq_received_invalid_pointer(row_pointers.cast()) { return Error::InvalidPointer; }
     let rows = slice::from_raw_parts_mut(row_pointers, input_image.height());
 
-    liq_write_remapped_image_rows_impl(result, input_image, rows).err().unwrap_or(LIQ_OK)
+    liq_write_remapped_image_rows_impl(result, input_image, rows, single_threaded).err().unwrap_or(LIQ_OK)
 }
 
 #[no_mangle]
@@ -435,6 +458,7 @@ pub extern "C" fn liq_attr_create_with_allocator(_unused: *mut c_void, free: uns
         magic_header: LIQ_ATTR_MAGIC,
         inner: Attributes::new(),
         c_api_free: free,
+        single_threaded: false,
     });
     debug_assert_eq!(ptr::addr_of!(*attr), unsafe { attr_to_liq_attr_ptr(&attr.inner) } as *const liq_attr);
     Some(attr)
@@ -456,9 +480,41 @@ pub extern "C" fn liq_attr_copy(attr: &liq_attr) -> Option<Box<liq_attr>> {
         magic_header: LIQ_ATTR_MAGIC,
         inner: attr.inner.clone(),
         c_api_free: attr.c_api_free,
+        single_threaded: attr.single_threaded,
     }))
 }
 
+/// Runs every call made with this attr (and remapping of results it creates) on the calling thread's own
+/// one-thread pool instead of the shared pool. Useful when the caller already parallelizes across images.
+#[no_mangle]
+#[inline(never)]
+pub extern "C" fn liq_set_single_threaded(attr: &mut liq_attr, single_threaded: c_int) -> liq_error {
+    if bad_object!(attr, LIQ_ATTR_MAGIC) { return Error::InvalidPointer; }
+    attr.single_threaded = single_threaded != 0;
+    LIQ_OK
+}
+
+#[no_mangle]
+#[inline(never)]
+pub extern "C" fn liq_get_single_threaded(attr: &liq_attr) -> c_int {
+    if bad_object!(attr, LIQ_ATTR_MAGIC) { return -1; }
+    c_int::from(attr.single_threaded)
+}
+
+/// Sets the number of threads of the pool shared by all calls. 0 restores the default of one thread per CPU.
+/// Calls already in progress finish on the previous pool.
+#[no_mangle]
+#[inline(never)]
+pub extern "C" fn liq_set_thread_pool_size(threads: c_uint) -> liq_error {
+    liq_set_thread_pool_size_impl(threads as usize).err().unwrap_or(LIQ_OK)
+}
+
+#[no_mangle]
+#[inline(never)]
+pub extern "C" fn liq_get_thread_pool_size() -> c_uint {
+    liq_get_thread_pool_size_impl() as c_uint
+}
+
 #[no_mangle]
 #[inline(never)]
 pub extern "C" fn liq_attr_destroy(_attr: Option<Box<liq_attr>>) {}
@@ -521,13 +577,15 @@ pub extern "C" fn liq_get_remapping_quality(result: &liq_result) -> c_int {
 pub extern "C" fn liq_image_quantize(img: &mut liq_image, attr: &mut liq_attr, write_only_output: &mut MaybeUninit<Option<Box<liq_result>>>) -> liq_error {
     if bad_object!(attr, LIQ_ATTR_MAGIC) ||
        bad_object!(img, LIQ_IMAGE_MAGIC) { return Error::InvalidPointer; }
+    let single_threaded = attr.single_threaded;
     let attr = &mut attr.inner;
     let img = &mut img.inner;
 
-    let res = attr.quantize(img)
+    let res = liq_install_impl(single_threaded, || attr.quantize(img))
         .map(|inner| liq_result {
             magic_header: LIQ_RESULT_MAGIC,
             inner,
+            single_threaded,
         });
     store_boxed_result(res, write_only_output)
 }
@@ -537,13 +595,15 @@ pub extern "C" fn liq_image_quantize(img: &mut liq_image, attr: &mut liq_attr, w
 pub extern "C" fn liq_histogram_quantize(hist: &mut liq_histogram, attr: &liq_attr, write_only_output: &mut MaybeUninit<Option<Box<liq_result>>>) -> liq_error {
     if bad_object!(attr, LIQ_ATTR_MAGIC) ||
        bad_object!(hist, LIQ_HISTOGRAM_MAGIC) { return Error::InvalidPointer; }
+    let single_threaded = attr.single_threaded;
     let attr = &attr.inner;
     let hist = &mut hist.inner;
 
-    let res = hist.quantize(attr)
+    let res = liq_install_impl(single_threaded, || hist.quantize(attr))
         .map(|inner| liq_result {
             magic_header: LIQ_RESULT_MAGIC,
             inner,
+            single_threaded,
         });
     store_boxed_result(res, write_only_output)
 }
@@ -567,16 +627,114 @@ pub unsafe extern "C" fn liq_result_from_palette(
         return Error::InvalidPointer;
     }
 
+    let single_threaded = attr.single_threaded;
     let attr = &attr.inner;
     let palette = slice::from_raw_parts(palette, palette_size);
 
     let res = QuantizationResult::from_palette(attr, palette, gamma).map(|inner| liq_result {
         magic_header: LIQ_RESULT_MAGIC,
         inner,
+        single_threaded,
     });
     store_boxed_result(res, write_only_output)
 }
 
+#[no_mangle]
+#[inline(never)]
+pub unsafe extern "C" fn liq_quantize_batch(attr: &liq_attr, pixels: *const liq_color, pixels_count: usize, images: *const liq_batch_image, count: c_uint, dither_level: f32, indices: *mut MaybeUninit<u8>, results: *mut MaybeUninit<liq_batch_result>) -> liq_error {
+    if bad_object!(attr, LIQ_ATTR_MAGIC) { return Error::InvalidPointer; }
+    if count == 0 { return LIQ_OK; }
+    if liq_received_invalid_pointer(results.cast()) { return Error::InvalidPointer; }
+    if !(0. ..=1.).contains(&dither_level) { return Error::ValueOutOfRange; }
+
+    let mut items = match batch_items(attr, pixels, pixels_count, images, count, indices) {
+        Ok(items) => items,
+        Err(err) => return err,
+    };
+
+    liq_install_impl(attr.single_threaded, || liq_quantize_batch_impl(&attr.inner, dither_level, &mut items));
+
+    write_batch_results(items, slice::from_raw_parts_mut(results, count as usize));
+    LIQ_OK
+}
+
+#[no_mangle]
+#[inline(never)]
+pub unsafe extern "C" fn liq_quantize_shared_batch(attr: &liq_attr, pixels: *const liq_color, pixels_count: usize, images: *const liq_batch_image, count: c_uint, dither_level: f32, indices: *mut MaybeUninit<u8>, results: *mut MaybeUninit<liq_batch_result>, write_only_output: &mut MaybeUninit<Option<Box<liq_result>>>) -> liq_error {
+    if bad_object!(attr, LIQ_ATTR_MAGIC) { return Error::InvalidPointer; }
+    if liq_received_invalid_pointer(results.cast()) { return Error::InvalidPointer; }
+    if !(0. ..=1.).contains(&dither_level) { return Error::ValueOutOfRange; }
+    if count == 0 { return store_boxed_result(Err(Error::Unsupported), write_only_output); }
+
+    let mut items = match batch_items(attr, pixels, pixels_count, images, count, indices) {
+        Ok(items) => items,
+        Err(err) => return store_boxed_result(Err(err), write_only_output),
+    };
+
+    let single_threaded = attr.single_threaded;
+    let shared = liq_install_impl(single_threaded, || liq_quantize_shared_impl(&attr.inner, dither_level, &mut items));
+    if shared.is_ok() {
+        write_batch_results(items, slice::from_raw_parts_mut(results, count as usize));
+    }
+    store_boxed_result(shared.map(|inner| liq_result {
+        magic_header: LIQ_RESULT_MAGIC,
+        inner,
+        single_threaded,
+    }), write_only_output)
+}
+
+/// Validates the batch layout and borrows every image's pixels and index slice
+unsafe fn batch_items<'a>(attr: &liq_attr, pixels: *const liq_color, pixels_count: usize, images: *const liq_batch_image, count: c_uint, indices: *mut MaybeUninit<u8>) -> Result<Vec<BatchItem<'a>>, liq_error> {
+    if liq_received_invalid_pointer(pixels.cast()) ||
+       liq_received_invalid_pointer(images.cast()) ||
+       liq_received_invalid_pointer(indices.cast()) { return Err(Error::InvalidPointer); }
+
+    let images = slice::from_raw_parts(images, count as usize);
+
+    // output slices are handed out as &mut to different threads, so the images must not overlap
+    let mut ranges = Vec::with_capacity(images.len());
+    for img in images {
+        if !check_image_size(attr, img.width, img.height) { return Err(Error::ValueOutOfRange); }
+        let len = img.width as usize * img.height as usize;
+        match img.offset.checked_add(len) {
+            Some(end) if end <= pixels_count => ranges.push((img.offset, end)),
+            _ => return Err(Error::BufferTooSmall),
+        }
+    }
+    ranges.sort_unstable();
+    if ranges.windows(2).any(|w| w[0].1 > w[1].0) { return Err(Error::ValueOutOfRange); }
+
+    Ok(images.iter().map(|img| {
+        let len = img.width as usize * img.height as usize;
+        BatchItem {
+            pixels: slice::from_raw_parts(pixels.add(img.offset), len),
+            width: img.width as usize,
+            height: img.height as usize,
+            indices: slice::from_raw_parts_mut(indices.add(img.offset), len),
+            result: Err(Error::Aborted),
+        }
+    }).collect())
+}
+
+fn write_batch_results(items: Vec<BatchItem<'_>>, results: &mut [MaybeUninit<liq_batch_result>]) {
+    for (item, out) in items.into_iter().zip(results) {
+        out.write(match item.result {
+            Ok(mut res) => liq_batch_result {
+                error: LIQ_OK,
+                quality: res.quantization_quality().map_or(-1, c_int::from),
+                mse: res.quantization_error().unwrap_or(-1.),
+                palette: liq_get_palette_impl(&mut res).clone(),
+            },
+            Err(error) => liq_batch_result {
+                error,
+                quality: -1,
+                mse: -1.,
+                palette: unsafe { mem::zeroed() },
+            },
+        });
+    }
+}
+
 #[inline]
 fn store_boxed_result<T>(res: Result<T, liq_error>, out: &mut MaybeUninit<Option<Box<T>>>) -> liq_error {
     match res {
@@ -669,11 +827,12 @@ pub extern "C" fn liq_histogram_add_image(input_hist: &mut liq_histogram, attr:
     if bad_object!(attr, LIQ_ATTR_MAGIC) ||
        bad_object!(input_hist, LIQ_HISTOGRAM_MAGIC) ||
        bad_object!(input_image, LIQ_IMAGE_MAGIC) { return Error::InvalidPointer; }
+    let single_threaded = attr.single_threaded;
     let attr = &attr.inner;
     let input_hist = &mut input_hist.inner;
     let input_image = &mut input_image.inner;
 
-    input_hist.add_image(attr, input_image).err().unwrap_or(LIQ_OK)
+    liq_install_impl(single_threaded, || input_hist.add_image(attr, input_image)).err().unwrap_or(LIQ_OK)
 }
 
 /// This is just to exist in backtraces of crashes that aren't mine
@@ -745,6 +904,12 @@ fn link_every_symbol() {
         + liq_histogram_quantize as *const c_void as usize
         + liq_image_quantize as *const c_void as usize
         + liq_result_from_palette as *const c_void as usize
+        + liq_quantize_batch as *const c_void as usize
+        + liq_quantize_shared_batch as *const c_void as usize
+        + liq_set_single_threaded as *const c_void as usize
+        + liq_get_single_threaded as *const c_void as usize
+        + liq_set_thread_pool_size as *const c_void as usize
+        + liq_get_thread_pool_size as *const c_void as usize
         + liq_set_dithering_level as *const c_void as usize
         + liq_set_output_gamma as *const c_void as usize
         + liq_get_output_gamma as *const c_void as usize
@@ -783,6 +948,68 @@ fn c_callback_test_c() {
     assert_eq!(123, pal.count);
 }
 
+#[test]
+fn batch_quantizes_each_image() {
+    unsafe {
+        let attr = liq_attr_create().unwrap();
+        // two images back-to-back: 4x2 gradient and 3x3 solid
+        let mut pixels: Vec<liq_color> = (0..8u8).map(|n| RGBA::new(n * 30, n, 255 - n, 255)).collect();
+        pixels.extend((0..9).map(|_| RGBA::new(10, 20, 30, 255)));
+        let images = [
+            liq_batch_image { offset: 0, width: 4, height: 2 },
+            liq_batch_image { offset: 8, width: 3, height: 3 },
+        ];
+        let mut indices = vec![MaybeUninit::new(0xFF); pixels.len()];
+        let mut results: Vec<MaybeUninit<liq_batch_result>> = (0..2).map(|_| MaybeUninit::uninit()).collect();
+
+        assert_eq!(LIQ_OK, liq_quantize_batch(&attr, pixels.as_ptr(), pixels.len(), images.as_ptr(), 2, 1., indices.as_mut_ptr(), results.as_mut_ptr()));
+        let first = results[0].assume_init_ref();
+        let second = results[1].assume_init_ref();
+        assert_eq!(LIQ_OK, first.error);
+        assert_eq!(LIQ_OK, second.error);
+        assert!(first.palette.count > 1);
+        assert_eq!(1, second.palette.count);
+        assert!(indices[8..].iter().all(|i| i.assume_init() == 0));
+
+        // overlapping images would alias the output buffer
+        let overlapping = [
+            liq_batch_image { offset: 0, width: 4, height: 2 },
+            liq_batch_image { offset: 7, width: 3, height: 3 },
+        ];
+        assert_eq!(Error::ValueOutOfRange, liq_quantize_batch(&attr, pixels.as_ptr(), pixels.len(), overlapping.as_ptr(), 2, 1., indices.as_mut_ptr(), results.as_mut_ptr()));
+        liq_attr_destroy(Some(attr));
+    }
+}
+
+#[test]
+fn shared_batch_uses_one_palette() {
+    unsafe {
+        let attr = liq_attr_create().unwrap();
+        // red and blue images: the shared palette must cover both
+        let mut pixels: Vec<liq_color> = (0..4).map(|_| RGBA::new(255, 0, 0, 255)).collect();
+        pixels.extend((0..4).map(|_| RGBA::new(0, 0, 255, 255)));
+        let images = [
+            liq_batch_image { offset: 0, width: 2, height: 2 },
+            liq_batch_image { offset: 4, width: 2, height: 2 },
+        ];
+        let mut indices = vec![MaybeUninit::new(0xFF); pixels.len()];
+        let mut results: Vec<MaybeUninit<liq_batch_result>> = (0..2).map(|_| MaybeUninit::uninit()).collect();
+        let mut shared = MaybeUninit::uninit();
+
+        assert_eq!(LIQ_OK, liq_quantize_shared_batch(&attr, pixels.as_ptr(), pixels.len(), images.as_ptr(), 2, 1., indices.as_mut_ptr(), results.as_mut_ptr(), &mut shared));
+        let mut shared = shared.assume_init().unwrap();
+        assert_eq!(2, liq_get_palette(&mut shared).unwrap().count);
+        for r in &results {
+            let r = r.assume_init_ref();
+            assert_eq!(LIQ_OK, r.error);
+            assert_eq!(2, r.palette.count);
+        }
+        assert_ne!(indices[0].assume_init(), indices[4].assume_init());
+        liq_result_destroy(Some(shared));
+        liq_attr_destroy(Some(attr));
+    }
+}
+
 #[test]
 fn ownership_bitflags() {
     assert_eq!(4 + 16, (liq_ownership::LIQ_OWN_ROWS | liq_ownership::LIQ_COPY_PIXELS).bits());
@@ -1,19 +1,75 @@
 package org.pngquant;
 
-abstract class LiqObject {
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+abstract class LiqObject implements AutoCloseable {
     static {
         // libimagequant.jnilib or libimagequant.so must be in java.library.path
         System.loadLibrary("imagequant");
     }
 
+    private static final Cleaner cleaner = Cleaner.create();
+    private static final AtomicLong liveHandles = new AtomicLong();
+    private static final AtomicLong liveBytes = new AtomicLong();
+
     long handle;
+    private Cleaner.Cleanable cleanable;
+
+    /**
+     * Takes ownership of a native handle. It is freed by close(), or by the Cleaner
+     * once this object becomes unreachable without having been closed.
+     *
+     * @param destroy frees the handle; must not refer to this object
+     * @param nativeBytes estimate of native memory held by the handle
+     */
+    final void own(long handle, LongConsumer destroy, long nativeBytes) {
+        this.handle = handle;
+        if (handle != 0) {
+            cleanable = cleaner.register(this, new Release(handle, destroy, nativeBytes));
+        }
+    }
 
     /**
      * Free memory used by the library. The object must not be used after this call.
+     * Calling it more than once is harmless.
      */
-    abstract public void close();
+    @Override
+    public void close() {
+        if (handle != 0) {
+            handle = 0;
+            cleanable.clean();
+        }
+    }
+
+    static long liveHandles() {
+        return liveHandles.get();
+    }
+
+    static long liveBytes() {
+        return liveBytes.get();
+    }
+
+    /** Runs at most once, either from close() or from the Cleaner thread. */
+    private static final class Release implements Runnable {
+        private final long handle;
+        private final LongConsumer destroy;
+        private final long nativeBytes;
+
+        Release(long handle, LongConsumer destroy, long nativeBytes) {
+            this.handle = handle;
+            this.destroy = destroy;
+            this.nativeBytes = nativeBytes;
+            liveHandles.incrementAndGet();
+            liveBytes.addAndGet(nativeBytes);
+        }
 
-    protected void finalize() throws Throwable {
-        close();
+        @Override
+        public void run() {
+            destroy.accept(handle);
+            liveHandles.decrementAndGet();
+            liveBytes.addAndGet(-nativeBytes);
+        }
     }
 }
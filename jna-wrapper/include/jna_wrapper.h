@@ -1,6 +1,8 @@
 #ifndef JNA_WRAPPER_H
 #define JNA_WRAPPER_H
 
+#include <stdint.h>
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -84,6 +86,15 @@ JNA_EXPORT int jna_setSpeed(long handle, int speed);
  */
 JNA_EXPORT int jna_setMinPosterization(long handle, int bits);
 
+/**
+ * 设置单线程模式，使用该属性的量化和重映射不占用共享线程池
+ * 适合调用方已经在多个线程上并行处理多张图像的场景
+ * @param handle 属性对象句柄
+ * @param enabled 非0启用
+ * @return LIQ_JNA_OK 成功，LIQ_JNA_ERROR 失败
+ */
+JNA_EXPORT int jna_setSingleThreaded(long handle, int enabled);
+
 // =============================================================================
 // Image 类的 native 函数
 // =============================================================================
@@ -99,12 +110,43 @@ JNA_EXPORT int jna_setMinPosterization(long handle, int bits);
  */
 JNA_EXPORT long jna_liq_image_create(long attr, unsigned char* bitmap, int width, int height, int components);
 
+/**
+ * 创建图像对象（借用调用方内存，不复制）
+ * @param attr 属性对象句柄
+ * @param bitmap 图像数据，必须在图像销毁前保持有效
+ * @param width 图像宽度
+ * @param height 图像高度
+ * @param components 颜色通道数 (3=RGB, 4=RGBA)
+ * @return 图像对象句柄，失败返回0
+ */
+JNA_EXPORT long jna_liq_image_create_borrowed(long attr, unsigned char* bitmap, int width, int height, int components);
+
+/**
+ * 从连续的RGBA内存创建图像对象（借用调用方内存，不复制）
+ * @param attr 属性对象句柄
+ * @param bitmap R-G-B-A 顺序的像素数据，必须在图像销毁前保持有效
+ * @param width 图像宽度
+ * @param height 图像高度
+ * @return 图像对象句柄，失败返回0
+ */
+JNA_EXPORT long jna_liq_image_create_rgba_borrowed(long attr, unsigned char* bitmap, int width, int height);
+
 /**
  * 销毁图像对象
  * @param handle 图像对象句柄
  */
 JNA_EXPORT void jna_liq_image_destroy(long handle);
 
+/**
+ * 设置背景图像，重映射时与背景相同的像素尽量映射为调色板中的全透明颜色
+ * 用于帧序列：把上一帧设为背景，未变化的区域在 GIF/APNG 中保留上一帧的内容；调色板中没有全透明颜色时不起作用
+ * @param image_handle 图像对象句柄
+ * @param background_handle 背景图像句柄，尺寸必须与图像相同；调用后不论成功与否都不能再使用或销毁
+ *        （成功时随 image_handle 一起销毁，失败时已被销毁）
+ * @return LIQ_JNA_OK 成功，LIQ_JNA_ERROR 失败
+ */
+JNA_EXPORT int jna_liq_image_set_background(long image_handle, long background_handle);
+
 /**
  * 添加固定颜色
  * @param handle 图像对象句柄
@@ -156,6 +198,25 @@ JNA_EXPORT const void* jna_liq_get_palette(long result_handle);
  */
 JNA_EXPORT int jna_get_palette_count(const void* palette);
 
+/**
+ * 直接从结果对象复制调色板字节数据 (RGBA)
+ * @param result_handle 结果对象句柄
+ * @param buffer 目标缓冲区，为NULL时只返回所需大小
+ * @param buffer_size 缓冲区大小
+ * @return 调色板字节数，失败返回-1
+ */
+JNA_EXPORT int jna_get_palette_bytes(long result_handle, unsigned char* buffer, int buffer_size);
+
+/**
+ * 从给定的调色板创建结果对象，不做量化
+ * @param attr 属性对象句柄，最大颜色数需不小于 count
+ * @param palette count 个 R-G-B-A 颜色
+ * @param count 颜色数 (1-256)
+ * @param gamma 调色板的伽马值，<=0 时使用库默认值
+ * @return 结果对象句柄，失败返回0
+ */
+JNA_EXPORT long jna_liq_result_from_palette(long attr, const unsigned char* palette, int count, double gamma);
+
 /**
  * 复制调色板数据到缓冲区
  * @param palette 调色板指针
@@ -218,10 +279,251 @@ JNA_EXPORT double jna_getMeanSquareError(long handle);
  */
 JNA_EXPORT int jna_getQuality(long handle);
 
+/**
+ * 获取最近一次重映射的均方误差
+ * @param handle 结果对象句柄
+ * @return 均方误差，尚未重映射或失败返回-1.0
+ */
+JNA_EXPORT double jna_getRemappingError(long handle);
+
+/**
+ * 获取最近一次重映射的质量，可用于判断一个调色板是否还适合新的图像
+ * @param handle 结果对象句柄
+ * @return 质量值 (0-100)，尚未重映射或失败返回-1
+ */
+JNA_EXPORT int jna_getRemappingQuality(long handle);
+
+// =============================================================================
+// 单次调用的量化+重映射
+// =============================================================================
+
+/**
+ * 取消令牌（不透明），由 jna_cancel_token_create 创建
+ */
+typedef struct jna_cancel_token jna_cancel_token;
+
+/**
+ * 量化参数
+ */
+typedef struct {
+    int max_colors;          // 最大颜色数 (1-256)
+    int quality_min;         // 最小质量 (0-100)
+    int quality_max;         // 最大质量 (0-100)
+    int speed;               // 速度 (1-11)
+    int min_posterization;   // 最小色调分离位数
+    float dithering_level;   // 抖动级别 (0.0-1.0)，<0 使用默认值
+    double output_gamma;     // 输出伽马值，<=0 使用默认值
+    int single_threaded;     // 非0时在调用线程上单线程执行，不占用共享线程池
+    jna_cancel_token *cancel_token;  // 可为NULL，取消后在下一次进度回调时中止并返回 LIQ_ABORTED
+} jna_quantize_settings;
+
+/**
+ * 量化输出
+ */
+typedef struct {
+    double mse;                      // 量化均方误差
+    int palette_count;               // 调色板颜色数
+    int quality;                     // 量化质量 (0-100)
+    unsigned char palette[256 * 4];  // 调色板 (RGBA)
+} jna_quantize_output;
+
+/**
+ * 一次调用完成量化和重映射，内部创建并释放所有native对象
+ * @param settings 量化参数
+ * @param rgba R-G-B-A 顺序的像素数据（不复制）
+ * @param width 图像宽度
+ * @param height 图像高度
+ * @param indices 输出索引缓冲区，至少 width*height 字节
+ * @param indices_size 索引缓冲区大小
+ * @param output 输出调色板、质量和均方误差
+ * @return liq_error 错误码，0 (LIQ_JNA_OK) 表示成功
+ */
+JNA_EXPORT int jna_quantize_remap_rgba(const jna_quantize_settings *settings, const unsigned char *rgba, int width, int height,
+                                       unsigned char *indices, int indices_size, jna_quantize_output *output);
+
+/**
+ * 一次调用把图像重映射到给定的调色板，跳过直方图和K-means
+ * 只使用 settings 中的抖动、伽马、单线程和取消令牌；线程安全，同一个调色板可以被多个线程同时使用
+ * @param settings 量化参数
+ * @param palette 调色板，palette_count 个 R-G-B-A 颜色
+ * @param palette_count 调色板颜色数 (1-256)
+ * @param palette_gamma 调色板的伽马值，<=0 时使用库默认值
+ * @param rgba R-G-B-A 顺序的像素数据（不复制）
+ * @param width 图像宽度
+ * @param height 图像高度
+ * @param indices 输出索引缓冲区，至少 width*height 字节
+ * @param indices_size 索引缓冲区大小
+ * @param output 输出调色板（顺序可能与输入不同）、质量和均方误差
+ * @return liq_error 错误码，0 (LIQ_JNA_OK) 表示成功
+ */
+JNA_EXPORT int jna_remap_palette_rgba(const jna_quantize_settings *settings, const unsigned char *palette, int palette_count,
+                                      double palette_gamma, const unsigned char *rgba, int width, int height,
+                                      unsigned char *indices, int indices_size, jna_quantize_output *output);
+
+/**
+ * 批量量化和重映射，count 张图像紧密排列在同一块RGBA缓冲区中，在 libimagequant 的线程池上并行处理
+ * 每张图像独立生成调色板；output_gamma 不适用于批量接口
+ * @param settings 量化参数
+ * @param rgba 所有图像的 R-G-B-A 像素（不复制）
+ * @param pixels_count rgba 中的像素总数，同时也是 indices 的字节数
+ * @param offsets 每张图像的起始像素下标，共 count 个，图像之间不能重叠
+ * @param sizes 每张图像的宽和高，共 2*count 个
+ * @param count 图像数量
+ * @param indices 输出索引，第i张图像写入 indices + offsets[i]
+ * @param palettes 输出调色板 (RGBA)，至少 count*1024 字节，第i张图像写入 palettes + i*1024
+ * @param stats 每张图像的 错误码、调色板颜色数、质量，共 3*count 个
+ * @param mse 每张图像的均方误差，共 count 个
+ * @return liq_error 错误码，只反映参数错误，单张图像的失败记录在 stats 中
+ */
+JNA_EXPORT int jna_quantize_batch_rgba(const jna_quantize_settings *settings, const unsigned char *rgba, int64_t pixels_count,
+                                       const int64_t *offsets, const int *sizes, int count,
+                                       unsigned char *indices, unsigned char *palettes, int *stats, double *mse);
+
+/**
+ * 共享调色板的批量量化，参数与 jna_quantize_batch_rgba 相同
+ * 所有图像的直方图并行统计后合并为一个，只量化一次，每张图像都重映射到同一个调色板，
+ * 适合精灵图集、动画帧、同一主题的UI图标等需要颜色一致的图像组
+ * palettes 中每个槽位都是同一个共享调色板
+ * @return liq_error 错误码，共享调色板生成失败（质量达不到下限、已取消等）时直接返回，stats 不会被写入
+ */
+JNA_EXPORT int jna_quantize_shared_rgba(const jna_quantize_settings *settings, const unsigned char *rgba, int64_t pixels_count,
+                                        const int64_t *offsets, const int *sizes, int count,
+                                        unsigned char *indices, unsigned char *palettes, int *stats, double *mse);
+
+// =============================================================================
+// 可复用的属性
+// =============================================================================
+
+/**
+ * 按 settings 中的属性级参数（颜色数、质量、速度、色调分离、单线程）创建可复用的属性，
+ * 供同一线程上的多次 jna_engine_* 调用共用，省去每次创建和配置属性
+ * 取消令牌按调用切换，属性只能同时被一个调用（或一个流式会话）使用
+ * @return 属性句柄，失败时为0，用 jna_engine_attr_destroy 释放
+ */
+JNA_EXPORT long jna_engine_attr_create(const jna_quantize_settings *settings);
+
+JNA_EXPORT void jna_engine_attr_destroy(long handle);
+
+/**
+ * 与 jna_quantize_remap_rgba 相同，但使用可复用的属性
+ * settings 中的属性级参数被忽略，只读取抖动、伽马和取消令牌
+ * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+ */
+JNA_EXPORT int jna_engine_quantize_remap_rgba(long engine, const jna_quantize_settings *settings,
+                                              const unsigned char *rgba, int width, int height,
+                                              unsigned char *indices, int indices_size, jna_quantize_output *output);
+
+// =============================================================================
+// 流式量化
+// =============================================================================
+
+/**
+ * 创建流式量化会话：调用方按行带把RGBA像素写入会话的native缓冲区，
+ * 每写完一带就加入直方图（可与后续行的解码重叠），最后一次性生成调色板并重映射
+ * @param settings 量化参数
+ * @param width 图像宽度
+ * @param height 图像高度
+ * @return 会话句柄，失败时为0
+ */
+JNA_EXPORT long jna_stream_create(const jna_quantize_settings *settings, int width, int height);
+
+/**
+ * 与 jna_stream_create 相同，但借用 jna_engine_attr_create 创建的属性，会话销毁之前该属性不能用于其他调用
+ * settings 中只读取抖动、伽马和取消令牌
+ * @return 会话句柄，失败时为0
+ */
+JNA_EXPORT long jna_engine_stream_create(long engine, const jna_quantize_settings *settings, int width, int height);
+
+/**
+ * 获取会话的像素缓冲区
+ * @param handle 会话句柄
+ * @return width*height*4 字节的 R-G-B-A 缓冲区
+ */
+JNA_EXPORT unsigned char* jna_stream_pixels(long handle);
+
+/**
+ * 把已写入的一带行加入直方图，同一会话的调用必须串行
+ * @param handle 会话句柄
+ * @param first_row 起始行
+ * @param row_count 行数
+ * @return liq_error 错误码
+ */
+JNA_EXPORT int jna_stream_add_rows(long handle, int first_row, int row_count);
+
+/**
+ * 由直方图生成调色板并重映射整张图像
+ * @param handle 会话句柄
+ * @param indices 输出索引缓冲区，至少 width*height 字节
+ * @param indices_size 索引缓冲区大小
+ * @param output 输出调色板、质量和均方误差
+ * @return liq_error 错误码
+ */
+JNA_EXPORT int jna_stream_finish(long handle, unsigned char *indices, int indices_size, jna_quantize_output *output);
+
+/**
+ * 由直方图生成调色板，并逐行重映射到会话内部的native索引缓冲区，完成后释放RGBA像素
+ * 调用方可以通过 jna_stream_indices 按行带读取索引并直接编码，Java堆上不需要整图索引
+ * @param handle 会话句柄
+ * @param output 输出调色板、质量和均方误差
+ * @return liq_error 错误码
+ */
+JNA_EXPORT int jna_stream_remap(long handle, jna_quantize_output *output);
+
+/**
+ * 获取 jna_stream_remap 输出的索引缓冲区
+ * @param handle 会话句柄
+ * @return width*height 字节的索引，重映射之前为NULL
+ */
+JNA_EXPORT unsigned char* jna_stream_indices(long handle);
+
+/**
+ * 销毁会话
+ * @param handle 会话句柄
+ */
+JNA_EXPORT void jna_stream_destroy(long handle);
+
 // =============================================================================
 // 实用函数
 // =============================================================================
 
+/**
+ * 创建取消令牌，通过 jna_quantize_settings.cancel_token 传给单次调用、批量和流式接口
+ * @return 令牌句柄，失败时为0
+ */
+JNA_EXPORT long jna_cancel_token_create(void);
+
+/**
+ * 请求取消，线程安全；正在执行的量化/重映射在下一次进度回调时中止，函数返回 LIQ_ABORTED 并释放内部对象
+ * @param token 令牌句柄
+ */
+JNA_EXPORT void jna_cancel_token_cancel(long token);
+
+/**
+ * 最近一次进度回调报告的进度
+ * @param token 令牌句柄
+ * @return 进度 (0-100)
+ */
+JNA_EXPORT float jna_cancel_token_progress(long token);
+
+/**
+ * 释放令牌，调用方必须保证没有正在使用它的调用
+ * @param token 令牌句柄
+ */
+JNA_EXPORT void jna_cancel_token_destroy(long token);
+
+/**
+ * 设置所有调用共享的native线程池大小
+ * @param threads 线程数，0 恢复默认（每个CPU一个线程）
+ * @return liq_error 错误码，库不支持多线程时为 LIQ_UNSUPPORTED
+ */
+JNA_EXPORT int jna_set_thread_pool_size(int threads);
+
+/**
+ * 获取共享native线程池的线程数
+ * @return 线程数
+ */
+JNA_EXPORT int jna_get_thread_pool_size(void);
+
 /**
  * 获取库版本
  * @return 版本号
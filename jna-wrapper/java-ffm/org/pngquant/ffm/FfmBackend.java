@@ -0,0 +1,460 @@
+package org.pngquant.ffm;
+
+import com.sun.jna.Pointer;
+import org.pngquant.jna.ImageQuantBackend;
+import org.pngquant.jna.QuantizeOutput;
+import org.pngquant.jna.QuantizeSettings;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+
+/**
+ * 基于 Foreign Function &amp; Memory API 的后端实现
+ *
+ * 通过 {@code -Dpngquant.backend=ffm} 启用。direct ByteBuffer 以 {@link MemorySegment#ofBuffer} 零拷贝传递；
+ * Java数组参数在临时的 confined {@link Arena} 中中转，调用结束即释放，不依赖GC回收native内存。
+ * {@link QuantizeSettings} / {@link QuantizeOutput} 按字段复制到 {@link LibImageQuantFFM#QUANTIZE_SETTINGS}
+ * / {@link LibImageQuantFFM#QUANTIZE_OUTPUT} 布局的临时内存中，不使用JNA结构体自己的native内存。
+ */
+public final class FfmBackend implements ImageQuantBackend {
+
+    private static final StructLayout SETTINGS = LibImageQuantFFM.QUANTIZE_SETTINGS;
+    private static final StructLayout OUTPUT = LibImageQuantFFM.QUANTIZE_OUTPUT;
+
+    private static long offset(StructLayout layout, String field) {
+        return layout.byteOffset(PathElement.groupElement(field));
+    }
+
+    private static final long MAX_COLORS = offset(SETTINGS, "max_colors");
+    private static final long QUALITY_MIN = offset(SETTINGS, "quality_min");
+    private static final long QUALITY_MAX = offset(SETTINGS, "quality_max");
+    private static final long SPEED = offset(SETTINGS, "speed");
+    private static final long MIN_POSTERIZATION = offset(SETTINGS, "min_posterization");
+    private static final long DITHERING_LEVEL = offset(SETTINGS, "dithering_level");
+    private static final long OUTPUT_GAMMA = offset(SETTINGS, "output_gamma");
+    private static final long SINGLE_THREADED = offset(SETTINGS, "single_threaded");
+    private static final long CANCEL_TOKEN = offset(SETTINGS, "cancel_token");
+    private static final long MSE = offset(OUTPUT, "mse");
+    private static final long PALETTE_COUNT = offset(OUTPUT, "palette_count");
+    private static final long QUALITY = offset(OUTPUT, "quality");
+    private static final long PALETTE = offset(OUTPUT, "palette");
+
+    private static MemorySegment settings(Arena arena, QuantizeSettings settings) {
+        MemorySegment segment = arena.allocate(SETTINGS);
+        segment.set(ValueLayout.JAVA_INT, MAX_COLORS, settings.max_colors);
+        segment.set(ValueLayout.JAVA_INT, QUALITY_MIN, settings.quality_min);
+        segment.set(ValueLayout.JAVA_INT, QUALITY_MAX, settings.quality_max);
+        segment.set(ValueLayout.JAVA_INT, SPEED, settings.speed);
+        segment.set(ValueLayout.JAVA_INT, MIN_POSTERIZATION, settings.min_posterization);
+        segment.set(ValueLayout.JAVA_FLOAT, DITHERING_LEVEL, settings.dithering_level);
+        segment.set(ValueLayout.JAVA_DOUBLE, OUTPUT_GAMMA, settings.output_gamma);
+        segment.set(ValueLayout.JAVA_INT, SINGLE_THREADED, settings.single_threaded);
+        long token = settings.cancel_token != null ? Pointer.nativeValue(settings.cancel_token) : 0;
+        segment.set(ValueLayout.ADDRESS, CANCEL_TOKEN, MemorySegment.ofAddress(token));
+        return segment;
+    }
+
+    private static void readOutput(MemorySegment segment, QuantizeOutput output) {
+        output.mse = segment.get(ValueLayout.JAVA_DOUBLE, MSE);
+        output.palette_count = segment.get(ValueLayout.JAVA_INT, PALETTE_COUNT);
+        output.quality = segment.get(ValueLayout.JAVA_INT, QUALITY);
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, PALETTE, output.palette, 0, output.palette.length);
+    }
+
+    private static MemorySegment copyOf(Arena arena, byte[] array) {
+        MemorySegment segment = arena.allocate(Math.max(array.length, 1));
+        MemorySegment.copy(array, 0, segment, ValueLayout.JAVA_BYTE, 0, array.length);
+        return segment;
+    }
+
+    @Override
+    public String name() {
+        return "ffm";
+    }
+
+    @Override
+    public long jna_liq_attr_create() {
+        return LibImageQuantFFM.jna_liq_attr_create();
+    }
+
+    @Override
+    public long jna_liq_attr_copy(long orig) {
+        return LibImageQuantFFM.jna_liq_attr_copy(orig);
+    }
+
+    @Override
+    public void jna_liq_attr_destroy(long handle) {
+        LibImageQuantFFM.jna_liq_attr_destroy(handle);
+    }
+
+    @Override
+    public int jna_setMaxColors(long handle, int colors) {
+        return LibImageQuantFFM.jna_setMaxColors(handle, colors);
+    }
+
+    @Override
+    public int jna_setQuality_single(long handle, int target) {
+        return LibImageQuantFFM.jna_setQuality_single(handle, target);
+    }
+
+    @Override
+    public int jna_setQuality_range(long handle, int min, int max) {
+        return LibImageQuantFFM.jna_setQuality_range(handle, min, max);
+    }
+
+    @Override
+    public int jna_setSpeed(long handle, int speed) {
+        return LibImageQuantFFM.jna_setSpeed(handle, speed);
+    }
+
+    @Override
+    public int jna_setMinPosterization(long handle, int bits) {
+        return LibImageQuantFFM.jna_setMinPosterization(handle, bits);
+    }
+
+    @Override
+    public int jna_setSingleThreaded(long handle, int enabled) {
+        return LibImageQuantFFM.jna_setSingleThreaded(handle, enabled);
+    }
+
+    @Override
+    public long jna_liq_image_create(long attr, byte[] bitmap, int width, int height, int components) {
+        // native端会复制像素，临时内存在调用结束后即可释放
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment pixels = arena.allocate(bitmap.length);
+            MemorySegment.copy(bitmap, 0, pixels, ValueLayout.JAVA_BYTE, 0, bitmap.length);
+            return LibImageQuantFFM.jna_liq_image_create(attr, pixels, width, height, components);
+        }
+    }
+
+    @Override
+    public long jna_liq_image_create_borrowed(long attr, ByteBuffer bitmap, int width, int height, int components) {
+        return LibImageQuantFFM.jna_liq_image_create_borrowed(attr, MemorySegment.ofBuffer(bitmap), width, height, components);
+    }
+
+    @Override
+    public long jna_liq_image_create_rgba_borrowed(long attr, ByteBuffer bitmap, int width, int height) {
+        return LibImageQuantFFM.jna_liq_image_create_rgba_borrowed(attr, MemorySegment.ofBuffer(bitmap), width, height);
+    }
+
+    @Override
+    public void jna_liq_image_destroy(long handle) {
+        LibImageQuantFFM.jna_liq_image_destroy(handle);
+    }
+
+    @Override
+    public int jna_liq_image_set_background(long image_handle, long background_handle) {
+        return LibImageQuantFFM.jna_liq_image_set_background(image_handle, background_handle);
+    }
+
+    @Override
+    public int jna_addFixedColor(long handle, int r, int g, int b, int a) {
+        return LibImageQuantFFM.jna_addFixedColor(handle, r, g, b, a);
+    }
+
+    @Override
+    public int jna_getWidth(long handle) {
+        return LibImageQuantFFM.jna_getWidth(handle);
+    }
+
+    @Override
+    public int jna_getHeight(long handle) {
+        return LibImageQuantFFM.jna_getHeight(handle);
+    }
+
+    @Override
+    public long jna_liq_quantize_image(long attr, long image_handle) {
+        return LibImageQuantFFM.jna_liq_quantize_image(attr, image_handle);
+    }
+
+    @Override
+    public int jna_get_palette_bytes(long result_handle, byte[] buffer, int buffer_size) {
+        if (buffer == null) {
+            return LibImageQuantFFM.jna_get_palette_bytes(result_handle, MemorySegment.NULL, 0);
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment palette = arena.allocate(buffer_size);
+            int size = LibImageQuantFFM.jna_get_palette_bytes(result_handle, palette, buffer_size);
+            if (size > 0) {
+                MemorySegment.copy(palette, ValueLayout.JAVA_BYTE, 0, buffer, 0, size);
+            }
+            return size;
+        }
+    }
+
+    @Override
+    public long jna_liq_result_from_palette(long attr, byte[] palette, int count, double gamma) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment colors = arena.allocate(palette.length);
+            MemorySegment.copy(palette, 0, colors, ValueLayout.JAVA_BYTE, 0, palette.length);
+            return LibImageQuantFFM.jna_liq_result_from_palette(attr, colors, count, gamma);
+        }
+    }
+
+    @Override
+    public int jna_liq_write_remapped_image(long result_handle, long image_handle, byte[] buffer, int buffer_size) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment indices = arena.allocate(buffer_size);
+            int error = writeRemappedImage(result_handle, image_handle, indices);
+            if (error == LibImageQuantFFM.LIQ_JNA_OK) {
+                MemorySegment.copy(indices, ValueLayout.JAVA_BYTE, 0, buffer, 0, buffer_size);
+            }
+            return error;
+        }
+    }
+
+    /**
+     * 将重映射结果直接写入native内存，省去中转到Java数组的复制
+     * @param indices 输出缓冲区，至少 width*height 字节，生命周期由调用方的 Arena 控制
+     * @return LIQ_JNA_OK 成功，LIQ_JNA_ERROR 失败
+     */
+    public int writeRemappedImage(long result_handle, long image_handle, MemorySegment indices) {
+        return LibImageQuantFFM.jna_liq_write_remapped_image(result_handle, image_handle, indices,
+            (int) indices.byteSize());
+    }
+
+    @Override
+    public void jna_liq_result_destroy(long handle) {
+        LibImageQuantFFM.jna_liq_result_destroy(handle);
+    }
+
+    @Override
+    public int jna_setDitheringLevel(long handle, float dither_level) {
+        return LibImageQuantFFM.jna_setDitheringLevel(handle, dither_level);
+    }
+
+    @Override
+    public int jna_setGamma(long handle, double gamma) {
+        return LibImageQuantFFM.jna_setGamma(handle, gamma);
+    }
+
+    @Override
+    public double jna_getGamma(long handle) {
+        return LibImageQuantFFM.jna_getGamma(handle);
+    }
+
+    @Override
+    public double jna_getMeanSquareError(long handle) {
+        return LibImageQuantFFM.jna_getMeanSquareError(handle);
+    }
+
+    @Override
+    public int jna_getQuality(long handle) {
+        return LibImageQuantFFM.jna_getQuality(handle);
+    }
+
+    @Override
+    public double jna_getRemappingError(long handle) {
+        return LibImageQuantFFM.jna_getRemappingError(handle);
+    }
+
+    @Override
+    public int jna_getRemappingQuality(long handle) {
+        return LibImageQuantFFM.jna_getRemappingQuality(handle);
+    }
+
+    @Override
+    public int jna_quantize_remap_rgba(QuantizeSettings settings, ByteBuffer rgba, int width, int height,
+                                       byte[] indices, int indices_size, QuantizeOutput output) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(indices_size);
+            MemorySegment result = arena.allocate(OUTPUT);
+            int error = LibImageQuantFFM.jna_quantize_remap_rgba(settings(arena, settings), MemorySegment.ofBuffer(rgba),
+                width, height, out, indices_size, result);
+            if (error == LibImageQuantFFM.LIQ_JNA_OK) {
+                MemorySegment.copy(out, ValueLayout.JAVA_BYTE, 0, indices, 0, indices_size);
+                readOutput(result, output);
+            }
+            return error;
+        }
+    }
+
+    @Override
+    public int jna_remap_palette_rgba(QuantizeSettings settings, byte[] palette, int palette_count, double palette_gamma,
+                                      ByteBuffer rgba, int width, int height, byte[] indices, int indices_size,
+                                      QuantizeOutput output) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(indices_size);
+            MemorySegment result = arena.allocate(OUTPUT);
+            int error = LibImageQuantFFM.jna_remap_palette_rgba(settings(arena, settings), copyOf(arena, palette),
+                palette_count, palette_gamma, MemorySegment.ofBuffer(rgba), width, height, out, indices_size, result);
+            if (error == LibImageQuantFFM.LIQ_JNA_OK) {
+                MemorySegment.copy(out, ValueLayout.JAVA_BYTE, 0, indices, 0, indices_size);
+                readOutput(result, output);
+            }
+            return error;
+        }
+    }
+
+    @Override
+    public int jna_quantize_batch_rgba(QuantizeSettings settings, ByteBuffer rgba, long pixels_count,
+                                       long[] offsets, int[] sizes, int count,
+                                       byte[] indices, byte[] palettes, int[] stats, double[] mse) {
+        return quantizeBatch(false, settings, rgba, pixels_count, offsets, sizes, count, indices, palettes, stats, mse);
+    }
+
+    @Override
+    public int jna_quantize_shared_rgba(QuantizeSettings settings, ByteBuffer rgba, long pixels_count,
+                                        long[] offsets, int[] sizes, int count,
+                                        byte[] indices, byte[] palettes, int[] stats, double[] mse) {
+        return quantizeBatch(true, settings, rgba, pixels_count, offsets, sizes, count, indices, palettes, stats, mse);
+    }
+
+    private static int quantizeBatch(boolean shared, QuantizeSettings settings, ByteBuffer rgba, long pixels_count,
+                                     long[] offsets, int[] sizes, int count,
+                                     byte[] indices, byte[] palettes, int[] stats, double[] mse) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment offsetSegment = arena.allocate(ValueLayout.JAVA_LONG.byteSize() * count, 8);
+            MemorySegment.copy(offsets, 0, offsetSegment, ValueLayout.JAVA_LONG, 0, count);
+            MemorySegment sizeSegment = arena.allocate(ValueLayout.JAVA_INT.byteSize() * 2 * count, 4);
+            MemorySegment.copy(sizes, 0, sizeSegment, ValueLayout.JAVA_INT, 0, 2 * count);
+            MemorySegment indexSegment = arena.allocate(indices.length);
+            MemorySegment paletteSegment = arena.allocate(palettes.length);
+            MemorySegment statSegment = arena.allocate(ValueLayout.JAVA_INT.byteSize() * 3 * count, 4);
+            MemorySegment mseSegment = arena.allocate(ValueLayout.JAVA_DOUBLE.byteSize() * count, 8);
+            MemorySegment pixels = MemorySegment.ofBuffer(rgba);
+            MemorySegment nativeSettings = settings(arena, settings);
+            int error = shared
+                ? LibImageQuantFFM.jna_quantize_shared_rgba(nativeSettings, pixels, pixels_count, offsetSegment,
+                    sizeSegment, count, indexSegment, paletteSegment, statSegment, mseSegment)
+                : LibImageQuantFFM.jna_quantize_batch_rgba(nativeSettings, pixels, pixels_count, offsetSegment,
+                    sizeSegment, count, indexSegment, paletteSegment, statSegment, mseSegment);
+            if (error == LibImageQuantFFM.LIQ_JNA_OK) {
+                MemorySegment.copy(indexSegment, ValueLayout.JAVA_BYTE, 0, indices, 0, indices.length);
+                MemorySegment.copy(paletteSegment, ValueLayout.JAVA_BYTE, 0, palettes, 0, palettes.length);
+                MemorySegment.copy(statSegment, ValueLayout.JAVA_INT, 0, stats, 0, 3 * count);
+                MemorySegment.copy(mseSegment, ValueLayout.JAVA_DOUBLE, 0, mse, 0, count);
+            }
+            return error;
+        }
+    }
+
+    @Override
+    public long jna_engine_attr_create(QuantizeSettings settings) {
+        try (Arena arena = Arena.ofConfined()) {
+            return LibImageQuantFFM.jna_engine_attr_create(settings(arena, settings));
+        }
+    }
+
+    @Override
+    public void jna_engine_attr_destroy(long engine) {
+        LibImageQuantFFM.jna_engine_attr_destroy(engine);
+    }
+
+    @Override
+    public int jna_engine_quantize_remap_rgba(long engine, QuantizeSettings settings, ByteBuffer rgba, int width, int height,
+                                              byte[] indices, int indices_size, QuantizeOutput output) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(indices_size);
+            MemorySegment result = arena.allocate(OUTPUT);
+            int error = LibImageQuantFFM.jna_engine_quantize_remap_rgba(engine, settings(arena, settings),
+                MemorySegment.ofBuffer(rgba), width, height, out, indices_size, result);
+            if (error == LibImageQuantFFM.LIQ_JNA_OK) {
+                MemorySegment.copy(out, ValueLayout.JAVA_BYTE, 0, indices, 0, indices_size);
+                readOutput(result, output);
+            }
+            return error;
+        }
+    }
+
+    @Override
+    public long jna_stream_create(QuantizeSettings settings, int width, int height) {
+        try (Arena arena = Arena.ofConfined()) {
+            return LibImageQuantFFM.jna_stream_create(settings(arena, settings), width, height);
+        }
+    }
+
+    @Override
+    public long jna_engine_stream_create(long engine, QuantizeSettings settings, int width, int height) {
+        try (Arena arena = Arena.ofConfined()) {
+            return LibImageQuantFFM.jna_engine_stream_create(engine, settings(arena, settings), width, height);
+        }
+    }
+
+    @Override
+    public ByteBuffer jna_stream_pixels(long stream, long size) {
+        MemorySegment pixels = LibImageQuantFFM.jna_stream_pixels(stream);
+        return pixels.address() != 0 ? pixels.reinterpret(size).asByteBuffer() : null;
+    }
+
+    @Override
+    public int jna_stream_add_rows(long stream, int first_row, int row_count) {
+        return LibImageQuantFFM.jna_stream_add_rows(stream, first_row, row_count);
+    }
+
+    @Override
+    public int jna_stream_finish(long stream, byte[] indices, int indices_size, QuantizeOutput output) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(indices_size);
+            MemorySegment result = arena.allocate(OUTPUT);
+            int error = LibImageQuantFFM.jna_stream_finish(stream, out, indices_size, result);
+            if (error == LibImageQuantFFM.LIQ_JNA_OK) {
+                MemorySegment.copy(out, ValueLayout.JAVA_BYTE, 0, indices, 0, indices_size);
+                readOutput(result, output);
+            }
+            return error;
+        }
+    }
+
+    @Override
+    public int jna_stream_remap(long stream, QuantizeOutput output) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment result = arena.allocate(OUTPUT);
+            int error = LibImageQuantFFM.jna_stream_remap(stream, result);
+            if (error == LibImageQuantFFM.LIQ_JNA_OK) {
+                readOutput(result, output);
+            }
+            return error;
+        }
+    }
+
+    @Override
+    public ByteBuffer jna_stream_indices(long stream, long size) {
+        MemorySegment indices = LibImageQuantFFM.jna_stream_indices(stream);
+        return indices.address() != 0 ? indices.reinterpret(size).asByteBuffer() : null;
+    }
+
+    @Override
+    public void jna_stream_destroy(long stream) {
+        LibImageQuantFFM.jna_stream_destroy(stream);
+    }
+
+    @Override
+    public long jna_cancel_token_create() {
+        return LibImageQuantFFM.jna_cancel_token_create();
+    }
+
+    @Override
+    public void jna_cancel_token_cancel(long token) {
+        LibImageQuantFFM.jna_cancel_token_cancel(token);
+    }
+
+    @Override
+    public float jna_cancel_token_progress(long token) {
+        return LibImageQuantFFM.jna_cancel_token_progress(token);
+    }
+
+    @Override
+    public void jna_cancel_token_destroy(long token) {
+        LibImageQuantFFM.jna_cancel_token_destroy(token);
+    }
+
+    @Override
+    public int jna_liq_version() {
+        return LibImageQuantFFM.jna_liq_version();
+    }
+
+    @Override
+    public int jna_set_thread_pool_size(int threads) {
+        return LibImageQuantFFM.jna_set_thread_pool_size(threads);
+    }
+
+    @Override
+    public int jna_get_thread_pool_size() {
+        return LibImageQuantFFM.jna_get_thread_pool_size();
+    }
+}
@@ -0,0 +1,770 @@
+package org.pngquant.ffm;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_DOUBLE;
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * 基于 Foreign Function &amp; Memory API 的 jna_* 函数绑定
+ *
+ * 与 {@link org.pngquant.jna.LibImageQuantJNA} 覆盖相同的函数，但通过 {@link Linker} 的 downcall
+ * 句柄直接调用，没有接口代理的反射开销；缓冲区参数为 {@link MemorySegment}，其生命周期由调用方的
+ * {@link java.lang.foreign.Arena} 控制。
+ *
+ * 句柄类型 jna_ptr_t (intptr_t) 映射为 long，与JNA绑定保持一致。
+ */
+public final class LibImageQuantFFM {
+
+    public static final int LIQ_JNA_OK = 0;
+    public static final int LIQ_JNA_ERROR = 1;
+
+    static {
+        System.loadLibrary("imagequant_jna");
+    }
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final SymbolLookup LOOKUP = SymbolLookup.loaderLookup();
+
+    private static MethodHandle downcall(String name, FunctionDescriptor descriptor) {
+        MemorySegment symbol = LOOKUP.find(name)
+            .orElseThrow(() -> new UnsatisfiedLinkError("找不到native函数: " + name));
+        return LINKER.downcallHandle(symbol, descriptor);
+    }
+
+    static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new RuntimeException(t);
+    }
+
+    // =============================================================================
+    // PngQuant 类的 native 函数
+    // =============================================================================
+
+    private static final MethodHandle JNA_LIQ_ATTR_CREATE =
+        downcall("jna_liq_attr_create", FunctionDescriptor.of(JAVA_LONG));
+    private static final MethodHandle JNA_LIQ_ATTR_COPY =
+        downcall("jna_liq_attr_copy", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG));
+    private static final MethodHandle JNA_LIQ_ATTR_DESTROY =
+        downcall("jna_liq_attr_destroy", FunctionDescriptor.ofVoid(JAVA_LONG));
+    private static final MethodHandle JNA_SET_MAX_COLORS =
+        downcall("jna_setMaxColors", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle JNA_SET_QUALITY_SINGLE =
+        downcall("jna_setQuality_single", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle JNA_SET_QUALITY_RANGE =
+        downcall("jna_setQuality_range", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_INT, JAVA_INT));
+    private static final MethodHandle JNA_SET_SPEED =
+        downcall("jna_setSpeed", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle JNA_SET_MIN_POSTERIZATION =
+        downcall("jna_setMinPosterization", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle JNA_SET_SINGLE_THREADED =
+        downcall("jna_setSingleThreaded", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_INT));
+
+    public static long jna_liq_attr_create() {
+        try {
+            return (long) JNA_LIQ_ATTR_CREATE.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static long jna_liq_attr_copy(long orig) {
+        try {
+            return (long) JNA_LIQ_ATTR_COPY.invokeExact(orig);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void jna_liq_attr_destroy(long handle) {
+        try {
+            JNA_LIQ_ATTR_DESTROY.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_setMaxColors(long handle, int colors) {
+        try {
+            return (int) JNA_SET_MAX_COLORS.invokeExact(handle, colors);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_setQuality_single(long handle, int target) {
+        try {
+            return (int) JNA_SET_QUALITY_SINGLE.invokeExact(handle, target);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_setQuality_range(long handle, int min, int max) {
+        try {
+            return (int) JNA_SET_QUALITY_RANGE.invokeExact(handle, min, max);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_setSpeed(long handle, int speed) {
+        try {
+            return (int) (long) JNA_SET_SPEED.invokeExact(handle, speed);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_setMinPosterization(long handle, int bits) {
+        try {
+            return (int) (long) JNA_SET_MIN_POSTERIZATION.invokeExact(handle, bits);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_setSingleThreaded(long handle, int enabled) {
+        try {
+            return (int) JNA_SET_SINGLE_THREADED.invokeExact(handle, enabled);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // Image 类的 native 函数
+    // =============================================================================
+
+    private static final MethodHandle JNA_LIQ_IMAGE_CREATE =
+        downcall("jna_liq_image_create", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_INT, JAVA_INT));
+    private static final MethodHandle JNA_LIQ_IMAGE_CREATE_BORROWED =
+        downcall("jna_liq_image_create_borrowed", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_INT, JAVA_INT));
+    private static final MethodHandle JNA_LIQ_IMAGE_CREATE_RGBA_BORROWED =
+        downcall("jna_liq_image_create_rgba_borrowed", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_INT));
+    private static final MethodHandle JNA_LIQ_IMAGE_DESTROY =
+        downcall("jna_liq_image_destroy", FunctionDescriptor.ofVoid(JAVA_LONG));
+    private static final MethodHandle JNA_LIQ_IMAGE_SET_BACKGROUND =
+        downcall("jna_liq_image_set_background", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_LONG));
+    private static final MethodHandle JNA_ADD_FIXED_COLOR =
+        downcall("jna_addFixedColor", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT));
+    private static final MethodHandle JNA_GET_WIDTH =
+        downcall("jna_getWidth", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG));
+    private static final MethodHandle JNA_GET_HEIGHT =
+        downcall("jna_getHeight", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG));
+
+    /**
+     * 创建图像对象，native端复制 bitmap 中的数据，调用返回后 bitmap 即可释放
+     */
+    public static long jna_liq_image_create(long attr, MemorySegment bitmap, int width, int height, int components) {
+        try {
+            return (long) JNA_LIQ_IMAGE_CREATE.invokeExact(attr, bitmap, width, height, components);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 创建图像对象，native端借用 bitmap，其所属 Arena 必须在图像销毁之后才能关闭
+     */
+    public static long jna_liq_image_create_borrowed(long attr, MemorySegment bitmap, int width, int height, int components) {
+        try {
+            return (long) JNA_LIQ_IMAGE_CREATE_BORROWED.invokeExact(attr, bitmap, width, height, components);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 从RGBA连续内存创建图像对象，native端借用 bitmap，其所属 Arena 必须在图像销毁之后才能关闭
+     */
+    public static long jna_liq_image_create_rgba_borrowed(long attr, MemorySegment bitmap, int width, int height) {
+        try {
+            return (long) JNA_LIQ_IMAGE_CREATE_RGBA_BORROWED.invokeExact(attr, bitmap, width, height);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void jna_liq_image_destroy(long handle) {
+        try {
+            JNA_LIQ_IMAGE_DESTROY.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 设置背景图像，background_handle 在调用后不论成功与否都不能再使用
+     */
+    public static int jna_liq_image_set_background(long image_handle, long background_handle) {
+        try {
+            return (int) (long) JNA_LIQ_IMAGE_SET_BACKGROUND.invokeExact(image_handle, background_handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_addFixedColor(long handle, int r, int g, int b, int a) {
+        try {
+            return (int) (long) JNA_ADD_FIXED_COLOR.invokeExact(handle, r, g, b, a);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_getWidth(long handle) {
+        try {
+            return (int) (long) JNA_GET_WIDTH.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_getHeight(long handle) {
+        try {
+            return (int) (long) JNA_GET_HEIGHT.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // Result 类的 native 函数
+    // =============================================================================
+
+    private static final MethodHandle JNA_LIQ_QUANTIZE_IMAGE =
+        downcall("jna_liq_quantize_image", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_LONG));
+    private static final MethodHandle JNA_LIQ_GET_PALETTE =
+        downcall("jna_liq_get_palette", FunctionDescriptor.of(ADDRESS, JAVA_LONG));
+    private static final MethodHandle JNA_GET_PALETTE_COUNT =
+        downcall("jna_get_palette_count", FunctionDescriptor.of(JAVA_LONG, ADDRESS));
+    private static final MethodHandle JNA_GET_PALETTE_BYTES =
+        downcall("jna_get_palette_bytes", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_INT));
+    private static final MethodHandle JNA_COPY_PALETTE_DATA =
+        downcall("jna_copy_palette_data", FunctionDescriptor.of(JAVA_LONG, ADDRESS, ADDRESS, JAVA_INT));
+    private static final MethodHandle JNA_LIQ_RESULT_FROM_PALETTE =
+        downcall("jna_liq_result_from_palette", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_DOUBLE));
+    private static final MethodHandle JNA_LIQ_WRITE_REMAPPED_IMAGE =
+        downcall("jna_liq_write_remapped_image", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_INT));
+    private static final MethodHandle JNA_LIQ_RESULT_DESTROY =
+        downcall("jna_liq_result_destroy", FunctionDescriptor.ofVoid(JAVA_LONG));
+    private static final MethodHandle JNA_SET_DITHERING_LEVEL =
+        downcall("jna_setDitheringLevel", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_FLOAT));
+    private static final MethodHandle JNA_SET_GAMMA =
+        downcall("jna_setGamma", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_DOUBLE));
+    private static final MethodHandle JNA_GET_GAMMA =
+        downcall("jna_getGamma", FunctionDescriptor.of(JAVA_DOUBLE, JAVA_LONG));
+    private static final MethodHandle JNA_GET_MEAN_SQUARE_ERROR =
+        downcall("jna_getMeanSquareError", FunctionDescriptor.of(JAVA_DOUBLE, JAVA_LONG));
+    private static final MethodHandle JNA_GET_QUALITY =
+        downcall("jna_getQuality", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG));
+    private static final MethodHandle JNA_GET_REMAPPING_ERROR =
+        downcall("jna_getRemappingError", FunctionDescriptor.of(JAVA_DOUBLE, JAVA_LONG));
+    private static final MethodHandle JNA_GET_REMAPPING_QUALITY =
+        downcall("jna_getRemappingQuality", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG));
+
+    public static long jna_liq_quantize_image(long attr, long image_handle) {
+        try {
+            return (long) JNA_LIQ_QUANTIZE_IMAGE.invokeExact(attr, image_handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 获取调色板指针（liq_palette*），其内存归结果对象所有
+     */
+    public static MemorySegment jna_liq_get_palette(long result_handle) {
+        try {
+            return (MemorySegment) JNA_LIQ_GET_PALETTE.invokeExact(result_handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_get_palette_count(MemorySegment palette) {
+        try {
+            return (int) (long) JNA_GET_PALETTE_COUNT.invokeExact(palette);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_get_palette_bytes(long result_handle, MemorySegment buffer, int buffer_size) {
+        try {
+            return (int) (long) JNA_GET_PALETTE_BYTES.invokeExact(result_handle, buffer, buffer_size);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 从给定的调色板创建结果对象，palette 为 count 个RGBA颜色
+     */
+    public static long jna_liq_result_from_palette(long attr, MemorySegment palette, int count, double gamma) {
+        try {
+            return (long) JNA_LIQ_RESULT_FROM_PALETTE.invokeExact(attr, palette, count, gamma);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_copy_palette_data(MemorySegment palette, MemorySegment buffer, int buffer_size) {
+        try {
+            return (int) (long) JNA_COPY_PALETTE_DATA.invokeExact(palette, buffer, buffer_size);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_liq_write_remapped_image(long result_handle, long image_handle, MemorySegment buffer, int buffer_size) {
+        try {
+            return (int) (long) JNA_LIQ_WRITE_REMAPPED_IMAGE.invokeExact(result_handle, image_handle, buffer, buffer_size);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void jna_liq_result_destroy(long handle) {
+        try {
+            JNA_LIQ_RESULT_DESTROY.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_setDitheringLevel(long handle, float dither_level) {
+        try {
+            return (int) (long) JNA_SET_DITHERING_LEVEL.invokeExact(handle, dither_level);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_setGamma(long handle, double gamma) {
+        try {
+            return (int) (long) JNA_SET_GAMMA.invokeExact(handle, gamma);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static double jna_getGamma(long handle) {
+        try {
+            return (double) JNA_GET_GAMMA.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static double jna_getMeanSquareError(long handle) {
+        try {
+            return (double) JNA_GET_MEAN_SQUARE_ERROR.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_getQuality(long handle) {
+        try {
+            return (int) (long) JNA_GET_QUALITY.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static double jna_getRemappingError(long handle) {
+        try {
+            return (double) JNA_GET_REMAPPING_ERROR.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_getRemappingQuality(long handle) {
+        try {
+            return (int) (long) JNA_GET_REMAPPING_QUALITY.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // 单次调用的量化+重映射
+    // =============================================================================
+
+    /**
+     * jna_quantize_settings 结构体布局
+     */
+    public static final StructLayout QUANTIZE_SETTINGS = MemoryLayout.structLayout(
+        JAVA_INT.withName("max_colors"),
+        JAVA_INT.withName("quality_min"),
+        JAVA_INT.withName("quality_max"),
+        JAVA_INT.withName("speed"),
+        JAVA_INT.withName("min_posterization"),
+        JAVA_FLOAT.withName("dithering_level"),
+        JAVA_DOUBLE.withName("output_gamma"),
+        JAVA_INT.withName("single_threaded"),
+        MemoryLayout.paddingLayout(4),
+        ADDRESS.withName("cancel_token"));
+
+    /**
+     * jna_quantize_output 结构体布局
+     */
+    public static final StructLayout QUANTIZE_OUTPUT = MemoryLayout.structLayout(
+        JAVA_DOUBLE.withName("mse"),
+        JAVA_INT.withName("palette_count"),
+        JAVA_INT.withName("quality"),
+        MemoryLayout.sequenceLayout(256 * 4, JAVA_BYTE).withName("palette"));
+
+    private static final MethodHandle JNA_QUANTIZE_REMAP_RGBA =
+        downcall("jna_quantize_remap_rgba", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS));
+
+    /**
+     * 一次调用完成量化和重映射
+     * @param settings {@link #QUANTIZE_SETTINGS} 布局的参数
+     * @param rgba R-G-B-A 顺序的像素（不复制）
+     * @param indices 输出索引，至少 width*height 字节
+     * @param output {@link #QUANTIZE_OUTPUT} 布局的输出
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    public static int jna_quantize_remap_rgba(MemorySegment settings, MemorySegment rgba, int width, int height,
+                                              MemorySegment indices, int indices_size, MemorySegment output) {
+        try {
+            return (int) JNA_QUANTIZE_REMAP_RGBA.invokeExact(settings, rgba, width, height, indices, indices_size, output);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static final MethodHandle JNA_REMAP_PALETTE_RGBA =
+        downcall("jna_remap_palette_rgba", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_INT,
+            JAVA_DOUBLE, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS));
+
+    /**
+     * 一次调用把图像重映射到给定的调色板，跳过直方图和K-means
+     * @param palette palette_count 个 R-G-B-A 颜色
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    public static int jna_remap_palette_rgba(MemorySegment settings, MemorySegment palette, int palette_count,
+                                             double palette_gamma, MemorySegment rgba, int width, int height,
+                                             MemorySegment indices, int indices_size, MemorySegment output) {
+        try {
+            return (int) JNA_REMAP_PALETTE_RGBA.invokeExact(settings, palette, palette_count, palette_gamma, rgba, width, height,
+                                                            indices, indices_size, output);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static final MethodHandle JNA_QUANTIZE_BATCH_RGBA =
+        downcall("jna_quantize_batch_rgba", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG,
+            ADDRESS, ADDRESS, JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+
+    /**
+     * 批量量化和重映射，参数含义与 {@code LibImageQuantDirect.jna_quantize_batch_rgba} 相同
+     * @return liq_error 错误码，只反映参数错误，单张图像的失败记录在 stats 中
+     */
+    public static int jna_quantize_batch_rgba(MemorySegment settings, MemorySegment rgba, long pixels_count,
+                                              MemorySegment offsets, MemorySegment sizes, int count,
+                                              MemorySegment indices, MemorySegment palettes, MemorySegment stats, MemorySegment mse) {
+        try {
+            return (int) JNA_QUANTIZE_BATCH_RGBA.invokeExact(settings, rgba, pixels_count, offsets, sizes, count,
+                indices, palettes, stats, mse);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static final MethodHandle JNA_QUANTIZE_SHARED_RGBA =
+        downcall("jna_quantize_shared_rgba", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG,
+            ADDRESS, ADDRESS, JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+
+    /**
+     * 共享调色板的批量量化，参数同 {@link #jna_quantize_batch_rgba}，所有图像只量化一次、共用一个调色板
+     * @return liq_error 错误码，共享调色板生成失败时 stats 不会被写入
+     */
+    public static int jna_quantize_shared_rgba(MemorySegment settings, MemorySegment rgba, long pixels_count,
+                                               MemorySegment offsets, MemorySegment sizes, int count,
+                                               MemorySegment indices, MemorySegment palettes, MemorySegment stats, MemorySegment mse) {
+        try {
+            return (int) JNA_QUANTIZE_SHARED_RGBA.invokeExact(settings, rgba, pixels_count, offsets, sizes, count,
+                indices, palettes, stats, mse);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // 可复用的属性
+    // =============================================================================
+
+    private static final MethodHandle JNA_ENGINE_ATTR_CREATE =
+        downcall("jna_engine_attr_create", FunctionDescriptor.of(JAVA_LONG, ADDRESS));
+    private static final MethodHandle JNA_ENGINE_ATTR_DESTROY =
+        downcall("jna_engine_attr_destroy", FunctionDescriptor.ofVoid(JAVA_LONG));
+    private static final MethodHandle JNA_ENGINE_QUANTIZE_REMAP_RGBA =
+        downcall("jna_engine_quantize_remap_rgba", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, ADDRESS, ADDRESS,
+            JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS));
+    private static final MethodHandle JNA_ENGINE_STREAM_CREATE =
+        downcall("jna_engine_stream_create", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_INT));
+
+    /**
+     * 按 settings 中的属性级参数创建可复用的属性，同一时间只能被一个调用使用
+     * @return 属性句柄，失败时为0
+     */
+    public static long jna_engine_attr_create(MemorySegment settings) {
+        try {
+            return (long) JNA_ENGINE_ATTR_CREATE.invokeExact(settings);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void jna_engine_attr_destroy(long engine) {
+        try {
+            JNA_ENGINE_ATTR_DESTROY.invokeExact(engine);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 与 {@link #jna_quantize_remap_rgba} 相同，但使用可复用的属性；settings 中只读取抖动、伽马和取消令牌
+     */
+    public static int jna_engine_quantize_remap_rgba(long engine, MemorySegment settings, MemorySegment rgba,
+                                                     int width, int height, MemorySegment indices, int indices_size,
+                                                     MemorySegment output) {
+        try {
+            return (int) JNA_ENGINE_QUANTIZE_REMAP_RGBA.invokeExact(engine, settings, rgba, width, height,
+                indices, indices_size, output);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 借用可复用属性的流式量化会话，会话销毁之前该属性不能用于其他调用
+     */
+    public static long jna_engine_stream_create(long engine, MemorySegment settings, int width, int height) {
+        try {
+            return (long) JNA_ENGINE_STREAM_CREATE.invokeExact(engine, settings, width, height);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // 流式量化
+    // =============================================================================
+
+    private static final MethodHandle JNA_STREAM_CREATE =
+        downcall("jna_stream_create", FunctionDescriptor.of(JAVA_LONG, ADDRESS, JAVA_INT, JAVA_INT));
+    private static final MethodHandle JNA_STREAM_PIXELS =
+        downcall("jna_stream_pixels", FunctionDescriptor.of(ADDRESS, JAVA_LONG));
+    private static final MethodHandle JNA_STREAM_ADD_ROWS =
+        downcall("jna_stream_add_rows", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_INT, JAVA_INT));
+    private static final MethodHandle JNA_STREAM_FINISH =
+        downcall("jna_stream_finish", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, ADDRESS, JAVA_INT, ADDRESS));
+    private static final MethodHandle JNA_STREAM_REMAP =
+        downcall("jna_stream_remap", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, ADDRESS));
+    private static final MethodHandle JNA_STREAM_INDICES =
+        downcall("jna_stream_indices", FunctionDescriptor.of(ADDRESS, JAVA_LONG));
+    private static final MethodHandle JNA_STREAM_DESTROY =
+        downcall("jna_stream_destroy", FunctionDescriptor.ofVoid(JAVA_LONG));
+
+    /**
+     * 创建流式量化会话
+     * @param settings {@link #QUANTIZE_SETTINGS} 布局的参数
+     * @return 会话句柄，失败时为0
+     */
+    public static long jna_stream_create(MemorySegment settings, int width, int height) {
+        try {
+            return (long) JNA_STREAM_CREATE.invokeExact(settings, width, height);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 会话的像素缓冲区，返回的段长度为0，需要用 {@link MemorySegment#reinterpret(long)} 扩展为 width*height*4
+     */
+    public static MemorySegment jna_stream_pixels(long stream) {
+        try {
+            return (MemorySegment) JNA_STREAM_PIXELS.invokeExact(stream);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_stream_add_rows(long stream, int first_row, int row_count) {
+        try {
+            return (int) JNA_STREAM_ADD_ROWS.invokeExact(stream, first_row, row_count);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @param output {@link #QUANTIZE_OUTPUT} 布局的输出
+     */
+    public static int jna_stream_finish(long stream, MemorySegment indices, int indices_size, MemorySegment output) {
+        try {
+            return (int) JNA_STREAM_FINISH.invokeExact(stream, indices, indices_size, output);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @param output {@link #QUANTIZE_OUTPUT} 布局的输出
+     */
+    public static int jna_stream_remap(long stream, MemorySegment output) {
+        try {
+            return (int) JNA_STREAM_REMAP.invokeExact(stream, output);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * 重映射输出的索引缓冲区，返回的段长度为0，需要用 {@link MemorySegment#reinterpret(long)} 扩展为 width*height
+     */
+    public static MemorySegment jna_stream_indices(long stream) {
+        try {
+            return (MemorySegment) JNA_STREAM_INDICES.invokeExact(stream);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void jna_stream_destroy(long stream) {
+        try {
+            JNA_STREAM_DESTROY.invokeExact(stream);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // 取消令牌
+    // =============================================================================
+
+    private static final MethodHandle JNA_CANCEL_TOKEN_CREATE =
+        downcall("jna_cancel_token_create", FunctionDescriptor.of(JAVA_LONG));
+    private static final MethodHandle JNA_CANCEL_TOKEN_CANCEL =
+        downcall("jna_cancel_token_cancel", FunctionDescriptor.ofVoid(JAVA_LONG));
+    private static final MethodHandle JNA_CANCEL_TOKEN_PROGRESS =
+        downcall("jna_cancel_token_progress", FunctionDescriptor.of(JAVA_FLOAT, JAVA_LONG));
+    private static final MethodHandle JNA_CANCEL_TOKEN_DESTROY =
+        downcall("jna_cancel_token_destroy", FunctionDescriptor.ofVoid(JAVA_LONG));
+
+    /**
+     * 创建取消令牌，句柄写入 {@link #QUANTIZE_SETTINGS} 的 cancel_token 字段
+     * @return 令牌句柄，失败时为0
+     */
+    public static long jna_cancel_token_create() {
+        try {
+            return (long) JNA_CANCEL_TOKEN_CREATE.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void jna_cancel_token_cancel(long token) {
+        try {
+            JNA_CANCEL_TOKEN_CANCEL.invokeExact(token);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static float jna_cancel_token_progress(long token) {
+        try {
+            return (float) JNA_CANCEL_TOKEN_PROGRESS.invokeExact(token);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static void jna_cancel_token_destroy(long token) {
+        try {
+            JNA_CANCEL_TOKEN_DESTROY.invokeExact(token);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // 线程池
+    // =============================================================================
+
+    private static final MethodHandle JNA_SET_THREAD_POOL_SIZE =
+        downcall("jna_set_thread_pool_size", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    private static final MethodHandle JNA_GET_THREAD_POOL_SIZE =
+        downcall("jna_get_thread_pool_size", FunctionDescriptor.of(JAVA_INT));
+
+    /**
+     * 设置所有调用共享的native线程池大小，0 恢复默认（每个CPU一个线程）
+     * @return liq_error 错误码，库不支持多线程时为 LIQ_UNSUPPORTED
+     */
+    public static int jna_set_thread_pool_size(int threads) {
+        try {
+            return (int) JNA_SET_THREAD_POOL_SIZE.invokeExact(threads);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_get_thread_pool_size() {
+        try {
+            return (int) JNA_GET_THREAD_POOL_SIZE.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // 实用函数
+    // =============================================================================
+
+    private static final MethodHandle JNA_LIQ_VERSION =
+        downcall("jna_liq_version", FunctionDescriptor.of(JAVA_LONG));
+    private static final MethodHandle JNA_IS_VALID_HANDLE =
+        downcall("jna_is_valid_handle", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG));
+
+    public static int jna_liq_version() {
+        try {
+            return (int) (long) JNA_LIQ_VERSION.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    public static int jna_is_valid_handle(long handle) {
+        try {
+            return (int) (long) JNA_IS_VALID_HANDLE.invokeExact(handle);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private LibImageQuantFFM() {
+    }
+}
@@ -0,0 +1,673 @@
+package org.pngquant.ffm;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_DOUBLE;
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * libimagequant 原始C API（libimagequant.h 中的 liq_* 函数）的 FFM 绑定
+ *
+ * 所有对象均以 {@link MemorySegment} 表示的原始指针传递，返回 liq_error 的函数返回 int 错误码
+ * （{@link #LIQ_OK} 表示成功）。带回调的函数接受由 {@link Linker#upcallStub} 生成的函数指针。
+ *
+ * 优先查找独立的 imagequant 动态库（cargo-c 构建），找不到时使用 imagequant_jna 中导出的 liq_* 符号。
+ */
+public final class LiqFFM {
+
+    public static final int LIQ_OK = 0;
+    public static final int LIQ_QUALITY_TOO_LOW = 99;
+    public static final int LIQ_VALUE_OUT_OF_RANGE = 100;
+    public static final int LIQ_OUT_OF_MEMORY = 101;
+    public static final int LIQ_ABORTED = 102;
+    public static final int LIQ_BITMAP_NOT_AVAILABLE = 103;
+    public static final int LIQ_BUFFER_TOO_SMALL = 104;
+    public static final int LIQ_INVALID_POINTER = 105;
+    public static final int LIQ_UNSUPPORTED = 106;
+
+    public static final int LIQ_OWN_ROWS = 4;
+    public static final int LIQ_OWN_PIXELS = 8;
+    public static final int LIQ_COPY_PIXELS = 16;
+
+    /**
+     * liq_color 结构体布局 {r, g, b, a}
+     */
+    public static final StructLayout LIQ_COLOR = MemoryLayout.structLayout(
+        JAVA_BYTE.withName("r"), JAVA_BYTE.withName("g"), JAVA_BYTE.withName("b"), JAVA_BYTE.withName("a"));
+
+    /**
+     * liq_histogram_entry 结构体布局 {liq_color color; unsigned int count}
+     */
+    public static final StructLayout LIQ_HISTOGRAM_ENTRY = MemoryLayout.structLayout(
+        LIQ_COLOR.withName("color"), JAVA_INT.withName("count"));
+
+    /**
+     * liq_palette 结构体布局 {unsigned int count; liq_color entries[256]}
+     */
+    public static final StructLayout LIQ_PALETTE = MemoryLayout.structLayout(
+        JAVA_INT.withName("count"), MemoryLayout.sequenceLayout(256, LIQ_COLOR).withName("entries"));
+
+    /**
+     * liq_batch_image 结构体布局 {size_t offset; unsigned int width, height}
+     */
+    public static final StructLayout LIQ_BATCH_IMAGE = MemoryLayout.structLayout(
+        JAVA_LONG.withName("offset"), JAVA_INT.withName("width"), JAVA_INT.withName("height"));
+
+    /**
+     * liq_batch_result 结构体布局 {liq_error error; int quality; double mse; liq_palette palette}
+     */
+    public static final StructLayout LIQ_BATCH_RESULT = MemoryLayout.structLayout(
+        JAVA_INT.withName("error"), JAVA_INT.withName("quality"), JAVA_DOUBLE.withName("mse"),
+        LIQ_PALETTE.withName("palette"), MemoryLayout.paddingLayout(4));
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final SymbolLookup LOOKUP = lookup();
+
+    private static SymbolLookup lookup() {
+        try {
+            System.loadLibrary("imagequant");
+        } catch (UnsatisfiedLinkError e) {
+            System.loadLibrary("imagequant_jna");
+        }
+        return SymbolLookup.loaderLookup();
+    }
+
+    private static MethodHandle downcall(String name, FunctionDescriptor descriptor) {
+        MemorySegment symbol = LOOKUP.find(name)
+            .orElseThrow(() -> new UnsatisfiedLinkError("找不到native函数: " + name));
+        return LINKER.downcallHandle(symbol, descriptor);
+    }
+
+    // =============================================================================
+    // liq_attr
+    // =============================================================================
+
+    private static final MethodHandle LIQ_ATTR_CREATE =
+        downcall("liq_attr_create", FunctionDescriptor.of(ADDRESS));
+    private static final MethodHandle LIQ_ATTR_COPY =
+        downcall("liq_attr_copy", FunctionDescriptor.of(ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_ATTR_DESTROY =
+        downcall("liq_attr_destroy", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle LIQ_SET_MAX_COLORS =
+        downcall("liq_set_max_colors", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle LIQ_GET_MAX_COLORS =
+        downcall("liq_get_max_colors", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_SET_SPEED =
+        downcall("liq_set_speed", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle LIQ_GET_SPEED =
+        downcall("liq_get_speed", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_SET_SINGLE_THREADED =
+        downcall("liq_set_single_threaded", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle LIQ_SET_MIN_OPACITY =
+        downcall("liq_set_min_opacity", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle LIQ_GET_MIN_OPACITY =
+        downcall("liq_get_min_opacity", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_SET_MIN_POSTERIZATION =
+        downcall("liq_set_min_posterization", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle LIQ_GET_MIN_POSTERIZATION =
+        downcall("liq_get_min_posterization", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_SET_QUALITY =
+        downcall("liq_set_quality", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT));
+    private static final MethodHandle LIQ_GET_MIN_QUALITY =
+        downcall("liq_get_min_quality", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_GET_MAX_QUALITY =
+        downcall("liq_get_max_quality", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_SET_LAST_INDEX_TRANSPARENT =
+        downcall("liq_set_last_index_transparent", FunctionDescriptor.ofVoid(ADDRESS, JAVA_INT));
+    private static final MethodHandle LIQ_SET_LOG_CALLBACK =
+        downcall("liq_set_log_callback", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_SET_LOG_FLUSH_CALLBACK =
+        downcall("liq_set_log_flush_callback", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_ATTR_SET_PROGRESS_CALLBACK =
+        downcall("liq_attr_set_progress_callback", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_RESULT_SET_PROGRESS_CALLBACK =
+        downcall("liq_result_set_progress_callback", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS, ADDRESS));
+
+    public static MemorySegment liq_attr_create() {
+        try {
+            return (MemorySegment) LIQ_ATTR_CREATE.invokeExact();
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static MemorySegment liq_attr_copy(MemorySegment orig) {
+        try {
+            return (MemorySegment) LIQ_ATTR_COPY.invokeExact(orig);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_attr_destroy(MemorySegment attr) {
+        try {
+            LIQ_ATTR_DESTROY.invokeExact(attr);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_max_colors(MemorySegment attr, int colors) {
+        try {
+            return (int) LIQ_SET_MAX_COLORS.invokeExact(attr, colors);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_max_colors(MemorySegment attr) {
+        try {
+            return (int) LIQ_GET_MAX_COLORS.invokeExact(attr);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_speed(MemorySegment attr, int speed) {
+        try {
+            return (int) LIQ_SET_SPEED.invokeExact(attr, speed);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_speed(MemorySegment attr) {
+        try {
+            return (int) LIQ_GET_SPEED.invokeExact(attr);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_single_threaded(MemorySegment attr, int single_threaded) {
+        try {
+            return (int) LIQ_SET_SINGLE_THREADED.invokeExact(attr, single_threaded);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_min_opacity(MemorySegment attr, int min) {
+        try {
+            return (int) LIQ_SET_MIN_OPACITY.invokeExact(attr, min);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_min_opacity(MemorySegment attr) {
+        try {
+            return (int) LIQ_GET_MIN_OPACITY.invokeExact(attr);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_min_posterization(MemorySegment attr, int bits) {
+        try {
+            return (int) LIQ_SET_MIN_POSTERIZATION.invokeExact(attr, bits);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_min_posterization(MemorySegment attr) {
+        try {
+            return (int) LIQ_GET_MIN_POSTERIZATION.invokeExact(attr);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_quality(MemorySegment attr, int minimum, int maximum) {
+        try {
+            return (int) LIQ_SET_QUALITY.invokeExact(attr, minimum, maximum);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_min_quality(MemorySegment attr) {
+        try {
+            return (int) LIQ_GET_MIN_QUALITY.invokeExact(attr);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_max_quality(MemorySegment attr) {
+        try {
+            return (int) LIQ_GET_MAX_QUALITY.invokeExact(attr);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_set_last_index_transparent(MemorySegment attr, int is_last) {
+        try {
+            LIQ_SET_LAST_INDEX_TRANSPARENT.invokeExact(attr, is_last);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_set_log_callback(MemorySegment attr, MemorySegment callback, MemorySegment user_info) {
+        try {
+            LIQ_SET_LOG_CALLBACK.invokeExact(attr, callback, user_info);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_set_log_flush_callback(MemorySegment attr, MemorySegment callback, MemorySegment user_info) {
+        try {
+            LIQ_SET_LOG_FLUSH_CALLBACK.invokeExact(attr, callback, user_info);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_attr_set_progress_callback(MemorySegment attr, MemorySegment callback, MemorySegment user_info) {
+        try {
+            LIQ_ATTR_SET_PROGRESS_CALLBACK.invokeExact(attr, callback, user_info);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_result_set_progress_callback(MemorySegment result, MemorySegment callback, MemorySegment user_info) {
+        try {
+            LIQ_RESULT_SET_PROGRESS_CALLBACK.invokeExact(result, callback, user_info);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // liq_histogram
+    // =============================================================================
+
+    private static final MethodHandle LIQ_HISTOGRAM_CREATE =
+        downcall("liq_histogram_create", FunctionDescriptor.of(ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_HISTOGRAM_ADD_IMAGE =
+        downcall("liq_histogram_add_image", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_HISTOGRAM_ADD_COLORS =
+        downcall("liq_histogram_add_colors", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS, JAVA_INT, JAVA_DOUBLE));
+    private static final MethodHandle LIQ_HISTOGRAM_ADD_FIXED_COLOR =
+        downcall("liq_histogram_add_fixed_color", FunctionDescriptor.of(JAVA_INT, ADDRESS, LIQ_COLOR, JAVA_DOUBLE));
+    private static final MethodHandle LIQ_HISTOGRAM_DESTROY =
+        downcall("liq_histogram_destroy", FunctionDescriptor.ofVoid(ADDRESS));
+
+    public static MemorySegment liq_histogram_create(MemorySegment attr) {
+        try {
+            return (MemorySegment) LIQ_HISTOGRAM_CREATE.invokeExact(attr);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_histogram_add_image(MemorySegment hist, MemorySegment attr, MemorySegment image) {
+        try {
+            return (int) LIQ_HISTOGRAM_ADD_IMAGE.invokeExact(hist, attr, image);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_histogram_add_colors(MemorySegment hist, MemorySegment attr, MemorySegment entries, int num_entries, double gamma) {
+        try {
+            return (int) LIQ_HISTOGRAM_ADD_COLORS.invokeExact(hist, attr, entries, num_entries, gamma);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_histogram_add_fixed_color(MemorySegment hist, MemorySegment color, double gamma) {
+        try {
+            return (int) LIQ_HISTOGRAM_ADD_FIXED_COLOR.invokeExact(hist, color, gamma);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_histogram_destroy(MemorySegment hist) {
+        try {
+            LIQ_HISTOGRAM_DESTROY.invokeExact(hist);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // liq_image
+    // =============================================================================
+
+    private static final MethodHandle LIQ_IMAGE_CREATE_RGBA_ROWS =
+        downcall("liq_image_create_rgba_rows", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS, JAVA_INT, JAVA_INT, JAVA_DOUBLE));
+    private static final MethodHandle LIQ_IMAGE_CREATE_RGBA =
+        downcall("liq_image_create_rgba", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS, JAVA_INT, JAVA_INT, JAVA_DOUBLE));
+    private static final MethodHandle LIQ_IMAGE_CREATE_CUSTOM =
+        downcall("liq_image_create_custom", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS, ADDRESS, JAVA_INT, JAVA_INT, JAVA_DOUBLE));
+    private static final MethodHandle LIQ_IMAGE_SET_MEMORY_OWNERSHIP =
+        downcall("liq_image_set_memory_ownership", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle LIQ_IMAGE_SET_BACKGROUND =
+        downcall("liq_image_set_background", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_IMAGE_SET_IMPORTANCE_MAP =
+        downcall("liq_image_set_importance_map", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle LIQ_IMAGE_ADD_FIXED_COLOR =
+        downcall("liq_image_add_fixed_color", FunctionDescriptor.of(JAVA_INT, ADDRESS, LIQ_COLOR));
+    private static final MethodHandle LIQ_IMAGE_GET_WIDTH =
+        downcall("liq_image_get_width", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_IMAGE_GET_HEIGHT =
+        downcall("liq_image_get_height", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_IMAGE_DESTROY =
+        downcall("liq_image_destroy", FunctionDescriptor.ofVoid(ADDRESS));
+
+    public static MemorySegment liq_image_create_rgba_rows(MemorySegment attr, MemorySegment rows, int width, int height, double gamma) {
+        try {
+            return (MemorySegment) LIQ_IMAGE_CREATE_RGBA_ROWS.invokeExact(attr, rows, width, height, gamma);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static MemorySegment liq_image_create_rgba(MemorySegment attr, MemorySegment bitmap, int width, int height, double gamma) {
+        try {
+            return (MemorySegment) LIQ_IMAGE_CREATE_RGBA.invokeExact(attr, bitmap, width, height, gamma);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static MemorySegment liq_image_create_custom(MemorySegment attr, MemorySegment row_callback, MemorySegment user_info, int width, int height, double gamma) {
+        try {
+            return (MemorySegment) LIQ_IMAGE_CREATE_CUSTOM.invokeExact(attr, row_callback, user_info, width, height, gamma);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_image_set_memory_ownership(MemorySegment image, int ownership_flags) {
+        try {
+            return (int) LIQ_IMAGE_SET_MEMORY_OWNERSHIP.invokeExact(image, ownership_flags);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_image_set_background(MemorySegment image, MemorySegment background_image) {
+        try {
+            return (int) LIQ_IMAGE_SET_BACKGROUND.invokeExact(image, background_image);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_image_set_importance_map(MemorySegment image, MemorySegment buffer, long buffer_size, int memory_handling) {
+        try {
+            return (int) LIQ_IMAGE_SET_IMPORTANCE_MAP.invokeExact(image, buffer, buffer_size, memory_handling);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_image_add_fixed_color(MemorySegment image, MemorySegment color) {
+        try {
+            return (int) LIQ_IMAGE_ADD_FIXED_COLOR.invokeExact(image, color);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_image_get_width(MemorySegment image) {
+        try {
+            return (int) LIQ_IMAGE_GET_WIDTH.invokeExact(image);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_image_get_height(MemorySegment image) {
+        try {
+            return (int) LIQ_IMAGE_GET_HEIGHT.invokeExact(image);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_image_destroy(MemorySegment image) {
+        try {
+            LIQ_IMAGE_DESTROY.invokeExact(image);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    // =============================================================================
+    // liq_result
+    // =============================================================================
+
+    private static final MethodHandle LIQ_HISTOGRAM_QUANTIZE =
+        downcall("liq_histogram_quantize", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_IMAGE_QUANTIZE =
+        downcall("liq_image_quantize", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_RESULT_FROM_PALETTE =
+        downcall("liq_result_from_palette", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_INT, JAVA_DOUBLE, ADDRESS));
+    private static final MethodHandle LIQ_QUANTIZE_BATCH =
+        downcall("liq_quantize_batch", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_FLOAT, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_QUANTIZE_SHARED_BATCH =
+        downcall("liq_quantize_shared_batch", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_FLOAT, ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_SET_DITHERING_LEVEL =
+        downcall("liq_set_dithering_level", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_FLOAT));
+    private static final MethodHandle LIQ_SET_OUTPUT_GAMMA =
+        downcall("liq_set_output_gamma", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_DOUBLE));
+    private static final MethodHandle LIQ_GET_OUTPUT_GAMMA =
+        downcall("liq_get_output_gamma", FunctionDescriptor.of(JAVA_DOUBLE, ADDRESS));
+    private static final MethodHandle LIQ_GET_PALETTE =
+        downcall("liq_get_palette", FunctionDescriptor.of(ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_WRITE_REMAPPED_IMAGE =
+        downcall("liq_write_remapped_image", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS, JAVA_LONG));
+    private static final MethodHandle LIQ_WRITE_REMAPPED_IMAGE_ROWS =
+        downcall("liq_write_remapped_image_rows", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle LIQ_GET_QUANTIZATION_ERROR =
+        downcall("liq_get_quantization_error", FunctionDescriptor.of(JAVA_DOUBLE, ADDRESS));
+    private static final MethodHandle LIQ_GET_QUANTIZATION_QUALITY =
+        downcall("liq_get_quantization_quality", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_GET_REMAPPING_ERROR =
+        downcall("liq_get_remapping_error", FunctionDescriptor.of(JAVA_DOUBLE, ADDRESS));
+    private static final MethodHandle LIQ_GET_REMAPPING_QUALITY =
+        downcall("liq_get_remapping_quality", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle LIQ_RESULT_DESTROY =
+        downcall("liq_result_destroy", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle LIQ_VERSION =
+        downcall("liq_version", FunctionDescriptor.of(JAVA_INT));
+    private static final MethodHandle LIQ_SET_THREAD_POOL_SIZE =
+        downcall("liq_set_thread_pool_size", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    private static final MethodHandle LIQ_GET_THREAD_POOL_SIZE =
+        downcall("liq_get_thread_pool_size", FunctionDescriptor.of(JAVA_INT));
+    private static final MethodHandle LIQ_QUANTIZE_IMAGE =
+        downcall("liq_quantize_image", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS));
+
+    public static int liq_histogram_quantize(MemorySegment hist, MemorySegment attr, MemorySegment result_output) {
+        try {
+            return (int) LIQ_HISTOGRAM_QUANTIZE.invokeExact(hist, attr, result_output);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_image_quantize(MemorySegment image, MemorySegment attr, MemorySegment result_output) {
+        try {
+            return (int) LIQ_IMAGE_QUANTIZE.invokeExact(image, attr, result_output);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_result_from_palette(MemorySegment attr, MemorySegment palette, int palette_size, double gamma, MemorySegment result_output) {
+        try {
+            return (int) LIQ_RESULT_FROM_PALETTE.invokeExact(attr, palette, palette_size, gamma, result_output);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    /**
+     * @param images {@link #LIQ_BATCH_IMAGE} 数组
+     * @param results {@link #LIQ_BATCH_RESULT} 数组
+     */
+    public static int liq_quantize_batch(MemorySegment attr, MemorySegment pixels, long pixels_count, MemorySegment images, int count,
+                                         float dither_level, MemorySegment indices, MemorySegment results) {
+        try {
+            return (int) LIQ_QUANTIZE_BATCH.invokeExact(attr, pixels, pixels_count, images, count, dither_level, indices, results);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    /**
+     * 所有图像共用一个调色板的批量量化，布局同 {@link #liq_quantize_batch}
+     * @param result_output 接收共享的 liq_result*，需要用 liq_result_destroy 释放
+     */
+    public static int liq_quantize_shared_batch(MemorySegment attr, MemorySegment pixels, long pixels_count, MemorySegment images, int count,
+                                                float dither_level, MemorySegment indices, MemorySegment results, MemorySegment result_output) {
+        try {
+            return (int) LIQ_QUANTIZE_SHARED_BATCH.invokeExact(attr, pixels, pixels_count, images, count, dither_level, indices, results, result_output);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_dithering_level(MemorySegment result, float dither_level) {
+        try {
+            return (int) LIQ_SET_DITHERING_LEVEL.invokeExact(result, dither_level);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_output_gamma(MemorySegment result, double gamma) {
+        try {
+            return (int) LIQ_SET_OUTPUT_GAMMA.invokeExact(result, gamma);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static double liq_get_output_gamma(MemorySegment result) {
+        try {
+            return (double) LIQ_GET_OUTPUT_GAMMA.invokeExact(result);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static MemorySegment liq_get_palette(MemorySegment result) {
+        try {
+            return (MemorySegment) LIQ_GET_PALETTE.invokeExact(result);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_write_remapped_image(MemorySegment result, MemorySegment image, MemorySegment buffer, long buffer_size) {
+        try {
+            return (int) LIQ_WRITE_REMAPPED_IMAGE.invokeExact(result, image, buffer, buffer_size);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_write_remapped_image_rows(MemorySegment result, MemorySegment image, MemorySegment row_pointers) {
+        try {
+            return (int) LIQ_WRITE_REMAPPED_IMAGE_ROWS.invokeExact(result, image, row_pointers);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static double liq_get_quantization_error(MemorySegment result) {
+        try {
+            return (double) LIQ_GET_QUANTIZATION_ERROR.invokeExact(result);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_quantization_quality(MemorySegment result) {
+        try {
+            return (int) LIQ_GET_QUANTIZATION_QUALITY.invokeExact(result);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static double liq_get_remapping_error(MemorySegment result) {
+        try {
+            return (double) LIQ_GET_REMAPPING_ERROR.invokeExact(result);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_remapping_quality(MemorySegment result) {
+        try {
+            return (int) LIQ_GET_REMAPPING_QUALITY.invokeExact(result);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static void liq_result_destroy(MemorySegment result) {
+        try {
+            LIQ_RESULT_DESTROY.invokeExact(result);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_version() {
+        try {
+            return (int) LIQ_VERSION.invokeExact();
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_set_thread_pool_size(int threads) {
+        try {
+            return (int) LIQ_SET_THREAD_POOL_SIZE.invokeExact(threads);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static int liq_get_thread_pool_size() {
+        try {
+            return (int) LIQ_GET_THREAD_POOL_SIZE.invokeExact();
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    public static MemorySegment liq_quantize_image(MemorySegment attr, MemorySegment image) {
+        try {
+            return (MemorySegment) LIQ_QUANTIZE_IMAGE.invokeExact(attr, image);
+        } catch (Throwable t) {
+            throw LibImageQuantFFM.rethrow(t);
+        }
+    }
+
+    private LiqFFM() {
+    }
+}
@@ -0,0 +1,150 @@
+package org.pngquant.jna;
+
+import com.sun.jna.Pointer;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 量化任务的取消令牌和截止时间
+ *
+ * 令牌的状态保存在native内存中，通过 {@link QuantizeSettings#setCancelToken} 传给量化函数后，
+ * libimagequant 每次进度回调都会检查它：{@link #cancel()} 之后正在执行的量化或重映射在下一次回调时中止，
+ * 函数返回 {@link LibImageQuantDirect#LIQ_ABORTED} 并在返回前释放所有native对象，不会跑完整个 speed 1 的量化。
+ * 进度回调不进入Java，取消和读取进度都只是读写一个native变量。
+ *
+ * 截止时间由一个共享的守护线程到期后调用 {@link #cancel()} 实现。
+ * 令牌可以在任意线程上取消；{@link #close()} 必须在使用它的native调用结束之后执行。
+ */
+public class CancelToken implements AutoCloseable {
+
+    private static final ScheduledExecutorService TIMER = createTimer();
+
+    // 取消的截止时间立即移出队列，否则在原定时间到期之前一直持有令牌
+    private static ScheduledExecutorService createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "PNG-Deadline");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private static final ImageQuantBackend lib = ImageQuantBackend.INSTANCE;
+
+    private long handle;
+    private final Cleaner.Cleanable cleanable;
+    private volatile boolean cancelled;
+    private volatile boolean deadlineExceeded;
+    private ScheduledFuture<?> deadline;
+
+    /**
+     * @throws OutOfMemoryError native令牌分配失败
+     */
+    public CancelToken() {
+        this.handle = lib.jna_cancel_token_create();
+        if (handle == 0) {
+            throw new OutOfMemoryError("Failed to create cancel token");
+        }
+        this.cleanable = NativeResource.create(handle, lib::jna_cancel_token_destroy, 0, null).register(this);
+    }
+
+    /**
+     * 创建在 timeout 之后自动取消的令牌
+     */
+    public static CancelToken withTimeout(long timeout, TimeUnit unit) {
+        CancelToken token = new CancelToken();
+        token.cancelAfter(timeout, unit);
+        return token;
+    }
+
+    /**
+     * 请求取消，可以重复调用
+     */
+    public synchronized void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            if (handle != 0) {
+                lib.jna_cancel_token_cancel(handle);
+            }
+        }
+    }
+
+    /**
+     * 设置截止时间，到期后自动取消；重复调用以最后一次为准
+     */
+    public synchronized void cancelAfter(long timeout, TimeUnit unit) {
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        if (timeout <= 0) {
+            expire();
+            return;
+        }
+        deadline = TIMER.schedule(this::expire, timeout, unit);
+    }
+
+    private synchronized void expire() {
+        if (!cancelled) {
+            deadlineExceeded = true;
+            cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 是否因为超过截止时间而取消
+     */
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    /**
+     * 已取消时抛出 {@link CancellationException}，用于在各处理步骤之间尽早放弃
+     */
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException(deadlineExceeded ? "超过截止时间" : "已取消");
+        }
+    }
+
+    /**
+     * 当前native调用的进度 (0.0-1.0)，每次量化/重映射调用重新从0开始
+     */
+    public synchronized float getProgress() {
+        return handle != 0 ? lib.jna_cancel_token_progress(handle) / 100f : 0f;
+    }
+
+    /**
+     * 写入 jna_quantize_settings.cancel_token 的指针
+     */
+    synchronized Pointer getPointer() {
+        if (handle == 0) {
+            throw new IllegalStateException("Cancel token is closed");
+        }
+        return new Pointer(handle);
+    }
+
+    /**
+     * 释放native令牌并取消未到期的截止时间
+     */
+    @Override
+    public synchronized void close() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        if (handle != 0) {
+            handle = 0;
+            cleanable.clean();
+        }
+    }
+}
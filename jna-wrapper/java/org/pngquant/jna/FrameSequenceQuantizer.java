@@ -0,0 +1,247 @@
+package org.pngquant.jna;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+
+/**
+ * 帧序列量化：连续帧复用上一帧的调色板，只有画面变化较大时才重新量化
+ *
+ * 仪表盘、录屏等帧序列相邻两帧的差别很小，每帧都做完整量化（直方图+K-means）是浪费。
+ * 每个新帧先重映射到上一次量化的结果上，用 liq_get_remapping_quality 检查重映射质量，
+ * 不低于阈值就直接使用这次重映射；低于阈值才对这一帧重新量化，作为新的关键帧。
+ * 大部分帧只需要一次重映射。
+ *
+ * 开启 {@link #setUseBackground} 后，非关键帧以上一帧为背景重映射（liq_image_set_background），
+ * 与上一帧相同的像素尽量映射为全透明颜色，用于 GIF 或 APNG（BLEND_OP_OVER）这类在上一帧之上叠加的格式；
+ * 调色板中没有全透明颜色时背景不起作用。输出为独立的PNG时不要开启。
+ *
+ * 使用示例：
+ * <pre>
+ * try (FrameSequenceQuantizer frames = new FrameSequenceQuantizer(pngquant, 85)) {
+ *     for (BufferedImage capture : captures) {
+ *         FrameSequenceQuantizer.Frame frame = frames.next(capture);
+ *         ImageIO.write(frame.toIndexedImage(), "PNG", output(frame));
+ *     }
+ *     System.out.println(frames);
+ * }
+ * </pre>
+ * 不是线程安全的。
+ */
+public class FrameSequenceQuantizer implements AutoCloseable {
+
+    private final PngQuantJNA attr;
+    private final int minRemapQuality;
+    private float ditheringLevel = -1;
+    private boolean useBackground;
+
+    private PngQuantJNA.ResultJNA result;
+    private int width;
+    private int height;
+    // 开启背景时保存的上一帧像素副本，调用方可以复用自己的缓冲区
+    private ByteBuffer previous;
+
+    private int frames;
+    private int keyframes;
+
+    /**
+     * @param pngquant 量化参数，内部使用它的副本
+     * @param minRemapQuality 复用调色板所需的最低重映射质量 (0-100)，低于它的帧重新量化
+     */
+    public FrameSequenceQuantizer(PngQuantJNA pngquant, int minRemapQuality) {
+        if (minRemapQuality < 0 || minRemapQuality > 100) {
+            throw new IllegalArgumentException("minRemapQuality must be 0-100, got " + minRemapQuality);
+        }
+        this.attr = new PngQuantJNA(pngquant);
+        this.minRemapQuality = minRemapQuality;
+    }
+
+    /**
+     * 关键帧结果的抖动级别 (0-1)，负数表示使用库默认值
+     */
+    public FrameSequenceQuantizer setDitheringLevel(float ditheringLevel) {
+        this.ditheringLevel = ditheringLevel;
+        return this;
+    }
+
+    /**
+     * 非关键帧是否以上一帧为背景重映射，默认关闭
+     */
+    public FrameSequenceQuantizer setUseBackground(boolean useBackground) {
+        this.useBackground = useBackground;
+        if (!useBackground) {
+            previous = null;
+        }
+        return this;
+    }
+
+    public Frame next(BufferedImage image) throws Exception {
+        return next(PngQuantJNA.ImageJNA.toDirectRGBA(image), image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * 量化下一帧。尺寸与上一帧不同时总是作为关键帧
+     * @param rgba R-G-B-A 顺序的direct ByteBuffer，只在本次调用期间使用
+     * @throws Exception 创建图像或重新量化失败
+     */
+    public Frame next(ByteBuffer rgba, int width, int height) throws Exception {
+        if (attr.getHandle() == 0) {
+            throw new IllegalStateException("FrameSequenceQuantizer is closed");
+        }
+        byte[] indices = new byte[width * height];
+        boolean sameSize = result != null && width == this.width && height == this.height;
+        Frame frame = null;
+
+        if (sameSize) {
+            PngQuantJNA.ImageJNA image = new PngQuantJNA.ImageJNA(attr, rgba, width, height);
+            try {
+                if (useBackground && previous != null) {
+                    image.setBackground(new PngQuantJNA.ImageJNA(attr, previous, width, height));
+                }
+                if (result.remapInto(image, indices)) {
+                    int quality = result.getRemappingQuality();
+                    if (quality >= minRemapQuality) {
+                        frame = new Frame(width, height, indices, result.getPalette(), quality, false);
+                    }
+                }
+            } finally {
+                image.close();
+            }
+        }
+
+        if (frame == null) {
+            // 关键帧是完整的画面，不使用背景
+            PngQuantJNA.ImageJNA image = new PngQuantJNA.ImageJNA(attr, rgba, width, height);
+            try {
+                PngQuantJNA.ResultJNA keyframe = new PngQuantJNA.ResultJNA(attr, image);
+                if (ditheringLevel >= 0) {
+                    keyframe.setDitheringLevel(ditheringLevel);
+                }
+                if (!keyframe.remapInto(image, indices)) {
+                    keyframe.close();
+                    throw new Exception("Remapping failed");
+                }
+                if (result != null) {
+                    result.close();
+                }
+                result = keyframe;
+            } finally {
+                image.close();
+            }
+            this.width = width;
+            this.height = height;
+            keyframes++;
+            frame = new Frame(width, height, indices, result.getPalette(), result.getRemappingQuality(), true);
+        }
+
+        if (useBackground) {
+            savePrevious(rgba, width, height);
+        }
+        frames++;
+        return frame;
+    }
+
+    private void savePrevious(ByteBuffer rgba, int width, int height) {
+        int bytes = width * height * 4;
+        if (previous == null || previous.capacity() != bytes) {
+            previous = ByteBuffer.allocateDirect(bytes);
+        }
+        ByteBuffer src = rgba.duplicate();
+        src.clear().limit(bytes);
+        previous.clear();
+        previous.put(src);
+        previous.flip();
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * 重新量化的帧数，包括第一帧
+     */
+    public int getKeyframeCount() {
+        return keyframes;
+    }
+
+    @Override
+    public void close() {
+        if (result != null) {
+            result.close();
+            result = null;
+        }
+        previous = null;
+        attr.close();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameSequenceQuantizer[frames=" + frames + ", keyframes=" + keyframes
+            + ", reused=" + (frames - keyframes) + ", minRemapQuality=" + minRemapQuality + "]";
+    }
+
+    /**
+     * 一帧的量化结果
+     */
+    public static final class Frame {
+        private final int width;
+        private final int height;
+        private final byte[] indices;
+        private final Palette palette;
+        private final int quality;
+        private final boolean keyframe;
+
+        private Frame(int width, int height, byte[] indices, Palette palette, int quality, boolean keyframe) {
+            this.width = width;
+            this.height = height;
+            this.indices = indices;
+            this.palette = palette;
+            this.quality = quality;
+            this.keyframe = keyframe;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * 调色板索引，width*height 字节，不复制
+         */
+        public byte[] getIndices() {
+            return indices;
+        }
+
+        public Palette getPalette() {
+            return palette;
+        }
+
+        /**
+         * 这一帧的重映射质量 (0-100)
+         */
+        public int getQuality() {
+            return quality;
+        }
+
+        /**
+         * 是否重新量化，false 表示复用了之前的调色板
+         */
+        public boolean isKeyframe() {
+            return keyframe;
+        }
+
+        /**
+         * 转换为 TYPE_BYTE_INDEXED 的 BufferedImage，直接引用索引数组
+         */
+        public BufferedImage toIndexedImage() {
+            DataBufferByte buffer = new DataBufferByte(indices, width * height);
+            WritableRaster raster = Raster.createInterleavedRaster(buffer, width, height, width, 1, new int[]{0}, null);
+            return new BufferedImage(palette.toIndexColorModel(), raster, false, null);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.pngquant.jna;
+
+import java.nio.ByteBuffer;
+
+/**
+ * libimagequant native调用后端
+ *
+ * PngQuantJNA 等高级API只通过该接口访问native函数，因此可以在运行时切换实现：
+ * <ul>
+ *   <li>{@code jna} - 基于 {@link LibImageQuantJNA}（默认）</li>
+ *   <li>{@code ffm} - 基于 java.lang.foreign 的 {@code org.pngquant.ffm.FfmBackend}，需要 Java 22+ 并启用 ffm profile 编译</li>
+ * </ul>
+ * 通过系统属性选择：{@code -Dpngquant.backend=ffm}
+ *
+ * 方法名与 jna_* 函数一一对应，参数只使用Java基本类型、数组和 direct ByteBuffer，
+ * 不依赖任何一种绑定技术的专有类型；C端结构体参数统一用 {@link QuantizeSettings} / {@link QuantizeOutput} 传递，
+ * 非JNA后端按字段复制到自己的结构体布局。
+ */
+public interface ImageQuantBackend {
+
+    /**
+     * 选择后端的系统属性名
+     */
+    String BACKEND_PROPERTY = "pngquant.backend";
+
+    /**
+     * 当前进程使用的后端实例
+     */
+    ImageQuantBackend INSTANCE = load(System.getProperty(BACKEND_PROPERTY, "jna"));
+
+    /**
+     * 按名称加载后端，FFM不可用时回退到JNA
+     * @param name 后端名称 (jna / ffm)
+     * @return 后端实例
+     */
+    static ImageQuantBackend load(String name) {
+        if ("ffm".equalsIgnoreCase(name)) {
+            try {
+                return (ImageQuantBackend) Class.forName("org.pngquant.ffm.FfmBackend")
+                    .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("FFM后端不可用，回退到JNA: " + e);
+            }
+        }
+        return new JnaBackend();
+    }
+
+    /**
+     * 后端名称，用于日志和诊断
+     */
+    String name();
+
+    // =============================================================================
+    // PngQuant 类的 native 函数
+    // =============================================================================
+
+    long jna_liq_attr_create();
+
+    long jna_liq_attr_copy(long orig);
+
+    void jna_liq_attr_destroy(long handle);
+
+    int jna_setMaxColors(long handle, int colors);
+
+    int jna_setQuality_single(long handle, int target);
+
+    int jna_setQuality_range(long handle, int min, int max);
+
+    int jna_setSpeed(long handle, int speed);
+
+    int jna_setMinPosterization(long handle, int bits);
+
+    /**
+     * 单线程模式：使用该属性的量化和重映射在调用线程上执行，不占用共享线程池
+     */
+    int jna_setSingleThreaded(long handle, int enabled);
+
+    // =============================================================================
+    // Image 类的 native 函数
+    // =============================================================================
+
+    /**
+     * 创建图像对象，native端复制像素数据
+     */
+    long jna_liq_image_create(long attr, byte[] bitmap, int width, int height, int components);
+
+    /**
+     * 创建图像对象，native端借用direct ByteBuffer的内存
+     */
+    long jna_liq_image_create_borrowed(long attr, ByteBuffer bitmap, int width, int height, int components);
+
+    /**
+     * 从RGBA顺序的direct ByteBuffer创建图像对象，native端借用内存
+     */
+    long jna_liq_image_create_rgba_borrowed(long attr, ByteBuffer bitmap, int width, int height);
+
+    void jna_liq_image_destroy(long handle);
+
+    int jna_liq_image_set_background(long image_handle, long background_handle);
+
+    int jna_addFixedColor(long handle, int r, int g, int b, int a);
+
+    int jna_getWidth(long handle);
+
+    int jna_getHeight(long handle);
+
+    // =============================================================================
+    // Result 类的 native 函数
+    // =============================================================================
+
+    long jna_liq_quantize_image(long attr, long image_handle);
+
+    /**
+     * 复制调色板字节数据 (RGBA)
+     * @return 调色板字节数，失败返回-1
+     */
+    int jna_get_palette_bytes(long result_handle, byte[] buffer, int buffer_size);
+
+    /**
+     * 从给定的调色板创建结果对象 (palette 为 count 个RGBA颜色)
+     * @return 结果对象句柄，失败返回0
+     */
+    long jna_liq_result_from_palette(long attr, byte[] palette, int count, double gamma);
+
+    int jna_liq_write_remapped_image(long result_handle, long image_handle, byte[] buffer, int buffer_size);
+
+    void jna_liq_result_destroy(long handle);
+
+    int jna_setDitheringLevel(long handle, float dither_level);
+
+    int jna_setGamma(long handle, double gamma);
+
+    double jna_getGamma(long handle);
+
+    double jna_getMeanSquareError(long handle);
+
+    int jna_getQuality(long handle);
+
+    double jna_getRemappingError(long handle);
+
+    int jna_getRemappingQuality(long handle);
+
+    // =============================================================================
+    // 单次调用的量化+重映射
+    // =============================================================================
+
+    /**
+     * 一次调用完成量化和重映射，所有native对象在C端内部创建和释放
+     * @param rgba R-G-B-A 顺序的 direct ByteBuffer（不复制）
+     * @param indices 输出索引，至少 width*height 字节
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    int jna_quantize_remap_rgba(QuantizeSettings settings, ByteBuffer rgba, int width, int height,
+                                byte[] indices, int indices_size, QuantizeOutput output);
+
+    /**
+     * 一次调用把图像重映射到给定的调色板 (palette_count 个RGBA颜色)，跳过直方图和K-means
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    int jna_remap_palette_rgba(QuantizeSettings settings, byte[] palette, int palette_count, double palette_gamma,
+                               ByteBuffer rgba, int width, int height, byte[] indices, int indices_size,
+                               QuantizeOutput output);
+
+    /**
+     * 批量量化和重映射，count 张图像紧密排列在 rgba 中，参数含义见 {@link LibImageQuantDirect#jna_quantize_batch_rgba}
+     * @return liq_error 错误码，只反映参数错误
+     */
+    int jna_quantize_batch_rgba(QuantizeSettings settings, ByteBuffer rgba, long pixels_count,
+                                long[] offsets, int[] sizes, int count,
+                                byte[] indices, byte[] palettes, int[] stats, double[] mse);
+
+    /**
+     * 共享调色板的批量量化，参数同 {@link #jna_quantize_batch_rgba}
+     * @return liq_error 错误码，共享调色板生成失败时 stats 不会被写入
+     */
+    int jna_quantize_shared_rgba(QuantizeSettings settings, ByteBuffer rgba, long pixels_count,
+                                 long[] offsets, int[] sizes, int count,
+                                 byte[] indices, byte[] palettes, int[] stats, double[] mse);
+
+    // =============================================================================
+    // 可复用的属性
+    // =============================================================================
+
+    /**
+     * 按 settings 中的属性级参数创建可复用的属性，同一时间只能被一个调用使用
+     * @return 属性句柄，失败时为0
+     */
+    long jna_engine_attr_create(QuantizeSettings settings);
+
+    void jna_engine_attr_destroy(long engine);
+
+    /**
+     * 与 {@link #jna_quantize_remap_rgba} 相同，但使用可复用的属性
+     */
+    int jna_engine_quantize_remap_rgba(long engine, QuantizeSettings settings, ByteBuffer rgba, int width, int height,
+                                       byte[] indices, int indices_size, QuantizeOutput output);
+
+    // =============================================================================
+    // 流式量化
+    // =============================================================================
+
+    /**
+     * 创建流式量化会话，native端分配 width*height*4 字节的像素缓冲区
+     * @return 会话句柄，失败时为0
+     */
+    long jna_stream_create(QuantizeSettings settings, int width, int height);
+
+    /**
+     * 与 {@link #jna_stream_create} 相同，但借用可复用的属性
+     */
+    long jna_engine_stream_create(long engine, QuantizeSettings settings, int width, int height);
+
+    /**
+     * 会话的像素缓冲区，size 字节的 direct ByteBuffer 视图，在会话销毁之前有效
+     */
+    ByteBuffer jna_stream_pixels(long stream, long size);
+
+    /**
+     * 把已写入的 [first_row, first_row+row_count) 行加入直方图，同一会话的调用必须串行
+     */
+    int jna_stream_add_rows(long stream, int first_row, int row_count);
+
+    int jna_stream_finish(long stream, byte[] indices, int indices_size, QuantizeOutput output);
+
+    int jna_stream_remap(long stream, QuantizeOutput output);
+
+    /**
+     * jna_stream_remap 输出的索引，size 字节的 direct ByteBuffer 视图；重映射之前为null
+     */
+    ByteBuffer jna_stream_indices(long stream, long size);
+
+    void jna_stream_destroy(long stream);
+
+    // =============================================================================
+    // 取消令牌
+    // =============================================================================
+
+    long jna_cancel_token_create();
+
+    void jna_cancel_token_cancel(long token);
+
+    float jna_cancel_token_progress(long token);
+
+    void jna_cancel_token_destroy(long token);
+
+    // =============================================================================
+    // 实用函数
+    // =============================================================================
+
+    int jna_liq_version();
+
+    /**
+     * 设置共享native线程池大小，0 恢复默认（每个CPU一个线程）
+     * @return liq_error 错误码
+     */
+    int jna_set_thread_pool_size(int threads);
+
+    int jna_get_thread_pool_size();
+}
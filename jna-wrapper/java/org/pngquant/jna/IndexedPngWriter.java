@@ -0,0 +1,393 @@
+package org.pngquant.jna;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 调色板PNG编码器，直接把 调色板 + 索引缓冲区 写成PNG，替代 ImageIO.write
+ *
+ * 索引可以是 byte[]，也可以是任意 {@link ByteBuffer}（例如指向native内存的direct buffer），
+ * 编码时逐行从中读取，Java堆上只有一两行的工作缓冲，不需要整图大小的索引数组。
+ *
+ * 只输出 IHDR / PLTE / tRNS / IDAT / IEND。tRNS 截断到最后一个不透明度小于255的条目
+ * （libimagequant 会把半透明颜色排在调色板前部，所以通常很短）；颜色数不超过16时自动使用1/2/4位深度。
+ * zlib 压缩级别和策略可配置，调色板数据默认使用 None 滤波。输出直接写入 {@link WritableByteChannel}。
+ * 大图可以通过 {@link #setParallelDeflate} 启用 {@link ParallelDeflater} 多线程压缩IDAT。
+ *
+ * 实例持有一个 {@link Deflater}，可以重复使用但不是线程安全的，用完需要 {@link #close()}。
+ */
+public class IndexedPngWriter implements AutoCloseable {
+
+    /**
+     * PNG 行滤波类型
+     */
+    public enum Filter {
+        NONE(0), SUB(1), UP(2), AVERAGE(3), PAETH(4);
+
+        final int type;
+
+        Filter(int type) {
+            this.type = type;
+        }
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int IDAT_CHUNK_SIZE = 64 * 1024;
+
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private int level;
+    private int strategy;
+    private Filter filter = Filter.NONE;
+    private Executor parallelExecutor;
+    private int parallelBlockSize;
+    // 块缓冲区：长度(4) + 类型(4) + 数据 + CRC(4)
+    private final ByteBuffer chunk = ByteBuffer.allocate(IDAT_CHUNK_SIZE + 12);
+
+    public IndexedPngWriter() {
+        this(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /**
+     * @param level zlib 压缩级别 (0-9，-1 为默认)
+     * @param strategy {@link Deflater#DEFAULT_STRATEGY} / {@link Deflater#FILTERED} / {@link Deflater#HUFFMAN_ONLY}
+     */
+    public IndexedPngWriter(int level, int strategy) {
+        this.deflater = new Deflater(level);
+        this.deflater.setStrategy(strategy);
+        this.level = level;
+        this.strategy = strategy;
+    }
+
+    public IndexedPngWriter setCompressionLevel(int level) {
+        deflater.setLevel(level);
+        this.level = level;
+        return this;
+    }
+
+    public IndexedPngWriter setStrategy(int strategy) {
+        deflater.setStrategy(strategy);
+        this.strategy = strategy;
+        return this;
+    }
+
+    /**
+     * 启用并行deflate：滤波后的图像数据不少于两块时，按行对齐切成约 blockSize 字节的块在 executor 上压缩
+     * @param executor 压缩线程池，为null时关闭并行
+     * @param blockSize 每块的目标大小（字节），建议不小于128KB，否则字典预置和块边界的开销会明显影响压缩率
+     */
+    public IndexedPngWriter setParallelDeflate(Executor executor, int blockSize) {
+        this.parallelExecutor = executor;
+        this.parallelBlockSize = blockSize;
+        return this;
+    }
+
+    public IndexedPngWriter setFilter(Filter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * 写入文件
+     */
+    public void write(File file, int width, int height, byte[] palette, int paletteCount, byte[] indices) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, width, height, palette, paletteCount, indices, 0);
+        }
+    }
+
+    /**
+     * 写入PNG
+     * @param channel 输出通道，不会被关闭
+     * @param palette 调色板 (RGBA)，至少 paletteCount*4 字节
+     * @param paletteCount 调色板颜色数 (1-256)
+     * @param indices 调色板索引，从 offset 开始的 width*height 字节
+     */
+    public void write(WritableByteChannel channel, int width, int height, byte[] palette, int paletteCount,
+                      byte[] indices, int offset) throws IOException {
+        if (indices.length - offset < (long) width * height) {
+            throw new IllegalArgumentException("Index buffer too small for " + width + "x" + height);
+        }
+        write(channel, width, height, palette, paletteCount, ByteBuffer.wrap(indices, offset, indices.length - offset));
+    }
+
+    /**
+     * 写入文件，索引从 indices 的当前位置读取
+     */
+    public void write(File file, int width, int height, byte[] palette, int paletteCount, ByteBuffer indices) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, width, height, palette, paletteCount, indices);
+        }
+    }
+
+    /**
+     * 写入PNG，索引从 indices 的当前位置开始逐行读取，indices 的位置不会改变
+     * @param indices 调色板索引，至少 width*height 字节
+     */
+    public void write(WritableByteChannel channel, int width, int height, byte[] palette, int paletteCount,
+                      ByteBuffer indices) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        if (paletteCount < 1 || paletteCount > 256 || palette.length < paletteCount * 4) {
+            throw new IllegalArgumentException("Invalid palette size: " + paletteCount);
+        }
+        if (indices.remaining() < (long) width * height) {
+            throw new IllegalArgumentException("Index buffer too small for " + width + "x" + height);
+        }
+
+        int bitDepth = bitDepthFor(paletteCount);
+        writeSignature(channel);
+        writeHeader(channel, width, height, bitDepth);
+        writePalette(channel, palette, paletteCount);
+        writeImageData(channel, width, height, bitDepth, indices.duplicate());
+        beginChunk("IEND");
+        endChunk(channel);
+    }
+
+    static int bitDepthFor(int paletteCount) {
+        if (paletteCount <= 2) return 1;
+        if (paletteCount <= 4) return 2;
+        if (paletteCount <= 16) return 4;
+        return 8;
+    }
+
+    private void writeSignature(WritableByteChannel channel) throws IOException {
+        writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+    }
+
+    private void writeHeader(WritableByteChannel channel, int width, int height, int bitDepth) throws IOException {
+        beginChunk("IHDR");
+        chunk.putInt(width);
+        chunk.putInt(height);
+        chunk.put((byte) bitDepth);
+        chunk.put((byte) 3);  // 颜色类型：调色板
+        chunk.put((byte) 0);  // 压缩方法：deflate
+        chunk.put((byte) 0);  // 滤波方法
+        chunk.put((byte) 0);  // 无隔行
+        endChunk(channel);
+    }
+
+    private void writePalette(WritableByteChannel channel, byte[] palette, int paletteCount) throws IOException {
+        beginChunk("PLTE");
+        int lastTransparent = -1;
+        for (int i = 0; i < paletteCount; i++) {
+            chunk.put(palette, i * 4, 3);
+            if (palette[i * 4 + 3] != (byte) 0xFF) {
+                lastTransparent = i;
+            }
+        }
+        endChunk(channel);
+
+        // tRNS 只需覆盖到最后一个非不透明的条目，之后的条目默认不透明
+        if (lastTransparent >= 0) {
+            beginChunk("tRNS");
+            for (int i = 0; i <= lastTransparent; i++) {
+                chunk.put(palette[i * 4 + 3]);
+            }
+            endChunk(channel);
+        }
+    }
+
+    private void writeImageData(WritableByteChannel channel, int width, int height, int bitDepth,
+                                ByteBuffer indices) throws IOException {
+        int rowBytes = (width * bitDepth + 7) / 8;
+        if (parallelExecutor != null && (long) (rowBytes + 1) * height >= 2L * parallelBlockSize) {
+            writeImageDataParallel(channel, width, height, bitDepth, rowBytes, indices);
+            return;
+        }
+
+        byte[] raw = new byte[rowBytes];
+        byte[] prev = new byte[rowBytes];
+        byte[] filtered = new byte[rowBytes + 1];
+
+        deflater.reset();
+        beginChunk("IDAT");
+        for (int y = 0; y < height; y++) {
+            packRow(indices, width, bitDepth, raw);
+            applyFilter(filter, raw, prev, filtered, 0, bitDepth);
+            deflater.setInput(filtered);
+            while (!deflater.needsInput()) {
+                drain(channel, Deflater.NO_FLUSH);
+            }
+            byte[] t = prev;
+            prev = raw;
+            raw = t;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain(channel, Deflater.NO_FLUSH);
+        }
+        if (chunk.position() > 8) {
+            endChunk(channel);
+        }
+    }
+
+    private void writeImageDataParallel(WritableByteChannel channel, int width, int height, int bitDepth, int rowBytes,
+                                        ByteBuffer indices) throws IOException {
+        int stride = rowBytes + 1;
+        int rowsPerBlock = Math.max(1, parallelBlockSize / stride);
+        int maxInFlight = Runtime.getRuntime().availableProcessors() * 2;
+        byte[] raw = new byte[rowBytes];
+        byte[] prev = new byte[rowBytes];
+
+        beginChunk("IDAT");
+        try (ParallelDeflater parallel = new ParallelDeflater(parallelExecutor, level, strategy, maxInFlight,
+                (data, off, len) -> appendImageData(channel, data, off, len))) {
+            for (int y = 0; y < height; y += rowsPerBlock) {
+                int rows = Math.min(rowsPerBlock, height - y);
+                // 每块使用新数组，提交后由 ParallelDeflater 持有
+                byte[] block = new byte[rows * stride];
+                for (int r = 0; r < rows; r++) {
+                    packRow(indices, width, bitDepth, raw);
+                    applyFilter(filter, raw, prev, block, r * stride, bitDepth);
+                    byte[] t = prev;
+                    prev = raw;
+                    raw = t;
+                }
+                parallel.write(block, block.length);
+            }
+            parallel.finish();
+        }
+        if (chunk.position() > 8) {
+            endChunk(channel);
+        }
+    }
+
+    /**
+     * 把已压缩的数据追加到当前IDAT块，块满时写出并开始新的IDAT块
+     */
+    private void appendImageData(WritableByteChannel channel, byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, chunk.capacity() - 4 - chunk.position());
+            chunk.put(data, offset, n);
+            offset += n;
+            length -= n;
+            if (chunk.position() == chunk.capacity() - 4) {
+                endChunk(channel);
+                beginChunk("IDAT");
+            }
+        }
+    }
+
+    /**
+     * 把deflate输出追加到当前IDAT块，块满时写出并开始新的IDAT块
+     */
+    private void drain(WritableByteChannel channel, int flush) throws IOException {
+        int space = chunk.capacity() - 4 - chunk.position();
+        int n = deflater.deflate(chunk.array(), chunk.position(), space, flush);
+        chunk.position(chunk.position() + n);
+        if (chunk.position() == chunk.capacity() - 4) {
+            endChunk(channel);
+            beginChunk("IDAT");
+        }
+    }
+
+    /**
+     * 从 indices 的当前位置读取一行 width 个索引并按位深度打包到 out，读取后位置前移一行
+     */
+    static void packRow(ByteBuffer indices, int width, int bitDepth, byte[] out) {
+        if (bitDepth == 8) {
+            indices.get(out, 0, width);
+            return;
+        }
+        int perByte = 8 / bitDepth;
+        for (int o = 0, x = 0; o < out.length; o++) {
+            int b = 0;
+            for (int k = 0; k < perByte; k++, x++) {
+                b <<= bitDepth;
+                if (x < width) {
+                    b |= indices.get();
+                }
+            }
+            out[o] = (byte) b;
+        }
+    }
+
+    /**
+     * 对一行滤波，滤波类型写入 out[at]，数据写入 out[at+1 ..]
+     */
+    static void applyFilter(Filter filter, byte[] raw, byte[] prev, byte[] out, int at, int bitDepth) {
+        // 调色板图像每像素不足1字节时，左邻字节距离为1
+        int bpp = Math.max(1, bitDepth / 8);
+        int n = raw.length;
+        out[at] = (byte) filter.type;
+        int o = at + 1;
+        switch (filter) {
+            case NONE:
+                System.arraycopy(raw, 0, out, o, n);
+                break;
+            case SUB:
+                for (int i = 0; i < n; i++) {
+                    int left = i >= bpp ? raw[i - bpp] : 0;
+                    out[o + i] = (byte) (raw[i] - left);
+                }
+                break;
+            case UP:
+                for (int i = 0; i < n; i++) {
+                    out[o + i] = (byte) (raw[i] - prev[i]);
+                }
+                break;
+            case AVERAGE:
+                for (int i = 0; i < n; i++) {
+                    int left = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                    out[o + i] = (byte) (raw[i] - ((left + (prev[i] & 0xFF)) >>> 1));
+                }
+                break;
+            case PAETH:
+                for (int i = 0; i < n; i++) {
+                    int a = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                    out[o + i] = (byte) (raw[i] - paeth(a, b, c));
+                }
+                break;
+        }
+    }
+
+    static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    private void beginChunk(String type) {
+        chunk.clear();
+        chunk.putInt(0);  // 长度在 endChunk 中回填
+        chunk.put(type.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void endChunk(WritableByteChannel channel) throws IOException {
+        int length = chunk.position() - 8;
+        chunk.putInt(0, length);
+        crc.reset();
+        crc.update(chunk.array(), 4, length + 4);
+        chunk.putInt((int) crc.getValue());
+        chunk.flip();
+        writeFully(channel, chunk);
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,287 @@
+package org.pngquant.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 基于JNA的后端实现，委托给直接映射的 {@link LibImageQuantDirect}
+ */
+final class JnaBackend implements ImageQuantBackend {
+
+    @Override
+    public String name() {
+        return "jna";
+    }
+
+    @Override
+    public long jna_liq_attr_create() {
+        return LibImageQuantDirect.jna_liq_attr_create();
+    }
+
+    @Override
+    public long jna_liq_attr_copy(long orig) {
+        return LibImageQuantDirect.jna_liq_attr_copy(orig);
+    }
+
+    @Override
+    public void jna_liq_attr_destroy(long handle) {
+        LibImageQuantDirect.jna_liq_attr_destroy(handle);
+    }
+
+    @Override
+    public int jna_setMaxColors(long handle, int colors) {
+        return LibImageQuantDirect.jna_setMaxColors(handle, colors);
+    }
+
+    @Override
+    public int jna_setQuality_single(long handle, int target) {
+        return LibImageQuantDirect.jna_setQuality_single(handle, target);
+    }
+
+    @Override
+    public int jna_setQuality_range(long handle, int min, int max) {
+        return LibImageQuantDirect.jna_setQuality_range(handle, min, max);
+    }
+
+    @Override
+    public int jna_setSpeed(long handle, int speed) {
+        return LibImageQuantDirect.jna_setSpeed(handle, speed);
+    }
+
+    @Override
+    public int jna_setMinPosterization(long handle, int bits) {
+        return LibImageQuantDirect.jna_setMinPosterization(handle, bits);
+    }
+
+    @Override
+    public int jna_setSingleThreaded(long handle, int enabled) {
+        return LibImageQuantDirect.jna_setSingleThreaded(handle, enabled);
+    }
+
+    @Override
+    public long jna_liq_image_create(long attr, byte[] bitmap, int width, int height, int components) {
+        return LibImageQuantDirect.jna_liq_image_create(attr, bitmap, width, height, components);
+    }
+
+    @Override
+    public long jna_liq_image_create_borrowed(long attr, ByteBuffer bitmap, int width, int height, int components) {
+        return LibImageQuantDirect.jna_liq_image_create_borrowed(attr, Native.getDirectBufferPointer(bitmap), width, height, components);
+    }
+
+    @Override
+    public long jna_liq_image_create_rgba_borrowed(long attr, ByteBuffer bitmap, int width, int height) {
+        return LibImageQuantDirect.jna_liq_image_create_rgba_borrowed(attr, Native.getDirectBufferPointer(bitmap), width, height);
+    }
+
+    @Override
+    public void jna_liq_image_destroy(long handle) {
+        LibImageQuantDirect.jna_liq_image_destroy(handle);
+    }
+
+    @Override
+    public int jna_liq_image_set_background(long image_handle, long background_handle) {
+        return LibImageQuantDirect.jna_liq_image_set_background(image_handle, background_handle);
+    }
+
+    @Override
+    public int jna_addFixedColor(long handle, int r, int g, int b, int a) {
+        return LibImageQuantDirect.jna_addFixedColor(handle, r, g, b, a);
+    }
+
+    @Override
+    public int jna_getWidth(long handle) {
+        return LibImageQuantDirect.jna_getWidth(handle);
+    }
+
+    @Override
+    public int jna_getHeight(long handle) {
+        return LibImageQuantDirect.jna_getHeight(handle);
+    }
+
+    @Override
+    public long jna_liq_quantize_image(long attr, long image_handle) {
+        return LibImageQuantDirect.jna_liq_quantize_image(attr, image_handle);
+    }
+
+    @Override
+    public int jna_get_palette_bytes(long result_handle, byte[] buffer, int buffer_size) {
+        return LibImageQuantDirect.jna_get_palette_bytes(result_handle, buffer, buffer_size);
+    }
+
+    @Override
+    public long jna_liq_result_from_palette(long attr, byte[] palette, int count, double gamma) {
+        return LibImageQuantDirect.jna_liq_result_from_palette(attr, palette, count, gamma);
+    }
+
+    @Override
+    public int jna_liq_write_remapped_image(long result_handle, long image_handle, byte[] buffer, int buffer_size) {
+        return LibImageQuantDirect.jna_liq_write_remapped_image(result_handle, image_handle, buffer, buffer_size);
+    }
+
+    @Override
+    public void jna_liq_result_destroy(long handle) {
+        LibImageQuantDirect.jna_liq_result_destroy(handle);
+    }
+
+    @Override
+    public int jna_setDitheringLevel(long handle, float dither_level) {
+        return LibImageQuantDirect.jna_setDitheringLevel(handle, dither_level);
+    }
+
+    @Override
+    public int jna_setGamma(long handle, double gamma) {
+        return LibImageQuantDirect.jna_setGamma(handle, gamma);
+    }
+
+    @Override
+    public double jna_getGamma(long handle) {
+        return LibImageQuantDirect.jna_getGamma(handle);
+    }
+
+    @Override
+    public double jna_getMeanSquareError(long handle) {
+        return LibImageQuantDirect.jna_getMeanSquareError(handle);
+    }
+
+    @Override
+    public int jna_getQuality(long handle) {
+        return LibImageQuantDirect.jna_getQuality(handle);
+    }
+
+    @Override
+    public double jna_getRemappingError(long handle) {
+        return LibImageQuantDirect.jna_getRemappingError(handle);
+    }
+
+    @Override
+    public int jna_getRemappingQuality(long handle) {
+        return LibImageQuantDirect.jna_getRemappingQuality(handle);
+    }
+
+    @Override
+    public int jna_quantize_remap_rgba(QuantizeSettings settings, ByteBuffer rgba, int width, int height,
+                                       byte[] indices, int indices_size, QuantizeOutput output) {
+        return LibImageQuantDirect.jna_quantize_remap_rgba(settings, Native.getDirectBufferPointer(rgba), width, height,
+            indices, indices_size, output);
+    }
+
+    @Override
+    public int jna_remap_palette_rgba(QuantizeSettings settings, byte[] palette, int palette_count, double palette_gamma,
+                                      ByteBuffer rgba, int width, int height, byte[] indices, int indices_size,
+                                      QuantizeOutput output) {
+        return LibImageQuantDirect.jna_remap_palette_rgba(settings, palette, palette_count, palette_gamma,
+            Native.getDirectBufferPointer(rgba), width, height, indices, indices_size, output);
+    }
+
+    @Override
+    public int jna_quantize_batch_rgba(QuantizeSettings settings, ByteBuffer rgba, long pixels_count,
+                                       long[] offsets, int[] sizes, int count,
+                                       byte[] indices, byte[] palettes, int[] stats, double[] mse) {
+        return LibImageQuantDirect.jna_quantize_batch_rgba(settings, Native.getDirectBufferPointer(rgba), pixels_count,
+            offsets, sizes, count, indices, palettes, stats, mse);
+    }
+
+    @Override
+    public int jna_quantize_shared_rgba(QuantizeSettings settings, ByteBuffer rgba, long pixels_count,
+                                        long[] offsets, int[] sizes, int count,
+                                        byte[] indices, byte[] palettes, int[] stats, double[] mse) {
+        return LibImageQuantDirect.jna_quantize_shared_rgba(settings, Native.getDirectBufferPointer(rgba), pixels_count,
+            offsets, sizes, count, indices, palettes, stats, mse);
+    }
+
+    @Override
+    public long jna_engine_attr_create(QuantizeSettings settings) {
+        return LibImageQuantDirect.jna_engine_attr_create(settings);
+    }
+
+    @Override
+    public void jna_engine_attr_destroy(long engine) {
+        LibImageQuantDirect.jna_engine_attr_destroy(engine);
+    }
+
+    @Override
+    public int jna_engine_quantize_remap_rgba(long engine, QuantizeSettings settings, ByteBuffer rgba, int width, int height,
+                                              byte[] indices, int indices_size, QuantizeOutput output) {
+        return LibImageQuantDirect.jna_engine_quantize_remap_rgba(engine, settings, Native.getDirectBufferPointer(rgba),
+            width, height, indices, indices_size, output);
+    }
+
+    @Override
+    public long jna_stream_create(QuantizeSettings settings, int width, int height) {
+        return LibImageQuantDirect.jna_stream_create(settings, width, height);
+    }
+
+    @Override
+    public long jna_engine_stream_create(long engine, QuantizeSettings settings, int width, int height) {
+        return LibImageQuantDirect.jna_engine_stream_create(engine, settings, width, height);
+    }
+
+    @Override
+    public ByteBuffer jna_stream_pixels(long stream, long size) {
+        Pointer pixels = LibImageQuantDirect.jna_stream_pixels(stream);
+        return pixels != null ? pixels.getByteBuffer(0, size) : null;
+    }
+
+    @Override
+    public int jna_stream_add_rows(long stream, int first_row, int row_count) {
+        return LibImageQuantDirect.jna_stream_add_rows(stream, first_row, row_count);
+    }
+
+    @Override
+    public int jna_stream_finish(long stream, byte[] indices, int indices_size, QuantizeOutput output) {
+        return LibImageQuantDirect.jna_stream_finish(stream, indices, indices_size, output);
+    }
+
+    @Override
+    public int jna_stream_remap(long stream, QuantizeOutput output) {
+        return LibImageQuantDirect.jna_stream_remap(stream, output);
+    }
+
+    @Override
+    public ByteBuffer jna_stream_indices(long stream, long size) {
+        Pointer indices = LibImageQuantDirect.jna_stream_indices(stream);
+        return indices != null ? indices.getByteBuffer(0, size) : null;
+    }
+
+    @Override
+    public void jna_stream_destroy(long stream) {
+        LibImageQuantDirect.jna_stream_destroy(stream);
+    }
+
+    @Override
+    public long jna_cancel_token_create() {
+        return LibImageQuantDirect.jna_cancel_token_create();
+    }
+
+    @Override
+    public void jna_cancel_token_cancel(long token) {
+        LibImageQuantDirect.jna_cancel_token_cancel(token);
+    }
+
+    @Override
+    public float jna_cancel_token_progress(long token) {
+        return LibImageQuantDirect.jna_cancel_token_progress(token);
+    }
+
+    @Override
+    public void jna_cancel_token_destroy(long token) {
+        LibImageQuantDirect.jna_cancel_token_destroy(token);
+    }
+
+    @Override
+    public int jna_liq_version() {
+        return LibImageQuantDirect.jna_liq_version();
+    }
+
+    @Override
+    public int jna_set_thread_pool_size(int threads) {
+        return LibImageQuantDirect.jna_set_thread_pool_size(threads);
+    }
+
+    @Override
+    public int jna_get_thread_pool_size() {
+        return LibImageQuantDirect.jna_get_thread_pool_size();
+    }
+}
@@ -0,0 +1,322 @@
+package org.pngquant.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+
+/**
+ * libimagequant JNA包装库的直接映射（direct mapping）绑定
+ *
+ * 与 {@link LibImageQuantJNA} 的接口代理方式不同，这里的方法在类加载时通过 {@link Native#register}
+ * 注册为真正的JNI native方法，调用时没有反射分派和参数类型转换，只使用基本类型、基本类型数组和 {@link Pointer}。
+ * 这是JNA调用的统一入口，{@link JnaBackend} 和 PngCompressor 都通过它访问native库。
+ *
+ * 使用示例：
+ * <pre>
+ * long attr = LibImageQuantDirect.jna_liq_attr_create();
+ * LibImageQuantDirect.jna_setMaxColors(attr, 256);
+ * // ... 其他操作
+ * LibImageQuantDirect.jna_liq_attr_destroy(attr);
+ * </pre>
+ */
+public final class LibImageQuantDirect {
+
+    // 错误码常量
+    public static final int LIQ_JNA_OK = 0;
+    public static final int LIQ_JNA_ERROR = 1;
+    // liq_error 中的 LIQ_ABORTED，进度回调要求中止（取消或超过截止时间）
+    public static final int LIQ_ABORTED = 102;
+
+    static {
+        Native.register(LibImageQuantDirect.class, loadLibrary());
+    }
+
+    /**
+     * 加载平台特定的库
+     * 先按标准库名在 jna.library.path / java.library.path 中查找，找不到时尝试当前目录
+     */
+    static NativeLibrary loadLibrary() {
+        String osName = System.getProperty("os.name").toLowerCase();
+        String libName = "imagequant_jna";
+
+        try {
+            // 首先尝试标准库名
+            return NativeLibrary.getInstance(libName);
+        } catch (UnsatisfiedLinkError e) {
+            System.err.println("无法加载标准库名，尝试平台特定的库文件...");
+
+            // 确定平台特定的库文件名
+            String platformLib;
+            if (osName.contains("windows")) {
+                platformLib = "./libimagequant_jna.dll";
+            } else if (osName.contains("linux")) {
+                platformLib = "./libimagequant_jna.so";
+            } else if (osName.contains("mac")) {
+                platformLib = "./libimagequant_jna.dylib";
+            } else {
+                throw new RuntimeException("不支持的操作系统: " + osName);
+            }
+
+            try {
+                return NativeLibrary.getInstance(platformLib);
+            } catch (UnsatisfiedLinkError e2) {
+                System.err.println("无法加载平台库: " + platformLib);
+                System.err.println("请确保库文件在当前目录或java.library.path中");
+                System.err.println("当前目录: " + System.getProperty("user.dir"));
+                System.err.println("java.library.path: " + System.getProperty("java.library.path"));
+                throw new RuntimeException("无法加载ImageQuant JNA库", e2);
+            }
+        }
+    }
+
+    // =============================================================================
+    // PngQuant 类的 native 函数
+    // =============================================================================
+
+    public static native long jna_liq_attr_create();
+
+    public static native long jna_liq_attr_copy(long orig);
+
+    public static native void jna_liq_attr_destroy(long handle);
+
+    public static native int jna_setMaxColors(long handle, int colors);
+
+    public static native int jna_setQuality_single(long handle, int target);
+
+    public static native int jna_setQuality_range(long handle, int min, int max);
+
+    public static native int jna_setSpeed(long handle, int speed);
+
+    public static native int jna_setMinPosterization(long handle, int bits);
+
+    public static native int jna_setSingleThreaded(long handle, int enabled);
+
+    // =============================================================================
+    // Image 类的 native 函数
+    // =============================================================================
+
+    /**
+     * 创建图像对象，native端复制像素数据
+     */
+    public static native long jna_liq_image_create(long attr, byte[] bitmap, int width, int height, int components);
+
+    /**
+     * 创建图像对象，native端借用 bitmap 指向的内存
+     * direct ByteBuffer 可通过 {@link Native#getDirectBufferPointer} 转换
+     */
+    public static native long jna_liq_image_create_borrowed(long attr, Pointer bitmap, int width, int height, int components);
+
+    /**
+     * 从RGBA连续内存创建图像对象，native端借用 bitmap 指向的内存
+     */
+    public static native long jna_liq_image_create_rgba_borrowed(long attr, Pointer bitmap, int width, int height);
+
+    public static native void jna_liq_image_destroy(long handle);
+
+    public static native int jna_liq_image_set_background(long image_handle, long background_handle);
+
+    public static native int jna_addFixedColor(long handle, int r, int g, int b, int a);
+
+    public static native int jna_getWidth(long handle);
+
+    public static native int jna_getHeight(long handle);
+
+    // =============================================================================
+    // Result 类的 native 函数
+    // =============================================================================
+
+    public static native long jna_liq_quantize_image(long attr, long image_handle);
+
+    public static native Pointer jna_liq_get_palette(long result_handle);
+
+    public static native int jna_get_palette_count(Pointer palette);
+
+    public static native int jna_get_palette_bytes(long result_handle, byte[] buffer, int buffer_size);
+
+    /**
+     * 从给定的调色板创建结果对象，不做量化
+     * @param palette count 个 R-G-B-A 颜色
+     * @param gamma 调色板的伽马值，<=0 时使用库默认值
+     * @return 结果对象句柄，失败返回0
+     */
+    public static native long jna_liq_result_from_palette(long attr, byte[] palette, int count, double gamma);
+
+    public static native int jna_copy_palette_data(Pointer palette, byte[] buffer, int buffer_size);
+
+    public static native int jna_liq_write_remapped_image(long result_handle, long image_handle, byte[] buffer, int buffer_size);
+
+    public static native void jna_liq_result_destroy(long handle);
+
+    public static native int jna_setDitheringLevel(long handle, float dither_level);
+
+    public static native int jna_setGamma(long handle, double gamma);
+
+    public static native double jna_getGamma(long handle);
+
+    public static native double jna_getMeanSquareError(long handle);
+
+    public static native int jna_getQuality(long handle);
+
+    public static native double jna_getRemappingError(long handle);
+
+    public static native int jna_getRemappingQuality(long handle);
+
+    // =============================================================================
+    // 单次调用的量化+重映射
+    // =============================================================================
+
+    /**
+     * 一次调用完成量化和重映射，所有native对象在C端内部创建和释放
+     * @param settings 量化参数
+     * @param rgba R-G-B-A 顺序的像素指针（不复制）
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param indices 输出索引缓冲区，至少 width*height 字节
+     * @param indices_size 索引缓冲区大小
+     * @param output 输出调色板、质量和均方误差
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    public static native int jna_quantize_remap_rgba(QuantizeSettings settings, Pointer rgba, int width, int height,
+                                                     byte[] indices, int indices_size, QuantizeOutput output);
+
+    /**
+     * 一次调用把图像重映射到给定的调色板，跳过直方图和K-means
+     * settings 中只有抖动、伽马、单线程和取消令牌生效；同一个调色板可以被多个线程同时使用
+     * @param palette palette_count 个 R-G-B-A 颜色
+     * @param palette_gamma 调色板的伽马值，<=0 时使用库默认值
+     * @param output 输出调色板（顺序可能与输入不同，索引以它为准）、质量和均方误差
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    public static native int jna_remap_palette_rgba(QuantizeSettings settings, byte[] palette, int palette_count,
+                                                    double palette_gamma, Pointer rgba, int width, int height,
+                                                    byte[] indices, int indices_size, QuantizeOutput output);
+
+    /**
+     * 批量量化和重映射，count 张图像紧密排列在 rgba 中，在libimagequant的线程池上并行处理
+     * @param offsets 每张图像的起始像素下标
+     * @param sizes 每张图像的宽和高，共 2*count 个
+     * @param indices 输出索引，共 pixels_count 字节，第i张图像写入 offsets[i] 处
+     * @param palettes 输出调色板 (RGBA)，共 count*1024 字节
+     * @param stats 每张图像的 错误码、调色板颜色数、质量，共 3*count 个
+     * @param mse 每张图像的均方误差
+     * @return liq_error 错误码，只反映参数错误
+     */
+    public static native int jna_quantize_batch_rgba(QuantizeSettings settings, Pointer rgba, long pixels_count,
+                                                     long[] offsets, int[] sizes, int count,
+                                                     byte[] indices, byte[] palettes, int[] stats, double[] mse);
+
+    /**
+     * 共享调色板的批量量化，参数同 {@link #jna_quantize_batch_rgba}
+     * 所有图像的直方图合并后只量化一次，palettes 的每个槽位都是同一个调色板
+     * @return liq_error 错误码，共享调色板生成失败时 stats 不会被写入
+     */
+    public static native int jna_quantize_shared_rgba(QuantizeSettings settings, Pointer rgba, long pixels_count,
+                                                      long[] offsets, int[] sizes, int count,
+                                                      byte[] indices, byte[] palettes, int[] stats, double[] mse);
+
+    // =============================================================================
+    // 可复用的属性
+    // =============================================================================
+
+    /**
+     * 按 settings 中的属性级参数创建可复用的属性，同一时间只能被一个调用使用
+     * @return 属性句柄，失败时为0
+     */
+    public static native long jna_engine_attr_create(QuantizeSettings settings);
+
+    public static native void jna_engine_attr_destroy(long engine);
+
+    /**
+     * 与 {@link #jna_quantize_remap_rgba} 相同，但使用可复用的属性；settings 中只读取抖动、伽马和取消令牌
+     */
+    public static native int jna_engine_quantize_remap_rgba(long engine, QuantizeSettings settings, Pointer rgba,
+                                                            int width, int height, byte[] indices, int indices_size,
+                                                            QuantizeOutput output);
+
+    // =============================================================================
+    // 流式量化
+    // =============================================================================
+
+    /**
+     * 创建流式量化会话，native端分配 width*height*4 字节的像素缓冲区
+     * @return 会话句柄，失败时为0
+     */
+    public static native long jna_stream_create(QuantizeSettings settings, int width, int height);
+
+    /**
+     * 与 {@link #jna_stream_create} 相同，但借用可复用的属性，会话销毁之前该属性不能用于其他调用
+     */
+    public static native long jna_engine_stream_create(long engine, QuantizeSettings settings, int width, int height);
+
+    /**
+     * 会话的 R-G-B-A 像素缓冲区
+     */
+    public static native Pointer jna_stream_pixels(long stream);
+
+    /**
+     * 把已写入的 [first_row, first_row+row_count) 行加入直方图，同一会话的调用必须串行
+     */
+    public static native int jna_stream_add_rows(long stream, int first_row, int row_count);
+
+    /**
+     * 由直方图生成调色板并把整张图像重映射到 indices
+     */
+    public static native int jna_stream_finish(long stream, byte[] indices, int indices_size, QuantizeOutput output);
+
+    /**
+     * 由直方图生成调色板，并逐行重映射到会话内部的native索引缓冲区，完成后释放RGBA像素
+     */
+    public static native int jna_stream_remap(long stream, QuantizeOutput output);
+
+    /**
+     * jna_stream_remap 输出的 width*height 字节索引，重映射之前为null
+     */
+    public static native Pointer jna_stream_indices(long stream);
+
+    public static native void jna_stream_destroy(long stream);
+
+    // =============================================================================
+    // 取消令牌
+    // =============================================================================
+
+    /**
+     * 创建取消令牌，通过 {@link QuantizeSettings#setCancelToken} 传给量化函数
+     * @return 令牌句柄，失败时为0
+     */
+    public static native long jna_cancel_token_create();
+
+    /**
+     * 请求取消，可以在任意线程上调用
+     */
+    public static native void jna_cancel_token_cancel(long token);
+
+    /**
+     * 最近一次进度回调报告的进度 (0-100)
+     */
+    public static native float jna_cancel_token_progress(long token);
+
+    public static native void jna_cancel_token_destroy(long token);
+
+    // =============================================================================
+    // 线程池
+    // =============================================================================
+
+    /**
+     * 设置所有调用共享的native线程池大小，0 恢复默认（每个CPU一个线程）
+     * @return liq_error 错误码，库不支持多线程时为 LIQ_UNSUPPORTED
+     */
+    public static native int jna_set_thread_pool_size(int threads);
+
+    public static native int jna_get_thread_pool_size();
+
+    // =============================================================================
+    // 实用函数
+    // =============================================================================
+
+    public static native int jna_liq_version();
+
+    public static native int jna_is_valid_handle(long handle);
+
+    private LibImageQuantDirect() {
+    }
+}
@@ -4,9 +4,14 @@ import com.sun.jna.Library;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 
+import java.nio.ByteBuffer;
+
 /**
  * JNA接口，用于直接调用libimagequant的C函数
  * 
+ * 这是接口代理（interface mapping）方式的绑定，每次调用都经过反射分派和参数转换。
+ * 对调用频繁的场景请使用直接映射的 {@link LibImageQuantDirect}，两者对应同一组native函数。
+ * 
  * 使用示例：
  * <pre>
  * LibImageQuantJNA lib = LibImageQuantJNA.INSTANCE;
@@ -106,12 +111,62 @@ public interface LibImageQuantJNA extends Library {
      */
     long jna_liq_image_create(long attr, byte[] bitmap, int width, int height, int components);
     
+    /**
+     * 创建图像对象（借用native内存，不复制）
+     * @param attr 属性对象句柄
+     * @param bitmap 图像数据指针，必须在图像销毁前保持有效
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param components 颜色通道数 (3=RGB, 4=RGBA)
+     * @return 图像对象句柄，失败返回0
+     */
+    long jna_liq_image_create_borrowed(long attr, Pointer bitmap, int width, int height, int components);
+    
+    /**
+     * 创建图像对象（借用direct ByteBuffer的内存，不复制）
+     * @param attr 属性对象句柄
+     * @param bitmap direct ByteBuffer，必须在图像销毁前保持可达
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param components 颜色通道数 (3=RGB, 4=RGBA)
+     * @return 图像对象句柄，失败返回0
+     */
+    long jna_liq_image_create_borrowed(long attr, ByteBuffer bitmap, int width, int height, int components);
+    
+    /**
+     * 从连续RGBA内存创建图像对象（借用native内存，不复制，不使用行回调）
+     * @param attr 属性对象句柄
+     * @param bitmap R-G-B-A 顺序的像素指针，必须在图像销毁前保持有效
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @return 图像对象句柄，失败返回0
+     */
+    long jna_liq_image_create_rgba_borrowed(long attr, Pointer bitmap, int width, int height);
+    
+    /**
+     * 从连续RGBA的direct ByteBuffer创建图像对象（借用内存，不复制，不使用行回调）
+     * @param attr 属性对象句柄
+     * @param bitmap R-G-B-A 顺序的direct ByteBuffer，必须在图像销毁前保持可达
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @return 图像对象句柄，失败返回0
+     */
+    long jna_liq_image_create_rgba_borrowed(long attr, ByteBuffer bitmap, int width, int height);
+    
     /**
      * 销毁图像对象
      * @param handle 图像对象句柄
      */
     void jna_liq_image_destroy(long handle);
     
+    /**
+     * 设置背景图像，重映射时与背景相同的像素尽量映射为调色板中的全透明颜色
+     * @param image_handle 图像对象句柄
+     * @param background_handle 背景图像句柄，尺寸必须相同；调用后不论成功与否都不能再使用或销毁
+     * @return LIQ_JNA_OK 成功，LIQ_JNA_ERROR 失败
+     */
+    int jna_liq_image_set_background(long image_handle, long background_handle);
+    
     /**
      * 添加固定颜色
      * @param handle 图像对象句柄
@@ -163,6 +218,25 @@ public interface LibImageQuantJNA extends Library {
      */
     int jna_get_palette_count(Pointer palette);
     
+    /**
+     * 直接从结果对象复制调色板字节数据 (RGBA)
+     * @param result_handle 结果对象句柄
+     * @param buffer 目标缓冲区，为null时只返回所需大小
+     * @param buffer_size 缓冲区大小
+     * @return 调色板字节数，失败返回-1
+     */
+    int jna_get_palette_bytes(long result_handle, byte[] buffer, int buffer_size);
+    
+    /**
+     * 从给定的调色板创建结果对象，不做量化
+     * @param attr 属性对象句柄，最大颜色数需不小于 count
+     * @param palette count 个 R-G-B-A 颜色
+     * @param count 颜色数 (1-256)
+     * @param gamma 调色板的伽马值，<=0 时使用库默认值
+     * @return 结果对象句柄，失败返回0
+     */
+    long jna_liq_result_from_palette(long attr, byte[] palette, int count, double gamma);
+    
     /**
      * 复制调色板数据到缓冲区
      * @param palette 调色板指针
@@ -225,6 +299,20 @@ public interface LibImageQuantJNA extends Library {
      */
     int jna_getQuality(long handle);
     
+    /**
+     * 获取最近一次重映射的均方误差
+     * @param handle 结果对象句柄
+     * @return 均方误差，尚未重映射或失败返回-1.0
+     */
+    double jna_getRemappingError(long handle);
+    
+    /**
+     * 获取最近一次重映射的质量
+     * @param handle 结果对象句柄
+     * @return 质量值 (0-100)，尚未重映射或失败返回-1
+     */
+    int jna_getRemappingQuality(long handle);
+    
     // =============================================================================
     // 实用函数
     // =============================================================================
@@ -0,0 +1,118 @@
+package org.pngquant.jna;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * 一个native句柄的释放动作，注册到 {@link Cleaner} 上作为没有调用 close() 时的兜底
+ *
+ * 持有句柄的类在 close() 中调用 {@link Cleaner.Cleanable#clean()} 立即释放；忘记 close() 的对象
+ * 在不可达之后由Cleaner线程释放，不再经过 finalize() 队列。释放动作只执行一次。
+ * 同时统计仍然存活的句柄数和它们占用的native字节数（估计值），见 {@link PngQuantJNA#getLiveNativeBytes()}。
+ *
+ * 释放动作不能引用持有句柄的对象本身，否则对象永远不会变为不可达。
+ */
+final class NativeResource implements Runnable {
+
+    static final Cleaner CLEANER = Cleaner.create(r -> {
+        Thread t = new Thread(r, "PNG-NativeCleaner");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final AtomicLong liveHandles = new AtomicLong();
+    private static final AtomicLong liveBytes = new AtomicLong();
+
+    private final LongConsumer destroy;
+    private long handle;
+    private long bytes;
+    // 借给native的内存（例如direct ByteBuffer），在句柄释放之后才能回收
+    private Object attachment;
+    private Object adopted;
+    // 已接管的句柄的字节数，已经计入 bytes；再次接管时前一个已由native端释放
+    private long adoptedBytes;
+
+    private NativeResource(long handle, LongConsumer destroy, long bytes, Object attachment) {
+        this.handle = handle;
+        this.destroy = destroy;
+        this.bytes = bytes;
+        this.attachment = attachment;
+    }
+
+    /**
+     * @param handle 非0的native句柄
+     * @param destroy 释放句柄的函数，不能引用持有句柄的对象
+     * @param bytes 句柄占用的native字节数估计
+     * @param attachment 句柄释放之前必须保持可达的对象（例如借给native的direct ByteBuffer），可以为null
+     */
+    static NativeResource create(long handle, LongConsumer destroy, long bytes, Object attachment) {
+        NativeResource resource = new NativeResource(handle, destroy, bytes, attachment);
+        liveHandles.incrementAndGet();
+        liveBytes.addAndGet(bytes);
+        return resource;
+    }
+
+    /**
+     * 在 owner 不可达时执行本释放动作；owner 的 close() 应调用返回值的 clean()
+     */
+    Cleaner.Cleanable register(Object owner) {
+        return CLEANER.register(owner, this);
+    }
+
+    /**
+     * 另一个句柄已经由native端转交给本句柄（随本句柄一起销毁）：
+     * 它的字节数和借用内存记到本句柄上，它自己的释放动作不再销毁句柄。
+     * 同一时间只接管一个句柄：再次接管时native端已经释放了前一个，它的字节数从统计中扣除
+     */
+    synchronized void adopt(NativeResource other) {
+        synchronized (other) {
+            if (other.handle == 0) {
+                return;
+            }
+            bytes += other.bytes - adoptedBytes;
+            liveBytes.addAndGet(-adoptedBytes);
+            adoptedBytes = other.bytes;
+            adopted = other.attachment;
+            // 字节数原样转到本句柄上，只少了一个独立的句柄
+            liveHandles.decrementAndGet();
+            other.handle = 0;
+            other.bytes = 0;
+            other.attachment = null;
+        }
+    }
+
+    /**
+     * 句柄已经在native端销毁，只更新统计，释放动作不再销毁句柄
+     */
+    synchronized void forget() {
+        if (handle != 0) {
+            handle = 0;
+            liveHandles.decrementAndGet();
+            liveBytes.addAndGet(-bytes);
+        }
+        bytes = 0;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (handle != 0) {
+            destroy.accept(handle);
+            handle = 0;
+            liveHandles.decrementAndGet();
+            liveBytes.addAndGet(-bytes);
+        }
+        bytes = 0;
+        adoptedBytes = 0;
+        attachment = null;
+        adopted = null;
+    }
+
+    static long getLiveHandles() {
+        return liveHandles.get();
+    }
+
+    static long getLiveBytes() {
+        return liveBytes.get();
+    }
+}
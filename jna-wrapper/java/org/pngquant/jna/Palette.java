@@ -0,0 +1,205 @@
+package org.pngquant.jna;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * 固定调色板（最多256个RGBA颜色），用于只重映射、不量化的模式
+ *
+ * 品牌色、主题色等素材的调色板是事先确定的，重映射到固定调色板可以完全跳过直方图和K-means，
+ * 只剩下每像素的最近颜色查找（和抖动）。调色板可以来自一次量化的输出、一张索引PNG，或者启动时从文件加载。
+ *
+ * 文本格式每行一个 RRGGBBAA 十六进制颜色，可以手工编辑和纳入版本管理：
+ * <pre>
+ * # liq-palette v1
+ * gamma 0.45455
+ * 000000FF
+ * FFFFFFFF
+ * </pre>
+ * 以 # 开头的行为注释，gamma 行可省略。类本身也实现了 {@link Serializable}。
+ */
+public final class Palette implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final String HEADER = "# liq-palette v1";
+
+    // count*4 字节 RGBA
+    private final byte[] rgba;
+    private final double gamma;
+
+    /**
+     * @param rgba R-G-B-A 顺序的颜色，长度为4的倍数，1-256个颜色；数组会被复制
+     * @param gamma 颜色的伽马值，0 表示使用库默认值 (1/2.2)
+     */
+    public Palette(byte[] rgba, double gamma) {
+        if (rgba.length == 0 || rgba.length % 4 != 0 || rgba.length > 256 * 4) {
+            throw new IllegalArgumentException("Palette must have 1-256 RGBA colors, got " + rgba.length + " bytes");
+        }
+        this.rgba = rgba.clone();
+        this.gamma = Math.max(0, gamma);
+    }
+
+    public Palette(byte[] rgba) {
+        this(rgba, 0);
+    }
+
+    /**
+     * 取一次量化输出的调色板
+     */
+    public static Palette fromOutput(QuantizeOutput output) {
+        return new Palette(Arrays.copyOf(output.palette, output.palette_count * 4));
+    }
+
+    /**
+     * 取索引图像（例如用 ImageIO 读取的调色板PNG）的颜色表
+     * @throws IllegalArgumentException 图像不是索引颜色
+     */
+    public static Palette fromIndexedImage(BufferedImage image) {
+        if (!(image.getColorModel() instanceof IndexColorModel)) {
+            throw new IllegalArgumentException("Image is not indexed");
+        }
+        IndexColorModel model = (IndexColorModel) image.getColorModel();
+        int count = Math.min(256, model.getMapSize());
+        byte[] rgba = new byte[count * 4];
+        for (int i = 0; i < count; i++) {
+            rgba[i * 4] = (byte) model.getRed(i);
+            rgba[i * 4 + 1] = (byte) model.getGreen(i);
+            rgba[i * 4 + 2] = (byte) model.getBlue(i);
+            rgba[i * 4 + 3] = (byte) model.getAlpha(i);
+        }
+        return new Palette(rgba);
+    }
+
+    public int getColorCount() {
+        return rgba.length / 4;
+    }
+
+    public double getGamma() {
+        return gamma;
+    }
+
+    /**
+     * @return R-G-B-A 颜色的副本
+     */
+    public byte[] getRGBA() {
+        return rgba.clone();
+    }
+
+    /**
+     * 不复制，只给本包内的native调用使用
+     */
+    byte[] rgba() {
+        return rgba;
+    }
+
+    public IndexColorModel toIndexColorModel() {
+        return new IndexColorModel(8, getColorCount(), rgba, 0, true);
+    }
+
+    /**
+     * 按文本格式写出，不关闭流
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.US_ASCII);
+        writer.write(HEADER);
+        writer.write('\n');
+        if (gamma > 0) {
+            writer.write("gamma " + gamma + "\n");
+        }
+        for (int i = 0; i < rgba.length; i += 4) {
+            writer.write(String.format("%02X%02X%02X%02X\n",
+                rgba[i] & 0xFF, rgba[i + 1] & 0xFF, rgba[i + 2] & 0xFF, rgba[i + 3] & 0xFF));
+        }
+        writer.flush();
+    }
+
+    /**
+     * 读取文本格式的调色板，不关闭流
+     * @throws IOException 格式错误或颜色数不在1-256之间
+     */
+    public static Palette readFrom(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        return parse(reader);
+    }
+
+    private static Palette parse(BufferedReader reader) throws IOException {
+        byte[] rgba = new byte[256 * 4];
+        int count = 0;
+        double gamma = 0;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                if (line.startsWith("gamma")) {
+                    gamma = Double.parseDouble(line.substring(5).trim());
+                    continue;
+                }
+                if (line.length() != 8) {
+                    throw new NumberFormatException(line);
+                }
+                if (count == 256) {
+                    throw new IOException("调色板超过256个颜色");
+                }
+                int color = (int) Long.parseLong(line, 16);
+                rgba[count * 4] = (byte) (color >>> 24);
+                rgba[count * 4 + 1] = (byte) (color >>> 16);
+                rgba[count * 4 + 2] = (byte) (color >>> 8);
+                rgba[count * 4 + 3] = (byte) color;
+                count++;
+            } catch (NumberFormatException e) {
+                throw new IOException("调色板第 " + lineNumber + " 行格式错误: " + line);
+            }
+        }
+        if (count == 0) {
+            throw new IOException("调色板为空");
+        }
+        return new Palette(Arrays.copyOf(rgba, count * 4), gamma);
+    }
+
+    public void save(File file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            writeTo(out);
+        }
+    }
+
+    public static Palette load(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return readFrom(in);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Palette)) return false;
+        Palette other = (Palette) o;
+        return Double.compare(gamma, other.gamma) == 0 && Arrays.equals(rgba, other.rgba);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(rgba) + Double.hashCode(gamma);
+    }
+
+    @Override
+    public String toString() {
+        return "Palette[" + getColorCount() + " colors" + (gamma > 0 ? ", gamma " + gamma : "") + "]";
+    }
+}
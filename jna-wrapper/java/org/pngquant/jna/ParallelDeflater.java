@@ -0,0 +1,226 @@
+package org.pngquant.jna;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * pigz 风格的并行 deflate：把输入按块在多个线程上压缩，再拼接成一个合法的 zlib 流
+ *
+ * 每块用上一块末尾 32KB 作为预置字典压缩为 raw deflate，并以 SYNC_FLUSH 结束（字节对齐、非最终块），
+ * 因此压缩率与单线程基本一致；最后补一个空的最终块，并写入由各块 Adler-32 合并得到的校验和。
+ *
+ * 块按 {@link #write} 的顺序输出到 {@link Sink}，同时在途的块数有上限，内存占用与图像大小无关。
+ * 传入 {@link #write} 的数组交由本对象持有（作为下一块的字典），调用方不能再修改。不是线程安全的。
+ */
+public class ParallelDeflater implements AutoCloseable {
+
+    /**
+     * 压缩输出的接收方，按顺序收到 zlib 流的各个片段
+     */
+    public interface Sink {
+        void write(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    // 空的最终块：BFINAL=1，固定Huffman，只有块结束码
+    private static final byte[] FINAL_EMPTY_BLOCK = {0x03, 0x00};
+
+    private final Executor executor;
+    private final int level;
+    private final int strategy;
+    private final int maxInFlight;
+    private final Sink sink;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<CompletableFuture<Block>> inFlight = new ArrayDeque<>();
+
+    private byte[] previous;
+    private int previousLength;
+    private long adler = 1;
+    private boolean headerWritten;
+    // close() 之后仍在运行的任务自己释放 Deflater，不再放回池中
+    private volatile boolean closed;
+
+    private static final class Block {
+        final byte[] data;
+        final int length;
+        final long adler;
+        final int inputLength;
+
+        Block(byte[] data, int length, long adler, int inputLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.inputLength = inputLength;
+        }
+    }
+
+    /**
+     * @param executor 执行压缩任务的线程池
+     * @param level zlib 压缩级别 (0-9，-1 为默认)
+     * @param strategy {@link Deflater} 压缩策略
+     * @param maxInFlight 同时在途（已提交未输出）的最大块数
+     * @param sink 压缩输出
+     */
+    public ParallelDeflater(Executor executor, int level, int strategy, int maxInFlight, Sink sink) {
+        this.executor = executor;
+        this.level = level;
+        this.strategy = strategy;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.sink = sink;
+    }
+
+    /**
+     * 提交一块输入，块的顺序即输出顺序
+     */
+    public void write(byte[] block, int length) throws IOException {
+        if (!headerWritten) {
+            sink.write(zlibHeader(level), 0, 2);
+            headerWritten = true;
+        }
+        if (length == 0) {
+            return;
+        }
+        byte[] dictionary = previous;
+        int dictionaryLength = previousLength;
+        inFlight.add(CompletableFuture.supplyAsync(() -> deflateBlock(block, length, dictionary, dictionaryLength), executor));
+        previous = block;
+        previousLength = length;
+
+        while (inFlight.size() > maxInFlight) {
+            emit(inFlight.poll());
+        }
+    }
+
+    /**
+     * 输出所有剩余块、最终块和 Adler-32 校验和
+     */
+    public void finish() throws IOException {
+        if (!headerWritten) {
+            sink.write(zlibHeader(level), 0, 2);
+            headerWritten = true;
+        }
+        while (!inFlight.isEmpty()) {
+            emit(inFlight.poll());
+        }
+        sink.write(FINAL_EMPTY_BLOCK, 0, FINAL_EMPTY_BLOCK.length);
+        byte[] trailer = {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+        sink.write(trailer, 0, 4);
+    }
+
+    private void emit(CompletableFuture<Block> future) throws IOException {
+        Block block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Block compression failed", e.getCause());
+        }
+        sink.write(block.data, 0, block.length);
+        adler = adler32Combine(adler, block.adler, block.inputLength);
+    }
+
+    private Block deflateBlock(byte[] input, int length, byte[] dictionary, int dictionaryLength) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            deflater.setStrategy(strategy);
+        }
+        try {
+            if (dictionary != null) {
+                int n = Math.min(DICTIONARY_SIZE, dictionaryLength);
+                deflater.setDictionary(dictionary, dictionaryLength - n, n);
+            }
+            deflater.setInput(input, 0, length);
+
+            byte[] out = new byte[length + (length >>> 3) + 64];
+            int size = 0;
+            while (true) {
+                int n = deflater.deflate(out, size, out.length - size, Deflater.SYNC_FLUSH);
+                size += n;
+                // 输出缓冲区没被填满说明已经全部刷出
+                if (size < out.length) {
+                    break;
+                }
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+
+            Adler32 checksum = new Adler32();
+            checksum.update(input, 0, length);
+            return new Block(out, size, checksum.getValue(), length);
+        } finally {
+            if (closed) {
+                deflater.end();
+            } else {
+                deflater.reset();
+                deflaters.add(deflater);
+                // 与 close() 并发时可能在它清空之后才放回，再检查一次
+                if (closed) {
+                    endDeflaters();
+                }
+            }
+        }
+    }
+
+    static byte[] zlibHeader(int level) {
+        int flags;
+        if (level >= 0 && level < 2) {
+            flags = 0x01;
+        } else if (level >= 2 && level < 6) {
+            flags = 0x5E;
+        } else if (level == 6 || level < 0) {
+            flags = 0x9C;
+        } else {
+            flags = 0xDA;
+        }
+        return new byte[]{0x78, (byte) flags};
+    }
+
+    /**
+     * 合并两段数据的 Adler-32，等价于 zlib 的 adler32_combine
+     * @param adler1 第一段的校验和
+     * @param adler2 第二段的校验和
+     * @param length2 第二段的长度
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * 取消未开始的块并释放 Deflater；正在运行的块不等待，结束时自行释放
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (CompletableFuture<Block> future : inFlight) {
+            future.cancel(false);
+        }
+        inFlight.clear();
+        endDeflaters();
+    }
+
+    private void endDeflaters() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+}
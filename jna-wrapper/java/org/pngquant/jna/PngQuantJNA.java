@@ -4,15 +4,31 @@ import com.sun.jna.Pointer;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * 基于JNA的PngQuant高级包装类
- * 提供与原JNI版本兼容的API，但使用JNA进行底层调用
+ * 提供与原JNI版本兼容的API，底层调用通过 {@link ImageQuantBackend} 进行（JNA或FFM）
+ *
+ * PngQuantJNA、ImageJNA、ResultJNA 都持有native句柄，应当用 try-with-resources 或 close() 及时释放；
+ * 忘记释放的对象在不可达之后由 {@link Cleaner} 兜底释放。
  */
-public class PngQuantJNA {
+public class PngQuantJNA implements AutoCloseable {
+    
+    private static final ImageQuantBackend lib = ImageQuantBackend.INSTANCE;
+    
+    // native字节数估计：属性和结果是固定大小的小对象；图像按 libimagequant 可能缓存的
+    // 浮点像素（16字节/像素）加重要性图和抖动图（各1字节/像素）计算上限
+    private static final long ATTR_BYTES = 256;
+    private static final long RESULT_BYTES = 16 * 1024;
+    private static final long IMAGE_BYTES_PER_PIXEL = 18;
     
-    private static final LibImageQuantJNA lib = LibImageQuantJNA.INSTANCE;
     private long handle;
+    private final Cleaner.Cleanable cleanable;
     
     /**
      * 创建新的PngQuant实例
@@ -22,16 +38,22 @@ public class PngQuantJNA {
         if (handle == 0) {
             throw new RuntimeException("Failed to create liq_attr");
         }
+        cleanable = NativeResource.create(handle, lib::jna_liq_attr_destroy, ATTR_BYTES, null).register(this);
     }
     
     /**
      * 复制构造函数
      */
     public PngQuantJNA(PngQuantJNA other) {
-        handle = lib.jna_liq_attr_copy(other.handle);
+        try {
+            handle = lib.jna_liq_attr_copy(other.handle);
+        } finally {
+            Reference.reachabilityFence(other);
+        }
         if (handle == 0) {
             throw new RuntimeException("Failed to copy liq_attr");
         }
+        cleanable = NativeResource.create(handle, lib::jna_liq_attr_destroy, ATTR_BYTES, null).register(this);
     }
     
     /**
@@ -40,11 +62,8 @@ public class PngQuantJNA {
      * @return 8位索引图像或null（失败时）
      */
     public BufferedImage getRemapped(BufferedImage bufimg) {
-        try {
-            ImageJNA liqimg = new ImageJNA(this, bufimg);
-            BufferedImage remapped = getRemapped(liqimg);
-            liqimg.close();
-            return remapped;
+        try (ImageJNA liqimg = new ImageJNA(this, bufimg)) {
+            return getRemapped(liqimg);
         } catch(Exception e) {
             return null;
         }
@@ -56,9 +75,9 @@ public class PngQuantJNA {
     public BufferedImage getRemapped(ImageJNA liqimg) {
         ResultJNA result = quantize(liqimg);
         if (result == null) return null;
-        BufferedImage remapped = result.getRemapped(liqimg);
-        result.close();
-        return remapped;
+        try (result) {
+            return result.getRemapped(liqimg);
+        }
     }
     
     /**
@@ -72,6 +91,54 @@ public class PngQuantJNA {
         }
     }
     
+    /**
+     * 单次native调用完成量化和重映射
+     * 属性、图像、结果对象都在C端创建并在返回前释放，Java端无需管理任何句柄，适合大量小图
+     * @param settings 量化参数
+     * @param rgba R-G-B-A 顺序的direct ByteBuffer（不复制）
+     * @param width 图像宽度
+     * @param height 图像高度
+     * @param indices 输出索引，至少 width*height 字节
+     * @param output 输出调色板、质量和均方误差
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    public static int quantizeAndRemap(QuantizeSettings settings, ByteBuffer rgba, int width, int height,
+                                       byte[] indices, QuantizeOutput output) {
+        checkPixels(rgba, width, height);
+        return lib.jna_quantize_remap_rgba(settings, rgba, width, height, indices, indices.length, output);
+    }
+    
+    /**
+     * 单次native调用把图像重映射到给定的调色板，跳过直方图和K-means
+     * settings 中只有抖动、伽马、单线程和取消令牌生效，同一个调色板可以在多个线程上同时使用
+     * @param palette 目标调色板
+     * @param rgba R-G-B-A 顺序的direct ByteBuffer（不复制）
+     * @param indices 输出索引，至少 width*height 字节
+     * @param output 输出调色板（顺序可能与 palette 不同，索引以它为准）、质量和均方误差
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    public static int remapToPalette(QuantizeSettings settings, Palette palette, ByteBuffer rgba, int width, int height,
+                                     byte[] indices, QuantizeOutput output) {
+        checkPixels(rgba, width, height);
+        return lib.jna_remap_palette_rgba(settings, palette.rgba(), palette.getColorCount(), palette.getGamma(),
+            rgba, width, height, indices, indices.length, output);
+    }
+    
+    /**
+     * native端按 width*height*4 字节读取 rgba，尺寸在 long 中计算，缓冲区不够大时在借出之前拒绝
+     */
+    static void checkPixels(ByteBuffer rgba, int width, int height) {
+        if (!rgba.isDirect()) {
+            throw new IllegalArgumentException("ByteBuffer must be direct");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        if (rgba.capacity() < (long) width * height * 4) {
+            throw new IllegalArgumentException("ByteBuffer too small for " + width + "x" + height + " RGBA");
+        }
+    }
+    
     /**
      * 设置最大颜色数
      */
@@ -108,21 +175,54 @@ public class PngQuantJNA {
     }
     
     /**
-     * 释放资源
+     * 设置单线程模式：量化和重映射在调用线程上执行，不占用共享native线程池
+     * 调用方自己在多个线程上并行处理多张图像时使用，避免两层并行互相抢占CPU
+     */
+    public boolean setSingleThreaded(boolean enabled) {
+        return lib.jna_setSingleThreaded(handle, enabled ? 1 : 0) == LibImageQuantJNA.LIQ_JNA_OK;
+    }
+    
+    /**
+     * 设置所有调用共享的native线程池大小，正在进行的调用仍使用原来的线程池
+     * @param threads 线程数，0 恢复默认（每个CPU一个线程）
+     * @return 成功返回true，库编译时未启用多线程时返回false
+     */
+    public static boolean setThreadPoolSize(int threads) {
+        return lib.jna_set_thread_pool_size(threads) == LibImageQuantJNA.LIQ_JNA_OK;
+    }
+    
+    /**
+     * 共享native线程池的线程数
+     */
+    public static int getThreadPoolSize() {
+        return lib.jna_get_thread_pool_size();
+    }
+    
+    /**
+     * 仍未释放的native句柄数（PngQuantJNA、ImageJNA、ResultJNA、CancelToken、StreamingQuantizer）
+     */
+    public static long getLiveNativeHandles() {
+        return NativeResource.getLiveHandles();
+    }
+    
+    /**
+     * 仍未释放的句柄占用的native内存估计（字节），不包括调用方持有的direct ByteBuffer
+     */
+    public static long getLiveNativeBytes() {
+        return NativeResource.getLiveBytes();
+    }
+    
+    /**
+     * 释放资源，可以重复调用
      */
+    @Override
     public void close() {
         if (handle != 0) {
-            lib.jna_liq_attr_destroy(handle);
             handle = 0;
+            cleanable.clean();
         }
     }
     
-    @Override
-    protected void finalize() throws Throwable {
-        close();
-        super.finalize();
-    }
-    
     // 包内部访问
     long getHandle() {
         return handle;
@@ -131,49 +231,135 @@ public class PngQuantJNA {
     /**
      * 图像包装类
      */
-    public static class ImageJNA {
+    public static class ImageJNA implements AutoCloseable {
         private long handle;
         private int width;
         private int height;
+        // 借用给native的像素内存作为附件，在图像销毁前保持可达
+        private NativeResource resource;
+        private Cleaner.Cleanable cleanable;
         
+        /**
+         * 使用默认属性创建图像；图像不引用属性，临时属性在返回前释放
+         */
         public ImageJNA(BufferedImage image) throws Exception {
-            this(new PngQuantJNA(), image);
+            try (PngQuantJNA attr = new PngQuantJNA()) {
+                init(attr, toDirectRGBA(image), image.getWidth(), image.getHeight());
+            }
         }
         
         public ImageJNA(PngQuantJNA attr, BufferedImage image) throws Exception {
-            this.handle = createFromBufferedImage(attr.getHandle(), image);
+            this(attr, toDirectRGBA(image), image.getWidth(), image.getHeight());
+        }
+        
+        /**
+         * 从RGBA顺序的direct ByteBuffer创建图像
+         * native端直接借用该内存，不做任何复制，buffer在close()之前由本对象持有
+         */
+        public ImageJNA(PngQuantJNA attr, ByteBuffer rgba, int width, int height) throws Exception {
+            init(attr, rgba, width, height);
+        }
+        
+        private void init(PngQuantJNA attr, ByteBuffer rgba, int width, int height) throws Exception {
+            checkPixels(rgba, width, height);
+            try {
+                this.handle = lib.jna_liq_image_create_rgba_borrowed(attr.getHandle(), rgba, width, height);
+            } finally {
+                Reference.reachabilityFence(attr);
+            }
             if (handle == 0) {
-                // 尝试转换为标准格式
-                BufferedImage converted = new BufferedImage(
-                    image.getWidth(), image.getHeight(), 
-                    BufferedImage.TYPE_4BYTE_ABGR);
-                converted.getGraphics().drawImage(image, 0, 0, null);
-                this.handle = createFromBufferedImage(attr.getHandle(), converted);
-                if (handle == 0) {
-                    throw new Exception("Failed to create image");
-                }
+                throw new Exception("Failed to create image");
             }
-            this.width = lib.jna_getWidth(handle);
-            this.height = lib.jna_getHeight(handle);
+            track(rgba, width, height);
         }
         
-        private static long createFromBufferedImage(long attr, BufferedImage image) {
-            // 支持的格式检查
-            int type = image.getType();
-            if (type != BufferedImage.TYPE_3BYTE_BGR &&
-                type != BufferedImage.TYPE_4BYTE_ABGR &&
-                type != BufferedImage.TYPE_4BYTE_ABGR_PRE) {
-                return 0;
+        /**
+         * 从RGBA顺序的native内存创建图像
+         * native端直接借用该内存，调用方需保证其在close()之前有效
+         */
+        public ImageJNA(PngQuantJNA attr, Pointer rgba, int width, int height) throws Exception {
+            if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE / 4) {
+                throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
             }
+            try {
+                this.handle = lib.jna_liq_image_create_rgba_borrowed(attr.getHandle(),
+                    rgba.getByteBuffer(0, (long) width * height * 4), width, height);
+            } finally {
+                Reference.reachabilityFence(attr);
+            }
+            if (handle == 0) {
+                throw new Exception("Failed to create image");
+            }
+            track(rgba, width, height);
+        }
+        
+        private void track(Object pixels, int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.resource = NativeResource.create(handle, lib::jna_liq_image_destroy,
+                (long) width * height * IMAGE_BYTES_PER_PIXEL, pixels);
+            this.cleanable = resource.register(this);
+        }
+        
+        /**
+         * 将图像一次性转换为RGBA顺序的direct ByteBuffer
+         * 常见的 TYPE_4BYTE_ABGR / TYPE_3BYTE_BGR 直接读取raster，其他类型逐行走getRGB
+         */
+        public static ByteBuffer toDirectRGBA(BufferedImage image) {
+            ByteBuffer rgba = ByteBuffer.allocateDirect(image.getWidth() * image.getHeight() * 4);
+            putRGBA(image, rgba);
+            rgba.flip();
+            return rgba;
+        }
+        
+        /**
+         * 将图像按RGBA顺序写入 rgba 的当前位置，写入 width*height*4 字节
+         * 用于把多张图像紧密排列到同一块缓冲区中
+         */
+        public static void putRGBA(BufferedImage image, ByteBuffer rgba) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            byte[] row = new byte[width * 4];
             
-            // 获取像素数据
-            DataBufferByte buffer = (DataBufferByte) image.getRaster().getDataBuffer();
-            byte[] imageData = buffer.getData();
-            
-            int components = (type == BufferedImage.TYPE_3BYTE_BGR) ? 3 : 4;
-            
-            return lib.jna_liq_image_create(attr, imageData, 
-                image.getWidth(), image.getHeight(), components);
+            int type = image.getType();
+            WritableRaster raster = image.getRaster();
+            if (raster.getParent() == null &&
+                (type == BufferedImage.TYPE_4BYTE_ABGR || type == BufferedImage.TYPE_3BYTE_BGR)) {
+                byte[] src = ((DataBufferByte) raster.getDataBuffer()).getData();
+                boolean hasAlpha = type == BufferedImage.TYPE_4BYTE_ABGR;
+                int s = 0;
+                for (int y = 0; y < height; y++) {
+                    for (int d = 0; d < row.length; d += 4) {
+                        if (hasAlpha) {
+                            row[d] = src[s + 3];
+                            row[d + 1] = src[s + 2];
+                            row[d + 2] = src[s + 1];
+                            row[d + 3] = src[s];
+                            s += 4;
+                        } else {
+                            row[d] = src[s + 2];
+                            row[d + 1] = src[s + 1];
+                            row[d + 2] = src[s];
+                            row[d + 3] = (byte) 0xFF;
+                            s += 3;
+                        }
+                    }
+                    rgba.put(row);
+                }
+            } else {
+                int[] argb = new int[width];
+                for (int y = 0; y < height; y++) {
+                    image.getRGB(0, y, width, 1, argb, 0, width);
+                    for (int x = 0, d = 0; x < width; x++, d += 4) {
+                        int p = argb[x];
+                        row[d] = (byte) (p >> 16);
+                        row[d + 1] = (byte) (p >> 8);
+                        row[d + 2] = (byte) p;
+                        row[d + 3] = (byte) (p >>> 24);
+                    }
+                    rgba.put(row);
+                }
+            }
         }
         
         /**
@@ -187,6 +373,32 @@ public class PngQuantJNA {
             return addFixedColor(r, g, b, 255);
         }
         
+        /**
+         * 设置背景图像（通常是上一帧），重映射时与背景相同的像素尽量映射为调色板中的全透明颜色，
+         * 在 GIF/APNG 中显示为上一帧的内容；调色板中没有全透明颜色时不起作用
+         * background 的尺寸必须与本图像相同，调用后不论成功与否 background 都已被接管，不能再使用
+         */
+        public boolean setBackground(ImageJNA background) {
+            if (background == this || background.handle == 0) {
+                throw new IllegalArgumentException("Invalid background image");
+            }
+            int error;
+            try {
+                error = lib.jna_liq_image_set_background(handle, background.handle);
+            } finally {
+                Reference.reachabilityFence(this);
+                Reference.reachabilityFence(background);
+            }
+            // 背景句柄已由native端接管：成功时随本图像销毁，失败时已经销毁
+            if (error == LibImageQuantJNA.LIQ_JNA_OK) {
+                resource.adopt(background.resource);
+            } else {
+                background.resource.forget();
+            }
+            background.close();
+            return error == LibImageQuantJNA.LIQ_JNA_OK;
+        }
+        
         public int getWidth() {
             return width;
         }
@@ -195,19 +407,14 @@ public class PngQuantJNA {
             return height;
         }
         
+        @Override
         public void close() {
             if (handle != 0) {
-                lib.jna_liq_image_destroy(handle);
                 handle = 0;
+                cleanable.clean();
             }
         }
         
-        @Override
-        protected void finalize() throws Throwable {
-            close();
-            super.finalize();
-        }
-        
         long getHandle() {
             return handle;
         }
@@ -216,14 +423,54 @@ public class PngQuantJNA {
     /**
      * 量化结果包装类
      */
-    public static class ResultJNA {
+    public static class ResultJNA implements AutoCloseable {
         private long handle;
+        private Cleaner.Cleanable cleanable;
         
         public ResultJNA(PngQuantJNA pngquant, ImageJNA image) throws Exception {
-            handle = lib.jna_liq_quantize_image(pngquant.getHandle(), image.getHandle());
+            try {
+                handle = lib.jna_liq_quantize_image(pngquant.getHandle(), image.getHandle());
+            } finally {
+                Reference.reachabilityFence(pngquant);
+                Reference.reachabilityFence(image);
+            }
             if (handle == 0) {
                 throw new Exception("Quantization failed");
             }
+            track();
+        }
+        
+        /**
+         * 由给定的调色板创建结果，不做量化，之后可以把任意多张图像重映射到该调色板
+         * 使用 pngquant 的一个副本，最大颜色数按调色板大小设置，不修改 pngquant 本身
+         */
+        public ResultJNA(PngQuantJNA pngquant, Palette palette) throws Exception {
+            PngQuantJNA attr = new PngQuantJNA(pngquant);
+            try {
+                attr.setMaxColors(palette.getColorCount());
+                handle = lib.jna_liq_result_from_palette(attr.getHandle(), palette.rgba(),
+                                                         palette.getColorCount(), palette.getGamma());
+            } finally {
+                attr.close();
+            }
+            if (handle == 0) {
+                throw new Exception("Failed to create result from palette");
+            }
+            track();
+        }
+        
+        private void track() {
+            cleanable = NativeResource.create(handle, lib::jna_liq_result_destroy, RESULT_BYTES, null).register(this);
+        }
+        
+        /**
+         * 当前调色板，重映射之后读取时包含重映射对调色板的微调
+         */
+        public Palette getPalette() {
+            byte[] paletteData = new byte[256 * 4];
+            int paletteBytes = lib.jna_get_palette_bytes(handle, paletteData, paletteData.length);
+            if (paletteBytes <= 0) return null;
+            return new Palette(Arrays.copyOf(paletteData, paletteBytes), getGamma());
         }
         
         /**
@@ -231,16 +478,10 @@ public class PngQuantJNA {
          */
         public BufferedImage getRemapped(ImageJNA origImage) {
             // 获取调色板
-            Pointer palette = lib.jna_liq_get_palette(handle);
-            if (palette == null) return null;
-            
-            int paletteSize = lib.jna_get_palette_count(palette);
-            byte[] paletteData = new byte[paletteSize * 4];
-            
-            if (lib.jna_copy_palette_data(palette, paletteData, paletteData.length) 
-                != LibImageQuantJNA.LIQ_JNA_OK) {
-                return null;
-            }
+            byte[] paletteData = new byte[256 * 4];
+            int paletteBytes = lib.jna_get_palette_bytes(handle, paletteData, paletteData.length);
+            if (paletteBytes <= 0) return null;
+            int paletteSize = paletteBytes / 4;
             
             // 创建IndexColorModel
             IndexColorModel colorModel = new IndexColorModel(8, paletteSize, 
@@ -256,14 +497,33 @@ public class PngQuantJNA {
             byte[] data = buffer.getData();
             
             // 写入重映射数据
-            if (lib.jna_liq_write_remapped_image(handle, origImage.getHandle(), 
-                data, data.length) != LibImageQuantJNA.LIQ_JNA_OK) {
-                return null;
+            try {
+                if (lib.jna_liq_write_remapped_image(handle, origImage.getHandle(),
+                    data, data.length) != LibImageQuantJNA.LIQ_JNA_OK) {
+                    return null;
+                }
+            } finally {
+                Reference.reachabilityFence(this);
+                Reference.reachabilityFence(origImage);
             }
             
             return img;
         }
         
+        /**
+         * 把图像重映射到 indices（至少 width*height 字节），不创建 BufferedImage
+         * 之后可以用 {@link #getRemappingQuality()} 判断这个调色板是否仍适合该图像
+         */
+        public boolean remapInto(ImageJNA image, byte[] indices) {
+            try {
+                return lib.jna_liq_write_remapped_image(handle, image.getHandle(), indices, indices.length)
+                    == LibImageQuantJNA.LIQ_JNA_OK;
+            } finally {
+                Reference.reachabilityFence(this);
+                Reference.reachabilityFence(image);
+            }
+        }
+        
         /**
          * 设置抖动级别
          */
@@ -296,19 +556,28 @@ public class PngQuantJNA {
             return lib.jna_getQuality(handle);
         }
         
+        /**
+         * 最近一次重映射的均方误差，尚未重映射时为-1
+         */
+        public double getRemappingError() {
+            return lib.jna_getRemappingError(handle);
+        }
+        
+        /**
+         * 最近一次重映射的质量 (0-100)，尚未重映射时为-1
+         */
+        public int getRemappingQuality() {
+            return lib.jna_getRemappingQuality(handle);
+        }
+        
+        @Override
         public void close() {
             if (handle != 0) {
-                lib.jna_liq_result_destroy(handle);
                 handle = 0;
+                cleanable.clean();
             }
         }
         
-        @Override
-        protected void finalize() throws Throwable {
-            close();
-            super.finalize();
-        }
-        
         long getHandle() {
             return handle;
         }
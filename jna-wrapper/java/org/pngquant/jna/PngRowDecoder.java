@@ -0,0 +1,424 @@
+package org.pngquant.jna;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 流式PNG解码器：逐行解压、反滤波并转换为RGBA，不构建 BufferedImage
+ *
+ * 只在内存中保留当前行和上一行的扫描线以及一个输入缓冲区，堆占用与图像大小无关。
+ * 支持所有颜色类型和位深度（含 tRNS 透明色），16位通道取高字节；
+ * 不支持 Adam7 隔行扫描，{@link #isInterlaced()} 为 true 时调用方应回退到 ImageIO。
+ * 不校验块的CRC，gAMA / iCCP 等色彩管理块被忽略（与 ImageIO 转 RGB 时的行为一致）。
+ *
+ * 使用示例：
+ * <pre>
+ * try (PngRowDecoder decoder = new PngRowDecoder(in)) {
+ *     ByteBuffer rgba = ByteBuffer.allocateDirect(decoder.getWidth() * 64 * 4);
+ *     while (decoder.getNextRow() &lt; decoder.getHeight()) {
+ *         rgba.clear();
+ *         int rows = decoder.readRows(rgba, 64);
+ *         // 处理 rows 行 RGBA 像素
+ *     }
+ * }
+ * </pre>
+ * 不是线程安全的。
+ */
+public class PngRowDecoder implements AutoCloseable {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private final byte[] input = new byte[INPUT_BUFFER_SIZE];
+
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int colorType;
+    private final boolean interlaced;
+    // 调色板 (RGBA)，未出现的条目为不透明黑色
+    private final byte[] palette = new byte[256 * 4];
+    private int paletteSize;
+    // 灰度/RGB图像 tRNS 指定的透明色（按样本原始位深度），-1 表示没有
+    private int transparentGray = -1;
+    private int transparentR = -1, transparentG = -1, transparentB = -1;
+
+    // 反滤波时左邻像素的字节距离
+    private final int filterStride;
+    private final int rowBytes;
+    private byte[] current;
+    private byte[] previous;
+    private final byte[] rgbaRow;
+    private final byte[] filterType = new byte[1];
+    // 当前IDAT块中尚未读取的字节数，-1 表示IDAT已经结束
+    private int idatRemaining;
+    private int nextRow;
+
+    /**
+     * 读取签名和 IHDR 到第一个 IDAT 之间的所有块
+     * @param in 输入流，{@link #close()} 时关闭；内部不做额外缓冲，调用方可以自行包装 BufferedInputStream
+     */
+    public PngRowDecoder(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+
+        byte[] signature = new byte[SIGNATURE.length];
+        this.in.readFully(signature);
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (signature[i] != SIGNATURE[i]) {
+                throw new IOException("Not a PNG file");
+            }
+        }
+
+        int length = this.in.readInt();
+        if (!"IHDR".equals(readChunkType()) || length != 13) {
+            throw new IOException("Missing IHDR chunk");
+        }
+        width = this.in.readInt();
+        height = this.in.readInt();
+        bitDepth = this.in.readUnsignedByte();
+        colorType = this.in.readUnsignedByte();
+        int compression = this.in.readUnsignedByte();
+        int filterMethod = this.in.readUnsignedByte();
+        interlaced = this.in.readUnsignedByte() != 0;
+        this.in.readInt();  // CRC
+        if (width <= 0 || height <= 0 || compression != 0 || filterMethod != 0) {
+            throw new IOException("Unsupported PNG header");
+        }
+
+        int channels;
+        switch (colorType) {
+            case COLOR_GRAY: channels = 1; break;
+            case COLOR_RGB: channels = 3; break;
+            case COLOR_PALETTE: channels = 1; break;
+            case COLOR_GRAY_ALPHA: channels = 2; break;
+            case COLOR_RGBA: channels = 4; break;
+            default: throw new IOException("Unsupported PNG color type: " + colorType);
+        }
+        long bits = (long) width * channels * bitDepth;
+        if ((bits + 7) / 8 > Integer.MAX_VALUE - 1 || (long) width * 4 > Integer.MAX_VALUE) {
+            throw new IOException("PNG too wide: " + width);
+        }
+        rowBytes = (int) ((bits + 7) / 8);
+        filterStride = Math.max(1, channels * bitDepth / 8);
+        current = new byte[rowBytes];
+        previous = new byte[rowBytes];
+        rgbaRow = new byte[width * 4];
+
+        for (int i = 0; i < 256; i++) {
+            palette[i * 4 + 3] = (byte) 0xFF;
+        }
+        readHeaderChunks();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isInterlaced() {
+        return interlaced;
+    }
+
+    /**
+     * IHDR 中的位深度 (1/2/4/8/16)
+     */
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * IHDR 中的颜色类型：0 灰度，2 RGB，3 调色板，4 灰度+Alpha，6 RGBA
+     */
+    public int getColorType() {
+        return colorType;
+    }
+
+    /**
+     * PLTE 中的颜色数，没有 PLTE 时为0
+     */
+    public int getPaletteSize() {
+        return paletteSize;
+    }
+
+    /**
+     * 下一次 {@link #readRows} 返回的第一行的行号，等于 getHeight() 时表示已经解码完毕
+     */
+    public int getNextRow() {
+        return nextRow;
+    }
+
+    /**
+     * 解码最多 maxRows 行，以 R-G-B-A 顺序写入 rgba 的当前位置
+     * @return 实际解码的行数，图像结束时为0
+     */
+    public int readRows(ByteBuffer rgba, int maxRows) throws IOException {
+        if (interlaced) {
+            throw new IOException("Interlaced PNG is not supported by the streaming decoder");
+        }
+        int rows = Math.min(maxRows, height - nextRow);
+        if (rgba.remaining() / rgbaRow.length < rows) {
+            throw new IllegalArgumentException("Buffer too small for " + rows + " rows");
+        }
+        for (int r = 0; r < rows; r++) {
+            byte[] t = previous;
+            previous = current;
+            current = t;
+            int filter = inflateByte();
+            inflateFully(current, rowBytes);
+            unfilter(filter, current, previous, filterStride);
+            toRGBA(current, rgbaRow);
+            rgba.put(rgbaRow);
+            nextRow++;
+        }
+        return rows;
+    }
+
+    private void readHeaderChunks() throws IOException {
+        while (true) {
+            int length = in.readInt();
+            String type = readChunkType();
+            if (length < 0) {
+                throw new IOException("Invalid chunk length");
+            }
+            if ("IDAT".equals(type)) {
+                idatRemaining = length;
+                return;
+            }
+            if ("IEND".equals(type)) {
+                throw new IOException("Missing IDAT chunk");
+            }
+            if ("PLTE".equals(type) && length <= 256 * 3 && length % 3 == 0) {
+                for (int i = 0; i < length / 3; i++) {
+                    in.readFully(palette, i * 4, 3);
+                }
+                paletteSize = length / 3;
+            } else if ("tRNS".equals(type)) {
+                readTransparency(length);
+            } else {
+                skipFully(length);
+            }
+            in.readInt();  // CRC
+        }
+    }
+
+    private void readTransparency(int length) throws IOException {
+        if (colorType == COLOR_PALETTE && length <= 256) {
+            for (int i = 0; i < length; i++) {
+                palette[i * 4 + 3] = in.readByte();
+            }
+        } else if (colorType == COLOR_GRAY && length == 2) {
+            transparentGray = in.readUnsignedShort();
+        } else if (colorType == COLOR_RGB && length == 6) {
+            transparentR = in.readUnsignedShort();
+            transparentG = in.readUnsignedShort();
+            transparentB = in.readUnsignedShort();
+        } else {
+            skipFully(length);
+        }
+    }
+
+    private String readChunkType() throws IOException {
+        byte[] type = new byte[4];
+        in.readFully(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private int inflateByte() throws IOException {
+        inflateFully(filterType, 1);
+        return filterType[0] & 0xFF;
+    }
+
+    private void inflateFully(byte[] out, int length) throws IOException {
+        int done = 0;
+        try {
+            while (done < length) {
+                int n = inflater.inflate(out, done, length - done);
+                done += n;
+                if (n == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new EOFException("Unexpected end of image data");
+                    }
+                    if (inflater.needsInput()) {
+                        fillInput();
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt image data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 从连续的IDAT块中读取下一段压缩数据交给 inflater
+     */
+    private void fillInput() throws IOException {
+        while (idatRemaining == 0) {
+            in.readInt();  // 上一个IDAT的CRC
+            int length = in.readInt();
+            if (!"IDAT".equals(readChunkType())) {
+                idatRemaining = -1;
+                break;
+            }
+            idatRemaining = length;
+        }
+        if (idatRemaining < 0) {
+            throw new EOFException("Unexpected end of image data");
+        }
+        int n = in.read(input, 0, Math.min(input.length, idatRemaining));
+        if (n < 0) {
+            throw new EOFException("Unexpected end of file");
+        }
+        idatRemaining -= n;
+        inflater.setInput(input, 0, n);
+    }
+
+    static void unfilter(int filter, byte[] row, byte[] prev, int bpp) throws IOException {
+        int n = row.length;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < n; i++) {
+                    row[i] += row[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    row[i] += prev[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < n; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) ((left + (prev[i] & 0xFF)) >>> 1);
+                }
+                break;
+            case 4:
+                for (int i = 0; i < n; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) IndexedPngWriter.paeth(a, b, c);
+                }
+                break;
+            default:
+                throw new IOException("Invalid filter type: " + filter);
+        }
+    }
+
+    private void toRGBA(byte[] src, byte[] dst) {
+        switch (colorType) {
+            case COLOR_RGBA:
+                if (bitDepth == 8) {
+                    System.arraycopy(src, 0, dst, 0, dst.length);
+                } else {
+                    for (int x = 0, s = 0, d = 0; x < width; x++, s += 8, d += 4) {
+                        dst[d] = src[s];
+                        dst[d + 1] = src[s + 2];
+                        dst[d + 2] = src[s + 4];
+                        dst[d + 3] = src[s + 6];
+                    }
+                }
+                break;
+            case COLOR_RGB: {
+                int step = bitDepth / 8 * 3;
+                int c = bitDepth / 8;
+                for (int x = 0, s = 0, d = 0; x < width; x++, s += step, d += 4) {
+                    dst[d] = src[s];
+                    dst[d + 1] = src[s + c];
+                    dst[d + 2] = src[s + 2 * c];
+                    dst[d + 3] = (byte) 0xFF;
+                    if (transparentR >= 0 && sample(src, s, bitDepth) == transparentR
+                            && sample(src, s + c, bitDepth) == transparentG
+                            && sample(src, s + 2 * c, bitDepth) == transparentB) {
+                        dst[d + 3] = 0;
+                    }
+                }
+                break;
+            }
+            case COLOR_GRAY_ALPHA: {
+                int c = bitDepth / 8;
+                for (int x = 0, s = 0, d = 0; x < width; x++, s += 2 * c, d += 4) {
+                    dst[d] = dst[d + 1] = dst[d + 2] = src[s];
+                    dst[d + 3] = src[s + c];
+                }
+                break;
+            }
+            case COLOR_GRAY:
+                for (int x = 0, d = 0; x < width; x++, d += 4) {
+                    int v = packedSample(src, x);
+                    int g = scaleToByte(v);
+                    dst[d] = dst[d + 1] = dst[d + 2] = (byte) g;
+                    dst[d + 3] = v == transparentGray ? 0 : (byte) 0xFF;
+                }
+                break;
+            case COLOR_PALETTE:
+                for (int x = 0, d = 0; x < width; x++, d += 4) {
+                    System.arraycopy(palette, packedSample(src, x) * 4, dst, d, 4);
+                }
+                break;
+        }
+    }
+
+    /**
+     * 单通道行中第x个样本的原始值（1/2/4/8/16位）
+     */
+    private int packedSample(byte[] src, int x) {
+        switch (bitDepth) {
+            case 16: return sample(src, x * 2, 16);
+            case 8: return src[x] & 0xFF;
+            default:
+                int bit = x * bitDepth;
+                int shift = 8 - bitDepth - (bit & 7);
+                return ((src[bit >>> 3] & 0xFF) >>> shift) & ((1 << bitDepth) - 1);
+        }
+    }
+
+    private static int sample(byte[] src, int at, int bitDepth) {
+        return bitDepth == 16 ? ((src[at] & 0xFF) << 8) | (src[at + 1] & 0xFF) : src[at] & 0xFF;
+    }
+
+    private int scaleToByte(int v) {
+        switch (bitDepth) {
+            case 1: return v * 0xFF;
+            case 2: return v * 0x55;
+            case 4: return v * 0x11;
+            case 16: return v >>> 8;
+            default: return v;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
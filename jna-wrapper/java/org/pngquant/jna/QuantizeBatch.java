@@ -0,0 +1,245 @@
+package org.pngquant.jna;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 批量量化：多张图像紧密排列在同一块direct缓冲区中，一次native调用在libimagequant的线程池上并行量化和重映射
+ *
+ * 适合大量图标、精灵图等小图，JNA调用、GC和线程调度的开销由整批图像分摊。
+ * {@link #quantize} 为每张图像独立生成调色板；{@link #quantizeShared} 把所有图像的直方图合并后只量化一次，
+ * 整组图像（精灵图集、动画帧、同一主题的UI图标）共用一个调色板，颜色前后一致。
+ *
+ * 使用示例：
+ * <pre>
+ * QuantizeBatch batch = new QuantizeBatch();
+ * for (BufferedImage icon : icons) {
+ *     batch.add(icon);
+ * }
+ * QuantizeBatch.Result result = batch.quantize(new QuantizeSettings().setQuality(70, 90));
+ * for (int i = 0; i &lt; result.size(); i++) {
+ *     if (result.isSuccess(i)) {
+ *         ImageIO.write(result.toIndexedImage(i), "PNG", outputs[i]);
+ *     }
+ * }
+ * </pre>
+ */
+public class QuantizeBatch {
+
+    private static final int PALETTE_BYTES = 256 * 4;
+
+    private final List<BufferedImage> images = new ArrayList<>();
+    private long pixelCount;
+
+    /**
+     * 添加一张图像，返回它在批次中的下标
+     */
+    public int add(BufferedImage image) {
+        images.add(image);
+        pixelCount += (long) image.getWidth() * image.getHeight();
+        return images.size() - 1;
+    }
+
+    public int size() {
+        return images.size();
+    }
+
+    /**
+     * 像素总数，也是输出索引缓冲区的字节数
+     */
+    public long getPixelCount() {
+        return pixelCount;
+    }
+
+    /**
+     * 把所有图像打包成一块RGBA缓冲区并执行一次批量量化
+     * settings 中的 output_gamma 不适用于批量接口
+     * @throws Exception 参数错误（例如总像素超出单块缓冲区上限）；单张图像的失败通过 {@link Result#getError} 报告
+     */
+    public Result quantize(QuantizeSettings settings) throws Exception {
+        return run(settings, false);
+    }
+
+    /**
+     * 共享调色板的批量量化：并行统计所有图像的直方图并合并，只量化一次，再把每张图像重映射到这个调色板
+     * 结果中每张图像的调色板相同，可以用 {@link Result#getSharedPalette()} 取出，以后用于只重映射模式
+     * @throws Exception 参数错误，或共享调色板生成失败（例如质量达不到 settings 的下限）
+     */
+    public Result quantizeShared(QuantizeSettings settings) throws Exception {
+        if (images.isEmpty()) {
+            throw new Exception("Shared batch quantization needs at least one image");
+        }
+        return run(settings, true);
+    }
+
+    private Result run(QuantizeSettings settings, boolean shared) throws Exception {
+        int count = images.size();
+        if (pixelCount > Integer.MAX_VALUE / 4) {
+            throw new Exception("Batch too large: " + pixelCount + " pixels");
+        }
+
+        long[] offsets = new long[count];
+        int[] sizes = new int[count * 2];
+        ByteBuffer rgba = ByteBuffer.allocateDirect((int) pixelCount * 4);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            BufferedImage image = images.get(i);
+            offsets[i] = offset;
+            sizes[2 * i] = image.getWidth();
+            sizes[2 * i + 1] = image.getHeight();
+            PngQuantJNA.ImageJNA.putRGBA(image, rgba);
+            offset += (long) image.getWidth() * image.getHeight();
+        }
+
+        byte[] indices = new byte[(int) pixelCount];
+        byte[] palettes = new byte[count * PALETTE_BYTES];
+        int[] stats = new int[count * 3];
+        double[] mse = new double[count];
+        try {
+            ImageQuantBackend lib = ImageQuantBackend.INSTANCE;
+            int error = shared
+                ? lib.jna_quantize_shared_rgba(settings, rgba, pixelCount, offsets, sizes, count,
+                    indices, palettes, stats, mse)
+                : lib.jna_quantize_batch_rgba(settings, rgba, pixelCount, offsets, sizes, count,
+                    indices, palettes, stats, mse);
+            if (error != LibImageQuantDirect.LIQ_JNA_OK) {
+                throw new Exception((shared ? "Shared batch" : "Batch") + " quantization failed, error code: " + error);
+            }
+        } finally {
+            // native调用期间借用像素内存
+            Reference.reachabilityFence(rgba);
+        }
+        return new Result(offsets, sizes, indices, palettes, stats, mse, shared);
+    }
+
+    /**
+     * 批量量化结果，所有图像的索引和调色板都保存在打包的数组中
+     */
+    public static final class Result {
+        private final long[] offsets;
+        private final int[] sizes;
+        private final byte[] indices;
+        private final byte[] palettes;
+        private final int[] stats;
+        private final double[] mse;
+        private final boolean shared;
+
+        private Result(long[] offsets, int[] sizes, byte[] indices, byte[] palettes, int[] stats, double[] mse,
+                       boolean shared) {
+            this.offsets = offsets;
+            this.sizes = sizes;
+            this.indices = indices;
+            this.palettes = palettes;
+            this.stats = stats;
+            this.mse = mse;
+            this.shared = shared;
+        }
+
+        /**
+         * 是否由 {@link QuantizeBatch#quantizeShared} 生成，即所有图像共用一个调色板
+         */
+        public boolean isShared() {
+            return shared;
+        }
+
+        /**
+         * 共享调色板，可以保存下来给 {@link PngQuantJNA#remapToPalette} 使用
+         * @throws IllegalStateException 不是共享调色板的结果
+         */
+        public Palette getSharedPalette() {
+            if (!shared) {
+                throw new IllegalStateException("Batch was not quantized with a shared palette");
+            }
+            return new Palette(getPalette(0));
+        }
+
+        public int size() {
+            return offsets.length;
+        }
+
+        /**
+         * liq_error 错误码，LIQ_JNA_OK 表示该图像成功
+         */
+        public int getError(int i) {
+            return stats[3 * i];
+        }
+
+        public boolean isSuccess(int i) {
+            return getError(i) == LibImageQuantDirect.LIQ_JNA_OK;
+        }
+
+        public int getWidth(int i) {
+            return sizes[2 * i];
+        }
+
+        public int getHeight(int i) {
+            return sizes[2 * i + 1];
+        }
+
+        public int getPaletteCount(int i) {
+            return stats[3 * i + 1];
+        }
+
+        public int getQuality(int i) {
+            return stats[3 * i + 2];
+        }
+
+        public double getMeanSquareError(int i) {
+            return mse[i];
+        }
+
+        /**
+         * 第i张图像的调色板 (RGBA)，长度为 颜色数*4
+         */
+        public byte[] getPalette(int i) {
+            int from = i * PALETTE_BYTES;
+            return Arrays.copyOfRange(palettes, from, from + getPaletteCount(i) * 4);
+        }
+
+        /**
+         * 第i张图像的调色板索引，长度为 width*height
+         */
+        public byte[] getIndices(int i) {
+            int from = (int) offsets[i];
+            return Arrays.copyOfRange(indices, from, from + getWidth(i) * getHeight(i));
+        }
+
+        /**
+         * 把第i张图像转换为 TYPE_BYTE_INDEXED 的 BufferedImage
+         * @return 该图像量化失败（{@link #isSuccess} 为false）时为null
+         */
+        public BufferedImage toIndexedImage(int i) {
+            if (!isSuccess(i)) {
+                return null;
+            }
+            int width = getWidth(i);
+            int height = getHeight(i);
+            int paletteSize = getPaletteCount(i);
+            int base = i * PALETTE_BYTES;
+            byte[] red = new byte[paletteSize];
+            byte[] green = new byte[paletteSize];
+            byte[] blue = new byte[paletteSize];
+            byte[] alpha = new byte[paletteSize];
+            for (int c = 0; c < paletteSize; c++) {
+                red[c] = palettes[base + c * 4];
+                green[c] = palettes[base + c * 4 + 1];
+                blue[c] = palettes[base + c * 4 + 2];
+                alpha[c] = palettes[base + c * 4 + 3];
+            }
+            IndexColorModel colorModel = new IndexColorModel(8, paletteSize, red, green, blue, alpha);
+
+            // 直接引用打包的索引数组，不再复制
+            DataBufferByte buffer = new DataBufferByte(indices, width * height, (int) offsets[i]);
+            WritableRaster raster = Raster.createInterleavedRaster(buffer, width, height, width, 1, new int[]{0}, null);
+            return new BufferedImage(colorModel, raster, false, null);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.pngquant.jna;
+
+import com.sun.jna.Structure;
+
+/**
+ * jna_quantize_remap_rgba 的输出，对应C端 jna_quantize_output
+ */
+@Structure.FieldOrder({"mse", "palette_count", "quality", "palette"})
+public class QuantizeOutput extends Structure {
+    
+    /** 量化均方误差 */
+    public double mse;
+    /** 调色板颜色数 */
+    public int palette_count;
+    /** 量化质量 (0-100) */
+    public int quality;
+    /** 调色板 RGBA 数据，前 palette_count*4 字节有效 */
+    public byte[] palette = new byte[256 * 4];
+}
@@ -0,0 +1,79 @@
+package org.pngquant.jna;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+/**
+ * jna_quantize_remap_rgba 的量化参数，对应C端 jna_quantize_settings
+ */
+@Structure.FieldOrder({"max_colors", "quality_min", "quality_max", "speed",
+                       "min_posterization", "dithering_level", "output_gamma", "single_threaded",
+                       "cancel_token"})
+public class QuantizeSettings extends Structure {
+    
+    public int max_colors = 256;
+    public int quality_min = 0;
+    public int quality_max = 100;
+    public int speed = 4;
+    public int min_posterization = 0;
+    /** 抖动级别 (0.0-1.0)，小于0使用库默认值 */
+    public float dithering_level = -1f;
+    /** 输出伽马值，小于等于0使用库默认值 */
+    public double output_gamma = 0;
+    /** 非0时在调用线程上单线程执行，不占用共享native线程池 */
+    public int single_threaded = 0;
+    /** 取消令牌，由 {@link #setCancelToken} 设置 */
+    public Pointer cancel_token;
+    
+    private CancelToken cancelToken;
+    
+    public QuantizeSettings setMaxColors(int colors) {
+        this.max_colors = colors;
+        return this;
+    }
+    
+    public QuantizeSettings setQuality(int min, int max) {
+        this.quality_min = min;
+        this.quality_max = max;
+        return this;
+    }
+    
+    public QuantizeSettings setSpeed(int speed) {
+        this.speed = speed;
+        return this;
+    }
+    
+    public QuantizeSettings setMinPosterization(int bits) {
+        this.min_posterization = bits;
+        return this;
+    }
+    
+    public QuantizeSettings setDitheringLevel(float level) {
+        this.dithering_level = level;
+        return this;
+    }
+    
+    public QuantizeSettings setGamma(double gamma) {
+        this.output_gamma = gamma;
+        return this;
+    }
+    
+    public QuantizeSettings setSingleThreaded(boolean singleThreaded) {
+        this.single_threaded = singleThreaded ? 1 : 0;
+        return this;
+    }
+    
+    /**
+     * 设置取消令牌，令牌取消后使用这些参数的量化和重映射会中止并返回 LIQ_ABORTED
+     * @param token 令牌，null 表示不可取消；令牌必须在native调用结束之后才能关闭
+     */
+    public QuantizeSettings setCancelToken(CancelToken token) {
+        this.cancelToken = token;
+        this.cancel_token = token != null ? token.getPointer() : null;
+        return this;
+    }
+    
+    public CancelToken getCancelToken() {
+        return cancelToken;
+    }
+}
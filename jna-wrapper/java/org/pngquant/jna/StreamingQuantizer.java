@@ -0,0 +1,206 @@
+package org.pngquant.jna;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * 流式量化：PNG按行带解码到native像素缓冲区，每解码完一带就在另一个线程上加入直方图
+ *
+ * 像素只存在于native内存中，Java堆上只有 {@link PngRowDecoder} 的两行扫描线缓冲，
+ * 不再出现 ImageIO.read 的 BufferedImage 和 RGBA 转换副本，堆占用与图像大小无关。
+ * 直方图统计与后续行的解码重叠进行；所有行都加入后由直方图生成调色板并重映射整张图像。
+ * 重映射可以输出到调用方的 byte[]（{@link #finish}），也可以留在native内存中由编码器逐行读取（{@link #remap}）。
+ *
+ * 使用示例：
+ * <pre>
+ * try (PngRowDecoder decoder = new PngRowDecoder(new BufferedInputStream(new FileInputStream(file)));
+ *      StreamingQuantizer quantizer = new StreamingQuantizer(settings, decoder.getWidth(), decoder.getHeight(),
+ *                                                            ForkJoinPool.commonPool())) {
+ *     quantizer.decode(decoder, StreamingQuantizer.DEFAULT_BAND_ROWS);
+ *     byte[] indices = new byte[decoder.getWidth() * decoder.getHeight()];
+ *     QuantizeOutput output = new QuantizeOutput();
+ *     int error = quantizer.finish(indices, output);
+ * }
+ * </pre>
+ * 不是线程安全的。
+ */
+public class StreamingQuantizer implements AutoCloseable {
+
+    /**
+     * 默认每带的行数
+     */
+    public static final int DEFAULT_BAND_ROWS = 64;
+
+    private static final ImageQuantBackend lib = ImageQuantBackend.INSTANCE;
+
+    private final int width;
+    private final int height;
+    private final Executor executor;
+    private final CancelToken cancelToken;
+    private long handle;
+    // 只用于统计native内存，不注册Cleaner：getIndices() 等返回的视图直接指向native缓冲区，
+    // 视图可能比本对象活得更久，不能在本对象不可达时自动释放
+    private final NativeResource resource;
+    private final ByteBuffer pixels;
+    // 直方图任务串成一条链，保证同一会话的 jna_stream_add_rows 串行执行
+    private CompletableFuture<Integer> histogram = CompletableFuture.completedFuture(LibImageQuantDirect.LIQ_JNA_OK);
+    private int rowsWritten;
+
+    /**
+     * @param executor 执行直方图统计的线程池
+     * @throws IllegalArgumentException 图像超过单块缓冲区的上限
+     * @throws OutOfMemoryError native像素缓冲区分配失败
+     */
+    public StreamingQuantizer(QuantizeSettings settings, int width, int height, Executor executor) {
+        this(settings, 0, width, height, executor);
+    }
+
+    /**
+     * @param engineAttr jna_engine_attr_create 创建的可复用属性，会话关闭之前不能用于其他调用；0 表示按 settings 新建属性
+     */
+    StreamingQuantizer(QuantizeSettings settings, long engineAttr, int width, int height, Executor executor) {
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE / 4) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.executor = executor;
+        this.cancelToken = settings.getCancelToken();
+        this.handle = engineAttr != 0
+            ? lib.jna_engine_stream_create(engineAttr, settings, width, height)
+            : lib.jna_stream_create(settings, width, height);
+        if (handle == 0) {
+            throw new OutOfMemoryError("Failed to create streaming quantizer for " + width + "x" + height);
+        }
+        this.resource = NativeResource.create(handle, lib::jna_stream_destroy, (long) width * height * 5, null);
+        this.pixels = lib.jna_stream_pixels(handle, (long) width * height * 4);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 解码 decoder 中剩余的所有行，每 bandRows 行提交一次直方图统计
+     * @throws java.util.concurrent.CancellationException settings 中的取消令牌已取消，剩余的行不再解码
+     */
+    public void decode(PngRowDecoder decoder, int bandRows) throws IOException {
+        if (decoder.getWidth() != width || decoder.getHeight() != height) {
+            throw new IllegalArgumentException("Decoder size does not match");
+        }
+        while (rowsWritten < height) {
+            if (cancelToken != null) {
+                cancelToken.throwIfCancelled();
+            }
+            pixels.position(rowsWritten * width * 4);
+            int rows = decoder.readRows(pixels, bandRows);
+            if (rows == 0) {
+                throw new IOException("Unexpected end of image data");
+            }
+            submit(rowsWritten, rows);
+            rowsWritten += rows;
+        }
+    }
+
+    /**
+     * 加入调用方已经解码的 rows 行：从 rgba 的当前位置复制到native像素缓冲区，接在已有的行之后，并提交直方图统计；
+     * 不改变 rgba 的位置，可以与 {@link #decode} 交替使用
+     * @param rgba R-G-B-A 顺序的像素，至少 rows*width*4 字节
+     * @throws java.util.concurrent.CancellationException settings 中的取消令牌已取消
+     */
+    public void addRows(ByteBuffer rgba, int rows) {
+        if (rows < 0 || rows > height - rowsWritten) {
+            throw new IllegalArgumentException("Invalid row count: " + rows);
+        }
+        int bytes = rows * width * 4;
+        if (rgba.remaining() < bytes) {
+            throw new IllegalArgumentException("Buffer too small for " + rows + " rows");
+        }
+        if (cancelToken != null) {
+            cancelToken.throwIfCancelled();
+        }
+        ByteBuffer source = rgba.duplicate();
+        source.limit(source.position() + bytes);
+        pixels.position(rowsWritten * width * 4);
+        pixels.put(source);
+        submit(rowsWritten, rows);
+        rowsWritten += rows;
+    }
+
+    private void submit(int firstRow, int rows) {
+        histogram = histogram.thenApplyAsync(error -> error != LibImageQuantDirect.LIQ_JNA_OK ? error
+                : cancelToken != null && cancelToken.isCancelled() ? LibImageQuantDirect.LIQ_ABORTED
+                : lib.jna_stream_add_rows(handle, firstRow, rows), executor);
+    }
+
+    /**
+     * 等待直方图统计完成，生成调色板并把整张图像重映射到 indices
+     * @param indices 输出索引，至少 width*height 字节
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    public int finish(byte[] indices, QuantizeOutput output) {
+        if (rowsWritten < height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows decoded");
+        }
+        int error = awaitHistogram();
+        if (error != LibImageQuantDirect.LIQ_JNA_OK) {
+            return error;
+        }
+        return lib.jna_stream_finish(handle, indices, indices.length, output);
+    }
+
+    /**
+     * 等待直方图统计完成，生成调色板并把整张图像重映射到native索引缓冲区，完成后native像素缓冲区被释放
+     * 索引通过 {@link #getIndices()} 读取，可以直接交给 {@link IndexedPngWriter} 逐行编码，Java堆上不出现整图索引
+     * @return liq_error 错误码，LIQ_JNA_OK 表示成功
+     */
+    public int remap(QuantizeOutput output) {
+        if (rowsWritten < height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows decoded");
+        }
+        int error = awaitHistogram();
+        if (error != LibImageQuantDirect.LIQ_JNA_OK) {
+            return error;
+        }
+        return lib.jna_stream_remap(handle, output);
+    }
+
+    /**
+     * {@link #remap} 输出的 width*height 字节索引，只读视图，在 {@link #close()} 之前有效
+     */
+    public ByteBuffer getIndices() {
+        ByteBuffer indices = lib.jna_stream_indices(handle, (long) width * height);
+        if (indices == null) {
+            throw new IllegalStateException("Image has not been remapped");
+        }
+        return indices.asReadOnlyBuffer();
+    }
+
+    private int awaitHistogram() {
+        try {
+            return histogram.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (handle != 0) {
+            // 等待仍在读取像素的直方图任务，之后才能释放native内存
+            histogram.exceptionally(t -> LibImageQuantDirect.LIQ_JNA_ERROR).join();
+            handle = 0;
+            resource.run();
+        }
+    }
+}
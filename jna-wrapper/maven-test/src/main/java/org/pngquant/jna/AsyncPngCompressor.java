@@ -0,0 +1,316 @@
+package org.pngquant.jna;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 非阻塞的PNG压缩接口，每张图像返回一个 {@link CompletableFuture}
+ *
+ * 每张图像分两步在不同的线程池上执行：
+ * 准入在I/O线程池上——读取图像头、等待同时进行的任务数低于上限（以及内存预算，如果设置了）；
+ * 解码、量化、PNG编码和写出在有界的平台线程池上，由所有任务共用的 {@link PngCompressor} 完成，
+ * 线程私有的工作区（属性、缓冲区、编码器）按计算线程复用。
+ * 内置的I/O线程池在 Java 21+ 上使用虚拟线程（通过反射创建，源码仍兼容 Java 11），更早的版本使用缓存线程池；
+ * 计算线程池固定为CPU核心数，native量化在调用线程上单线程执行，不再与libimagequant的线程池叠加。
+ * 等待准入的任务只占用I/O线程，不持有任何像素；同时通过准入的任务数有上限，解码后的图像不会无限堆积。
+ *
+ * 调用方可以在返回的 future 上继续组合（例如压缩完成后上传），不需要占住任何线程等待：
+ * <pre>
+ * try (AsyncPngCompressor compressor = new AsyncPngCompressor()) {
+ *     compressor.compressAsync(input, output, 80, 256, 3)
+ *               .thenCompose(result -> upload(output))
+ *               .whenComplete((r, t) -> ...);
+ * }
+ * </pre>
+ * 与 {@link PngCompressor#compress} 一样，读取、量化、写出失败时 future 正常完成，结果的 isSuccess() 为false。
+ *
+ * 每个任务带一个 {@link CancelToken}：取消返回的 future（{@code cancel(true)}）或超过截止时间后，
+ * 尚未开始的步骤直接跳过，正在执行的native量化在下一次进度回调时中止，过载时不再为注定超时的请求耗费CPU。
+ *
+ * 设置了 {@link MemoryBudget} 时，每个任务通过准入之前还要按图像头预留内存，任务结束后释放。
+ */
+public class AsyncPngCompressor implements AutoCloseable {
+
+    private final Executor ioExecutor;
+    private final Executor cpuExecutor;
+    // 内置线程池由本对象关闭，调用方提供的不关闭
+    private final List<ExecutorService> owned = new ArrayList<>();
+    // 所有任务共用，工作区按计算线程缓存；本对象关闭并且所有任务结束之后释放
+    private final PngCompressor compressor = new PngCompressor();
+    // 已经通过准入、尚未结束的任务
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private volatile CompressionOptions baseOptions = CompressionOptions.DEFAULT.withSingleThreaded(true);
+    private volatile MemoryBudget memoryBudget;
+    // 已提交、尚未结束的任务数，以及是否已经关闭；由 this 保护
+    private int pending;
+    private boolean closed;
+
+    /**
+     * 一个任务在准入时取得的资源，任务结束时归还
+     */
+    private static final class Admission {
+        boolean permit;
+        long reservedBytes;
+    }
+
+    /**
+     * 使用内置线程池：虚拟线程（不可用时为缓存线程池）负责I/O，CPU核心数个平台线程负责量化和编码
+     */
+    public AsyncPngCompressor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param cpuThreads 量化和编码的平台线程数，同时进行的任务数上限为它的两倍
+     */
+    public AsyncPngCompressor(int cpuThreads) {
+        ExecutorService io = newIoExecutor();
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService cpu = Executors.newFixedThreadPool(Math.max(1, cpuThreads), r -> {
+            Thread t = new Thread(r, "PNG-Async-Quantize-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        owned.add(io);
+        owned.add(cpu);
+        this.ioExecutor = io;
+        this.cpuExecutor = cpu;
+        this.maxInFlight = 2 * Math.max(1, cpuThreads);
+        this.inFlight = new Semaphore(maxInFlight, true);
+    }
+
+    /**
+     * 使用调用方提供的线程池，{@link #close()} 不会关闭它们；同时进行的任务数上限为CPU核心数的两倍
+     * @param ioExecutor 准入等待的线程池
+     * @param cpuExecutor 解码、量化、编码和写出的线程池
+     */
+    public AsyncPngCompressor(Executor ioExecutor, Executor cpuExecutor) {
+        this(ioExecutor, cpuExecutor, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxInFlight 同时通过准入的任务数上限，超出的任务在I/O线程池上等待
+     */
+    public AsyncPngCompressor(Executor ioExecutor, Executor cpuExecutor, int maxInFlight) {
+        this.ioExecutor = ioExecutor;
+        this.cpuExecutor = cpuExecutor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight, true);
+    }
+
+    /**
+     * Java 21+ 上返回每个任务一个虚拟线程的线程池，否则返回守护线程的缓存线程池
+     */
+    static ExecutorService newIoExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "PNG-Async-IO-" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 设置输出PNG的zlib压缩级别 (0-9，-1 为默认)
+     */
+    public AsyncPngCompressor setCompressionLevel(int level) {
+        this.baseOptions = baseOptions.withCompressionLevel(level);
+        return this;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * 设置准入时预留内存使用的预算，可以与其他压缩器共享
+     * @param budget 内存预算，null 表示不限制
+     */
+    public AsyncPngCompressor setMemoryBudget(MemoryBudget budget) {
+        this.memoryBudget = budget;
+        return this;
+    }
+
+    public CompletableFuture<PngCompressor.CompressionResult> compressAsync(String inputFile, String outputFile,
+                                                                        int quality, int maxColors, int speed) {
+        return compressAsync(new File(inputFile), new File(outputFile), quality, maxColors, speed);
+    }
+
+    /**
+     * 异步压缩一张图像，立即返回
+     * @param quality 质量 (0-100)，下限为其一半
+     * @param maxColors 最大颜色数 (1-256)
+     * @param speed 速度 (1-11)
+     */
+    public CompletableFuture<PngCompressor.CompressionResult> compressAsync(File inputFile, File outputFile,
+                                                                        int quality, int maxColors, int speed) {
+        return compressAsync(inputFile, outputFile, quality, maxColors, speed, 0);
+    }
+
+    /**
+     * 带截止时间的异步压缩，截止时间从提交时开始计算，排队时间也算在内
+     * 超时或被取消的任务以失败结果完成（错误信息为“超过截止时间”或“已取消”），
+     * 对返回的 future 调用 cancel 时它立即以 CancellationException 完成，后台步骤随后中止
+     * @param timeoutMillis 截止时间（毫秒），0 表示不限制
+     */
+    public CompletableFuture<PngCompressor.CompressionResult> compressAsync(File inputFile, File outputFile,
+                                                                        int quality, int maxColors, int speed,
+                                                                        long timeoutMillis) {
+        begin();
+        CancelToken token = new CancelToken();
+        if (timeoutMillis > 0) {
+            token.cancelAfter(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        CompressionOptions options = baseOptions.withMaxColors(maxColors).withQuality(quality).withSpeed(speed);
+
+        MemoryBudget budget = memoryBudget;
+        Admission admission = new Admission();
+        CompletableFuture<PngCompressor.CompressionResult> result = new CompletableFuture<>();
+        CompletableFuture<Void> admitted;
+        try {
+            admitted = CompletableFuture.runAsync(() -> admit(admission, budget, inputFile, token), ioExecutor);
+        } catch (RuntimeException e) {
+            // 调用方提供的线程池已经关闭
+            token.close();
+            end();
+            throw e;
+        }
+        admitted
+            .thenApplyAsync(v -> compressor.compress(inputFile, outputFile, options, token), cpuExecutor)
+            .exceptionally(AsyncPngCompressor::toFailure)
+            .whenComplete((r, t) -> {
+                // 所有步骤（包括native调用）都已结束，令牌、许可和预留的内存可以释放
+                token.close();
+                if (admission.permit) {
+                    if (budget != null) {
+                        budget.release(admission.reservedBytes);
+                    }
+                    inFlight.release();
+                }
+                end();
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.complete(r);
+                }
+            });
+        result.whenComplete((r, t) -> {
+            if (result.isCancelled()) {
+                token.cancel();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 异步压缩一批图像，全部完成后返回与输入顺序一致的结果
+     */
+    public CompletableFuture<List<PngCompressor.CompressionResult>> compressAllAsync(String[] inputFiles, String[] outputFiles,
+                                                                                  int quality, int maxColors, int speed) {
+        List<CompletableFuture<PngCompressor.CompressionResult>> futures = new ArrayList<>();
+        for (int i = 0; i < inputFiles.length; i++) {
+            futures.add(compressAsync(inputFiles[i], outputFiles[i], quality, maxColors, speed));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<PngCompressor.CompressionResult> results = new ArrayList<>();
+            for (CompletableFuture<PngCompressor.CompressionResult> future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        });
+    }
+
+    // =============================================================================
+    // 各阶段的处理逻辑
+    // =============================================================================
+
+    /**
+     * 等待许可，然后按图像头预留整图解码所需的内存；图像头无法读取时不预留，由解码报告错误
+     */
+    private void admit(Admission admission, MemoryBudget budget, File input, CancelToken token) {
+        token.throwIfCancelled();
+        try {
+            inFlight.acquire();
+            admission.permit = true;
+            token.throwIfCancelled();
+            if (budget != null) {
+                ImageHeader header;
+                try {
+                    header = ImageHeader.read(input);
+                } catch (IOException e) {
+                    return;
+                }
+                admission.reservedBytes = budget.acquire(MemoryBudget.estimate(header, false).getTotalBytes());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("等待准入时被中断");
+        }
+    }
+
+    private synchronized void begin() {
+        if (closed) {
+            throw new IllegalStateException("AsyncPngCompressor is closed");
+        }
+        pending++;
+    }
+
+    private void end() {
+        boolean last;
+        synchronized (this) {
+            last = --pending == 0 && closed;
+        }
+        if (last) {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        for (ExecutorService executor : owned) {
+            executor.shutdown();
+        }
+        compressor.close();
+    }
+
+    private static PngCompressor.CompressionResult toFailure(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof CancellationException) {
+            return new PngCompressor.CompressionResult(false, cause.getMessage());
+        }
+        return new PngCompressor.CompressionResult(false, "压缩错误: " + cause.getMessage());
+    }
+
+    /**
+     * 之后不能再提交任务；已经提交的任务会继续完成，最后一个任务结束时关闭内置线程池并释放共用压缩器的工作区
+     */
+    @Override
+    public void close() {
+        boolean idle;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            idle = pending == 0;
+        }
+        if (idle) {
+            shutdown();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.pngquant.jna;
+
+import java.util.Random;
+
+/**
+ * JNA调用开销微基准：接口代理 (LibImageQuantJNA) 对比 直接映射 (LibImageQuantDirect)
+ *
+ * 用法: java org.pngquant.jna.BindingBenchmark [迭代次数]
+ */
+public class BindingBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ICON_SIZE = 32;
+
+    // 防止JIT消除调用结果
+    private static long sink;
+
+    interface Call {
+        void run(int i);
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        LibImageQuantJNA proxy = LibImageQuantJNA.INSTANCE;
+
+        System.out.println("=== JNA 绑定调用开销基准 ===");
+        System.out.println("libimagequant版本: " + LibImageQuantDirect.jna_liq_version());
+        System.out.printf("迭代次数: %,d\n\n", iterations);
+
+        // 1. 无参数调用
+        compare("jna_liq_version()", iterations,
+            i -> sink += proxy.jna_liq_version(),
+            i -> sink += LibImageQuantDirect.jna_liq_version());
+
+        // 2. 带句柄和基本类型参数的setter
+        long attr = LibImageQuantDirect.jna_liq_attr_create();
+        try {
+            compare("jna_setMaxColors(attr, n)", iterations,
+                i -> sink += proxy.jna_setMaxColors(attr, 2 + (i & 0xFF)),
+                i -> sink += LibImageQuantDirect.jna_setMaxColors(attr, 2 + (i & 0xFF)));
+        } finally {
+            LibImageQuantDirect.jna_liq_attr_destroy(attr);
+        }
+
+        // 3. 小图标完整流程（约15次native调用）
+        byte[] icon = randomIcon(ICON_SIZE);
+        int pipelineIterations = Math.max(1, iterations / 100);
+        compare("32x32图标完整流程", pipelineIterations,
+            i -> sink += quantizeWithProxy(proxy, icon),
+            i -> sink += quantizeWithDirect(icon));
+    }
+
+    private static void compare(String name, int iterations, Call proxyCall, Call directCall) {
+        double proxyNs = measure(iterations, proxyCall);
+        double directNs = measure(iterations, directCall);
+        System.out.printf("%-28s 代理: %10.1f ns/次  直接映射: %10.1f ns/次  提升: %.2fx\n",
+                         name, proxyNs, directNs, proxyNs / directNs);
+    }
+
+    private static double measure(int iterations, Call call) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (int i = 0; i < iterations; i++) {
+                call.run(i);
+            }
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            call.run(i);
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+
+    private static int quantizeWithProxy(LibImageQuantJNA lib, byte[] icon) {
+        long attr = lib.jna_liq_attr_create();
+        long image = 0;
+        long result = 0;
+        try {
+            lib.jna_setMaxColors(attr, 64);
+            lib.jna_setQuality_range(attr, 0, 100);
+            lib.jna_setSpeed(attr, 10);
+            lib.jna_setMinPosterization(attr, 0);
+            image = lib.jna_liq_image_create(attr, icon, ICON_SIZE, ICON_SIZE, 4);
+            result = lib.jna_liq_quantize_image(attr, image);
+            byte[] palette = new byte[256 * 4];
+            int paletteBytes = lib.jna_get_palette_bytes(result, palette, palette.length);
+            byte[] indices = new byte[ICON_SIZE * ICON_SIZE];
+            lib.jna_liq_write_remapped_image(result, image, indices, indices.length);
+            return paletteBytes + lib.jna_getQuality(result) + (int) lib.jna_getMeanSquareError(result);
+        } finally {
+            if (result != 0) lib.jna_liq_result_destroy(result);
+            if (image != 0) lib.jna_liq_image_destroy(image);
+            lib.jna_liq_attr_destroy(attr);
+        }
+    }
+
+    private static int quantizeWithDirect(byte[] icon) {
+        long attr = LibImageQuantDirect.jna_liq_attr_create();
+        long image = 0;
+        long result = 0;
+        try {
+            LibImageQuantDirect.jna_setMaxColors(attr, 64);
+            LibImageQuantDirect.jna_setQuality_range(attr, 0, 100);
+            LibImageQuantDirect.jna_setSpeed(attr, 10);
+            LibImageQuantDirect.jna_setMinPosterization(attr, 0);
+            image = LibImageQuantDirect.jna_liq_image_create(attr, icon, ICON_SIZE, ICON_SIZE, 4);
+            result = LibImageQuantDirect.jna_liq_quantize_image(attr, image);
+            byte[] palette = new byte[256 * 4];
+            int paletteBytes = LibImageQuantDirect.jna_get_palette_bytes(result, palette, palette.length);
+            byte[] indices = new byte[ICON_SIZE * ICON_SIZE];
+            LibImageQuantDirect.jna_liq_write_remapped_image(result, image, indices, indices.length);
+            return paletteBytes + LibImageQuantDirect.jna_getQuality(result)
+                + (int) LibImageQuantDirect.jna_getMeanSquareError(result);
+        } finally {
+            if (result != 0) LibImageQuantDirect.jna_liq_result_destroy(result);
+            if (image != 0) LibImageQuantDirect.jna_liq_image_destroy(image);
+            LibImageQuantDirect.jna_liq_attr_destroy(attr);
+        }
+    }
+
+    /**
+     * 生成带少量颜色的随机ABGR图标
+     */
+    private static byte[] randomIcon(int size) {
+        Random random = new Random(42);
+        int[] colors = new int[16];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt();
+        }
+        byte[] data = new byte[size * size * 4];
+        for (int i = 0; i < size * size; i++) {
+            int c = colors[random.nextInt(colors.length)];
+            data[i * 4] = (byte) 0xFF;
+            data[i * 4 + 1] = (byte) c;
+            data[i * 4 + 2] = (byte) (c >> 8);
+            data[i * 4 + 3] = (byte) (c >> 16);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,75 @@
+package org.pngquant.jna;
+
+import java.util.Arrays;
+
+/**
+ * 开放寻址的 int 颜色集合，按加入顺序给每个颜色一个序号，{@link ExactPalette} 和 {@link GainEstimator} 共用
+ *
+ * 线性探测，槽位数为最多颜色数的4倍（负载不超过1/4），哈希为 Fibonacci 乘法取高位。
+ * 槽位保存序号+1，0表示空位，所以颜色本身可以是0。表只在构造时分配，{@link #clear} 之后可以反复使用；不是线程安全的。
+ */
+final class ColorTable {
+
+    private final int[] keys;
+    private final short[] slots;
+    private final int[] colors;
+    private final int mask;
+    private final int shift;
+    private int count;
+
+    /**
+     * @param maxColors 最多容纳的颜色数 (1-32767)
+     */
+    ColorTable(int maxColors) {
+        if (maxColors < 1 || maxColors > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid color table size: " + maxColors);
+        }
+        int size = Integer.highestOneBit(maxColors * 4 - 1) << 1;
+        keys = new int[size];
+        slots = new short[size];
+        colors = new int[maxColors];
+        mask = size - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(size);
+    }
+
+    void clear() {
+        Arrays.fill(slots, (short) 0);
+        count = 0;
+    }
+
+    /**
+     * 查找颜色的序号，不存在时加入
+     * @param limit 颜色数上限，不超过构造时的 maxColors
+     * @return 颜色的序号；颜色不存在且已有 limit 个颜色时为-1
+     */
+    int indexOf(int color, int limit) {
+        int slot = (color * 0x9E3779B9) >>> shift;
+        while (true) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                if (count >= limit) {
+                    return -1;
+                }
+                keys[slot] = color;
+                colors[count] = color;
+                slots[slot] = (short) ++count;
+                return count - 1;
+            }
+            if (keys[slot] == color) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * 第 index 个加入的颜色，0xRRGGBBAA
+     */
+    int colorAt(int index) {
+        return colors[index];
+    }
+}
@@ -13,8 +13,6 @@ import java.io.File;
 public class CompressionAnalyzer {
     
     public static void main(String[] args) {
-        LibImageQuantJNA lib = LibImageQuantJNA.INSTANCE;
-        
         try {
             // 1. 读取原始图像
             BufferedImage original = ImageIO.read(new File("test.png"));
@@ -63,21 +61,21 @@ public class CompressionAnalyzer {
             // 6. 测试压缩
             System.out.println("\n=== 压缩测试 ===");
             
-            long attr = lib.jna_liq_attr_create();
-            lib.jna_setMaxColors(attr, 16);  // 少数颜色便于分析
-            lib.jna_setQuality_single(attr, 80);
-            lib.jna_setSpeed(attr, 3);
-            lib.jna_setMinPosterization(attr, 0);
+            long attr = LibImageQuantDirect.jna_liq_attr_create();
+            LibImageQuantDirect.jna_setMaxColors(attr, 16);  // 少数颜色便于分析
+            LibImageQuantDirect.jna_setQuality_single(attr, 80);
+            LibImageQuantDirect.jna_setSpeed(attr, 3);
+            LibImageQuantDirect.jna_setMinPosterization(attr, 0);
             
-            long image = lib.jna_liq_image_create(attr, imageData, testImg.getWidth(), testImg.getHeight(), 4);
-            long result = lib.jna_liq_quantize_image(attr, image);
+            long image = LibImageQuantDirect.jna_liq_image_create(attr, imageData, testImg.getWidth(), testImg.getHeight(), 4);
+            long result = LibImageQuantDirect.jna_liq_quantize_image(attr, image);
             
             if (result != 0) {
                 // 获取调色板
-                Pointer palette = lib.jna_liq_get_palette(result);
-                int paletteSize = lib.jna_get_palette_count(palette);
+                Pointer palette = LibImageQuantDirect.jna_liq_get_palette(result);
+                int paletteSize = LibImageQuantDirect.jna_get_palette_count(palette);
                 byte[] paletteData = new byte[paletteSize * 4];
-                lib.jna_copy_palette_data(palette, paletteData, paletteData.length);
+                LibImageQuantDirect.jna_copy_palette_data(palette, paletteData, paletteData.length);
                 
                 System.out.printf("调色板 (%d 颜色):\n", paletteSize);
                 for (int i = 0; i < paletteSize; i++) {
@@ -90,7 +88,7 @@ public class CompressionAnalyzer {
                 
                 // 获取重映射的索引
                 byte[] indexData = new byte[testImg.getWidth() * testImg.getHeight()];
-                lib.jna_liq_write_remapped_image(result, image, indexData, indexData.length);
+                LibImageQuantDirect.jna_liq_write_remapped_image(result, image, indexData, indexData.length);
                 
                 System.out.println("\n映射索引:");
                 for (int y = 0; y < 3; y++) {
@@ -141,13 +139,13 @@ public class CompressionAnalyzer {
                     System.out.println();
                 }
                 
-                lib.jna_liq_result_destroy(result);
+                LibImageQuantDirect.jna_liq_result_destroy(result);
             } else {
                 System.out.println("量化失败");
             }
             
-            lib.jna_liq_image_destroy(image);
-            lib.jna_liq_attr_destroy(attr);
+            LibImageQuantDirect.jna_liq_image_destroy(image);
+            LibImageQuantDirect.jna_liq_attr_destroy(attr);
             
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,264 @@
+package org.pngquant.jna;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * {@link PngCompressor} 的线程私有工作区，稳定运行时每张图像几乎不再分配Java堆内存
+ *
+ * - 按属性级参数（颜色数、质量、速度、色调分离、单线程）缓存配置好的 liq_attr，最多 {@link #MAX_ATTRS} 个，
+ *   超出时淘汰最久未用的；取消令牌按调用切换，不需要重新创建属性
+ * - 像素 direct 缓冲区和索引数组按见过的最大图像复用，单个超过 maxRetainedBytes 的图像使用一次性的缓冲区；
+ *   每 {@link #SHRINK_WINDOW} 次调用检查一次，容量超过这段时间实际用量的两倍时缩小到实际用量
+ * - 复用 QuantizeSettings / QuantizeOutput 结构体和 PNG 编码器（及其 Deflater）
+ * - 不超过256色图像的无损快速路径，见 {@link ExactPalette}；流式解码时按行带逐段判断
+ *
+ * 只能在创建它的线程上使用。线程池的线程不会结束，引擎一直留在它们的 ThreadLocalMap 中，
+ * 由 {@link PngCompressor#close()} 统一关闭；忘记关闭时，只有线程结束、引擎不可达之后才由 {@link Cleaner} 释放缓存的属性。
+ */
+final class CompressionEngine implements AutoCloseable {
+
+    static final int MAX_ATTRS = 8;
+    static final int SHRINK_WINDOW = 32;
+
+    private static final ImageQuantBackend lib = ImageQuantBackend.INSTANCE;
+
+    private long maxRetainedBytes;
+
+    // 缓存的属性：打包后的参数、句柄、释放动作、最近使用的序号
+    private final long[] attrKeys = new long[MAX_ATTRS];
+    private final long[] attrHandles = new long[MAX_ATTRS];
+    private final Cleaner.Cleanable[] attrCleanables = new Cleaner.Cleanable[MAX_ATTRS];
+    private final long[] attrLastUsed = new long[MAX_ATTRS];
+    private int attrCount;
+    private long tick;
+
+    final QuantizeSettings settings = new QuantizeSettings();
+    final QuantizeOutput output = new QuantizeOutput();
+    private IndexedPngWriter writer;
+    private final ExactPalette exact = new ExactPalette();
+    private long exactHits;
+    private long streamSessions;
+
+    private ByteBuffer pixels;
+    private byte[] indices;
+    private long windowMaxPixels;
+    private int windowCalls;
+
+    private long attrHits;
+    private long attrMisses;
+
+    CompressionEngine(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    void setMaxRetainedBytes(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * 与 {@link PngQuantJNA#quantizeAndRemap} 相同，但属性来自缓存
+     * @param indices 至少 width*height 字节
+     */
+    int quantizeAndRemap(QuantizeSettings settings, ByteBuffer rgba, int width, int height,
+                         byte[] indices, QuantizeOutput output) {
+        long handle = attr(settings);
+        if (handle == 0) {
+            return LibImageQuantDirect.LIQ_JNA_ERROR;
+        }
+        return lib.jna_engine_quantize_remap_rgba(handle, settings, rgba, width, height, indices, indices.length, output);
+    }
+
+    /**
+     * 无损快速路径：颜色数不超过 maxColors 时把索引写入 indices、调色板写入 output，不调用 libimagequant
+     * @return 是否成功；false 时 indices 的内容无意义，应走正常量化
+     */
+    boolean mapExact(ByteBuffer rgba, int width, int height, int maxColors, byte[] indices, QuantizeOutput output) {
+        if (!exact.map(rgba, width * height, indices, maxColors)) {
+            return false;
+        }
+        exact.writeTo(output);
+        exactHits++;
+        return true;
+    }
+
+    /**
+     * 开始按行带逐段的无损快速路径，见 {@link #mapExactRange}
+     */
+    void beginExact() {
+        exact.clear();
+    }
+
+    /**
+     * 继续扫描第 first 到 first+pixelCount 个像素，序号写入 indices 的对应位置
+     * @return 到目前为止的颜色数是否仍不超过 maxColors；false 时应改走正常量化
+     */
+    boolean mapExactRange(ByteBuffer rgba, int first, int pixelCount, int maxColors, byte[] indices) {
+        return exact.mapRange(rgba, first, pixelCount, indices, maxColors);
+    }
+
+    /**
+     * 所有像素都扫描完并且没有超过上限：调色板写入 output
+     */
+    void finishExact(QuantizeOutput output) {
+        exact.writeTo(output);
+        exactHits++;
+    }
+
+    /**
+     * 使用缓存属性的流式量化会话，属性创建失败时按 settings 新建
+     */
+    StreamingQuantizer stream(QuantizeSettings settings, int width, int height, Executor executor) {
+        StreamingQuantizer quantizer = new StreamingQuantizer(settings, attr(settings), width, height, executor);
+        streamSessions++;
+        return quantizer;
+    }
+
+    /**
+     * 按 settings 当前的属性级参数取缓存的属性，没有时创建
+     * @return jna_engine_attr_create 的句柄，失败时为0
+     */
+    long attr(QuantizeSettings settings) {
+        long key = attrKey(settings);
+        tick++;
+        for (int i = 0; i < attrCount; i++) {
+            if (attrKeys[i] == key) {
+                attrLastUsed[i] = tick;
+                attrHits++;
+                return attrHandles[i];
+            }
+        }
+        attrMisses++;
+        long handle = lib.jna_engine_attr_create(settings);
+        if (handle == 0) {
+            return 0;
+        }
+        int slot = attrCount < MAX_ATTRS ? attrCount++ : leastRecentlyUsed();
+        if (attrCleanables[slot] != null) {
+            attrCleanables[slot].clean();
+        }
+        attrKeys[slot] = key;
+        attrHandles[slot] = handle;
+        attrLastUsed[slot] = tick;
+        attrCleanables[slot] = NativeResource.create(handle, lib::jna_engine_attr_destroy, 256, null)
+            .register(this);
+        return handle;
+    }
+
+    private int leastRecentlyUsed() {
+        int oldest = 0;
+        for (int i = 1; i < attrCount; i++) {
+            if (attrLastUsed[i] < attrLastUsed[oldest]) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    // 参数都有明确的取值范围：颜色 1-256 (9位)，质量 0-100 (各7位)，速度 1-11 (4位)，色调分离 0-4 (3位)，单线程 (1位)
+    private static long attrKey(QuantizeSettings s) {
+        return (long) s.max_colors
+            | (long) s.quality_min << 9
+            | (long) s.quality_max << 16
+            | (long) s.speed << 23
+            | (long) s.min_posterization << 27
+            | (long) (s.single_threaded != 0 ? 1 : 0) << 30;
+    }
+
+    /**
+     * 至少 pixelCount*4 字节的 direct 缓冲区，位置为0、limit 为 pixelCount*4；内容在下一次调用之前有效
+     */
+    ByteBuffer pixels(int width, int height) {
+        long pixelCount = (long) width * height;
+        track(pixelCount);
+        long bytes = pixelCount * 4;
+        if (pixels != null && pixels.capacity() >= bytes) {
+            pixels.clear().limit((int) bytes);
+            return pixels;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) bytes);
+        if (bytes <= maxRetainedBytes) {
+            pixels = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * 至少 width*height 字节的索引数组，可能更长；内容在下一次调用之前有效
+     */
+    byte[] indices(int width, int height) {
+        int count = width * height;
+        if (indices != null && indices.length >= count) {
+            return indices;
+        }
+        byte[] array = new byte[count];
+        if (count <= maxRetainedBytes) {
+            indices = array;
+        }
+        return array;
+    }
+
+    /**
+     * 复用的 PNG 编码器，每次按调用方的参数重新设置
+     */
+    IndexedPngWriter writer() {
+        if (writer == null) {
+            writer = new IndexedPngWriter(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        }
+        return writer;
+    }
+
+    // 缩小策略：一个窗口内用到的最大图像远小于当前容量时，释放多余的部分
+    private void track(long pixelCount) {
+        windowMaxPixels = Math.max(windowMaxPixels, pixelCount);
+        if (++windowCalls < SHRINK_WINDOW) {
+            return;
+        }
+        if (pixels != null && pixels.capacity() > windowMaxPixels * 4 * 2) {
+            pixels = null;
+        }
+        if (indices != null && indices.length > windowMaxPixels * 2) {
+            indices = null;
+        }
+        windowCalls = 0;
+        windowMaxPixels = 0;
+    }
+
+    long getRetainedBytes() {
+        return (pixels != null ? pixels.capacity() : 0) + (indices != null ? indices.length : 0);
+    }
+
+    long getExactHits() {
+        return exactHits;
+    }
+
+    long getStreamSessions() {
+        return streamSessions;
+    }
+
+    long getAttrHits() {
+        return attrHits;
+    }
+
+    long getAttrMisses() {
+        return attrMisses;
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < attrCount; i++) {
+            attrCleanables[i].clean();
+            attrCleanables[i] = null;
+            attrHandles[i] = 0;
+        }
+        attrCount = 0;
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        pixels = null;
+        indices = null;
+    }
+}
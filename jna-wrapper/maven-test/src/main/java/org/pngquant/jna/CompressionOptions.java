@@ -0,0 +1,196 @@
+package org.pngquant.jna;
+
+import java.util.Objects;
+import java.util.zip.Deflater;
+
+/**
+ * 一次压缩使用的全部参数，不可变，可以在多个线程之间共享
+ *
+ * 每个 withXxx 方法返回修改了一项参数的新对象，取值超出范围时截断到合法范围（与 {@link PngCompressor} 原来的设置方法相同）：
+ * <pre>
+ * CompressionOptions thumbnails = CompressionOptions.DEFAULT.withMaxColors(128).withQuality(70).withSpeed(5);
+ * CompressionOptions photos = CompressionOptions.DEFAULT.withQualityRange(80, 95).withSpeed(1);
+ * compressor.compress(input, output, thumbnails, null);
+ * compressor.compress(other, output2, photos, null);
+ * </pre>
+ * 同一个 {@link PngCompressor} 可以同时以不同的参数压缩多张图像。
+ */
+public final class CompressionOptions {
+
+    /**
+     * 默认参数：256色、质量 70-90、速度3、不做色调分离、库默认抖动和伽马、zlib默认级别、开启无损快速路径
+     */
+    public static final CompressionOptions DEFAULT = new CompressionOptions(256, 70, 90, 3, 0, -1f, 0,
+                                                                            Deflater.DEFAULT_COMPRESSION, false, null, true);
+
+    private final int maxColors;
+    private final int qualityMin;
+    private final int qualityMax;
+    private final int speed;
+    private final int minPosterization;
+    private final float ditheringLevel;
+    private final double gamma;
+    private final int compressionLevel;
+    private final boolean singleThreaded;
+    private final Palette palette;
+    private final boolean exactFastPath;
+
+    private CompressionOptions(int maxColors, int qualityMin, int qualityMax, int speed, int minPosterization,
+                               float ditheringLevel, double gamma, int compressionLevel, boolean singleThreaded,
+                               Palette palette, boolean exactFastPath) {
+        this.maxColors = maxColors;
+        this.qualityMin = qualityMin;
+        this.qualityMax = qualityMax;
+        this.speed = speed;
+        this.minPosterization = minPosterization;
+        this.ditheringLevel = ditheringLevel;
+        this.gamma = gamma;
+        this.compressionLevel = compressionLevel;
+        this.singleThreaded = singleThreaded;
+        this.palette = palette;
+        this.exactFastPath = exactFastPath;
+    }
+
+    public CompressionOptions withMaxColors(int colors) {
+        return new CompressionOptions(Math.max(1, Math.min(256, colors)), qualityMin, qualityMax, speed,
+                                      minPosterization, ditheringLevel, gamma, compressionLevel, singleThreaded, palette,
+                                      exactFastPath);
+    }
+
+    /**
+     * 单一质量值，量化时下限为目标的一半（与 jna_setQuality_single 一致）
+     */
+    public CompressionOptions withQuality(int quality) {
+        int q = Math.max(0, Math.min(100, quality));
+        return new CompressionOptions(maxColors, q, q, speed, minPosterization, ditheringLevel, gamma,
+                                      compressionLevel, singleThreaded, palette, exactFastPath);
+    }
+
+    public CompressionOptions withQualityRange(int min, int max) {
+        int qmin = Math.max(0, Math.min(100, min));
+        int qmax = Math.max(qmin, Math.min(100, max));
+        return new CompressionOptions(maxColors, qmin, qmax, speed, minPosterization, ditheringLevel, gamma,
+                                      compressionLevel, singleThreaded, palette, exactFastPath);
+    }
+
+    public CompressionOptions withSpeed(int speed) {
+        return new CompressionOptions(maxColors, qualityMin, qualityMax, Math.max(1, Math.min(11, speed)),
+                                      minPosterization, ditheringLevel, gamma, compressionLevel, singleThreaded, palette,
+                                      exactFastPath);
+    }
+
+    public CompressionOptions withMinPosterization(int bits) {
+        return new CompressionOptions(maxColors, qualityMin, qualityMax, speed, Math.max(0, Math.min(4, bits)),
+                                      ditheringLevel, gamma, compressionLevel, singleThreaded, palette, exactFastPath);
+    }
+
+    /**
+     * 抖动强度 (0.0-1.0)，负数为 libimagequant 默认值
+     */
+    public CompressionOptions withDitheringLevel(float level) {
+        return new CompressionOptions(maxColors, qualityMin, qualityMax, speed, minPosterization,
+                                      level < 0 ? -1f : Math.min(1f, level), gamma, compressionLevel,
+                                      singleThreaded, palette, exactFastPath);
+    }
+
+    /**
+     * 调色板的输出伽马值 (0-1，liq_set_output_gamma)，0 为库默认值 (1/2.2)
+     */
+    public CompressionOptions withGamma(double gamma) {
+        return new CompressionOptions(maxColors, qualityMin, qualityMax, speed, minPosterization, ditheringLevel,
+                                      gamma > 0 && gamma < 1 ? gamma : 0, compressionLevel, singleThreaded, palette,
+                                      exactFastPath);
+    }
+
+    /**
+     * 输出PNG的zlib压缩级别 (0-9，-1 为默认)
+     */
+    public CompressionOptions withCompressionLevel(int level) {
+        return new CompressionOptions(maxColors, qualityMin, qualityMax, speed, minPosterization, ditheringLevel,
+                                      gamma, Math.max(-1, Math.min(9, level)), singleThreaded, palette, exactFastPath);
+    }
+
+    /**
+     * 是否在调用线程上单线程处理，见 {@link PngCompressor#setSingleThreaded}
+     */
+    public CompressionOptions withSingleThreaded(boolean singleThreaded) {
+        return new CompressionOptions(maxColors, qualityMin, qualityMax, speed, minPosterization, ditheringLevel,
+                                      gamma, compressionLevel, singleThreaded, palette, exactFastPath);
+    }
+
+    /**
+     * 固定调色板（只重映射模式），null 为正常量化，见 {@link PngCompressor#setPalette}
+     */
+    public CompressionOptions withPalette(Palette palette) {
+        return new CompressionOptions(maxColors, qualityMin, qualityMax, speed, minPosterization, ditheringLevel,
+                                      gamma, compressionLevel, singleThreaded, palette, exactFastPath);
+    }
+
+    /**
+     * 颜色数本来就不超过 maxColors 的图像是否直接无损输出，不调用 libimagequant（默认开启）。
+     * 固定调色板模式和设置了色调分离时不使用快速路径
+     */
+    public CompressionOptions withExactFastPath(boolean exactFastPath) {
+        return new CompressionOptions(maxColors, qualityMin, qualityMax, speed, minPosterization, ditheringLevel,
+                                      gamma, compressionLevel, singleThreaded, palette, exactFastPath);
+    }
+
+    public int getMaxColors() { return maxColors; }
+    public int getQualityMin() { return qualityMin; }
+    public int getQualityMax() { return qualityMax; }
+    public int getSpeed() { return speed; }
+    public int getMinPosterization() { return minPosterization; }
+    public float getDitheringLevel() { return ditheringLevel; }
+    public double getGamma() { return gamma; }
+    public int getCompressionLevel() { return compressionLevel; }
+    public boolean isSingleThreaded() { return singleThreaded; }
+    public Palette getPalette() { return palette; }
+    public boolean isExactFastPath() { return exactFastPath; }
+
+    /**
+     * 是否先尝试无损快速路径
+     */
+    boolean useExactFastPath() {
+        return exactFastPath && palette == null && minPosterization == 0;
+    }
+
+    /**
+     * 把参数写入 settings（覆盖全部字段，取消令牌除外），单一质量值的下限为目标的一半
+     */
+    QuantizeSettings applyTo(QuantizeSettings settings) {
+        return settings
+            .setMaxColors(maxColors)
+            .setQuality(qualityMin == qualityMax ? qualityMin / 2 : qualityMin, qualityMax)
+            .setSpeed(speed)
+            .setMinPosterization(minPosterization)
+            .setDitheringLevel(ditheringLevel)
+            .setGamma(gamma)
+            .setSingleThreaded(singleThreaded);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CompressionOptions)) return false;
+        CompressionOptions other = (CompressionOptions) o;
+        return maxColors == other.maxColors && qualityMin == other.qualityMin && qualityMax == other.qualityMax
+            && speed == other.speed && minPosterization == other.minPosterization
+            && Float.compare(ditheringLevel, other.ditheringLevel) == 0 && Double.compare(gamma, other.gamma) == 0
+            && compressionLevel == other.compressionLevel && singleThreaded == other.singleThreaded
+            && Objects.equals(palette, other.palette) && exactFastPath == other.exactFastPath;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxColors, qualityMin, qualityMax, speed, minPosterization, ditheringLevel, gamma,
+                            compressionLevel, singleThreaded, palette, exactFastPath);
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionOptions[colors=" + maxColors + ", quality=" + qualityMin + "-" + qualityMax
+            + ", speed=" + speed + ", posterize=" + minPosterization + ", dither=" + ditheringLevel
+            + ", gamma=" + gamma + ", zlib=" + compressionLevel + (singleThreaded ? ", single-threaded" : "")
+            + (palette != null ? ", " + palette : "") + (exactFastPath ? "" : ", exactFastPath=false") + "]";
+    }
+}
@@ -0,0 +1,81 @@
+package org.pngquant.jna;
+
+/**
+ * 按图像头预测单个压缩任务的耗时
+ *
+ * 预测值 = 固定开销 + 像素数 × 速度系数 × 颜色复杂度 × 每单位纳秒数。
+ * 速度系数反映 libimagequant 不同 speed 下 K-means 迭代和直方图精度的差异；
+ * 颜色复杂度不解码像素，只用颜色类型、调色板大小和PNG的压缩率粗略估计：
+ * 调色板图和灰度图颜色少，压缩率接近未压缩数据的照片类图像颜色多。
+ * 每单位纳秒数通过 {@link #calibrate} 按实际耗时修正，同一个模型在多批任务之间越用越准。
+ */
+public class CostModel {
+
+    // speed 1-11 的相对耗时，speed 4 为1
+    private static final double[] SPEED_FACTORS = {
+        4.0, 2.5, 1.6, 1.0, 0.8, 0.7, 0.6, 0.5, 0.45, 0.4, 0.35
+    };
+    // 单张图像与像素数无关的开销（读文件、建立native对象、写出文件头）
+    private static final double FIXED_UNITS = 50_000;
+    // 修正前的默认值，大约对应现代CPU上 speed 4 每像素的量化+编码耗时
+    private static final double DEFAULT_NANOS_PER_UNIT = 60;
+
+    private volatile double nanosPerUnit = DEFAULT_NANOS_PER_UNIT;
+
+    /**
+     * 颜色复杂度，约在 0.4 (调色板图) 到 1.6 (照片) 之间
+     */
+    public static double complexity(ImageHeader header) {
+        if (header.colorType == 3) {
+            return 0.4 + 0.2 * header.paletteSize / 256.0;
+        }
+        if (header.colorType == 0 || header.colorType == 4) {
+            return 0.5;
+        }
+        if (header.colorType < 0) {
+            // 非PNG（多为JPEG）无法从压缩率判断，按照片处理
+            return 1.5;
+        }
+        return 0.6 + Math.min(1.0, header.getCompressedRatio());
+    }
+
+    /**
+     * 与速度无关的相对耗时单位
+     */
+    public double predictUnits(ImageHeader header, int speed) {
+        double speedFactor = SPEED_FACTORS[Math.max(1, Math.min(11, speed)) - 1];
+        return FIXED_UNITS + header.getPixelCount() * speedFactor * complexity(header);
+    }
+
+    /**
+     * 预测耗时（纳秒）
+     */
+    public long predictNanos(ImageHeader header, int speed) {
+        return (long) (predictUnits(header, speed) * nanosPerUnit);
+    }
+
+    /**
+     * 用一批任务的预测值和实际耗时修正每单位纳秒数，使预测总和向实际总和靠拢
+     * 新旧系数各占一半平滑，避免单批异常值（例如磁盘抖动）让模型大幅摆动
+     * @param predictedNanos 按当前系数预测的耗时
+     * @param actualNanos 实际耗时，小于等于0的项（失败的任务）被忽略
+     */
+    public synchronized void calibrate(long[] predictedNanos, long[] actualNanos) {
+        double predicted = 0;
+        double actual = 0;
+        for (int i = 0; i < predictedNanos.length; i++) {
+            if (actualNanos[i] > 0) {
+                predicted += predictedNanos[i];
+                actual += actualNanos[i];
+            }
+        }
+        if (predicted > 0 && actual > 0) {
+            double fitted = nanosPerUnit * actual / predicted;
+            nanosPerUnit = (nanosPerUnit + fitted) / 2;
+        }
+    }
+
+    public double getNanosPerUnit() {
+        return nanosPerUnit;
+    }
+}
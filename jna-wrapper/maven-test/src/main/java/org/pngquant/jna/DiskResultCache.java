@@ -0,0 +1,327 @@
+package org.pngquant.jna;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地磁盘上的压缩结果缓存，总大小超过上限时按最近最少使用淘汰
+ *
+ * 每个条目是目录下的两个文件：{@code <key>.png} 为压缩输出，{@code <key>.meta} 为颜色数、质量和MSE。
+ * 写入先落到临时文件再原子改名，进程中途退出不会留下半个条目；
+ * 命中时更新PNG的修改时间，重启后按修改时间恢复LRU顺序。
+ * 总大小包括两个文件，淘汰时一起删除；载入时删除缺少另一半的孤立文件。
+ * 索引只在内存中加锁，文件复制在锁外进行，并发读取同一个条目不会互相等待。
+ * 每个条目带一个版本号，写入开始和结束时各加一：读取前后版本不同、或者读取时有写入正在进行，
+ * 说明元数据和PNG可能来自不同的写入，这次读取按未命中处理。
+ */
+public class DiskResultCache implements ResultCache {
+
+    private static final String DATA_SUFFIX = ".png";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    // 按访问顺序排列，最久未使用的在最前
+    private final LinkedHashMap<String, Slot> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * 索引中的一个条目，字段都在 DiskResultCache 的锁内读写
+     */
+    private static final class Slot {
+        // PNG与元数据的总大小，写入完成之前为0
+        long size;
+        long version;
+        // 正在写入该条目的线程数，大于0时文件可能处于新旧混合的状态
+        int writers;
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param directory 缓存目录，不存在时创建；已有的条目会被载入
+     * @param maxBytes 缓存文件（PNG和元数据）总大小的上限
+     */
+    public DiskResultCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.directory);
+        load();
+    }
+
+    /**
+     * 按修改时间从旧到新载入已有条目，删除上次未写完的临时文件和缺少另一半的孤立文件
+     */
+    private void load() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        List<Path> metas = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(path);
+                } else if (name.endsWith(DATA_SUFFIX)) {
+                    entries.add(path);
+                } else if (name.endsWith(META_SUFFIX)) {
+                    metas.add(path);
+                }
+            }
+        }
+        for (Path meta : metas) {
+            String name = meta.getFileName().toString();
+            if (!Files.exists(dataPath(name.substring(0, name.length() - META_SUFFIX.length())))) {
+                Files.deleteIfExists(meta);
+            }
+        }
+        entries.sort((a, b) -> lastModified(a).compareTo(lastModified(b)));
+        synchronized (this) {
+            for (Path path : entries) {
+                String name = path.getFileName().toString();
+                String key = name.substring(0, name.length() - DATA_SUFFIX.length());
+                File meta = metaPath(key).toFile();
+                if (!meta.exists()) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                Slot slot = new Slot();
+                slot.size = path.toFile().length() + meta.length();
+                index.put(key, slot);
+                totalBytes += slot.size;
+            }
+            evict(null);
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private Path dataPath(String key) {
+        return directory.resolve(key + DATA_SUFFIX);
+    }
+
+    private Path metaPath(String key) {
+        return directory.resolve(key + META_SUFFIX);
+    }
+
+    @Override
+    public Entry copyTo(String key, File outputFile) throws IOException {
+        Slot slot;
+        long version;
+        synchronized (this) {
+            // get 同时把条目移到最近使用的一端
+            slot = index.get(key);
+            if (slot == null || slot.writers > 0) {
+                misses.incrementAndGet();
+                return null;
+            }
+            version = slot.version;
+        }
+        Entry entry;
+        try {
+            entry = readMeta(metaPath(key));
+            Files.copy(dataPath(key), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | IllegalArgumentException e) {
+            // 条目刚被淘汰，或者缓存文件被外部删除/损坏时删除条目，期间重新写入的条目不删除；
+            // 输出端的错误只算未命中
+            if (e instanceof IllegalArgumentException || isCacheFile(e, key)) {
+                remove(key, slot, version);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        synchronized (this) {
+            if (index.get(key) != slot || slot.writers > 0 || slot.version != version) {
+                // 读取期间有并发写入，元数据和PNG可能不是同一次写入的
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        dataPath(key).toFile().setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    private boolean isCacheFile(Exception e, String key) {
+        if (!(e instanceof NoSuchFileException)) {
+            return false;
+        }
+        String file = ((NoSuchFileException) e).getFile();
+        return dataPath(key).toString().equals(file) || metaPath(key).toString().equals(file);
+    }
+
+    @Override
+    public void put(String key, File compressedFile, Entry entry) throws IOException {
+        byte[] meta = (entry.colorsUsed + " " + entry.quality + " " + entry.mse).getBytes(StandardCharsets.US_ASCII);
+        long size = compressedFile.length() + meta.length;
+        if (size > maxBytes) {
+            return;
+        }
+        Path dataTemp = Files.createTempFile(directory, key, TEMP_SUFFIX);
+        Path metaTemp = Files.createTempFile(directory, key, TEMP_SUFFIX);
+        Slot slot = null;
+        boolean stored = false;
+        try {
+            Files.copy(compressedFile.toPath(), dataTemp, StandardCopyOption.REPLACE_EXISTING);
+            Files.write(metaTemp, meta);
+            synchronized (this) {
+                slot = index.computeIfAbsent(key, k -> new Slot());
+                slot.writers++;
+                slot.version++;
+            }
+            // 先放元数据再放PNG：索引只认PNG，载入时不会看到没有元数据的条目
+            move(metaTemp, metaPath(key));
+            move(dataTemp, dataPath(key));
+            stored = true;
+        } finally {
+            Files.deleteIfExists(dataTemp);
+            Files.deleteIfExists(metaTemp);
+            if (slot != null) {
+                finishWrite(key, slot, stored ? size : -1);
+            }
+        }
+        stores.incrementAndGet();
+    }
+
+    /**
+     * 结束一次写入
+     * @param size 写入后的条目大小，-1 表示写入失败，文件状态未知，最后一个写入者结束时删除整个条目
+     *
+     * 正在写入的条目不会被淘汰或删除，所以这里的 slot 一定还在索引中。
+     */
+    private synchronized void finishWrite(String key, Slot slot, long size) {
+        slot.writers--;
+        slot.version++;
+        if (size < 0) {
+            if (slot.writers == 0) {
+                index.remove(key);
+                totalBytes -= slot.size;
+                deleteFiles(key);
+            }
+            return;
+        }
+        totalBytes += size - slot.size;
+        slot.size = size;
+        evict(key);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Entry readMeta(Path path) throws IOException {
+        String[] fields = new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim().split(" ");
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Corrupt cache metadata: " + path);
+        }
+        return new Entry(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Double.parseDouble(fields[2]));
+    }
+
+    /**
+     * 从最久未使用的条目开始淘汰，直到总大小不超过上限
+     * @param keep 刚写入的条目，不淘汰
+     */
+    private synchronized void evict(String keep) {
+        Iterator<Map.Entry<String, Slot>> it = index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Slot> eldest = it.next();
+            // 正在写入的条目由写入者结束时计入总大小，这里不淘汰
+            if (eldest.getKey().equals(keep) || eldest.getValue().writers > 0) {
+                continue;
+            }
+            it.remove();
+            totalBytes -= eldest.getValue().size;
+            deleteFiles(eldest.getKey());
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * 删除读取时发现损坏的条目，只在它仍是读取时的那个版本、且没有写入正在进行时删除
+     */
+    private synchronized void remove(String key, Slot slot, long version) {
+        if (index.get(key) == slot && slot.writers == 0 && slot.version == version) {
+            index.remove(key);
+            totalBytes -= slot.size;
+            deleteFiles(key);
+        }
+    }
+
+    private void deleteFiles(String key) {
+        dataPath(key).toFile().delete();
+        metaPath(key).toFile().delete();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 命中率 (0.0-1.0)，还没有查询时为0
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    public long getStores() {
+        return stores.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("缓存: %d 条 (%.1f / %.1f MB)，命中 %d，未命中 %d (命中率 %.1f%%)，淘汰 %d",
+                             getEntryCount(), getSizeBytes() / (1024.0 * 1024.0), maxBytes / (1024.0 * 1024.0),
+                             getHits(), getMisses(), getHitRate() * 100, getEvictions());
+    }
+}
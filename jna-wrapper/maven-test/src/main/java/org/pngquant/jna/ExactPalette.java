@@ -0,0 +1,87 @@
+package org.pngquant.jna;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 不超过256色图像的无损快速路径：一次遍历统计不同的RGBA颜色，同时写出索引
+ *
+ * 图标、图表、界面截图等图像本来就只有很少的颜色，对它们做有损量化既慢又没有必要。
+ * 颜色存放在开放寻址的 {@link ColorTable} 中（最多256个颜色），颜色数超过上限时立即放弃，
+ * 代价只是已经扫描的那部分像素。相邻像素颜色相同时不查表。
+ * 调色板按颜色第一次出现的顺序排列。也可以按行带逐段扫描（{@link #clear} 之后反复调用 {@link #mapRange}），
+ * 调用方在解码的同时判断，颜色数超过上限时不必再解码剩余的行就能改走量化。
+ *
+ * 对象可以反复使用，表只在构造时分配；不是线程安全的，由 {@link CompressionEngine} 按线程持有。
+ */
+final class ExactPalette {
+
+    private final ColorTable table = new ColorTable(256);
+
+    /**
+     * 扫描 rgba 中前 pixelCount 个像素，颜色数不超过 maxColors 时把每个像素的调色板序号写入 indices
+     * @param rgba R-G-B-A 顺序的像素，从位置0开始，不改变缓冲区的位置
+     * @param indices 至少 pixelCount 字节；返回false时内容无意义
+     * @param maxColors 颜色数上限 (1-256)
+     * @return 是否不超过 maxColors 个颜色
+     */
+    boolean map(ByteBuffer rgba, int pixelCount, byte[] indices, int maxColors) {
+        table.clear();
+        return mapRange(rgba, 0, pixelCount, indices, maxColors);
+    }
+
+    /**
+     * 开始新的逐段扫描，之前统计的颜色全部丢弃
+     */
+    void clear() {
+        table.clear();
+    }
+
+    /**
+     * 继续扫描第 first 到 first+pixelCount 个像素，颜色与之前扫描的各段合计
+     * @param rgba 从位置0开始的整图像素，按绝对位置读取
+     * @param indices 序号写入 indices[first..first+pixelCount)
+     * @return 合计是否仍不超过 maxColors 个颜色；返回false之后只能重新 {@link #clear}
+     */
+    boolean mapRange(ByteBuffer rgba, int first, int pixelCount, byte[] indices, int maxColors) {
+        int limit = Math.max(1, Math.min(256, maxColors));
+        // 大端读取得到 0xRRGGBBAA，与内存中的 R-G-B-A 顺序一致
+        ByteBuffer pixels = rgba.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int previous = 0;
+        int previousIndex = -1;
+        for (int i = first, end = first + pixelCount; i < end; i++) {
+            int color = pixels.getInt(i << 2);
+            if (color != previous || previousIndex < 0) {
+                previousIndex = table.indexOf(color, limit);
+                if (previousIndex < 0) {
+                    return false;
+                }
+                previous = color;
+            }
+            indices[i] = (byte) previousIndex;
+        }
+        return true;
+    }
+
+    /**
+     * 最近一次成功的 {@link #map} 得到的调色板：写入 output 的 palette 和 palette_count，
+     * 无损所以质量为100、均方误差为0
+     */
+    void writeTo(QuantizeOutput output) {
+        int count = table.size();
+        for (int i = 0; i < count; i++) {
+            int color = table.colorAt(i);
+            output.palette[i * 4] = (byte) (color >>> 24);
+            output.palette[i * 4 + 1] = (byte) (color >>> 16);
+            output.palette[i * 4 + 2] = (byte) (color >>> 8);
+            output.palette[i * 4 + 3] = (byte) color;
+        }
+        output.palette_count = count;
+        output.quality = 100;
+        output.mse = 0;
+    }
+
+    int getColorCount() {
+        return table.size();
+    }
+}
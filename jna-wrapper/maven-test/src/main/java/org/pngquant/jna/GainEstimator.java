@@ -0,0 +1,205 @@
+package org.pngquant.jna;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 在压缩之前粗略预测有损调色板转换能让文件缩小多少，用于跳过收益很小的任务
+ *
+ * 已经很小的文件、已经是调色板图的文件、噪声很多的照片，转换之后几乎不变小，却要花掉完整的量化时间。
+ * 预测只用三类便宜的信息：
+ * - 图像头：文件大小与像素数之比（每像素位数），颜色类型为调色板时视为已经量化；
+ * - 抽样颜色数：只解码IDAT流开头至多 {@link #PREFIX_PIXELS} 个像素所在的行，从中均匀取 {@link #BANDS} 个连续的行带，
+ *   共至多 {@link #SAMPLE_PIXELS} 个像素，用 {@link ColorTable} 统计不同颜色，最多数到 {@link #COLOR_CAP}；
+ *   解码量有上限，大图的预测代价与图像大小无关；
+ * - 熵：同一批像素各通道与左侧像素之差（PNG Sub 滤波的残差）的香农熵，作为压缩后每字节位数的代理。
+ * 调色板输出每像素一个索引字节，其压缩后大小按残差熵乘以系数估计；颜色数超过最大颜色数时量化和抖动会引入额外噪声，系数更大。
+ * 预测的输出大小通过 {@link #calibrate} 按实际结果修正，同一个估计器在多批任务之间越用越准。
+ *
+ * 只分析PNG（{@link PngRowDecoder} 能解码的文件），其他格式返回null，由调用方照常压缩。
+ * 线程安全，多个压缩线程共享同一个实例。
+ */
+public class GainEstimator {
+
+    /** 抽样的像素数上限 */
+    public static final int SAMPLE_PIXELS = 64 * 1024;
+    /** 解码的像素数上限，只解码图像开头的这些行 */
+    public static final int PREFIX_PIXELS = 4 * SAMPLE_PIXELS;
+    /** 抽样的连续行带数，均匀分布在解码的前缀中 */
+    public static final int BANDS = 4;
+    /** 抽样颜色数的统计上限 */
+    public static final int COLOR_CAP = 4096;
+
+    // 调色板PNG的固定开销：签名、IHDR、IEND、zlib头，以及每个颜色的 PLTE+tRNS 字节
+    private static final int FIXED_BYTES = 64;
+    private static final int BYTES_PER_COLOR = 4;
+    // 索引流残差熵相对于原图通道残差熵的系数：颜色不超过上限时索引与原图一一对应，超过时量化和抖动引入额外噪声
+    private static final double EXACT_INDEX_FACTOR = 1.0;
+    private static final double QUANTIZED_INDEX_FACTOR = 1.25;
+
+    private volatile double outputScale = 1.0;
+
+    /**
+     * 一个文件的预测结果
+     */
+    public static final class Estimate {
+        /** 预测的输出文件大小（字节） */
+        public final long predictedBytes;
+        /** 预测的缩小比例，1 - 输出/输入，可能为负 */
+        public final double predictedGain;
+        /** 抽样中的不同颜色数，达到 {@link #COLOR_CAP} 时表示更多 */
+        public final int sampledColors;
+        /** 抽样像素的残差熵（位/字节，0-8） */
+        public final double entropy;
+        /** 输入文件的每像素位数 */
+        public final double bitsPerPixel;
+        /** 输入已经是调色板PNG */
+        public final boolean alreadyIndexed;
+        /** 为预测解码的像素数，即预测的主要代价 */
+        public final long decodedPixels;
+
+        Estimate(long predictedBytes, double predictedGain, int sampledColors, double entropy, double bitsPerPixel,
+                 boolean alreadyIndexed, long decodedPixels) {
+            this.predictedBytes = predictedBytes;
+            this.predictedGain = predictedGain;
+            this.sampledColors = sampledColors;
+            this.entropy = entropy;
+            this.bitsPerPixel = bitsPerPixel;
+            this.alreadyIndexed = alreadyIndexed;
+            this.decodedPixels = decodedPixels;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("预测缩小 %.1f%% (%.2f bpp, 抽样颜色 %s%d, 熵 %.2f%s)", predictedGain * 100, bitsPerPixel,
+                                 sampledColors >= COLOR_CAP ? "≥" : "", sampledColors, entropy,
+                                 alreadyIndexed ? ", 已是调色板图" : "");
+        }
+    }
+
+    /**
+     * 预测 file 以最多 maxColors 色压缩后的大小
+     * @param header 该文件的图像头
+     * @return 预测结果，不是可流式解码的PNG时为null
+     * @throws IOException 读取或解码失败
+     */
+    public Estimate estimate(File file, ImageHeader header, int maxColors) throws IOException {
+        if (!header.streamable || header.getPixelCount() == 0) {
+            return null;
+        }
+        long pixels = header.getPixelCount();
+        double bitsPerPixel = header.fileSize * 8.0 / pixels;
+
+        int width = header.width;
+        int height = header.height;
+        // 行带的间距不小于行带高度，各行带互不重叠，最后一个行带结束于前缀之内
+        int prefixRows = Math.max(1, Math.min(height, PREFIX_PIXELS / width));
+        int sampleRows = Math.max(1, Math.min(prefixRows, SAMPLE_PIXELS / width));
+        int bands = Math.min(BANDS, sampleRows);
+        int bandRows = sampleRows / bands;
+        int bandSpacing = prefixRows / bands;
+        ByteBuffer row = ByteBuffer.allocate(width * 4);
+        ByteBuffer sample = ByteBuffer.allocate(width * 4 * bandRows * bands);
+        int decodedRows = 0;
+        try (PngRowDecoder decoder = new PngRowDecoder(new BufferedInputStream(new FileInputStream(file)))) {
+            for (int band = 0; band < bands; band++) {
+                int first = band * bandSpacing;
+                // 行带之间的行也要解码：PNG滤波依赖上一行
+                while (decodedRows < first) {
+                    row.clear();
+                    if (decoder.readRows(row, 1) == 0) {
+                        break;
+                    }
+                    decodedRows++;
+                }
+                int read = decodedRows == first ? decoder.readRows(sample, bandRows) : 0;
+                decodedRows += read;
+                if (read < bandRows) {
+                    break;
+                }
+            }
+        }
+        sample.flip();
+        byte[] rgba = sample.array();
+        int sampledPixels = sample.limit() / 4;
+        boolean alpha = header.colorType == 4 || header.colorType == 6 || header.colorType == 3;
+
+        int colors = countColors(rgba, sampledPixels);
+        double entropy = residualEntropy(rgba, width, sampledPixels, alpha);
+        boolean alreadyIndexed = header.colorType == 3;
+
+        int paletteColors = Math.min(colors, Math.max(1, Math.min(256, maxColors)));
+        double factor = colors <= paletteColors ? EXACT_INDEX_FACTOR : QUANTIZED_INDEX_FACTOR;
+        // 每像素一个索引字节，压缩后约为残差熵那么多位
+        double indexBits = Math.min(8, entropy * factor);
+        long predicted = (long) (FIXED_BYTES + paletteColors * BYTES_PER_COLOR + pixels * indexBits / 8 * outputScale);
+        if (alreadyIndexed) {
+            // 已经是调色板图：重新编码不会比原文件小多少
+            predicted = Math.max(predicted, header.fileSize);
+        }
+        double gain = 1.0 - (double) predicted / header.fileSize;
+        return new Estimate(predicted, gain, colors, entropy, bitsPerPixel, alreadyIndexed, (long) decodedRows * width);
+    }
+
+    // 统计不同颜色数，最多数到 COLOR_CAP
+    static int countColors(byte[] rgba, int pixelCount) {
+        ColorTable table = new ColorTable(COLOR_CAP);
+        int previous = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            int p = i * 4;
+            int color = (rgba[p] & 0xFF) << 24 | (rgba[p + 1] & 0xFF) << 16 | (rgba[p + 2] & 0xFF) << 8 | (rgba[p + 3] & 0xFF);
+            if (i > 0 && color == previous) {
+                continue;
+            }
+            previous = color;
+            if (table.indexOf(color, COLOR_CAP) < 0) {
+                break;
+            }
+        }
+        return table.size();
+    }
+
+    // 各通道与左侧像素之差的香农熵（位/字节），没有Alpha时不计Alpha通道
+    private static double residualEntropy(byte[] rgba, int width, int pixelCount, boolean alpha) {
+        int[] histogram = new int[256];
+        int channels = alpha ? 4 : 3;
+        long total = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            int p = i * 4;
+            int left = i % width == 0 ? -1 : p - 4;
+            for (int c = 0; c < channels; c++) {
+                int residual = left < 0 ? rgba[p + c] : rgba[p + c] - rgba[left + c];
+                histogram[residual & 0xFF]++;
+            }
+            total += channels;
+        }
+        double entropy = 0;
+        for (int n : histogram) {
+            if (n > 0) {
+                double q = (double) n / total;
+                entropy -= q * Math.log(q);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * 用一次实际压缩的结果修正输出大小的比例系数，新旧各占一半平滑（与 {@link CostModel#calibrate} 相同）
+     * @param estimate 压缩之前的预测
+     * @param actualBytes 实际输出大小，小于等于0时忽略
+     */
+    public synchronized void calibrate(Estimate estimate, long actualBytes) {
+        if (actualBytes <= 0 || estimate.alreadyIndexed || estimate.predictedBytes <= FIXED_BYTES) {
+            return;
+        }
+        double fitted = outputScale * actualBytes / estimate.predictedBytes;
+        outputScale = (outputScale + Math.max(0.1, Math.min(10, fitted))) / 2;
+    }
+
+    public double getOutputScale() {
+        return outputScale;
+    }
+}
@@ -0,0 +1,92 @@
+package org.pngquant.jna;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * 只读取图像头得到的尺寸信息，不解码像素，用于在任务开始之前估算内存和调度
+ */
+public final class ImageHeader {
+
+    public final int width;
+    public final int height;
+    /**
+     * 是否为非隔行PNG，即 {@link PngCompressor} 会走流式解码
+     */
+    public final boolean streamable;
+    /**
+     * PNG颜色类型 (0/2/3/4/6)，非PNG为-1
+     */
+    public final int colorType;
+    /**
+     * PNG调色板颜色数，没有调色板时为0
+     */
+    public final int paletteSize;
+    public final long fileSize;
+
+    private ImageHeader(int width, int height, boolean streamable, int colorType, int paletteSize, long fileSize) {
+        this.width = width;
+        this.height = height;
+        this.streamable = streamable;
+        this.colorType = colorType;
+        this.paletteSize = paletteSize;
+        this.fileSize = fileSize;
+    }
+
+    public long getPixelCount() {
+        return (long) width * height;
+    }
+
+    /**
+     * 每像素的通道数，非PNG按3通道计
+     */
+    public int getChannels() {
+        switch (colorType) {
+            case 0: case 3: return 1;
+            case 4: return 2;
+            case 6: return 4;
+            default: return 3;
+        }
+    }
+
+    /**
+     * 压缩后文件大小与未压缩像素数据之比，照片类、颜色丰富的图像接近或超过1，平涂图像远小于1
+     */
+    public double getCompressedRatio() {
+        long raw = getPixelCount() * getChannels();
+        return raw > 0 ? (double) fileSize / raw : 0;
+    }
+
+    /**
+     * 读取图像头，PNG由 {@link PngRowDecoder} 解析到第一个IDAT为止，其他格式交给 ImageIO 的 ImageReader
+     * @throws IOException 文件无法读取或不是可识别的图像
+     */
+    public static ImageHeader read(File file) throws IOException {
+        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+             PngRowDecoder decoder = new PngRowDecoder(in)) {
+            return new ImageHeader(decoder.getWidth(), decoder.getHeight(), !decoder.isInterlaced(),
+                                   decoder.getColorType(), decoder.getPaletteSize(), file.length());
+        } catch (IOException e) {
+            // 不是PNG，交给 ImageIO 读取图像头
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("无法识别的图像格式: " + file.getPath());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new ImageHeader(reader.getWidth(0), reader.getHeight(0), false, -1, 0, file.length());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
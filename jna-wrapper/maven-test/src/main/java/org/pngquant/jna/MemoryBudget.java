@@ -0,0 +1,219 @@
+package org.pngquant.jna;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压缩任务的内存准入控制
+ *
+ * 每个任务开始解码之前根据图像头估算Java堆和native内存占用，并从预算中预留；
+ * 预算不足时阻塞等待其他任务释放，而不是同时解码多张大图导致 OutOfMemoryError。
+ * 等待的任务按到达顺序排队，但放得下的任务可以越过队首先执行，小图不必等待前面的大图，总吞吐量更高；
+ * 队首等待超过 maxBypassMillis 之后不再允许越过，新任务和后面的等待者都排在它之后，
+ * 正在运行的任务结束后队首一定能得到预留，大图不会被源源不断的小图饿死。
+ * 超过整个预算的任务按整个预算预留，也就是等其他任务全部结束后单独执行。
+ */
+public class MemoryBudget {
+
+    // 与 libimagequant 的 LIQ_HIGH_MEMORY_LIMIT 一致，超过时不再分配对比度/抖动图
+    private static final long LIQ_HIGH_MEMORY_LIMIT = 1L << 26;
+    // libimagequant 内部每像素的浮点颜色 (f_pixel)
+    private static final int F_PIXEL_BYTES = 16;
+    // 重要性图、边缘图、抖动图各1字节
+    private static final int CONTRAST_MAP_BYTES = 3;
+    // 直方图、调色板、行缓冲和编码器等与图像大小基本无关的部分
+    private static final long FIXED_OVERHEAD = 4L * 1024 * 1024;
+
+    /**
+     * 单个任务的内存估算
+     */
+    public static final class Estimate {
+        public final long heapBytes;
+        public final long nativeBytes;
+
+        Estimate(long heapBytes, long nativeBytes) {
+            this.heapBytes = heapBytes;
+            this.nativeBytes = nativeBytes;
+        }
+
+        public long getTotalBytes() {
+            return heapBytes + nativeBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("heap %.1f MB + native %.1f MB", heapBytes / (1024.0 * 1024.0), nativeBytes / (1024.0 * 1024.0));
+        }
+    }
+
+    /**
+     * 按 {@link PngCompressor} 的处理路径估算峰值内存
+     * 流式解码：像素和索引在native内存中，Java堆上有几行扫描线和无损快速路径的索引数组；
+     * ImageIO：堆上有 BufferedImage 和索引数组，另有一份direct RGBA缓冲区
+     * 两条路径都加上 libimagequant 内部的 f_pixel 缓冲区和对比度图
+     * @param streamingDecode 压缩器是否开启了流式解码
+     */
+    public static Estimate estimate(ImageHeader header, boolean streamingDecode) {
+        long pixels = header.getPixelCount();
+        long internal = pixels * F_PIXEL_BYTES;
+        if (pixels * CONTRAST_MAP_BYTES <= LIQ_HIGH_MEMORY_LIMIT) {
+            internal += pixels * CONTRAST_MAP_BYTES;
+        }
+        if (streamingDecode && header.streamable) {
+            return new Estimate(FIXED_OVERHEAD + (long) header.width * 4 * 3 + pixels, pixels * 4 + pixels + internal);
+        }
+        return new Estimate(FIXED_OVERHEAD + pixels * 4 + pixels, pixels * 4 + internal);
+    }
+
+    /**
+     * 默认的越过时限：队首等待超过该时间后，后来的任务不再越过它
+     */
+    public static final long DEFAULT_MAX_BYPASS_MILLIS = 500;
+
+    private final long limitBytes;
+    private final long maxBypassNanos;
+    // 等待中的任务，按到达顺序
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private long reservedBytes;
+    private long peakReservedBytes;
+    private long admittedCount;
+    private long waitCount;
+    private long waitNanos;
+
+    private static final class Waiter {
+        final long since = System.nanoTime();
+    }
+
+    /**
+     * @param limitBytes 所有同时运行的任务预留内存之和的上限
+     */
+    public MemoryBudget(long limitBytes) {
+        this(limitBytes, DEFAULT_MAX_BYPASS_MILLIS);
+    }
+
+    /**
+     * @param limitBytes 所有同时运行的任务预留内存之和的上限
+     * @param maxBypassMillis 队首等待超过该时间后不再允许越过它，0 表示严格按到达顺序
+     */
+    public MemoryBudget(long limitBytes, long maxBypassMillis) {
+        if (limitBytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + limitBytes);
+        }
+        if (maxBypassMillis < 0) {
+            throw new IllegalArgumentException("Bypass limit must not be negative: " + maxBypassMillis);
+        }
+        this.limitBytes = limitBytes;
+        this.maxBypassNanos = TimeUnit.MILLISECONDS.toNanos(maxBypassMillis);
+    }
+
+    private long clamp(long bytes) {
+        return Math.max(0, Math.min(bytes, limitBytes));
+    }
+
+    /**
+     * waiter 为 null 表示新到达的任务
+     */
+    private boolean admissible(long request, Waiter waiter) {
+        if (reservedBytes + request > limitBytes) {
+            return false;
+        }
+        Waiter head = waiters.peekFirst();
+        return head == null || head == waiter || System.nanoTime() - head.since <= maxBypassNanos;
+    }
+
+    private void admit(long request) {
+        reservedBytes += request;
+        peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+        admittedCount++;
+    }
+
+    /**
+     * 预留 bytes 字节，预算不足或需要让队首先执行时阻塞
+     * @return 实际预留的字节数，需要原样传给 {@link #release}
+     */
+    public synchronized long acquire(long bytes) throws InterruptedException {
+        long request = clamp(bytes);
+        if (admissible(request, null)) {
+            admit(request);
+            return request;
+        }
+        Waiter waiter = new Waiter();
+        waiters.addLast(waiter);
+        waitCount++;
+        try {
+            // 随着时间推移只会越来越难以越过队首，能否执行只在释放或队首变化时改变，两者都会唤醒
+            while (!admissible(request, waiter)) {
+                wait();
+            }
+            admit(request);
+            return request;
+        } finally {
+            waiters.remove(waiter);
+            waitNanos += System.nanoTime() - waiter.since;
+            // 队首变化后，之前因为让路而等待的任务可能可以执行了
+            notifyAll();
+        }
+    }
+
+    /**
+     * 不阻塞的预留，与 {@link #acquire} 的准入规则相同
+     * @return 实际预留的字节数；现在无法预留时为-1
+     */
+    public synchronized long tryAcquire(long bytes) {
+        long request = clamp(bytes);
+        if (!admissible(request, null)) {
+            return -1;
+        }
+        admit(request);
+        return request;
+    }
+
+    public synchronized void release(long reserved) {
+        reservedBytes -= reserved;
+        notifyAll();
+    }
+
+    public long getLimitBytes() {
+        return limitBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public synchronized long getPeakReservedBytes() {
+        return peakReservedBytes;
+    }
+
+    public synchronized long getAdmittedCount() {
+        return admittedCount;
+    }
+
+    /**
+     * 等待队列中的任务数
+     */
+    public synchronized int getQueueLength() {
+        return waiters.size();
+    }
+
+    /**
+     * 因预算不足或让路而等待过的任务数
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    public synchronized long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * 清零统计，不影响当前预留
+     */
+    public synchronized void resetStats() {
+        peakReservedBytes = reservedBytes;
+        admittedCount = 0;
+        waitCount = 0;
+        waitNanos = 0;
+    }
+}
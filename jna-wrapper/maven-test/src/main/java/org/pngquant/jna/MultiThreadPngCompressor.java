@@ -1,11 +1,18 @@
 package org.pngquant.jna;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
 
 /**
  * 多线程PNG压缩工具
@@ -13,6 +20,23 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class MultiThreadPngCompressor {
     
+    /**
+     * 调度方式
+     */
+    public enum SchedulingMode {
+        /** 图像间并行：多张图像同时在Java线程上处理，每张图像在native端单线程执行，适合大量小图 */
+        INTER_IMAGE,
+        /** 图像内并行：图像逐张处理，每张占满native线程池，适合少量大图 */
+        INTRA_IMAGE,
+        /** 按像素数分流：大图逐张走图像内并行，其余图像走图像间并行 */
+        AUTO
+    }
+    
+    /**
+     * AUTO 模式下按图像内并行处理的像素数下限
+     */
+    public static final long LARGE_IMAGE_PIXELS = 2_000_000;
+    
     private final PngCompressor compressor;
     private final ExecutorService executorService;
     private final int threadCount;
@@ -23,6 +47,30 @@ public class MultiThreadPngCompressor {
     private final AtomicLong totalOriginalSize = new AtomicLong(0);
     private final AtomicLong totalCompressedSize = new AtomicLong(0);
     
+    // 内存准入控制，默认使用最大堆的3/4作为堆和native内存合计的预算
+    private volatile MemoryBudget memoryBudget = new MemoryBudget(defaultMemoryBudget());
+    
+    // 任务耗时预测，每批按实际耗时修正
+    private final CostModel costModel = new CostModel();
+    
+    // 单个任务从提交起的截止时间（毫秒），0 表示不限制
+    private volatile long jobTimeoutMillis;
+    private final AtomicInteger timeoutCount = new AtomicInteger(0);
+    
+    // 压缩之前预测收益，低于阈值的任务原样复制；负数表示不预测
+    private volatile double skipBelowGain = -1;
+    private final GainEstimator gainEstimator = new GainEstimator();
+    private final AtomicInteger estimatedCount = new AtomicInteger(0);
+    private final AtomicInteger skippedCount = new AtomicInteger(0);
+    private final AtomicLong estimateNanos = new AtomicLong(0);
+    // 预测解码的像素数与预测过的图像的总像素数，两者之比即预测的解码量占比
+    private final AtomicLong estimateDecodedPixels = new AtomicLong(0);
+    private final AtomicLong estimateTotalPixels = new AtomicLong(0);
+    // 实际压缩了的任务：预测与实际缩小比例之差的绝对值之和，以及实际收益确实达到阈值（没有跳过是对的）的任务数
+    private final AtomicInteger verifiedCount = new AtomicInteger(0);
+    private final DoubleAdder gainErrorSum = new DoubleAdder();
+    private final AtomicInteger correctDecisions = new AtomicInteger(0);
+    
     /**
      * 压缩任务结果
      */
@@ -35,10 +83,19 @@ public class MultiThreadPngCompressor {
         public final double compressionRatio;
         public final long processingTime;
         public final String errorMessage;
+        /** 预测收益低于阈值，输出是原文件的副本 */
+        public final boolean skipped;
         
         public CompressionResult(String inputFile, String outputFile, boolean success,
                                long originalSize, long compressedSize, long processingTime,
                                String errorMessage) {
+            this(inputFile, outputFile, success, originalSize, compressedSize, processingTime, errorMessage, false);
+        }
+        
+        public CompressionResult(String inputFile, String outputFile, boolean success,
+                               long originalSize, long compressedSize, long processingTime,
+                               String errorMessage, boolean skipped) {
+            this.skipped = skipped;
             this.inputFile = inputFile;
             this.outputFile = outputFile;
             this.success = success;
@@ -56,16 +113,28 @@ public class MultiThreadPngCompressor {
     private class CompressionTask implements Callable<CompressionResult> {
         private final String inputFile;
         private final String outputFile;
-        private final int quality;
-        private final int maxColors;
-        private final int speed;
+        // 每个任务自己的参数，共享的压缩器不保存逐次调用的状态
+        private final CompressionOptions options;
+        // 截止时间从任务创建（提交）时开始计算，在队列中等待的时间也算在内
+        private final long createdNanos = System.nanoTime();
         
         public CompressionTask(String inputFile, String outputFile, int quality, int maxColors, int speed) {
+            this(inputFile, outputFile, quality, maxColors, speed, false);
+        }
+        
+        public CompressionTask(String inputFile, String outputFile, int quality, int maxColors, int speed,
+                               boolean singleThreaded) {
+            this(inputFile, outputFile, CompressionOptions.DEFAULT
+                .withMaxColors(maxColors)
+                .withQuality(quality)
+                .withSpeed(speed)
+                .withSingleThreaded(singleThreaded));
+        }
+        
+        public CompressionTask(String inputFile, String outputFile, CompressionOptions options) {
             this.inputFile = inputFile;
             this.outputFile = outputFile;
-            this.quality = quality;
-            this.maxColors = maxColors;
-            this.speed = speed;
+            this.options = options;
         }
         
         @Override
@@ -89,16 +158,69 @@ public class MultiThreadPngCompressor {
                 long originalSize = original.length();
                 totalOriginalSize.addAndGet(originalSize);
                 
-                // 执行压缩
-                PngCompressor.CompressionResult result = compressor
-                    .setMaxColors(maxColors)
-                    .setQuality(quality)
-                    .setSpeed(speed)
-                    .compress(inputFile, outputFile);
+                // 排队时已经超时的任务直接放弃，不再占用CPU
+                if (isExpired()) {
+                    return timedOut(threadName, originalSize, startTime);
+                }
+                
+                ImageHeader header = null;
+                try {
+                    header = ImageHeader.read(original);
+                } catch (IOException e) {
+                    // 图像头无法读取时不预测也不预留，由压缩过程报告错误
+                }
+                
+                // 预测收益，低于阈值时不压缩，输出原文件的副本；在结果缓存未命中之后才预测，命中的文件直接复制缓存
+                double minGain = skipBelowGain;
+                GainEstimator.Estimate[] gain = new GainEstimator.Estimate[1];
+                PngCompressor.SkipCheck skipCheck = null;
+                if (minGain >= 0 && header != null) {
+                    ImageHeader sampled = header;
+                    skipCheck = () -> {
+                        gain[0] = estimateGain(original, sampled, options.getMaxColors());
+                        return gain[0] != null && gain[0].predictedGain < minGain;
+                    };
+                }
+                
+                // 按图像头估算内存，预算不足时在解码之前等待
+                MemoryBudget budget = memoryBudget;
+                long reserved = 0;
+                if (header != null) {
+                    MemoryBudget.Estimate estimate = MemoryBudget.estimate(header, compressor.isStreamingDecode());
+                    reserved = budget.acquire(estimate.getTotalBytes());
+                }
+                
+                // 执行压缩，剩余时间用完时native量化中途中止
+                PngCompressor.CompressionResult result;
+                CancelToken token = null;
+                try {
+                    if (isExpired()) {
+                        return timedOut(threadName, originalSize, startTime);
+                    }
+                    long remaining = remainingNanos();
+                    if (remaining != Long.MAX_VALUE) {
+                        token = CancelToken.withTimeout(remaining, TimeUnit.NANOSECONDS);
+                    }
+                    result = compressor.compress(original, new File(outputFile), options, token, skipCheck);
+                    if (result == null) {
+                        return skipped(threadName, original, originalSize, gain[0], startTime);
+                    }
+                    if (!result.isSuccess() && token != null && token.isDeadlineExceeded()) {
+                        return timedOut(threadName, originalSize, startTime);
+                    }
+                } finally {
+                    if (token != null) {
+                        token.close();
+                    }
+                    budget.release(reserved);
+                }
                 
                 if (result.isSuccess()) {
                     long compressedSize = result.getOutputSize();
                     totalCompressedSize.addAndGet(compressedSize);
+                    if (gain[0] != null) {
+                        verifyEstimate(gain[0], originalSize, compressedSize, minGain);
+                    }
                     
                     long processingTime = System.currentTimeMillis() - startTime;
                     double ratio = result.getCompressionRatio() * 100;
@@ -117,6 +239,13 @@ public class MultiThreadPngCompressor {
                                                System.currentTimeMillis() - startTime, error);
                 }
                 
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                String error = "等待内存预算时被中断";
+                System.err.printf("[%s] ❌ %s: %s\n", threadName, error, inputFile);
+                failureCount.incrementAndGet();
+                return new CompressionResult(inputFile, outputFile, false, 0, 0,
+                                           System.currentTimeMillis() - startTime, error);
             } catch (Exception e) {
                 String error = "处理异常: " + e.getMessage();
                 System.err.printf("[%s] ❌ 异常: %s - %s\n", threadName, inputFile, error);
@@ -125,6 +254,39 @@ public class MultiThreadPngCompressor {
                                            System.currentTimeMillis() - startTime, error);
             }
         }
+        
+        private long remainingNanos() {
+            long timeout = jobTimeoutMillis;
+            if (timeout <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - createdNanos);
+        }
+        
+        private boolean isExpired() {
+            return remainingNanos() <= 0;
+        }
+        
+        private CompressionResult skipped(String threadName, File original, long originalSize,
+                                          GainEstimator.Estimate gain, long startTime) throws IOException {
+            Files.copy(original.toPath(), new File(outputFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            long processingTime = System.currentTimeMillis() - startTime;
+            System.out.printf("[%s] ⏭️  跳过压缩: %s - %s\n", threadName, inputFile, gain);
+            skippedCount.incrementAndGet();
+            successCount.incrementAndGet();
+            totalCompressedSize.addAndGet(originalSize);
+            return new CompressionResult(inputFile, outputFile, true, originalSize, originalSize, processingTime,
+                                         null, true);
+        }
+        
+        private CompressionResult timedOut(String threadName, long originalSize, long startTime) {
+            String error = "超过截止时间";
+            System.err.printf("[%s] ⏱ %s: %s\n", threadName, error, inputFile);
+            failureCount.incrementAndGet();
+            timeoutCount.incrementAndGet();
+            return new CompressionResult(inputFile, outputFile, false, originalSize, 0,
+                                       System.currentTimeMillis() - startTime, error);
+        }
     }
     
     /**
@@ -143,6 +305,104 @@ public class MultiThreadPngCompressor {
         System.out.printf("🔧 多线程PNG压缩器已初始化 (线程数: %d)\n", threadCount);
     }
     
+    private static long defaultMemoryBudget() {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        return maxHeap == Long.MAX_VALUE ? Long.MAX_VALUE : maxHeap / 4 * 3;
+    }
+    
+    /**
+     * 设置同时运行的压缩任务预留内存之和的上限（Java堆和native内存合计）
+     * 每个任务在解码之前按图像头估算占用，预算不足时等待其他任务结束
+     * @param limitBytes 预算字节数，Long.MAX_VALUE 表示不限制
+     */
+    public MultiThreadPngCompressor setMemoryBudget(long limitBytes) {
+        this.memoryBudget = new MemoryBudget(limitBytes);
+        return this;
+    }
+    
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+    
+    /**
+     * 设置压缩结果缓存，所有任务共享；相同文件以相同参数再次提交时直接复制缓存的输出
+     * @param cache 结果缓存，null 表示不缓存
+     */
+    public MultiThreadPngCompressor setResultCache(ResultCache cache) {
+        compressor.setResultCache(cache);
+        return this;
+    }
+    
+    /**
+     * 设置单个任务的截止时间，从提交时开始计算
+     * 排队期间已经超时的任务不再执行；执行中超时的任务在下一次进度回调时中止native量化，
+     * 过载时线程池把时间花在还来得及完成的任务上
+     * @param millis 截止时间（毫秒），0 表示不限制
+     */
+    public MultiThreadPngCompressor setJobTimeout(long millis) {
+        this.jobTimeoutMillis = Math.max(0, millis);
+        return this;
+    }
+    
+    /**
+     * 设置跳过压缩的收益阈值：压缩之前用 {@link GainEstimator} 按文件大小、抽样颜色数和熵预测缩小比例，
+     * 低于阈值的PNG不再量化，输出原文件的副本。已经很小、已经是调色板图或噪声很多的照片通常会被跳过
+     * @param minGain 预测缩小比例的下限 (0-1)，例如 0.1 表示预计缩小不到10%的文件不压缩；负数关闭预测（默认）
+     */
+    public MultiThreadPngCompressor setSkipBelowGain(double minGain) {
+        this.skipBelowGain = minGain;
+        return this;
+    }
+    
+    public GainEstimator getGainEstimator() {
+        return gainEstimator;
+    }
+    
+    /**
+     * 因预测收益低于阈值而跳过的任务数
+     */
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+    
+    private GainEstimator.Estimate estimateGain(File file, ImageHeader header, int maxColors) {
+        long start = System.nanoTime();
+        try {
+            GainEstimator.Estimate estimate = gainEstimator.estimate(file, header, maxColors);
+            if (estimate != null) {
+                estimatedCount.incrementAndGet();
+                estimateDecodedPixels.addAndGet(estimate.decodedPixels);
+                estimateTotalPixels.addAndGet((long) header.width * header.height);
+            }
+            return estimate;
+        } catch (IOException e) {
+            // 无法抽样时照常压缩
+            return null;
+        } finally {
+            estimateNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * 压缩之后用实际大小检验预测：统计误差、判断是否正确，并修正估计器
+     */
+    private void verifyEstimate(GainEstimator.Estimate gain, long originalSize, long compressedSize, double minGain) {
+        double actualGain = 1.0 - (double) compressedSize / originalSize;
+        verifiedCount.incrementAndGet();
+        gainErrorSum.add(Math.abs(actualGain - gain.predictedGain));
+        if (actualGain >= minGain) {
+            correctDecisions.incrementAndGet();
+        }
+        gainEstimator.calibrate(gain, compressedSize);
+    }
+    
+    /**
+     * 因超过截止时间而放弃或中止的任务数
+     */
+    public int getTimeoutCount() {
+        return timeoutCount.get();
+    }
+    
     /**
      * 默认构造函数，使用CPU核心数作为线程数
      */
@@ -203,16 +463,473 @@ public class MultiThreadPngCompressor {
         List<CompressionTask> tasks = new ArrayList<>();
         
         for (String inputFile : inputFiles) {
-            String fileName = new File(inputFile).getName();
-            String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
-            String outputFile = outputPrefix + baseName + "_compressed.png";
-            
-            tasks.add(new CompressionTask(inputFile, outputFile, quality, maxColors, speed));
+            tasks.add(new CompressionTask(inputFile, outputFileFor(inputFile, outputPrefix), quality, maxColors, speed));
         }
         
         return compressBatch(tasks);
     }
     
+    /**
+     * 逐个文件指定参数压缩，不同参数的任务在同一个线程池上同时执行
+     * @param inputFiles 输入文件列表
+     * @param outputPrefix 输出文件前缀
+     * @param options 与 inputFiles 一一对应的压缩参数
+     */
+    public List<CompressionResult> compressFiles(String[] inputFiles, String outputPrefix, CompressionOptions[] options) {
+        if (options.length != inputFiles.length) {
+            throw new IllegalArgumentException("options.length != inputFiles.length");
+        }
+        List<CompressionTask> tasks = new ArrayList<>();
+        for (int i = 0; i < inputFiles.length; i++) {
+            tasks.add(new CompressionTask(inputFiles[i], outputFileFor(inputFiles[i], outputPrefix), options[i]));
+        }
+        return compressBatch(tasks);
+    }
+    
+    /**
+     * 按调度方式压缩文件
+     * INTER_IMAGE 与 {@link #compressFiles} 相同，但每张图像在native端单线程执行，Java线程数即并行度；
+     * INTRA_IMAGE 在调用线程上逐张处理，每张图像的量化、重映射和输出压缩使用全部native线程；
+     * AUTO 读取图像头得到像素数，不少于 {@link #LARGE_IMAGE_PIXELS} 的先逐张按 INTRA_IMAGE 处理，其余再按 INTER_IMAGE 并行，
+     * 两种并行不同时进行，CPU不会被两层线程池超额占用
+     * @param inputFiles 输入文件列表
+     * @param outputPrefix 输出文件前缀
+     * @param quality 质量 (0-100)
+     * @param maxColors 最大颜色数 (1-256)
+     * @param speed 速度 (1-11)
+     * @param mode 调度方式
+     * @return 与 inputFiles 顺序一致的压缩结果
+     */
+    public List<CompressionResult> compressFilesScheduled(String[] inputFiles, String outputPrefix,
+                                                         int quality, int maxColors, int speed, SchedulingMode mode) {
+        if (inputFiles.length == 0) {
+            System.out.println("⚠️  没有压缩任务");
+            return new ArrayList<>();
+        }
+        
+        System.out.printf("📋 开始调度模式(%s)压缩 %d 个文件...\n", mode, inputFiles.length);
+        long startTime = System.currentTimeMillis();
+        
+        List<Integer> large = new ArrayList<>();
+        List<Integer> small = new ArrayList<>();
+        for (int i = 0; i < inputFiles.length; i++) {
+            boolean intra = mode == SchedulingMode.INTRA_IMAGE
+                || (mode == SchedulingMode.AUTO && pixelCount(inputFiles[i]) >= LARGE_IMAGE_PIXELS);
+            (intra ? large : small).add(i);
+        }
+        
+        CompressionResult[] results = new CompressionResult[inputFiles.length];
+        
+        // 1. 大图逐张处理，每张占满native线程池
+        for (int i : large) {
+            results[i] = new CompressionTask(inputFiles[i], outputFileFor(inputFiles[i], outputPrefix),
+                                             quality, maxColors, speed, false).call();
+        }
+        
+        // 2. 其余图像在本线程池上并行，native端单线程
+        List<CompressionTask> tasks = new ArrayList<>();
+        for (int i : small) {
+            tasks.add(new CompressionTask(inputFiles[i], outputFileFor(inputFiles[i], outputPrefix),
+                                          quality, maxColors, speed, true));
+        }
+        try {
+            List<Future<CompressionResult>> futures = executorService.invokeAll(tasks);
+            for (int k = 0; k < futures.size(); k++) {
+                try {
+                    results[small.get(k)] = futures.get(k).get();
+                } catch (ExecutionException e) {
+                    System.err.println("❌ 任务执行异常: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            System.err.println("❌ 调度模式压缩被中断: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+        
+        List<CompressionResult> completed = new ArrayList<>();
+        for (CompressionResult result : results) {
+            if (result != null) {
+                completed.add(result);
+            }
+        }
+        
+        long totalTime = System.currentTimeMillis() - startTime;
+        printSummary(completed, totalTime);
+        System.out.printf("🧮 图像内并行: %d 个文件，图像间并行: %d 个文件 (native线程池: %d 线程)\n",
+                         large.size(), small.size(), PngQuantJNA.getThreadPoolSize());
+        
+        return completed;
+    }
+    
+    /**
+     * 按预测耗时从大到小调度：先读取所有图像头预测每张图的耗时，再由 {@link WorkStealingScheduler}
+     * 把最大的图像最先分配出去，工作线程空闲时从其他线程窃取剩余任务。每张图像在native端单线程执行。
+     * 结束时输出每个文件的预测与实际耗时，并用实际耗时修正 {@link CostModel}
+     * @param inputFiles 输入文件列表
+     * @param outputPrefix 输出文件前缀
+     * @param quality 质量 (0-100)
+     * @param maxColors 最大颜色数 (1-256)
+     * @param speed 速度 (1-11)
+     * @return 与 inputFiles 顺序一致的压缩结果
+     */
+    public List<CompressionResult> compressFilesCostAware(String[] inputFiles, String outputPrefix,
+                                                         int quality, int maxColors, int speed) {
+        if (inputFiles.length == 0) {
+            System.out.println("⚠️  没有压缩任务");
+            return new ArrayList<>();
+        }
+        
+        System.out.printf("📋 开始按耗时调度压缩 %d 个文件...\n", inputFiles.length);
+        long startTime = System.currentTimeMillis();
+        
+        List<CompressionTask> tasks = new ArrayList<>();
+        long[] predicted = new long[inputFiles.length];
+        for (int i = 0; i < inputFiles.length; i++) {
+            try {
+                predicted[i] = costModel.predictNanos(ImageHeader.read(new File(inputFiles[i])), speed);
+            } catch (IOException e) {
+                // 读不到图像头的任务很快会失败，排在最后
+                predicted[i] = 0;
+            }
+            tasks.add(new CompressionTask(inputFiles[i], outputFileFor(inputFiles[i], outputPrefix),
+                                          quality, maxColors, speed, true));
+        }
+        
+        WorkStealingScheduler.Outcome<CompressionResult> outcome;
+        try {
+            outcome = new WorkStealingScheduler(executorService, threadCount).run(tasks, predicted);
+        } catch (InterruptedException e) {
+            System.err.println("❌ 按耗时调度压缩被中断: " + e.getMessage());
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        }
+        
+        List<CompressionResult> results = new ArrayList<>();
+        long[] actual = outcome.getActualNanos().clone();
+        for (int i = 0; i < inputFiles.length; i++) {
+            CompressionResult result = outcome.getResults().get(i);
+            Throwable error = outcome.getErrors()[i];
+            if (error != null) {
+                System.err.println("❌ 任务执行异常: " + inputFiles[i] + " - " + error);
+                failureCount.incrementAndGet();
+                result = new CompressionResult(inputFiles[i], outputFileFor(inputFiles[i], outputPrefix), false,
+                                               0, 0, outcome.getActualNanos()[i] / 1_000_000, "处理异常: " + error);
+            }
+            if (result != null) {
+                results.add(result);
+            }
+            if (result == null || !result.success) {
+                actual[i] = 0;
+            }
+        }
+        
+        long totalTime = System.currentTimeMillis() - startTime;
+        printSummary(results, totalTime);
+        printCostReport(inputFiles, predicted, actual, outcome);
+        costModel.calibrate(predicted, actual);
+        
+        return results;
+    }
+    
+    /**
+     * 输出预测与实际耗时的对比，以及完成时间与理想下界的差距
+     */
+    private void printCostReport(String[] inputFiles, long[] predicted, long[] actual,
+                                 WorkStealingScheduler.Outcome<?> outcome) {
+        System.out.println("\n⏳ 预测耗时 vs 实际耗时:");
+        double errorSum = 0;
+        int measured = 0;
+        long actualSum = 0;
+        long actualMax = 0;
+        for (int i = 0; i < inputFiles.length; i++) {
+            if (actual[i] <= 0) {
+                System.out.printf("  %s: 预测 %.1f ms，任务失败\n", inputFiles[i], predicted[i] / 1e6);
+                continue;
+            }
+            double error = (double) (predicted[i] - actual[i]) / actual[i];
+            errorSum += Math.abs(error);
+            measured++;
+            actualSum += actual[i];
+            actualMax = Math.max(actualMax, actual[i]);
+            System.out.printf("  %s: 预测 %.1f ms，实际 %.1f ms (%+.0f%%)\n",
+                             inputFiles[i], predicted[i] / 1e6, actual[i] / 1e6, error * 100);
+        }
+        if (measured > 0) {
+            // 完成时间不可能小于 总耗时/线程数 和 最大单个任务 两者中的较大值
+            long lowerBound = Math.max(actualSum / threadCount, actualMax);
+            System.out.printf("📐 平均预测误差: %.1f%%，完成时间 %.1f ms，理想下界 %.1f ms，窃取任务 %d 个\n",
+                             errorSum / measured * 100, outcome.getMakespanNanos() / 1e6, lowerBound / 1e6,
+                             Arrays.stream(outcome.getStolenCounts()).sum());
+        }
+    }
+    
+    /**
+     * 从图像头读取像素数，不解码像素；无法读取时返回0（按小图处理，由压缩任务报告错误）
+     */
+    private static long pixelCount(String inputFile) {
+        try {
+            return ImageHeader.read(new File(inputFile)).getPixelCount();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * 小图批量模式：所有图像打包后只做一次native调用，量化和重映射在libimagequant的线程池上并行执行，
+     * 读取和写出仍由本线程池并行完成。适合成千上万的图标、精灵图，分摊每张图的JNA调用和任务调度开销。
+     * 每张图像读取之前从内存预算中预留，预算放不下下一张时先量化并写出已读取的部分，释放后再继续
+     * @param inputFiles 输入文件列表
+     * @param outputPrefix 输出文件前缀
+     * @param quality 质量 (0-100)
+     * @param maxColors 最大颜色数 (1-256)
+     * @param speed 速度 (1-11)
+     */
+    public List<CompressionResult> compressFilesBatched(String[] inputFiles, String outputPrefix,
+                                                       int quality, int maxColors, int speed) {
+        if (inputFiles.length == 0) {
+            System.out.println("⚠️  没有压缩任务");
+            return new ArrayList<>();
+        }
+        
+        System.out.printf("📋 开始批量模式压缩 %d 个文件...\n", inputFiles.length);
+        long startTime = System.currentTimeMillis();
+        
+        // 结果按 inputFiles 的顺序排列
+        CompressionResult[] results = new CompressionResult[inputFiles.length];
+        MemoryBudget budget = memoryBudget;
+        List<Integer> chunk = new ArrayList<>();
+        List<Future<BufferedImage>> reads = new ArrayList<>();
+        long chunkReserved = 0;
+        try {
+            for (int i = 0; i < inputFiles.length; i++) {
+                // 1. 预留内存后并行读取
+                long estimate = estimateImageIOBytes(inputFiles[i]);
+                long reserved = budget.tryAcquire(estimate);
+                if (reserved < 0) {
+                    if (!chunk.isEmpty()) {
+                        quantizeChunk(inputFiles, outputPrefix, chunk, reads, results, quality, maxColors, speed);
+                        chunk.clear();
+                        reads.clear();
+                        budget.release(chunkReserved);
+                        chunkReserved = 0;
+                    }
+                    reserved = budget.acquire(estimate);
+                }
+                chunkReserved += reserved;
+                String inputFile = inputFiles[i];
+                chunk.add(i);
+                reads.add(executorService.submit(() -> ImageIO.read(new File(inputFile))));
+            }
+            if (!chunk.isEmpty()) {
+                quantizeChunk(inputFiles, outputPrefix, chunk, reads, results, quality, maxColors, speed);
+            }
+            
+            long totalTime = System.currentTimeMillis() - startTime;
+            List<CompressionResult> resultList = Arrays.asList(results);
+            printSummary(resultList, totalTime);
+            
+            return resultList;
+            
+        } catch (InterruptedException e) {
+            System.err.println("❌ 批量压缩被中断: " + e.getMessage());
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        } catch (Exception e) {
+            System.err.println("❌ 批量量化失败: " + e.getMessage());
+            return new ArrayList<>();
+        } finally {
+            // 中途失败时等待仍在读取的任务，之后才能释放它们的预留
+            for (Future<BufferedImage> read : reads) {
+                try {
+                    read.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException | RuntimeException e) {
+                    // 已按读取失败处理
+                }
+            }
+            budget.release(chunkReserved);
+        }
+    }
+    
+    /**
+     * 按 ImageIO 路径估算一张图像的内存，图像头无法读取时为0，由读取报告错误
+     */
+    private static long estimateImageIOBytes(String inputFile) {
+        try {
+            return MemoryBudget.estimate(ImageHeader.read(new File(inputFile)), false).getTotalBytes();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * 等待 chunk 中的图像读取完成，一次native调用量化它们，再并行写出；结果写入 results 的对应位置
+     */
+    private void quantizeChunk(String[] inputFiles, String outputPrefix, List<Integer> chunk,
+                               List<Future<BufferedImage>> reads, CompressionResult[] results,
+                               int quality, int maxColors, int speed) throws Exception {
+        QuantizeBatch batch = new QuantizeBatch();
+        int[] batchIndex = new int[chunk.size()];
+        for (int c = 0; c < chunk.size(); c++) {
+            int i = chunk.get(c);
+            String outputFile = outputFileFor(inputFiles[i], outputPrefix);
+            BufferedImage image = null;
+            String error = null;
+            try {
+                image = reads.get(c).get();
+                if (image == null) {
+                    error = "无法读取输入图像: " + inputFiles[i];
+                }
+            } catch (ExecutionException e) {
+                error = "IO错误: " + e.getCause().getMessage();
+            }
+            if (image == null) {
+                failureCount.incrementAndGet();
+                results[i] = new CompressionResult(inputFiles[i], outputFile, false, 0, 0, 0, error);
+                batchIndex[c] = -1;
+            } else {
+                batchIndex[c] = batch.add(image);
+            }
+        }
+        
+        // 2. 一次native调用完成整批量化，单一质量值与 jna_setQuality_single 保持一致（下限为目标的一半）
+        QuantizeBatch.Result quantized = null;
+        if (batch.size() > 0) {
+            long quantizeStart = System.currentTimeMillis();
+            quantized = batch.quantize(new QuantizeSettings()
+                .setMaxColors(maxColors)
+                .setQuality(quality / 2, quality)
+                .setSpeed(speed));
+            System.out.printf("⚡ 批量量化 %d 张图像 (%,d 像素): %dms\n",
+                             batch.size(), batch.getPixelCount(), System.currentTimeMillis() - quantizeStart);
+        }
+        
+        // 3. 并行写出
+        List<Future<CompressionResult>> writes = new ArrayList<>();
+        for (int c = 0; c < chunk.size(); c++) {
+            if (batchIndex[c] < 0) {
+                writes.add(null);
+                continue;
+            }
+            String inputFile = inputFiles[chunk.get(c)];
+            String outputFile = outputFileFor(inputFile, outputPrefix);
+            int index = batchIndex[c];
+            QuantizeBatch.Result batchResult = quantized;
+            writes.add(executorService.submit(() -> writeBatchResult(inputFile, outputFile, batchResult, index)));
+        }
+        for (int c = 0; c < chunk.size(); c++) {
+            if (writes.get(c) == null) {
+                continue;
+            }
+            int i = chunk.get(c);
+            try {
+                results[i] = writes.get(c).get();
+            } catch (ExecutionException e) {
+                System.err.println("❌ 任务执行异常: " + e.getMessage());
+                failureCount.incrementAndGet();
+                results[i] = new CompressionResult(inputFiles[i], outputFileFor(inputFiles[i], outputPrefix), false,
+                                                   0, 0, 0, "处理异常: " + e.getCause().getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 分阶段流水线模式：解码、量化、编码写出各自使用独立的线程，阶段之间用有界队列连接，
+     * 读文件的等待不会占住量化线程。解码线程数为本压缩器线程数的2倍（掩盖I/O延迟），
+     * 量化线程数等于本压缩器线程数，编码线程数为一半，队列容量为线程数的2倍
+     * @param inputFiles 输入文件列表
+     * @param outputPrefix 输出文件前缀
+     * @param quality 质量 (0-100)
+     * @param maxColors 最大颜色数 (1-256)
+     * @param speed 速度 (1-11)
+     */
+    public List<CompressionResult> compressFilesPipelined(String[] inputFiles, String outputPrefix,
+                                                         int quality, int maxColors, int speed) {
+        return compressFilesPipelined(inputFiles, outputPrefix, quality, maxColors, speed,
+                                      new PngPipeline(threadCount * 2, threadCount, Math.max(1, threadCount / 2), threadCount * 2));
+    }
+    
+    /**
+     * 使用指定的流水线压缩文件，各阶段的线程数和队列容量由 pipeline 决定，解码使用本压缩器的内存预算
+     */
+    public List<CompressionResult> compressFilesPipelined(String[] inputFiles, String outputPrefix,
+                                                         int quality, int maxColors, int speed, PngPipeline pipeline) {
+        if (inputFiles.length == 0) {
+            System.out.println("⚠️  没有压缩任务");
+            return new ArrayList<>();
+        }
+        
+        System.out.printf("📋 开始流水线模式压缩 %d 个文件...\n", inputFiles.length);
+        long startTime = System.currentTimeMillis();
+        
+        String[] outputFiles = new String[inputFiles.length];
+        for (int i = 0; i < inputFiles.length; i++) {
+            outputFiles[i] = outputFileFor(inputFiles[i], outputPrefix);
+        }
+        
+        pipeline.setMemoryBudget(memoryBudget);
+        try {
+            List<CompressionResult> results = new ArrayList<>();
+            for (PngPipeline.Job job : pipeline.run(inputFiles, outputFiles, quality, maxColors, speed)) {
+                if (job.isSuccess()) {
+                    successCount.incrementAndGet();
+                    totalOriginalSize.addAndGet(job.getOriginalSize());
+                    totalCompressedSize.addAndGet(job.getCompressedSize());
+                } else {
+                    failureCount.incrementAndGet();
+                }
+                results.add(new CompressionResult(job.inputFile, job.outputFile, job.isSuccess(), job.getOriginalSize(),
+                                                  job.getCompressedSize(), job.getProcessingTime(), job.getErrorMessage()));
+            }
+            
+            long totalTime = System.currentTimeMillis() - startTime;
+            printSummary(results, totalTime);
+            pipeline.printStageStats();
+            
+            return results;
+            
+        } catch (InterruptedException e) {
+            System.err.println("❌ 流水线压缩被中断: " + e.getMessage());
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        }
+    }
+    
+    private CompressionResult writeBatchResult(String inputFile, String outputFile, QuantizeBatch.Result batch, int index) {
+        long startTime = System.currentTimeMillis();
+        long originalSize = new File(inputFile).length();
+        if (!batch.isSuccess(index)) {
+            failureCount.incrementAndGet();
+            return new CompressionResult(inputFile, outputFile, false, originalSize, 0, 0,
+                                       "图像量化失败, 错误码: " + batch.getError(index));
+        }
+        try {
+            File output = new File(outputFile);
+            try (IndexedPngWriter writer = new IndexedPngWriter()) {
+                writer.write(output, batch.getWidth(index), batch.getHeight(index), batch.getPalette(index),
+                             batch.getPaletteCount(index), batch.getIndices(index));
+            }
+            long compressedSize = output.length();
+            totalOriginalSize.addAndGet(originalSize);
+            totalCompressedSize.addAndGet(compressedSize);
+            successCount.incrementAndGet();
+            return new CompressionResult(inputFile, outputFile, true, originalSize, compressedSize,
+                                       System.currentTimeMillis() - startTime, null);
+        } catch (IOException e) {
+            failureCount.incrementAndGet();
+            return new CompressionResult(inputFile, outputFile, false, originalSize, 0,
+                                       System.currentTimeMillis() - startTime, "IO错误: " + e.getMessage());
+        }
+    }
+    
+    private static String outputFileFor(String inputFile, String outputPrefix) {
+        String fileName = new File(inputFile).getName();
+        String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
+        return outputPrefix + baseName + "_compressed.png";
+    }
+    
     /**
      * 打印统计摘要
      */
@@ -224,8 +941,44 @@ public class MultiThreadPngCompressor {
         System.out.printf("⏱️  总耗时: %d ms (%.2f 秒)\n", totalTime, totalTime / 1000.0);
         System.out.printf("✅ 成功: %d 个文件\n", successCount.get());
         System.out.printf("❌ 失败: %d 个文件\n", failureCount.get());
+        if (timeoutCount.get() > 0) {
+            System.out.printf("⏱ 超时放弃: %d 个文件 (截止时间 %d ms)\n", timeoutCount.get(), jobTimeoutMillis);
+        }
         System.out.printf("🧵 使用线程: %d 个\n", threadCount);
         
+        MemoryBudget budget = memoryBudget;
+        if (budget.getLimitBytes() != Long.MAX_VALUE && budget.getAdmittedCount() > 0) {
+            System.out.printf("🧠 内存预算: %.1f MB，峰值预留 %.1f MB，%d 个任务等待过预算 (共 %d ms)\n",
+                             budget.getLimitBytes() / (1024.0 * 1024.0), budget.getPeakReservedBytes() / (1024.0 * 1024.0),
+                             budget.getWaitCount(), budget.getWaitNanos() / 1_000_000);
+        }
+        
+        if (compressor.getResultCache() instanceof DiskResultCache) {
+            System.out.println("🗄️  " + compressor.getResultCache());
+        }
+        
+        int estimated = estimatedCount.get();
+        if (estimated > 0) {
+            System.out.printf("⏭️  跳过压缩: %d / %d 个预测过的文件 (%.1f%%，阈值 %.0f%%，预测共 %d ms，平均 %.2f ms/文件，解码 %.1f%% 的像素)\n",
+                             skippedCount.get(), estimated, skippedCount.get() * 100.0 / estimated,
+                             skipBelowGain * 100, estimateNanos.get() / 1_000_000,
+                             estimateNanos.get() / 1e6 / estimated,
+                             estimateDecodedPixels.get() * 100.0 / Math.max(1, estimateTotalPixels.get()));
+            // 跳过的文件没有实际结果，只能用实际压缩了的文件检验预测
+            int verified = verifiedCount.get();
+            if (verified > 0) {
+                System.out.printf("🎯 预测准确度: 平均绝对误差 %.1f 个百分点，%d 个压缩的文件中 %.1f%% 实际收益达到阈值 (输出系数 %.2f)\n",
+                                 gainErrorSum.sum() * 100 / verified, verified,
+                                 correctDecisions.get() * 100.0 / verified, gainEstimator.getOutputScale());
+            }
+        }
+        
+        // 全部任务结束后仍存活的句柄说明有对象没有 close()，要等 Cleaner 回收
+        if (PngQuantJNA.getLiveNativeHandles() > 0) {
+            System.out.printf("🔩 未释放的native句柄: %d 个，约 %.1f MB\n", PngQuantJNA.getLiveNativeHandles(),
+                             PngQuantJNA.getLiveNativeBytes() / (1024.0 * 1024.0));
+        }
+        
         if (successCount.get() > 0) {
             long originalTotal = totalOriginalSize.get();
             long compressedTotal = totalCompressedSize.get();
@@ -243,7 +996,9 @@ public class MultiThreadPngCompressor {
         
         System.out.println("\n📋 详细结果:");
         for (CompressionResult result : results) {
-            if (result.success) {
+            if (result.skipped) {
+                System.out.printf("  ⏭️  %s → %s (跳过，原样复制)\n", result.inputFile, result.outputFile);
+            } else if (result.success) {
                 System.out.printf("  ✅ %s → %s (%.1f%%, %dms)\n", 
                                  result.inputFile, result.outputFile, 
                                  result.compressionRatio * 100, result.processingTime);
@@ -256,12 +1011,14 @@ public class MultiThreadPngCompressor {
     }
     
     /**
-     * 关闭线程池
+     * 关闭线程池，任务全部结束后释放压缩器在各线程上的工作区
      */
     public void shutdown() {
         executorService.shutdown();
         try {
-            if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
+            if (executorService.awaitTermination(60, TimeUnit.SECONDS)) {
+                compressor.close();
+            } else {
                 executorService.shutdownNow();
             }
         } catch (InterruptedException e) {
@@ -293,6 +1050,38 @@ public class MultiThreadPngCompressor {
             System.out.println("\n💡 测试3: 快速压缩");
             multiCompressor.compressFiles(inputFiles, "mt_fast_", 70, 128, 6);
             
+            System.out.println("\n💡 测试4: 小图批量模式");
+            multiCompressor.compressFilesBatched(inputFiles, "mt_batched_", 80, 256, 3);
+            
+            System.out.println("\n💡 测试5: 分阶段流水线");
+            multiCompressor.compressFilesPipelined(inputFiles, "mt_pipelined_", 80, 256, 3);
+            
+            System.out.println("\n💡 测试6: 按图像大小选择图像间/图像内并行");
+            multiCompressor.compressFilesScheduled(inputFiles, "mt_scheduled_", 80, 256, 3, SchedulingMode.AUTO);
+            
+            System.out.println("\n💡 测试7: 按预测耗时从大到小调度");
+            multiCompressor.compressFilesCostAware(inputFiles, "mt_costaware_", 80, 256, 3);
+            
+            System.out.println("\n💡 测试8: 异步接口");
+            try (AsyncPngCompressor asyncCompressor = new AsyncPngCompressor()) {
+                String[] outputFiles = new String[inputFiles.length];
+                for (int i = 0; i < inputFiles.length; i++) {
+                    outputFiles[i] = outputFileFor(inputFiles[i], "mt_async_");
+                }
+                asyncCompressor.compressAllAsync(inputFiles, outputFiles, 80, 256, 3)
+                    .thenAccept(results -> results.forEach(r -> System.out.println("  " + r)))
+                    .join();
+            }
+            
+            System.out.println("\n💡 测试9: 截止时间与取消");
+            try (AsyncPngCompressor asyncCompressor = new AsyncPngCompressor()) {
+                // speed 1 的量化很慢，5ms 的截止时间会让大多数任务在native量化中途中止
+                CompletableFuture<PngCompressor.CompressionResult> doomed =
+                    asyncCompressor.compressAsync(new File(inputFiles[0]), new File(outputFileFor(inputFiles[0], "mt_deadline_")),
+                                                  100, 256, 1, 5);
+                System.out.println("  截止时间5ms: " + doomed.join());
+            }
+            
         } finally {
             // 确保关闭线程池
             multiCompressor.shutdown();
@@ -1,132 +1,270 @@
 package org.pngquant.jna;
 
-import com.sun.jna.Library;
-import com.sun.jna.Native;
-import com.sun.jna.Pointer;
-
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.*;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * PNG图像压缩工具 - 主类
  * 集成了所有必要的功能，可以直接使用
  * 自动检测平台并加载对应的动态库
+ * 
+ * 压缩器本身没有逐次调用的状态（native属性和缓冲区按线程保存），可以被多个线程共享；
+ * 以不同参数并发压缩时用 {@link #compress(File, File, CompressionOptions, CancelToken)} 逐次传入参数
+ * 
+ * 线程池的线程长期存活，它们的工作区不会随线程结束而释放；用完之后调用 {@link #close()} 释放所有线程的工作区
  */
-public class PngCompressor {
+public class PngCompressor implements AutoCloseable {
     
-    // JNA接口定义
-    interface LibImageQuantJNA extends Library {
-        LibImageQuantJNA INSTANCE = loadLibrary();
-        
-        // 常量
-        int LIQ_JNA_OK = 0;
-        int LIQ_JNA_ERROR = 1;
-        
-        // 核心函数
-        long jna_liq_attr_create();
-        void jna_liq_attr_destroy(long handle);
-        int jna_setMaxColors(long handle, int colors);
-        int jna_setQuality_single(long handle, int quality);
-        int jna_setQuality_range(long handle, int min, int max);
-        int jna_setSpeed(long handle, int speed);
-        int jna_setMinPosterization(long handle, int bits);
-        
-        long jna_liq_image_create(long attr, byte[] bitmap, int width, int height, int components);
-        void jna_liq_image_destroy(long handle);
-        
-        long jna_liq_quantize_image(long attr, long image_handle);
-        Pointer jna_liq_get_palette(long result_handle);
-        int jna_get_palette_count(Pointer palette);
-        int jna_copy_palette_data(Pointer palette, byte[] buffer, int buffer_size);
-        int jna_liq_write_remapped_image(long result_handle, long image_handle, byte[] buffer, int buffer_size);
-        void jna_liq_result_destroy(long handle);
-        
-        int jna_liq_version();
-        double jna_getMeanSquareError(long handle);
-        int jna_getQuality(long handle);
-        
-        /**
-         * 加载平台特定的库
-         */
-        static LibImageQuantJNA loadLibrary() {
-            String osName = System.getProperty("os.name").toLowerCase();
-            String libName = "imagequant_jna";
-            
-            try {
-                // 首先尝试标准库名
-                return Native.load(libName, LibImageQuantJNA.class);
-            } catch (UnsatisfiedLinkError e) {
-                System.err.println("无法加载标准库名，尝试平台特定的库文件...");
-                
-                // 确定平台特定的库文件名
-                String platformLib;
-                if (osName.contains("windows")) {
-                    platformLib = "./libimagequant_jna.dll";
-                } else if (osName.contains("linux")) {
-                    platformLib = "./libimagequant_jna.so";
-                } else if (osName.contains("mac")) {
-                    platformLib = "./libimagequant_jna.dylib";
-                } else {
-                    throw new RuntimeException("不支持的操作系统: " + osName);
-                }
-                
-                try {
-                    return Native.load(platformLib, LibImageQuantJNA.class);
-                } catch (UnsatisfiedLinkError e2) {
-                    System.err.println("无法加载平台库: " + platformLib);
-                    System.err.println("请确保库文件在当前目录或java.library.path中");
-                    System.err.println("当前目录: " + System.getProperty("user.dir"));
-                    System.err.println("java.library.path: " + System.getProperty("java.library.path"));
-                    throw new RuntimeException("无法加载ImageQuant JNA库", e2);
-                }
-            }
-        }
-    }
+    // 并行deflate的分块大小
+    private static final int PARALLEL_DEFLATE_BLOCK_SIZE = 256 * 1024;
     
-    private final LibImageQuantJNA lib;
+    // 默认压缩参数，不带参数的 compress 使用；每次调用只读取一次，设置方法整体替换它
+    private volatile CompressionOptions options = CompressionOptions.DEFAULT;
+    private volatile boolean streamingDecode = true;
+    private volatile ResultCache resultCache;
+    private volatile long maxRetainedBytes = 64L * 1024 * 1024;
     
-    // 压缩参数
-    private int maxColors = 256;
-    private int qualityMin = 70;
-    private int qualityMax = 90;
-    private int speed = 3;
-    private int minPosterization = 0;
+    // 每个线程一份：缓存的 liq_attr、结构体、PNG编码器和按最大图像复用的缓冲区
+    private final ThreadLocal<CompressionEngine> engines = ThreadLocal.withInitial(this::newEngine);
+    // 本压缩器创建的全部工作区，按所属线程弱引用：线程结束后条目随之消失，引擎由 Cleaner 释放；
+    // 仍然存活的线程的引擎在 close() 时逐个释放
+    private final Map<Thread, CompressionEngine> allEngines = Collections.synchronizedMap(new WeakHashMap<>());
+    private volatile boolean closed;
     
-    public PngCompressor() {
-        this.lib = LibImageQuantJNA.INSTANCE;
+    /**
+     * 设置默认压缩参数。多个线程共享同一个压缩器时不要调用设置方法，
+     * 而是把各自的 {@link CompressionOptions} 传给 {@link #compress(File, File, CompressionOptions, CancelToken)}
+     */
+    public PngCompressor setOptions(CompressionOptions options) {
+        this.options = options;
+        return this;
     }
     
-    // 设置参数的方法
+    public CompressionOptions getOptions() {
+        return options;
+    }
+    
+    // 设置参数的方法，等价于 setOptions(getOptions().withXxx(...))
     public PngCompressor setMaxColors(int colors) {
-        this.maxColors = Math.max(1, Math.min(256, colors));
+        options = options.withMaxColors(colors);
         return this;
     }
     
     public PngCompressor setQuality(int quality) {
-        this.qualityMin = Math.max(0, Math.min(100, quality));
-        this.qualityMax = this.qualityMin;
+        options = options.withQuality(quality);
         return this;
     }
     
     public PngCompressor setQualityRange(int min, int max) {
-        this.qualityMin = Math.max(0, Math.min(100, min));
-        this.qualityMax = Math.max(this.qualityMin, Math.min(100, max));
+        options = options.withQualityRange(min, max);
         return this;
     }
     
     public PngCompressor setSpeed(int speed) {
-        this.speed = Math.max(1, Math.min(11, speed));
+        options = options.withSpeed(speed);
         return this;
     }
     
     public PngCompressor setMinPosterization(int bits) {
-        this.minPosterization = Math.max(0, Math.min(4, bits));
+        options = options.withMinPosterization(bits);
+        return this;
+    }
+    
+    /**
+     * 设置抖动强度 (0.0-1.0)，负数为 libimagequant 默认值
+     */
+    public PngCompressor setDitheringLevel(float level) {
+        options = options.withDitheringLevel(level);
+        return this;
+    }
+    
+    /**
+     * 设置输出PNG的zlib压缩级别 (0-9，-1 为默认)
+     */
+    public PngCompressor setCompressionLevel(int level) {
+        options = options.withCompressionLevel(level);
+        return this;
+    }
+    
+    /**
+     * 是否对非隔行PNG使用流式解码（默认开启），关闭时总是通过 ImageIO 读取
+     */
+    public PngCompressor setStreamingDecode(boolean streamingDecode) {
+        this.streamingDecode = streamingDecode;
         return this;
     }
     
+    public boolean isStreamingDecode() {
+        return streamingDecode;
+    }
+    
+    /**
+     * 是否单线程处理每张图像（默认关闭）：量化、重映射在调用线程上执行，输出也不再分块并行压缩。
+     * 调用方已经在多个线程上并行处理多张图像时开启，避免与native线程池互相抢占CPU
+     */
+    public PngCompressor setSingleThreaded(boolean singleThreaded) {
+        options = options.withSingleThreaded(singleThreaded);
+        return this;
+    }
+    
+    /**
+     * 设置固定调色板：不再量化，每张图像直接重映射到该调色板（只重映射模式），null 恢复正常量化
+     * 颜色数、质量和速度参数在该模式下不起作用，抖动仍然生效
+     */
+    public PngCompressor setPalette(Palette palette) {
+        options = options.withPalette(palette);
+        return this;
+    }
+    
+    public Palette getPalette() {
+        return options.getPalette();
+    }
+    
+    /**
+     * 是否对颜色数不超过最大颜色数的图像直接输出精确的调色板和索引（无损，不调用 libimagequant），默认开启
+     */
+    public PngCompressor setExactFastPath(boolean exactFastPath) {
+        options = options.withExactFastPath(exactFastPath);
+        return this;
+    }
+    
+    /**
+     * 设置结果缓存，null 表示不缓存（默认）
+     * 缓存键为输入文件内容的 SHA-256 加上全部压缩参数，命中时只计算哈希并复制缓存的文件
+     */
+    public PngCompressor setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+        return this;
+    }
+    
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+    
+    /**
+     * 每个线程最多保留的像素+索引缓冲区字节数（默认64MB），更大的图像使用一次性的缓冲区
+     */
+    public PngCompressor setMaxRetainedBytes(long maxRetainedBytes) {
+        this.maxRetainedBytes = Math.max(0, maxRetainedBytes);
+        return this;
+    }
+    
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+    
+    /**
+     * 当前线程的工作区创建过的流式量化会话数
+     */
+    long getStreamSessions() {
+        return engines.get().getStreamSessions();
+    }
+    
+    private CompressionEngine newEngine() {
+        CompressionEngine engine = new CompressionEngine(maxRetainedBytes);
+        allEngines.put(Thread.currentThread(), engine);
+        return engine;
+    }
+    
+    /**
+     * 立即释放当前线程缓存的属性和缓冲区，之后本线程再压缩时重新创建
+     */
+    public void releaseThreadResources() {
+        CompressionEngine engine = engines.get();
+        allEngines.remove(Thread.currentThread());
+        engine.close();
+        engines.remove();
+    }
+    
+    /**
+     * 释放所有线程上缓存的属性和缓冲区。必须在所有 compress 调用返回之后调用（例如线程池 awaitTermination 之后），
+     * 之后不能再用本压缩器压缩
+     */
+    @Override
+    public void close() {
+        closed = true;
+        List<CompressionEngine> live;
+        synchronized (allEngines) {
+            live = new ArrayList<>(allEngines.values());
+            allEngines.clear();
+        }
+        for (CompressionEngine engine : live) {
+            engine.close();
+        }
+    }
+    
+    /**
+     * 缓存键：输入文件字节和所有影响输出的参数（包括libimagequant版本、zlib级别和解码路径）的 SHA-256
+     * 直接哈希文件字节而不是解码后的像素，命中时完全不需要解码
+     */
+    String cacheKey(File inputFile, CompressionOptions options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String params = String.format("v1;liq=%d;colors=%d;q=%d-%d;speed=%d;posterize=%d;dither=%s;gamma=%s;zlib=%d;exact=%b;streaming=%b;",
+                                      LibImageQuantDirect.jna_liq_version(), options.getMaxColors(),
+                                      options.getQualityMin(), options.getQualityMax(), options.getSpeed(),
+                                      options.getMinPosterization(), Float.toString(options.getDitheringLevel()),
+                                      Double.toString(options.getGamma()), options.getCompressionLevel(),
+                                      options.useExactFastPath(), streamingDecode);
+        digest.update(params.getBytes(StandardCharsets.US_ASCII));
+        Palette fixedPalette = options.getPalette();
+        if (fixedPalette != null) {
+            digest.update(("palette;gamma=" + fixedPalette.getGamma() + ";").getBytes(StandardCharsets.US_ASCII));
+            digest.update(fixedPalette.getRGBA());
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(inputFile)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+    
+    /**
+     * 打开流式解码器，输入不是PNG或者是隔行PNG时返回null
+     */
+    private static PngRowDecoder openStreamingDecoder(File inputFile) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(inputFile));
+        try {
+            PngRowDecoder decoder = new PngRowDecoder(in);
+            if (!decoder.isInterlaced()) {
+                return decoder;
+            }
+        } catch (IOException e) {
+            // 交给 ImageIO 处理
+        }
+        in.close();
+        return null;
+    }
+    
     /**
      * 压缩PNG图像
      * @param inputFile 输入文件路径
@@ -144,118 +282,238 @@ public class PngCompressor {
      * @return 压缩结果信息
      */
     public CompressionResult compress(File inputFile, File outputFile) {
-        long attr = 0;
-        long image = 0;
-        long result = 0;
+        return compress(inputFile, outputFile, null);
+    }
+    
+    /**
+     * 可取消的压缩：令牌取消（或超过截止时间）后，解码在下一个行带之前停止，
+     * native量化和重映射在下一次进度回调时中止并立即释放native对象
+     * @param cancelToken 取消令牌，null 表示不可取消；调用返回之前不能关闭
+     */
+    public CompressionResult compress(File inputFile, File outputFile, CancelToken cancelToken) {
+        return compress(inputFile, outputFile, options, cancelToken);
+    }
+    
+    /**
+     * 结果缓存未命中之后、解码之前的检查，见 {@link #compress(File, File, CompressionOptions, CancelToken, SkipCheck)}
+     */
+    interface SkipCheck {
+        /**
+         * @return true 表示不压缩这个文件
+         */
+        boolean skip() throws IOException;
+    }
+    
+    /**
+     * 以给定参数压缩，不读取也不修改压缩器的默认参数；多个线程可以同时以不同参数调用同一个压缩器
+     * @param options 本次压缩的参数
+     * @param cancelToken 取消令牌，null 表示不可取消；调用返回之前不能关闭
+     */
+    public CompressionResult compress(File inputFile, File outputFile, CompressionOptions options, CancelToken cancelToken) {
+        return compress(inputFile, outputFile, options, cancelToken, null);
+    }
+    
+    /**
+     * 同 {@link #compress(File, File, CompressionOptions, CancelToken)}，结果缓存未命中时先调用 skipCheck，
+     * 缓存命中的文件不做检查
+     * @param skipCheck 可为null
+     * @return skipCheck 决定跳过时为null，此时没有写出 outputFile
+     */
+    CompressionResult compress(File inputFile, File outputFile, CompressionOptions options, CancelToken cancelToken,
+                               SkipCheck skipCheck) {
+        if (closed) {
+            throw new IllegalStateException("PngCompressor is closed");
+        }
+        ByteBuffer pixels = null;
+        ResultCache cache = resultCache;
         
         try {
-            // 1. 读取输入图像
-            BufferedImage originalImage = ImageIO.read(inputFile);
-            if (originalImage == null) {
-                return new CompressionResult(false, "无法读取输入图像: " + inputFile.getPath());
-            }
-            
-            // 2. 转换为RGBA格式 (使用TYPE_4BYTE_ABGR，已修复字节顺序问题)
-            BufferedImage rgbaImage = convertToRGBA(originalImage);
-            
-            // 3. 提取像素数据
-            DataBufferByte buffer = (DataBufferByte) rgbaImage.getRaster().getDataBuffer();
-            byte[] imageData = buffer.getData();
-            
-            // 4. 创建libimagequant属性
-            attr = lib.jna_liq_attr_create();
-            if (attr == 0) {
-                return new CompressionResult(false, "无法创建量化属性");
-            }
-            
-            // 5. 设置参数
-            lib.jna_setMaxColors(attr, maxColors);
-            if (qualityMin == qualityMax) {
-                lib.jna_setQuality_single(attr, qualityMin);
-            } else {
-                lib.jna_setQuality_range(attr, qualityMin, qualityMax);
+            // 已经取消的任务不再读取文件
+            if (cancelToken != null) {
+                cancelToken.throwIfCancelled();
             }
-            lib.jna_setSpeed(attr, speed);
-            lib.jna_setMinPosterization(attr, minPosterization);
             
-            // 6. 创建图像对象
-            image = lib.jna_liq_image_create(attr, imageData, rgbaImage.getWidth(), rgbaImage.getHeight(), 4);
-            if (image == 0) {
-                return new CompressionResult(false, "无法创建图像对象");
+            // 0. 相同输入和参数已经压缩过时直接复制缓存的结果
+            String cacheKey = null;
+            if (cache != null) {
+                cacheKey = cacheKey(inputFile, options);
+                ResultCache.Entry cached = cache.copyTo(cacheKey, outputFile);
+                if (cached != null) {
+                    long inputSize = inputFile.length();
+                    long outputSize = outputFile.length();
+                    return new CompressionResult(true, inputSize, outputSize, 1.0 - (double) outputSize / inputSize,
+                                                 cached.colorsUsed, cached.quality, cached.mse);
+                }
             }
-            
-            // 7. 量化图像
-            result = lib.jna_liq_quantize_image(attr, image);
-            if (result == 0) {
-                return new CompressionResult(false, "图像量化失败");
+            if (skipCheck != null && skipCheck.skip()) {
+                return null;
             }
             
-            // 8. 获取调色板
-            Pointer palette = lib.jna_liq_get_palette(result);
-            int paletteSize = lib.jna_get_palette_count(palette);
-            byte[] paletteData = new byte[paletteSize * 4];
-            lib.jna_copy_palette_data(palette, paletteData, paletteData.length);
+            // 1. 量化参数，单一质量值与 jna_setQuality_single 保持一致（下限为目标的一半）
+            //    结构体、属性和缓冲区都来自当前线程的引擎，稳定运行时不再分配
+            CompressionEngine engine = engines.get();
+            engine.setMaxRetainedBytes(maxRetainedBytes);
+            QuantizeSettings settings = options.applyTo(engine.settings).setCancelToken(cancelToken);
             
-            // 9. 创建索引颜色模型
-            byte[] red = new byte[paletteSize];
-            byte[] green = new byte[paletteSize];
-            byte[] blue = new byte[paletteSize];
-            byte[] alpha = new byte[paletteSize];
+            QuantizeOutput output = engine.output;
+            int error;
             
-            for (int i = 0; i < paletteSize; i++) {
-                red[i] = paletteData[i * 4];
-                green[i] = paletteData[i * 4 + 1];
-                blue[i] = paletteData[i * 4 + 2];
-                alpha[i] = paletteData[i * 4 + 3];
+            Palette fixedPalette = options.getPalette();
+            PngRowDecoder decoder = streamingDecode ? openStreamingDecoder(inputFile) : null;
+            if (fixedPalette != null) {
+                // 2. 只重映射：整图解码为RGBA后直接映射到固定调色板，没有直方图和K-means
+                int width;
+                int height;
+                if (decoder != null) {
+                    try (decoder) {
+                        width = decoder.getWidth();
+                        height = decoder.getHeight();
+                        pixels = engine.pixels(width, height);
+                        decoder.readRows(pixels, height);
+                    }
+                } else {
+                    BufferedImage originalImage = ImageIO.read(inputFile);
+                    if (originalImage == null) {
+                        return new CompressionResult(false, "无法读取输入图像: " + inputFile.getPath());
+                    }
+                    width = originalImage.getWidth();
+                    height = originalImage.getHeight();
+                    pixels = engine.pixels(width, height);
+                    PngQuantJNA.ImageJNA.putRGBA(originalImage, pixels);
+                }
+                
+                byte[] indexData = engine.indices(width, height);
+                if (cancelToken != null) {
+                    cancelToken.throwIfCancelled();
+                }
+                error = PngQuantJNA.remapToPalette(settings, fixedPalette, pixels, width, height, indexData, output);
+                if (error != LibImageQuantDirect.LIQ_JNA_OK) {
+                    return quantizeFailure(error, cancelToken);
+                }
+                // 3. 直接编码为调色板PNG
+                writePng(engine, options, outputFile, width, height, output, ByteBuffer.wrap(indexData, 0, width * height));
+            } else if (decoder != null) {
+                // 2. 非隔行PNG：按行带解码，每解码一带就统计精确颜色；颜色本来就不超过上限时
+                //    不创建native会话，直接输出精确的调色板和索引（无损）
+                int width = decoder.getWidth();
+                int height = decoder.getHeight();
+                try (decoder) {
+                    boolean exact = options.useExactFastPath();
+                    int rows = 0;
+                    if (exact) {
+                        pixels = engine.pixels(width, height);
+                        byte[] indexData = engine.indices(width, height);
+                        engine.beginExact();
+                        while (exact && rows < height) {
+                            if (cancelToken != null) {
+                                cancelToken.throwIfCancelled();
+                            }
+                            pixels.position(rows * width * 4);
+                            int band = decoder.readRows(pixels, StreamingQuantizer.DEFAULT_BAND_ROWS);
+                            if (band == 0) {
+                                throw new IOException("Unexpected end of image data");
+                            }
+                            exact = engine.mapExactRange(pixels, rows * width, band * width, options.getMaxColors(), indexData);
+                            rows += band;
+                        }
+                        if (exact) {
+                            engine.finishExact(output);
+                            writePng(engine, options, outputFile, width, height, output,
+                                     ByteBuffer.wrap(indexData, 0, width * height));
+                        }
+                    }
+                    if (!exact) {
+                        // 颜色超过上限：已经解码的行交给native会话，剩余的行解码到native缓冲区，解码与直方图统计重叠；
+                        // 重映射结果留在native内存中，由编码器逐行读取，Java堆上不出现整图索引
+                        try (StreamingQuantizer quantizer = engine.stream(settings, width, height, ForkJoinPool.commonPool())) {
+                            if (rows > 0) {
+                                pixels.position(0);
+                                quantizer.addRows(pixels, rows);
+                            }
+                            quantizer.decode(decoder, StreamingQuantizer.DEFAULT_BAND_ROWS);
+                            error = quantizer.remap(output);
+                            if (error != LibImageQuantDirect.LIQ_JNA_OK) {
+                                return quantizeFailure(error, cancelToken);
+                            }
+                            // 3. 直接编码为调色板PNG
+                            writePng(engine, options, outputFile, width, height, output, quantizer.getIndices());
+                        }
+                    }
+                }
+            } else {
+                // 2. 其他格式：读取为 BufferedImage，一次性转换为RGBA顺序的direct buffer，native端直接借用
+                BufferedImage originalImage = ImageIO.read(inputFile);
+                if (originalImage == null) {
+                    return new CompressionResult(false, "无法读取输入图像: " + inputFile.getPath());
+                }
+                int width = originalImage.getWidth();
+                int height = originalImage.getHeight();
+                pixels = engine.pixels(width, height);
+                PngQuantJNA.ImageJNA.putRGBA(originalImage, pixels);
+                
+                byte[] indexData = engine.indices(width, height);
+                if (cancelToken != null) {
+                    cancelToken.throwIfCancelled();
+                }
+                // 颜色本来就不超过上限时直接得到精确的调色板和索引（无损）；
+                // 否则单次native调用完成 图像创建 → 量化 → 重映射 → 读取调色板，属性按参数缓存复用
+                if (!(options.useExactFastPath()
+                      && engine.mapExact(pixels, width, height, options.getMaxColors(), indexData, output))) {
+                    error = engine.quantizeAndRemap(settings, pixels, width, height, indexData, output);
+                    if (error != LibImageQuantDirect.LIQ_JNA_OK) {
+                        return quantizeFailure(error, cancelToken);
+                    }
+                }
+                // 3. 直接编码为调色板PNG
+                writePng(engine, options, outputFile, width, height, output, ByteBuffer.wrap(indexData, 0, width * height));
             }
+            int paletteSize = output.palette_count;
             
-            IndexColorModel colorModel = new IndexColorModel(8, paletteSize, red, green, blue, alpha);
-            
-            // 10. 创建输出图像
-            BufferedImage outputImage = new BufferedImage(rgbaImage.getWidth(), rgbaImage.getHeight(), 
-                                                         BufferedImage.TYPE_BYTE_INDEXED, colorModel);
-            DataBufferByte outputBuffer = (DataBufferByte) outputImage.getRaster().getDataBuffer();
-            byte[] indexData = outputBuffer.getData();
-            
-            // 11. 重映射像素
-            lib.jna_liq_write_remapped_image(result, image, indexData, indexData.length);
-            
-            // 12. 保存图像
-            ImageIO.write(outputImage, "PNG", outputFile);
-            
-            // 13. 计算压缩统计
+            // 4. 计算压缩统计
             long inputSize = inputFile.length();
             long outputSize = outputFile.length();
             double compressionRatio = 1.0 - (double) outputSize / inputSize;
-            double mse = lib.jna_getMeanSquareError(result);
-            int quality = lib.jna_getQuality(result);
+            
+            if (cache != null) {
+                try {
+                    cache.put(cacheKey, outputFile, new ResultCache.Entry(paletteSize, output.quality, output.mse));
+                } catch (IOException e) {
+                    // 缓存写入失败不影响本次压缩结果
+                }
+            }
             
             return new CompressionResult(true, inputSize, outputSize, compressionRatio, 
-                                       paletteSize, quality, mse);
+                                       paletteSize, output.quality, output.mse);
             
         } catch (IOException e) {
             return new CompressionResult(false, "IO错误: " + e.getMessage());
+        } catch (CancellationException e) {
+            return new CompressionResult(false, e.getMessage());
         } catch (Exception e) {
             return new CompressionResult(false, "压缩错误: " + e.getMessage());
         } finally {
-            // 清理资源
-            if (result != 0) lib.jna_liq_result_destroy(result);
-            if (image != 0) lib.jna_liq_image_destroy(image);
-            if (attr != 0) lib.jna_liq_attr_destroy(attr);
+            // 像素内存在native调用期间被借用，调用结束之前不能被回收
+            Reference.reachabilityFence(pixels);
+        }
+    }
+    
+    private static CompressionResult quantizeFailure(int error, CancelToken cancelToken) {
+        if (error == LibImageQuantDirect.LIQ_ABORTED && cancelToken != null) {
+            return new CompressionResult(false, cancelToken.isDeadlineExceeded() ? "超过截止时间" : "已取消");
         }
+        return new CompressionResult(false, "图像量化失败, 错误码: " + error);
     }
     
     /**
-     * 将图像转换为RGBA格式
+     * 编码为调色板PNG，不经过 IndexColorModel / ImageIO，索引逐行从 indices 读取
      */
-    private BufferedImage convertToRGBA(BufferedImage originalImage) {
-        BufferedImage rgbaImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), 
-                                                   BufferedImage.TYPE_4BYTE_ABGR);
-        Graphics2D g = rgbaImage.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        g.drawImage(originalImage, 0, 0, null);
-        g.dispose();
-        return rgbaImage;
+    private static void writePng(CompressionEngine engine, CompressionOptions options, File outputFile, int width, int height,
+                                 QuantizeOutput output, ByteBuffer indices) throws IOException {
+        // 大图的IDAT在公共线程池上分块并行压缩，小图达不到两块时自动走单线程
+        engine.writer()
+            .setCompressionLevel(options.getCompressionLevel())
+            .setParallelDeflate(options.isSingleThreaded() ? null : ForkJoinPool.commonPool(), PARALLEL_DEFLATE_BLOCK_SIZE)
+            .write(outputFile, width, height, output.palette, output.palette_count, indices);
     }
     
     /**
@@ -272,7 +530,7 @@ public class PngCompressor {
         private final double mse;
         
         // 失败结果构造函数
-        private CompressionResult(boolean success, String errorMessage) {
+        CompressionResult(boolean success, String errorMessage) {
             this.success = success;
             this.errorMessage = errorMessage;
             this.inputSize = 0;
@@ -284,7 +542,7 @@ public class PngCompressor {
         }
         
         // 成功结果构造函数
-        private CompressionResult(boolean success, long inputSize, long outputSize, 
+        CompressionResult(boolean success, long inputSize, long outputSize, 
                                 double compressionRatio, int colorsUsed, int quality, double mse) {
             this.success = success;
             this.errorMessage = null;
@@ -331,7 +589,7 @@ public class PngCompressor {
         
         // 输出结果
         System.out.println("=== PNG压缩工具 ===");
-        System.out.println("libimagequant版本: " + LibImageQuantJNA.INSTANCE.jna_liq_version());
+        System.out.println("libimagequant版本: " + LibImageQuantDirect.jna_liq_version());
         System.out.println(result);
         
         if (result.isSuccess()) {
@@ -0,0 +1,399 @@
+package org.pngquant.jna;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * 分阶段的PNG压缩流水线：解码 → 量化 → 编码写出
+ *
+ * 每个阶段有独立的线程数，阶段之间用有界队列连接：
+ * 解码阶段以文件I/O为主，可以多开线程掩盖磁盘/NFS延迟；量化阶段是CPU密集的native调用；
+ * 编码阶段负责滤波、deflate和写文件。队列满时上游阶段阻塞，在途的解码像素数量因此有上限。
+ * 设置了 {@link MemoryBudget} 时，解码之前按图像头预留内存，任务写出或失败后释放。
+ * 某个阶段失败的任务会带着错误信息直接流到最后，不再执行后续阶段。
+ *
+ * 每个阶段统计处理数量、忙碌时间、CPU时间和阻塞在下游队列上的时间，{@link #printStageStats()} 输出
+ * 吞吐量、线程占用率（忙碌时间/阶段线程总时间）和CPU利用率（CPU时间/忙碌时间），用于调整各阶段的线程数。
+ * CPU时间只统计阶段自己的线程，量化时libimagequant内部线程池消耗的CPU不计入。
+ */
+public class PngPipeline {
+
+    /**
+     * 单个文件的处理状态和结果
+     */
+    public static final class Job {
+        public final String inputFile;
+        public final String outputFile;
+        final QuantizeSettings settings;
+        final long submitTime = System.nanoTime();
+
+        int width;
+        int height;
+        ByteBuffer rgba;
+        byte[] indices;
+        final QuantizeOutput output = new QuantizeOutput();
+        // 从 budget 中预留的字节数
+        MemoryBudget budget;
+        long reserved;
+
+        // 结果
+        boolean success;
+        String errorMessage;
+        long originalSize;
+        long compressedSize;
+        long processingTime;
+
+        Job(String inputFile, String outputFile, QuantizeSettings settings) {
+            this.inputFile = inputFile;
+            this.outputFile = outputFile;
+            this.settings = settings;
+        }
+
+        public boolean isSuccess() { return success; }
+        public String getErrorMessage() { return errorMessage; }
+        public long getOriginalSize() { return originalSize; }
+        public long getCompressedSize() { return compressedSize; }
+        public long getProcessingTime() { return processingTime; }
+        public int getColorsUsed() { return output.palette_count; }
+        public int getQuality() { return output.quality; }
+    }
+
+    /**
+     * 阶段的处理逻辑，抛出的异常记录为任务失败
+     */
+    private interface StageFunction {
+        void apply(Job job) throws Exception;
+    }
+
+    // 队列结束标记
+    private static final Job END = new Job(null, null, null);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * 单个阶段的线程和统计
+     */
+    private static final class Stage {
+        final String name;
+        final int threads;
+        final StageFunction function;
+        final AtomicInteger items = new AtomicInteger();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong cpuNanos = new AtomicLong();
+        final AtomicLong blockedNanos = new AtomicLong();
+        volatile long firstStart;
+        volatile long lastEnd;
+
+        Stage(String name, int threads, StageFunction function) {
+            this.name = name;
+            this.threads = threads;
+            this.function = function;
+        }
+
+        void reset() {
+            items.set(0);
+            busyNanos.set(0);
+            cpuNanos.set(0);
+            blockedNanos.set(0);
+            firstStart = 0;
+            lastEnd = 0;
+        }
+    }
+
+    private final Stage decode;
+    private final Stage quantize;
+    private final Stage encode;
+    private final int queueCapacity;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private MemoryBudget memoryBudget;
+    private long elapsedNanos;
+
+    /**
+     * @param decodeThreads 解码（读文件）阶段线程数
+     * @param quantizeThreads 量化阶段线程数
+     * @param encodeThreads 编码写出阶段线程数
+     * @param queueCapacity 阶段之间每个队列的容量
+     */
+    public PngPipeline(int decodeThreads, int quantizeThreads, int encodeThreads, int queueCapacity) {
+        this.decode = new Stage("解码", Math.max(1, decodeThreads), this::decode);
+        this.quantize = new Stage("量化", Math.max(1, quantizeThreads), this::quantize);
+        this.encode = new Stage("编码", Math.max(1, encodeThreads), this::encode);
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    public PngPipeline setCompressionLevel(int level) {
+        this.compressionLevel = Math.max(-1, Math.min(9, level));
+        return this;
+    }
+
+    /**
+     * 设置解码阶段使用的内存预算，可以与其他压缩路径共享
+     * @param budget 内存预算，null 表示不限制
+     */
+    public PngPipeline setMemoryBudget(MemoryBudget budget) {
+        this.memoryBudget = budget;
+        return this;
+    }
+
+    /**
+     * 处理一批文件，阻塞到全部完成
+     * @param inputFiles 输入文件
+     * @param outputFiles 输出文件，与 inputFiles 一一对应
+     * @param quality 质量 (0-100)
+     * @param maxColors 最大颜色数 (1-256)
+     * @param speed 速度 (1-11)
+     * @return 按完成顺序排列的结果
+     */
+    public List<Job> run(String[] inputFiles, String[] outputFiles, int quality, int maxColors, int speed)
+            throws InterruptedException {
+        BlockingQueue<Job> toDecode = new ArrayBlockingQueue<>(inputFiles.length + 1);
+        BlockingQueue<Job> toQuantize = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> toEncode = new ArrayBlockingQueue<>(queueCapacity);
+        List<Job> done = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < inputFiles.length; i++) {
+            // JNA结构体在调用时会写入native内存，每个任务使用自己的实例；
+            // 多个量化线程各自占满native线程池会超额订阅，此时每个任务在自己的线程上单线程量化
+            QuantizeSettings settings = new QuantizeSettings()
+                .setMaxColors(maxColors)
+                .setQuality(quality / 2, quality)
+                .setSpeed(speed)
+                .setSingleThreaded(quantize.threads > 1);
+            toDecode.add(new Job(inputFiles[i], outputFiles[i], settings));
+        }
+
+        decode.reset();
+        quantize.reset();
+        encode.reset();
+        long start = System.nanoTime();
+        CountDownLatch finished = new CountDownLatch(decode.threads + quantize.threads + encode.threads);
+        List<Thread> threads = new ArrayList<>();
+        threads.addAll(startStage(decode, toDecode, toQuantize, quantize.threads, finished, null));
+        threads.addAll(startStage(quantize, toQuantize, toEncode, encode.threads, finished, null));
+        threads.addAll(startStage(encode, toEncode, null, 0, finished, done));
+        for (int i = 0; i < decode.threads; i++) {
+            toDecode.add(END);
+        }
+
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            threads.forEach(Thread::interrupt);
+            throw e;
+        }
+        elapsedNanos = System.nanoTime() - start;
+        return new ArrayList<>(done);
+    }
+
+    /**
+     * 启动一个阶段的工作线程。最后一个退出的线程向下游队列放入 downstreamThreads 个结束标记
+     */
+    private List<Thread> startStage(Stage stage, BlockingQueue<Job> in, BlockingQueue<Job> out, int downstreamThreads,
+                                    CountDownLatch finished, List<Job> done) {
+        AtomicInteger running = new AtomicInteger(stage.threads);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < stage.threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    Job job;
+                    while ((job = in.take()) != END) {
+                        process(stage, job);
+                        if (out != null) {
+                            long blockStart = System.nanoTime();
+                            out.put(job);
+                            stage.blockedNanos.addAndGet(System.nanoTime() - blockStart);
+                        } else {
+                            done.add(job);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // 无论本线程如何退出，最后一个线程都要通知下游，否则下游会永远等待
+                    if (running.decrementAndGet() == 0 && out != null) {
+                        for (int i = 0; i < downstreamThreads; i++) {
+                            if (!out.offer(END)) {
+                                try {
+                                    out.put(END);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    finished.countDown();
+                }
+            });
+            thread.setName("PNG-" + stage.name + "-" + t);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private static void process(Stage stage, Job job) {
+        if (job.errorMessage != null) {
+            return;
+        }
+        long cpuStart = threadCpuTime();
+        long start = System.nanoTime();
+        if (stage.firstStart == 0) {
+            stage.firstStart = start;
+        }
+        try {
+            stage.function.apply(job);
+        } catch (IOException e) {
+            job.errorMessage = "IO错误: " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.errorMessage = stage.name + "被中断";
+        } catch (Throwable e) {
+            // 包括 OutOfMemoryError 等：记为失败的任务，工作线程继续处理下一个
+            job.errorMessage = stage.name + "错误: " + e;
+        }
+        if (job.errorMessage != null) {
+            // 失败的任务不再持有像素
+            job.rgba = null;
+            job.indices = null;
+            release(job);
+        }
+        long end = System.nanoTime();
+        stage.lastEnd = end;
+        stage.items.incrementAndGet();
+        stage.busyNanos.addAndGet(end - start);
+        stage.cpuNanos.addAndGet(threadCpuTime() - cpuStart);
+    }
+
+    private static long threadCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    // =============================================================================
+    // 各阶段的处理逻辑
+    // =============================================================================
+
+    private void decode(Job job) throws IOException, InterruptedException {
+        File input = new File(job.inputFile);
+        if (!input.exists()) {
+            job.errorMessage = "输入文件不存在: " + job.inputFile;
+            return;
+        }
+        job.originalSize = input.length();
+
+        // 整张图像解码到内存中，按非流式路径估算；图像头无法读取时不预留，由解码报告错误
+        MemoryBudget budget = memoryBudget;
+        if (budget != null) {
+            ImageHeader header = null;
+            try {
+                header = ImageHeader.read(input);
+            } catch (IOException e) {
+                // 同上
+            }
+            if (header != null) {
+                job.reserved = budget.acquire(MemoryBudget.estimate(header, false).getTotalBytes());
+                job.budget = budget;
+            }
+        }
+
+        // 非隔行PNG逐行解码到direct buffer，其他格式回退到 ImageIO
+        try (PngRowDecoder decoder = new PngRowDecoder(new BufferedInputStream(new FileInputStream(input)))) {
+            if (!decoder.isInterlaced()) {
+                job.width = decoder.getWidth();
+                job.height = decoder.getHeight();
+                if ((long) job.width * job.height > Integer.MAX_VALUE / 4) {
+                    job.errorMessage = "图像过大: " + job.width + "x" + job.height;
+                    return;
+                }
+                job.rgba = ByteBuffer.allocateDirect(job.width * job.height * 4);
+                decoder.readRows(job.rgba, job.height);
+                job.rgba.flip();
+                return;
+            }
+        } catch (IOException e) {
+            // 不是PNG，交给 ImageIO
+        }
+        BufferedImage image = ImageIO.read(input);
+        if (image == null) {
+            job.errorMessage = "无法读取输入图像: " + job.inputFile;
+            return;
+        }
+        job.width = image.getWidth();
+        job.height = image.getHeight();
+        job.rgba = PngQuantJNA.ImageJNA.toDirectRGBA(image);
+    }
+
+    private void quantize(Job job) {
+        job.indices = new byte[job.width * job.height];
+        try {
+            int error = PngQuantJNA.quantizeAndRemap(job.settings, job.rgba, job.width, job.height, job.indices, job.output);
+            if (error != LibImageQuantDirect.LIQ_JNA_OK) {
+                job.errorMessage = "图像量化失败, 错误码: " + error;
+            }
+        } finally {
+            Reference.reachabilityFence(job.rgba);
+            // 像素在量化之后就不再需要，尽早释放
+            job.rgba = null;
+        }
+    }
+
+    private void encode(Job job) throws IOException {
+        File output = new File(job.outputFile);
+        try (IndexedPngWriter writer = new IndexedPngWriter(compressionLevel, Deflater.DEFAULT_STRATEGY)) {
+            writer.write(output, job.width, job.height, job.output.palette, job.output.palette_count, job.indices);
+        }
+        job.indices = null;
+        release(job);
+        job.compressedSize = output.length();
+        job.success = true;
+        job.processingTime = (System.nanoTime() - job.submitTime) / 1_000_000;
+    }
+
+    private static void release(Job job) {
+        if (job.budget != null) {
+            job.budget.release(job.reserved);
+            job.budget = null;
+            job.reserved = 0;
+        }
+    }
+
+    /**
+     * 输出上一次 {@link #run} 的各阶段统计
+     */
+    public void printStageStats() {
+        double elapsed = elapsedNanos / 1e9;
+        System.out.printf("🏭 流水线总耗时: %.2f 秒, 队列容量: %d\n", elapsed, queueCapacity);
+        System.out.printf("  %-4s %4s %6s %10s %10s %10s %10s %10s\n",
+                          "阶段", "线程", "数量", "吞吐/秒", "平均ms", "占用率", "CPU利用率", "下游阻塞ms");
+        for (Stage stage : new Stage[]{decode, quantize, encode}) {
+            int items = stage.items.get();
+            double busy = stage.busyNanos.get() / 1e9;
+            double active = stage.lastEnd > stage.firstStart ? (stage.lastEnd - stage.firstStart) / 1e9 : elapsed;
+            double occupancy = elapsed > 0 ? busy / (elapsed * stage.threads) : 0;
+            double cpu = busy > 0 ? stage.cpuNanos.get() / 1e9 / busy : 0;
+            System.out.printf("  %-4s %4d %6d %10.1f %10.1f %9.1f%% %9.1f%% %10d\n",
+                              stage.name, stage.threads, items,
+                              active > 0 ? items / active : 0,
+                              items > 0 ? busy * 1000 / items : 0,
+                              occupancy * 100, cpu * 100,
+                              stage.blockedNanos.get() / 1_000_000);
+        }
+    }
+}
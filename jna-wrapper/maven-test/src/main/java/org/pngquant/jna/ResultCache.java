@@ -0,0 +1,40 @@
+package org.pngquant.jna;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 压缩结果缓存，键由 {@link PngCompressor} 按输入文件内容和全部压缩参数计算
+ *
+ * 同一份素材以相同参数重复提交时（重新构建、CDN刷新），命中缓存只需要计算一次哈希并复制一个文件，
+ * 不再解码、量化和编码。默认实现见 {@link DiskResultCache}。
+ * 实现必须是线程安全的；读写失败时应当按未命中处理，而不是让压缩失败。
+ */
+public interface ResultCache {
+
+    /**
+     * 缓存条目的元数据，与压缩输出一起保存，用于在命中时重建 {@link PngCompressor.CompressionResult}
+     */
+    final class Entry {
+        public final int colorsUsed;
+        public final int quality;
+        public final double mse;
+
+        public Entry(int colorsUsed, int quality, double mse) {
+            this.colorsUsed = colorsUsed;
+            this.quality = quality;
+            this.mse = mse;
+        }
+    }
+
+    /**
+     * 查找 key，命中时把缓存的PNG复制到 outputFile
+     * @return 命中时为条目元数据，未命中返回null
+     */
+    Entry copyTo(String key, File outputFile) throws IOException;
+
+    /**
+     * 保存一次压缩的输出，compressedFile 在调用之后仍归调用方所有
+     */
+    void put(String key, File compressedFile, Entry entry) throws IOException;
+}
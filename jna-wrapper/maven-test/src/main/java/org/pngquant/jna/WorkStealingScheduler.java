@@ -0,0 +1,187 @@
+package org.pngquant.jna;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按预测耗时从大到小调度的任务执行器
+ *
+ * 任务按预测耗时降序排列后，依次分配给预测负载最小的工作线程（LPT 贪心），
+ * 每个工作线程从自己双端队列的头部取任务，总是先做最大的；自己的队列空了就从
+ * 剩余预测负载最大的线程的队列尾部窃取最小的任务。预测偏差造成的不均衡由窃取抵消，
+ * 最大的图像不会因为提交顺序靠后而拖长整批的完成时间。
+ *
+ * 工作线程在调用方提供的线程池上运行，任务抛出的异常不会中断其他任务，记录在 {@link Outcome#getErrors()} 中，
+ * 由调用方决定如何报告。
+ */
+public class WorkStealingScheduler {
+
+    /**
+     * 一次调度的结果和统计
+     */
+    public static final class Outcome<R> {
+        private final List<R> results;
+        private final Throwable[] errors;
+        private final long[] actualNanos;
+        private final int[] stolen;
+        private final long makespanNanos;
+
+        Outcome(List<R> results, Throwable[] errors, long[] actualNanos, int[] stolen, long makespanNanos) {
+            this.results = results;
+            this.errors = errors;
+            this.actualNanos = actualNanos;
+            this.stolen = stolen;
+            this.makespanNanos = makespanNanos;
+        }
+
+        /**
+         * 与任务列表顺序一致的结果，抛出异常的任务为null
+         */
+        public List<R> getResults() {
+            return results;
+        }
+
+        /**
+         * 与任务列表顺序一致，正常结束的任务为null，其余为任务抛出的异常
+         */
+        public Throwable[] getErrors() {
+            return errors;
+        }
+
+        /**
+         * 每个任务的实际耗时（纳秒），与任务列表顺序一致
+         */
+        public long[] getActualNanos() {
+            return actualNanos;
+        }
+
+        /**
+         * 每个工作线程窃取的任务数
+         */
+        public int[] getStolenCounts() {
+            return stolen;
+        }
+
+        public long getMakespanNanos() {
+            return makespanNanos;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int workers;
+
+    /**
+     * @param executor 运行工作线程的线程池，至少要有 workers 个线程可用
+     * @param workers 工作线程数
+     */
+    public WorkStealingScheduler(ExecutorService executor, int workers) {
+        this.executor = executor;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * 执行所有任务并等待完成
+     * @param tasks 任务
+     * @param predictedCost 每个任务的预测耗时（任意单位，只用于排序和分配）
+     */
+    public <R> Outcome<R> run(List<? extends Callable<R>> tasks, long[] predictedCost) throws InterruptedException {
+        int count = tasks.size();
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> predictedCost[i]).reversed());
+
+        int threads = Math.min(workers, Math.max(1, count));
+        List<ConcurrentLinkedDeque<Integer>> queues = new ArrayList<>();
+        AtomicLong[] remaining = new AtomicLong[threads];
+        for (int w = 0; w < threads; w++) {
+            queues.add(new ConcurrentLinkedDeque<>());
+            remaining[w] = new AtomicLong();
+        }
+        // LPT：每个任务交给当前预测负载最小的线程，各队列内部仍是从大到小
+        for (Integer i : order) {
+            int target = 0;
+            for (int w = 1; w < threads; w++) {
+                if (remaining[w].get() < remaining[target].get()) {
+                    target = w;
+                }
+            }
+            queues.get(target).addLast(i);
+            remaining[target].addAndGet(predictedCost[i]);
+        }
+
+        List<R> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(null);
+        }
+        Throwable[] errors = new Throwable[count];
+        long[] actualNanos = new long[count];
+        int[] stolen = new int[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+
+        for (int w = 0; w < threads; w++) {
+            int self = w;
+            executor.execute(() -> {
+                try {
+                    Integer i;
+                    while ((i = next(self, queues, remaining, predictedCost, stolen)) != null) {
+                        long taskStart = System.nanoTime();
+                        try {
+                            R result = tasks.get(i).call();
+                            synchronized (results) {
+                                results.set(i, result);
+                            }
+                        } catch (Throwable e) {
+                            errors[i] = e;
+                        }
+                        actualNanos[i] = System.nanoTime() - taskStart;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return new Outcome<>(results, errors, actualNanos, stolen, System.nanoTime() - start);
+    }
+
+    /**
+     * 先取自己队列头部（最大的任务），空了就从剩余负载最大的队列尾部窃取
+     */
+    private static Integer next(int self, List<ConcurrentLinkedDeque<Integer>> queues, AtomicLong[] remaining,
+                                long[] predictedCost, int[] stolen) {
+        Integer i = queues.get(self).pollFirst();
+        if (i != null) {
+            remaining[self].addAndGet(-predictedCost[i]);
+            return i;
+        }
+        while (true) {
+            int victim = -1;
+            for (int w = 0; w < queues.size(); w++) {
+                if (w != self && !queues.get(w).isEmpty()
+                        && (victim < 0 || remaining[w].get() > remaining[victim].get())) {
+                    victim = w;
+                }
+            }
+            if (victim < 0) {
+                return null;
+            }
+            i = queues.get(victim).pollLast();
+            if (i != null) {
+                remaining[victim].addAndGet(-predictedCost[i]);
+                stolen[self]++;
+                return i;
+            }
+            // 被其他线程抢先取走，重新选择
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.pngquant.jna;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link CostModel}：预测随像素数、速度和颜色复杂度单调变化，校准向实际耗时靠拢
+ */
+public class CostModelTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ImageHeader header(int width, int height, int type, boolean noisy) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, type);
+        if (noisy) {
+            Random random = new Random(width * 31 + height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+        }
+        File file = folder.newFile();
+        ImageIO.write(image, "png", file);
+        return ImageHeader.read(file);
+    }
+
+    @Test
+    public void largerAndSlowerCostsMore() throws IOException {
+        CostModel model = new CostModel();
+        ImageHeader small = header(64, 64, BufferedImage.TYPE_INT_RGB, true);
+        ImageHeader large = header(512, 512, BufferedImage.TYPE_INT_RGB, true);
+        assertTrue(model.predictNanos(large, 4) > model.predictNanos(small, 4));
+        assertTrue(model.predictNanos(large, 1) > model.predictNanos(large, 4));
+        assertTrue(model.predictNanos(large, 4) > model.predictNanos(large, 11));
+    }
+
+    @Test
+    public void flatImagesAreCheaperThanNoise() throws IOException {
+        ImageHeader flat = header(256, 256, BufferedImage.TYPE_INT_RGB, false);
+        ImageHeader noisy = header(256, 256, BufferedImage.TYPE_INT_RGB, true);
+        ImageHeader indexed = header(256, 256, BufferedImage.TYPE_BYTE_INDEXED, true);
+        assertTrue(CostModel.complexity(noisy) > CostModel.complexity(flat));
+        assertTrue(CostModel.complexity(indexed) < CostModel.complexity(noisy));
+        assertTrue(CostModel.complexity(noisy) <= 1.6);
+        assertTrue(CostModel.complexity(indexed) >= 0.4);
+    }
+
+    @Test
+    public void calibrationMovesHalfwayToActual() {
+        CostModel model = new CostModel();
+        double before = model.getNanosPerUnit();
+        // 实际耗时是预测的两倍；失败的任务（实际为0）不参与
+        model.calibrate(new long[]{1000, 3000, 5000}, new long[]{2000, 6000, 0});
+        assertEquals(before * 1.5, model.getNanosPerUnit(), 1e-9);
+
+        model.calibrate(new long[]{1000}, new long[]{0});
+        assertEquals(before * 1.5, model.getNanosPerUnit(), 1e-9);
+    }
+}
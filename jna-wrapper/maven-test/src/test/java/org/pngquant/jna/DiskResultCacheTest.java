@@ -0,0 +1,164 @@
+package org.pngquant.jna;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DiskResultCache}：LRU淘汰、重启后的顺序恢复、孤立文件清理和读取失败的处理
+ */
+public class DiskResultCacheTest {
+
+    // 每个条目 100 字节PNG + "16 90 1.5" 9 字节元数据
+    private static final long ENTRY_BYTES = 109;
+    private static final ResultCache.Entry ENTRY = new ResultCache.Entry(16, 90, 1.5);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File data(int seed) throws IOException {
+        byte[] bytes = new byte[100];
+        Arrays.fill(bytes, (byte) seed);
+        File file = folder.newFile();
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    private boolean contains(DiskResultCache cache, String key, int seed) throws IOException {
+        File output = new File(folder.getRoot(), "out-" + key);
+        ResultCache.Entry entry = cache.copyTo(key, output);
+        if (entry == null) {
+            return false;
+        }
+        assertEquals(16, entry.colorsUsed);
+        assertEquals(90, entry.quality);
+        byte[] expected = new byte[100];
+        Arrays.fill(expected, (byte) seed);
+        assertArrayEquals(expected, Files.readAllBytes(output.toPath()));
+        return true;
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        File dir = folder.newFolder();
+        DiskResultCache cache = new DiskResultCache(dir, ENTRY_BYTES * 3);
+        cache.put("a", data(1), ENTRY);
+        cache.put("b", data(2), ENTRY);
+        cache.put("c", data(3), ENTRY);
+        assertTrue(contains(cache, "a", 1));
+
+        cache.put("d", data(4), ENTRY);
+        assertEquals(3, cache.getEntryCount());
+        assertEquals(ENTRY_BYTES * 3, cache.getSizeBytes());
+        assertEquals(1, cache.getEvictions());
+        assertFalse(contains(cache, "b", 2));
+        assertFalse(new File(dir, "b.png").exists());
+        assertFalse(new File(dir, "b.meta").exists());
+        assertTrue(contains(cache, "a", 1));
+        assertTrue(contains(cache, "c", 3));
+        assertTrue(contains(cache, "d", 4));
+    }
+
+    @Test
+    public void reloadKeepsModificationOrder() throws IOException {
+        File dir = folder.newFolder();
+        DiskResultCache cache = new DiskResultCache(dir, ENTRY_BYTES * 3);
+        cache.put("a", data(1), ENTRY);
+        cache.put("b", data(2), ENTRY);
+        cache.put("c", data(3), ENTRY);
+        long now = System.currentTimeMillis();
+        assertTrue(new File(dir, "b.png").setLastModified(now - 30_000));
+        assertTrue(new File(dir, "c.png").setLastModified(now - 20_000));
+        assertTrue(new File(dir, "a.png").setLastModified(now - 10_000));
+
+        // 重启后上限只够两个条目，最旧的 b 被淘汰
+        DiskResultCache reloaded = new DiskResultCache(dir, ENTRY_BYTES * 2);
+        assertEquals(2, reloaded.getEntryCount());
+        assertFalse(new File(dir, "b.png").exists());
+
+        // 载入后 c 是最久未使用的
+        reloaded.put("d", data(4), ENTRY);
+        assertFalse(contains(reloaded, "c", 3));
+        assertTrue(contains(reloaded, "a", 1));
+        assertTrue(contains(reloaded, "d", 4));
+    }
+
+    @Test
+    public void loadRemovesOrphansAndTemporaryFiles() throws IOException {
+        File dir = folder.newFolder();
+        new DiskResultCache(dir, ENTRY_BYTES * 4).put("kept", data(1), ENTRY);
+        Files.write(new File(dir, "nometa.png").toPath(), new byte[10]);
+        Files.write(new File(dir, "nodata.meta").toPath(), "1 2 3".getBytes(StandardCharsets.US_ASCII));
+        Files.write(new File(dir, "partial123.tmp").toPath(), new byte[10]);
+
+        DiskResultCache cache = new DiskResultCache(dir, ENTRY_BYTES * 4);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(ENTRY_BYTES, cache.getSizeBytes());
+        assertFalse(new File(dir, "nometa.png").exists());
+        assertFalse(new File(dir, "nodata.meta").exists());
+        assertFalse(new File(dir, "partial123.tmp").exists());
+        assertTrue(contains(cache, "kept", 1));
+    }
+
+    @Test
+    public void corruptEntryIsMissAndRemoved() throws IOException {
+        File dir = folder.newFolder();
+        DiskResultCache cache = new DiskResultCache(dir, ENTRY_BYTES * 4);
+        cache.put("a", data(1), ENTRY);
+        Files.write(new File(dir, "a.meta").toPath(), "garbage".getBytes(StandardCharsets.US_ASCII));
+
+        assertNull(cache.copyTo("a", new File(folder.getRoot(), "out")));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSizeBytes());
+        assertFalse(new File(dir, "a.png").exists());
+    }
+
+    @Test
+    public void externallyDeletedEntryIsRemoved() throws IOException {
+        File dir = folder.newFolder();
+        DiskResultCache cache = new DiskResultCache(dir, ENTRY_BYTES * 4);
+        cache.put("a", data(1), ENTRY);
+        Files.delete(new File(dir, "a.png").toPath());
+
+        assertNull(cache.copyTo("a", new File(folder.getRoot(), "out")));
+        assertEquals(0, cache.getEntryCount());
+        assertFalse(new File(dir, "a.meta").exists());
+    }
+
+    @Test
+    public void outputFailureIsMissButKeepsEntry() throws IOException {
+        File dir = folder.newFolder();
+        DiskResultCache cache = new DiskResultCache(dir, ENTRY_BYTES * 4);
+        cache.put("a", data(1), ENTRY);
+
+        File unwritable = new File(new File(folder.getRoot(), "missing-dir"), "out.png");
+        assertNull(cache.copyTo("a", unwritable));
+        assertEquals(1, cache.getMisses());
+        assertNotNull(cache.copyTo("a", new File(folder.getRoot(), "out.png")));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void rewriteReplacesEntry() throws IOException {
+        File dir = folder.newFolder();
+        DiskResultCache cache = new DiskResultCache(dir, ENTRY_BYTES * 4);
+        cache.put("a", data(1), ENTRY);
+        cache.put("a", data(2), ENTRY);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(ENTRY_BYTES, cache.getSizeBytes());
+        assertTrue(contains(cache, "a", 2));
+    }
+}
@@ -0,0 +1,128 @@
+package org.pngquant.jna;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ExactPalette} 和 {@link ColorTable}：颜色数恰好等于上限时成功、多一个时放弃，索引能还原出原图
+ */
+public class ExactPaletteTest {
+
+    // count 个不同颜色，每个重复 repeat 次（相邻重复走不查表的分支），颜色包含0
+    private static ByteBuffer distinctColors(int count, int repeat) {
+        ByteBuffer rgba = ByteBuffer.allocate(count * repeat * 4);
+        for (int i = 0; i < count; i++) {
+            // 间隔很大的颜色，让哈希表产生探测冲突
+            int color = i * 0x01000100;
+            for (int r = 0; r < repeat; r++) {
+                rgba.putInt(color);
+            }
+        }
+        rgba.flip();
+        return rgba;
+    }
+
+    @Test
+    public void exactlyMaxColorsFits() {
+        for (int maxColors : new int[]{1, 2, 16, 255, 256}) {
+            ByteBuffer rgba = distinctColors(maxColors, 3);
+            int pixels = rgba.remaining() / 4;
+            byte[] indices = new byte[pixels];
+            ExactPalette palette = new ExactPalette();
+            assertTrue("maxColors=" + maxColors, palette.map(rgba, pixels, indices, maxColors));
+            assertEquals(maxColors, palette.getColorCount());
+            for (int i = 0; i < pixels; i++) {
+                // 调色板按第一次出现的顺序排列
+                assertEquals(i / 3, indices[i] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void oneColorOverMaxColorsIsRejected() {
+        for (int maxColors : new int[]{1, 2, 16, 255, 256}) {
+            ByteBuffer rgba = distinctColors(maxColors + 1, 2);
+            int pixels = rgba.remaining() / 4;
+            assertFalse("maxColors=" + maxColors, new ExactPalette().map(rgba, pixels, new byte[pixels], maxColors));
+        }
+    }
+
+    @Test
+    public void reusedAfterOverflow() {
+        ExactPalette palette = new ExactPalette();
+        ByteBuffer many = distinctColors(300, 1);
+        assertFalse(palette.map(many, 300, new byte[300], 256));
+
+        ByteBuffer few = distinctColors(5, 4);
+        byte[] indices = new byte[20];
+        assertTrue(palette.map(few, 20, indices, 256));
+        assertEquals(5, palette.getColorCount());
+        assertArrayEquals(new byte[]{0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4}, indices);
+    }
+
+    @Test
+    public void rangesShareColorCount() {
+        ByteBuffer rgba = distinctColors(20, 2);
+        byte[] indices = new byte[40];
+        ExactPalette palette = new ExactPalette();
+        palette.clear();
+        assertTrue(palette.mapRange(rgba, 0, 16, indices, 20));
+        assertTrue(palette.mapRange(rgba, 16, 24, indices, 20));
+        assertEquals(20, palette.getColorCount());
+        assertEquals(19, indices[39]);
+        // 前两段合计已有20种颜色，上限19时第二段放弃
+        palette.clear();
+        assertTrue(palette.mapRange(rgba, 0, 16, indices, 19));
+        assertFalse(palette.mapRange(rgba, 16, 24, indices, 19));
+    }
+
+    @Test
+    public void paletteRoundTrip() {
+        ByteBuffer rgba = ByteBuffer.allocate(6 * 4);
+        int[] colors = {0xFF000080, 0x00000000, 0xFF000080, 0x12345678, 0x00000000, 0xFFFFFFFF};
+        for (int color : colors) {
+            rgba.putInt(color);
+        }
+        rgba.flip();
+        byte[] indices = new byte[colors.length];
+        ExactPalette palette = new ExactPalette();
+        assertTrue(palette.map(rgba, colors.length, indices, 4));
+
+        QuantizeOutput output = new QuantizeOutput();
+        palette.writeTo(output);
+        assertEquals(4, output.palette_count);
+        assertEquals(100, output.quality);
+        ByteBuffer table = ByteBuffer.wrap(output.palette);
+        for (int i = 0; i < colors.length; i++) {
+            assertEquals(colors[i], table.getInt((indices[i] & 0xFF) * 4));
+        }
+    }
+
+    @Test
+    public void colorTableCountsUpToLimit() {
+        ColorTable table = new ColorTable(GainEstimator.COLOR_CAP);
+        for (int i = 0; i < GainEstimator.COLOR_CAP; i++) {
+            assertEquals(i, table.indexOf(i * 7919, GainEstimator.COLOR_CAP));
+        }
+        assertEquals(-1, table.indexOf(-1, GainEstimator.COLOR_CAP));
+        assertEquals(10, table.indexOf(10 * 7919, GainEstimator.COLOR_CAP));
+        assertEquals(GainEstimator.COLOR_CAP, table.size());
+        table.clear();
+        assertEquals(0, table.indexOf(-1, 1));
+        assertEquals(-1, table.indexOf(0, 1));
+    }
+
+    @Test
+    public void gainEstimatorCountsDistinctColors() {
+        ByteBuffer rgba = distinctColors(1000, 2);
+        assertEquals(1000, GainEstimator.countColors(rgba.array(), 2000));
+        ByteBuffer many = distinctColors(GainEstimator.COLOR_CAP + 10, 1);
+        assertEquals(GainEstimator.COLOR_CAP, GainEstimator.countColors(many.array(), GainEstimator.COLOR_CAP + 10));
+    }
+}
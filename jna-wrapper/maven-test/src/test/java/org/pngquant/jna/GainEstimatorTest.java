@@ -0,0 +1,99 @@
+package org.pngquant.jna;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link GainEstimator#estimate}：在生成的PNG上检查抽样结果和解码量上限
+ */
+public class GainEstimatorTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(BufferedImage image) throws IOException {
+        File file = folder.newFile();
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    // 宽 16 像素的斜条纹，轮流使用 colors 种颜色；宽度不小于 16*colors 时每一行都含有所有颜色
+    private static BufferedImage stripes(int width, int height, int colors) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, ((x + y) / 16 % colors) * 0x0F0F0F);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage noise(int width, int height) {
+        Random random = new Random(42);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+
+    private static GainEstimator.Estimate estimate(File file) throws IOException {
+        return new GainEstimator().estimate(file, ImageHeader.read(file), 256);
+    }
+
+    @Test
+    public void smallImageIsDecodedCompletely() throws IOException {
+        File file = write(stripes(64, 64, 4));
+        GainEstimator.Estimate estimate = estimate(file);
+        assertNotNull(estimate);
+        assertEquals(64 * 64, estimate.decodedPixels);
+        assertEquals(4, estimate.sampledColors);
+        assertFalse(estimate.alreadyIndexed);
+    }
+
+    @Test
+    public void largeImageDecodesOnlyPrefix() throws IOException {
+        int width = 256;
+        int height = 4 * GainEstimator.PREFIX_PIXELS / width;
+        File file = write(stripes(width, height, 8));
+        GainEstimator.Estimate estimate = estimate(file);
+        assertNotNull(estimate);
+        assertTrue(estimate.decodedPixels <= GainEstimator.PREFIX_PIXELS);
+        assertTrue(estimate.decodedPixels > GainEstimator.SAMPLE_PIXELS);
+        assertEquals(8, estimate.sampledColors);
+    }
+
+    @Test
+    public void wideImageDecodesOneRowPerBand() throws IOException {
+        int width = GainEstimator.PREFIX_PIXELS * 2;
+        File file = write(stripes(width, 4, 1));
+        GainEstimator.Estimate estimate = estimate(file);
+        assertNotNull(estimate);
+        assertEquals(width, estimate.decodedPixels);
+    }
+
+    @Test
+    public void noiseHasMoreColorsAndEntropyThanStripes() throws IOException {
+        GainEstimator.Estimate flat = estimate(write(stripes(256, 256, 8)));
+        GainEstimator.Estimate noisy = estimate(write(noise(256, 256)));
+        assertNotNull(flat);
+        assertNotNull(noisy);
+        assertEquals(GainEstimator.COLOR_CAP, noisy.sampledColors);
+        assertTrue(noisy.entropy > flat.entropy);
+        assertTrue(noisy.predictedBytes > flat.predictedBytes);
+    }
+}
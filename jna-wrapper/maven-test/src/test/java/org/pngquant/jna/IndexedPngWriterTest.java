@@ -0,0 +1,119 @@
+package org.pngquant.jna;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * {@link IndexedPngWriter} 的输出用 ImageIO 解码，逐像素与调色板比较：覆盖1/2/4/8位深度的打包、
+ * 行宽不是整字节的情况、五种滤波以及并行deflate
+ */
+public class IndexedPngWriterTest {
+
+    // 宽度选为奇数和1，检查每行末尾不满一字节的打包
+    private static final int[] WIDTHS = {1, 7, 13, 64};
+    // 分别对应 1/2/4/8 位深度
+    private static final int[] PALETTE_SIZES = {2, 4, 16, 256};
+
+    private static byte[] randomPalette(Random random, int count) {
+        byte[] palette = new byte[count * 4];
+        random.nextBytes(palette);
+        // 一部分不透明，检查 tRNS 的截断
+        for (int i = count / 2; i < count; i++) {
+            palette[i * 4 + 3] = (byte) 255;
+        }
+        return palette;
+    }
+
+    private static byte[] randomIndices(Random random, int pixels, int paletteCount) {
+        byte[] indices = new byte[pixels];
+        for (int i = 0; i < pixels; i++) {
+            indices[i] = (byte) random.nextInt(paletteCount);
+        }
+        return indices;
+    }
+
+    private static BufferedImage encodeAndDecode(IndexedPngWriter writer, int width, int height, byte[] palette,
+                                                 int paletteCount, byte[] indices) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        writer.write(Channels.newChannel(png), width, height, palette, paletteCount, indices, 0);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+        assertNotNull("ImageIO could not decode the output", image);
+        return image;
+    }
+
+    private static void assertPixels(BufferedImage image, int width, int height, byte[] palette, byte[] indices) {
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int p = (indices[y * width + x] & 0xFF) * 4;
+                int expected = (palette[p + 3] & 0xFF) << 24 | (palette[p] & 0xFF) << 16
+                    | (palette[p + 1] & 0xFF) << 8 | (palette[p + 2] & 0xFF);
+                assertEquals("pixel " + x + "," + y, expected, image.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void allBitDepthsAndFiltersRoundTrip() throws IOException {
+        Random random = new Random(42);
+        try (IndexedPngWriter writer = new IndexedPngWriter()) {
+            for (IndexedPngWriter.Filter filter : IndexedPngWriter.Filter.values()) {
+                writer.setFilter(filter);
+                for (int paletteCount : PALETTE_SIZES) {
+                    byte[] palette = randomPalette(random, paletteCount);
+                    for (int width : WIDTHS) {
+                        int height = 9;
+                        byte[] indices = randomIndices(random, width * height, paletteCount);
+                        BufferedImage image = encodeAndDecode(writer, width, height, palette, paletteCount, indices);
+                        assertPixels(image, width, height, palette, indices);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void paletteNotPowerOfTwo() throws IOException {
+        Random random = new Random(7);
+        try (IndexedPngWriter writer = new IndexedPngWriter()) {
+            for (int paletteCount : new int[]{1, 3, 5, 17, 129}) {
+                byte[] palette = randomPalette(random, paletteCount);
+                byte[] indices = randomIndices(random, 11 * 5, paletteCount);
+                assertPixels(encodeAndDecode(writer, 11, 5, palette, paletteCount, indices), 11, 5, palette, indices);
+            }
+        }
+    }
+
+    @Test
+    public void parallelDeflateRoundTrip() throws IOException {
+        Random random = new Random(3);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (IndexedPngWriter writer = new IndexedPngWriter()) {
+            // 很小的块，让一张图分成许多块
+            writer.setParallelDeflate(executor, 1024);
+            for (IndexedPngWriter.Filter filter : IndexedPngWriter.Filter.values()) {
+                writer.setFilter(filter);
+                byte[] palette = randomPalette(random, 64);
+                int width = 101;
+                int height = 97;
+                byte[] indices = randomIndices(random, width * height, 64);
+                assertPixels(encodeAndDecode(writer, width, height, palette, 64, indices), width, height, palette, indices);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
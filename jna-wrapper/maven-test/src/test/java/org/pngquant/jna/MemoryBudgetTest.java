@@ -0,0 +1,145 @@
+package org.pngquant.jna;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link MemoryBudget}：阻塞与释放、超额请求的截断，以及队首等待过久后不再被越过
+ */
+public class MemoryBudgetTest {
+
+    private static CompletableFuture<Long> acquireAsync(MemoryBudget budget, long bytes) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.acquire(bytes);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    private static void awaitQueued(MemoryBudget budget, int length) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (budget.getQueueLength() != length) {
+            if (System.nanoTime() > deadline) {
+                fail("queue length " + budget.getQueueLength() + ", expected " + length);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void clampsRequestsToLimit() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertEquals(100, budget.acquire(500));
+        assertEquals(100, budget.getReservedBytes());
+        budget.release(100);
+        assertEquals(0, budget.acquire(-5));
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void blocksUntilReleased() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        long held = budget.acquire(80);
+        assertEquals(-1, budget.tryAcquire(50));
+
+        CompletableFuture<Long> waiting = acquireAsync(budget, 50);
+        awaitQueued(budget, 1);
+        assertFalse(waiting.isDone());
+
+        budget.release(held);
+        assertEquals(Long.valueOf(50), waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(50, budget.getReservedBytes());
+        assertEquals(1, budget.getWaitCount());
+        assertEquals(80, budget.getPeakReservedBytes());
+        assertEquals(0, budget.getQueueLength());
+    }
+
+    @Test
+    public void smallRequestsBypassFreshHead() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100, TimeUnit.HOURS.toMillis(1));
+        long held = budget.acquire(60);
+        CompletableFuture<Long> large = acquireAsync(budget, 100);
+        awaitQueued(budget, 1);
+
+        // 放得下的小请求越过等待中的大请求
+        assertEquals(30, budget.tryAcquire(30));
+        budget.release(30);
+        budget.release(held);
+        assertEquals(Long.valueOf(100), large.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void agedHeadIsNotBypassed() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100, 0);
+        long held = budget.acquire(60);
+        CompletableFuture<Long> large = acquireAsync(budget, 1000);
+        awaitQueued(budget, 1);
+        Thread.sleep(5);
+
+        // 严格按到达顺序：即使放得下，也要排在等待中的大请求后面
+        assertEquals(-1, budget.tryAcquire(10));
+        CompletableFuture<Long> small = acquireAsync(budget, 10);
+        awaitQueued(budget, 2);
+
+        budget.release(held);
+        assertEquals(Long.valueOf(100), large.get(5, TimeUnit.SECONDS));
+        try {
+            small.get(50, TimeUnit.MILLISECONDS);
+            fail("small request admitted while the large one holds the whole budget");
+        } catch (TimeoutException expected) {
+            // 大请求占满预算
+        }
+        budget.release(100);
+        assertEquals(Long.valueOf(10), small.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullLimitRequestIsNotStarvedBySmallOnes() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100, 20);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] churners = new Thread[4];
+        for (int t = 0; t < churners.length; t++) {
+            churners[t] = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        long reserved = budget.acquire(30);
+                        Thread.sleep(2);
+                        budget.release(reserved);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            churners[t].setDaemon(true);
+            churners[t].start();
+        }
+        try {
+            Thread.sleep(20);
+            long reserved = acquireAsync(budget, Long.MAX_VALUE).get(10, TimeUnit.SECONDS);
+            assertEquals(100, reserved);
+            assertEquals(100, budget.getReservedBytes());
+            budget.release(reserved);
+        } finally {
+            running.set(false);
+            for (Thread churner : churners) {
+                churner.join(5000);
+            }
+        }
+        assertTrue(budget.getWaitCount() > 0);
+    }
+}
@@ -0,0 +1,68 @@
+package org.pngquant.jna;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link NativeResource} 的句柄和字节统计：接管、重复接管背景、forget 和释放
+ */
+public class NativeResourceTest {
+
+    @Test
+    public void adoptMovesBytesToOwner() {
+        long handles = NativeResource.getLiveHandles();
+        long bytes = NativeResource.getLiveBytes();
+        List<Long> destroyed = new ArrayList<>();
+
+        NativeResource image = NativeResource.create(1, destroyed::add, 1000, null);
+        NativeResource background = NativeResource.create(2, destroyed::add, 300, null);
+        assertEquals(handles + 2, NativeResource.getLiveHandles());
+        assertEquals(bytes + 1300, NativeResource.getLiveBytes());
+
+        image.adopt(background);
+        assertEquals(handles + 1, NativeResource.getLiveHandles());
+        assertEquals(bytes + 1300, NativeResource.getLiveBytes());
+
+        // 被接管的句柄随接管者销毁，自己的释放动作什么也不做
+        background.run();
+        image.run();
+        assertEquals(List.of(1L), destroyed);
+        assertEquals(handles, NativeResource.getLiveHandles());
+        assertEquals(bytes, NativeResource.getLiveBytes());
+    }
+
+    @Test
+    public void replacedBackgroundIsNoLongerCounted() {
+        long handles = NativeResource.getLiveHandles();
+        long bytes = NativeResource.getLiveBytes();
+
+        NativeResource image = NativeResource.create(1, h -> { }, 1000, null);
+        image.adopt(NativeResource.create(2, h -> { }, 300, null));
+        // native端在设置新背景时释放旧背景
+        image.adopt(NativeResource.create(3, h -> { }, 200, null));
+        assertEquals(handles + 1, NativeResource.getLiveHandles());
+        assertEquals(bytes + 1200, NativeResource.getLiveBytes());
+
+        image.run();
+        assertEquals(handles, NativeResource.getLiveHandles());
+        assertEquals(bytes, NativeResource.getLiveBytes());
+    }
+
+    @Test
+    public void forgetOnlyUpdatesStatistics() {
+        long handles = NativeResource.getLiveHandles();
+        long bytes = NativeResource.getLiveBytes();
+        List<Long> destroyed = new ArrayList<>();
+
+        NativeResource resource = NativeResource.create(5, destroyed::add, 400, null);
+        resource.forget();
+        resource.run();
+        assertEquals(List.of(), destroyed);
+        assertEquals(handles, NativeResource.getLiveHandles());
+        assertEquals(bytes, NativeResource.getLiveBytes());
+    }
+}
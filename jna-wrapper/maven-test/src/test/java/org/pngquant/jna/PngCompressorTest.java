@@ -0,0 +1,60 @@
+package org.pngquant.jna;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PngCompressor} 的流式解码路径：不超过颜色上限的图像逐带判断后无损输出，不创建native量化会话
+ */
+public class PngCompressorTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // 每一行一种颜色，共 height 种；行数跨过多个解码行带，后面的行带还会出现新颜色
+    private static BufferedImage rowColors(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            int argb = (0x80 + y % 128) << 24 | y * 0x010203;
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void exactImageNeverCreatesStream() throws IOException {
+        int height = StreamingQuantizer.DEFAULT_BAND_ROWS * 3 + 10;
+        BufferedImage image = rowColors(37, height);
+        File input = folder.newFile("in.png");
+        File output = folder.newFile("out.png");
+        ImageIO.write(image, "png", input);
+
+        try (PngCompressor compressor = new PngCompressor().setMaxColors(256).setStreamingDecode(true)) {
+            PngCompressor.CompressionResult result = compressor.compress(input, output);
+            assertTrue(result.toString(), result.isSuccess());
+            assertEquals(height, result.getColorsUsed());
+            assertEquals(100, result.getQuality());
+            assertEquals(0, compressor.getStreamSessions());
+        }
+
+        BufferedImage decoded = ImageIO.read(output);
+        assertNotNull(decoded);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals("(" + x + "," + y + ")", image.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package org.pngquant.jna;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * {@link PngRowDecoder} 与 ImageIO 解码同一个文件的结果比较
+ *
+ * 测试图像由本类按原始样本直接编码（每行轮流使用五种滤波），覆盖所有颜色类型、1-16位深度、调色板和 tRNS。
+ * 期望值按解码器的约定由原始样本算出（16位取高字节，低位灰度按比例放大到8位），
+ * 同时检查 ImageIO 读出的样本与之一致，保证测试图像本身是合法的PNG。
+ */
+public class PngRowDecoderTest {
+
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 11;
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GRAY_ALPHA = 4;
+    private static final int RGBA = 6;
+
+    /**
+     * 一张测试图像：原始样本、编码后的PNG和期望的RGBA
+     */
+    private static final class TestImage {
+        final int colorType;
+        final int bitDepth;
+        final int channels;
+        // 每个像素 channels 个原始样本
+        final int[] samples;
+        byte[] palette;       // RGB，调色板图像
+        byte[] paletteAlpha;  // tRNS，调色板图像
+        int[] transparent;    // tRNS，灰度/RGB图像
+        byte[] png;
+
+        TestImage(int colorType, int bitDepth, Random random) {
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.channels = colorType == RGB ? 3 : colorType == GRAY_ALPHA ? 2 : colorType == RGBA ? 4 : 1;
+            int max = colorType == PALETTE ? Math.min(20, 1 << bitDepth) - 1 : (1 << bitDepth) - 1;
+            samples = new int[WIDTH * HEIGHT * channels];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = random.nextInt(max + 1);
+            }
+            if (colorType == PALETTE) {
+                palette = new byte[(max + 1) * 3];
+                random.nextBytes(palette);
+                // tRNS 可以比调色板短，之后的条目不透明
+                paletteAlpha = new byte[(max + 1) / 2];
+                random.nextBytes(paletteAlpha);
+            }
+        }
+
+        TestImage withTransparentColor() {
+            // 使用第一个像素的颜色，保证至少有一个像素透明
+            transparent = new int[channels];
+            System.arraycopy(samples, 0, transparent, 0, channels);
+            return this;
+        }
+
+        int expectedRGBA(int pixel) {
+            int s = pixel * channels;
+            switch (colorType) {
+                case PALETTE: {
+                    int index = samples[s];
+                    int alpha = index < paletteAlpha.length ? paletteAlpha[index] & 0xFF : 0xFF;
+                    return rgba(palette[index * 3] & 0xFF, palette[index * 3 + 1] & 0xFF, palette[index * 3 + 2] & 0xFF,
+                                alpha);
+                }
+                case GRAY: {
+                    int g = toByte(samples[s]);
+                    int alpha = transparent != null && samples[s] == transparent[0] ? 0 : 0xFF;
+                    return rgba(g, g, g, alpha);
+                }
+                case RGB: {
+                    boolean clear = transparent != null && samples[s] == transparent[0]
+                        && samples[s + 1] == transparent[1] && samples[s + 2] == transparent[2];
+                    return rgba(toByte(samples[s]), toByte(samples[s + 1]), toByte(samples[s + 2]), clear ? 0 : 0xFF);
+                }
+                case GRAY_ALPHA: {
+                    int g = toByte(samples[s]);
+                    return rgba(g, g, g, toByte(samples[s + 1]));
+                }
+                default:
+                    return rgba(toByte(samples[s]), toByte(samples[s + 1]), toByte(samples[s + 2]),
+                                toByte(samples[s + 3]));
+            }
+        }
+
+        int toByte(int sample) {
+            return bitDepth == 16 ? sample >>> 8 : sample * 255 / ((1 << bitDepth) - 1);
+        }
+
+        TestImage encode() throws IOException {
+            int bitsPerPixel = channels * bitDepth;
+            int rowBytes = (WIDTH * bitsPerPixel + 7) / 8;
+            int bpp = Math.max(1, bitsPerPixel / 8);
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            byte[] previous = new byte[rowBytes];
+            for (int y = 0; y < HEIGHT; y++) {
+                byte[] row = packRow(y, rowBytes);
+                int filter = y % 5;
+                raw.write(filter);
+                raw.write(filter(filter, row, previous, bpp));
+                previous = row;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+            ByteBuffer ihdr = ByteBuffer.allocate(13).putInt(WIDTH).putInt(HEIGHT);
+            ihdr.put((byte) bitDepth).put((byte) colorType).put((byte) 0).put((byte) 0).put((byte) 0);
+            chunk(out, "IHDR", ihdr.array());
+            if (palette != null) {
+                chunk(out, "PLTE", palette);
+                chunk(out, "tRNS", paletteAlpha);
+            }
+            if (transparent != null) {
+                ByteBuffer trns = ByteBuffer.allocate(transparent.length * 2);
+                for (int value : transparent) {
+                    trns.putShort((short) value);
+                }
+                chunk(out, "tRNS", trns.array());
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (DeflaterOutputStream deflate = new DeflaterOutputStream(compressed)) {
+                deflate.write(raw.toByteArray());
+            }
+            // 拆成两个IDAT，检查跨块读取
+            byte[] data = compressed.toByteArray();
+            int half = data.length / 2;
+            chunk(out, "IDAT", Arrays.copyOfRange(data, 0, half));
+            chunk(out, "IDAT", Arrays.copyOfRange(data, half, data.length));
+            chunk(out, "IEND", new byte[0]);
+            png = out.toByteArray();
+            return this;
+        }
+
+        private byte[] packRow(int y, int rowBytes) {
+            byte[] row = new byte[rowBytes];
+            int bit = 0;
+            for (int i = y * WIDTH * channels; i < (y + 1) * WIDTH * channels; i++) {
+                int v = samples[i];
+                if (bitDepth == 16) {
+                    row[bit >>> 3] = (byte) (v >>> 8);
+                    row[(bit >>> 3) + 1] = (byte) v;
+                } else {
+                    row[bit >>> 3] |= (byte) (v << (8 - bitDepth - (bit & 7)));
+                }
+                bit += bitDepth;
+            }
+            return row;
+        }
+
+        @Override
+        public String toString() {
+            return "colorType=" + colorType + ", bitDepth=" + bitDepth + (transparent != null ? ", tRNS" : "");
+        }
+    }
+
+    private static int rgba(int r, int g, int b, int a) {
+        return r << 24 | g << 16 | b << 8 | a;
+    }
+
+    private static byte[] filter(int type, byte[] row, byte[] previous, int bpp) {
+        byte[] out = new byte[row.length];
+        for (int i = 0; i < row.length; i++) {
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+            int predictor;
+            switch (type) {
+                case 1: predictor = a; break;
+                case 2: predictor = b; break;
+                case 3: predictor = (a + b) >>> 1; break;
+                case 4: predictor = IndexedPngWriter.paeth(a, b, c); break;
+                default: predictor = 0;
+            }
+            out[i] = (byte) (row[i] - predictor);
+        }
+        return out;
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String type, byte[] data) throws IOException {
+        DataOutputStream stream = new DataOutputStream(out);
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        stream.writeInt(data.length);
+        stream.write(name);
+        stream.write(data);
+        stream.writeInt((int) crc.getValue());
+    }
+
+    private static int[] decode(TestImage image, int rowsPerCall) throws IOException {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        try (PngRowDecoder decoder = new PngRowDecoder(new ByteArrayInputStream(image.png))) {
+            assertEquals(WIDTH, decoder.getWidth());
+            assertEquals(HEIGHT, decoder.getHeight());
+            ByteBuffer rgba = ByteBuffer.allocate(WIDTH * rowsPerCall * 4);
+            int row = 0;
+            while (decoder.getNextRow() < decoder.getHeight()) {
+                rgba.clear();
+                int rows = decoder.readRows(rgba, rowsPerCall);
+                rgba.flip();
+                for (int i = 0; i < rows * WIDTH; i++) {
+                    pixels[row * WIDTH + i] = rgba.getInt();
+                }
+                row += rows;
+            }
+            assertEquals(HEIGHT, row);
+        }
+        return pixels;
+    }
+
+    /**
+     * 解码结果与期望值一致，ImageIO 读出的原始样本（或调色板颜色）与测试图像一致
+     */
+    private static void check(TestImage image) throws IOException {
+        image.encode();
+        for (int rowsPerCall : new int[]{1, 4, HEIGHT}) {
+            int[] decoded = decode(image, rowsPerCall);
+            for (int i = 0; i < decoded.length; i++) {
+                assertEquals(image + " pixel " + i, image.expectedRGBA(i), decoded[i]);
+            }
+        }
+
+        BufferedImage reference = ImageIO.read(new ByteArrayInputStream(image.png));
+        assertNotNull(image + ": ImageIO could not decode the test image", reference);
+        if (image.transparent != null && image.bitDepth < 8) {
+            // ImageIO 先把低位灰度放大到8位再与 tRNS 比较，得不到透明像素；PNG规范要求按原始样本比较
+            return;
+        }
+        Raster raster = reference.getRaster();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = y * WIDTH + x;
+                if (image.colorType == PALETTE) {
+                    int expected = image.expectedRGBA(pixel);
+                    int argb = expected >>> 8 | expected << 24;
+                    assertEquals(image + " ImageIO pixel " + pixel, argb, reference.getRGB(x, y));
+                } else if (raster.getNumBands() != image.channels) {
+                    // 灰度/RGB带 tRNS 时 ImageIO 加上Alpha通道，展开为灰度+Alpha或RGBA
+                    int expected = image.expectedRGBA(pixel);
+                    int bands = raster.getNumBands();
+                    int shift = raster.getSampleModel().getSampleSize(0) - 8;
+                    for (int c = 0; c < bands; c++) {
+                        int channel = c == bands - 1 ? 3 : c;
+                        assertEquals(image + " ImageIO sample " + pixel + "/" + c,
+                                     expected >>> (24 - channel * 8) & 0xFF, raster.getSample(x, y, c) >>> shift);
+                    }
+                } else {
+                    for (int c = 0; c < image.channels; c++) {
+                        assertEquals(image + " ImageIO sample " + pixel + "/" + c,
+                                     image.samples[pixel * image.channels + c], raster.getSample(x, y, c));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void grayAllBitDepths() throws IOException {
+        Random random = new Random(1);
+        for (int bitDepth : new int[]{1, 2, 4, 8, 16}) {
+            check(new TestImage(GRAY, bitDepth, random));
+        }
+    }
+
+    @Test
+    public void grayWithTransparentColor() throws IOException {
+        Random random = new Random(2);
+        for (int bitDepth : new int[]{1, 2, 4, 8, 16}) {
+            check(new TestImage(GRAY, bitDepth, random).withTransparentColor());
+        }
+    }
+
+    @Test
+    public void rgbAndRgba() throws IOException {
+        Random random = new Random(3);
+        for (int bitDepth : new int[]{8, 16}) {
+            check(new TestImage(RGB, bitDepth, random));
+            check(new TestImage(RGB, bitDepth, random).withTransparentColor());
+            check(new TestImage(RGBA, bitDepth, random));
+            check(new TestImage(GRAY_ALPHA, bitDepth, random));
+        }
+    }
+
+    @Test
+    public void paletteWithTransparency() throws IOException {
+        Random random = new Random(4);
+        for (int bitDepth : new int[]{1, 2, 4, 8}) {
+            check(new TestImage(PALETTE, bitDepth, random));
+        }
+    }
+
+    @Test
+    public void writerOutputDecodes() throws IOException {
+        // IndexedPngWriter 写出的调色板图像，解码后应还原出调色板颜色
+        Random random = new Random(5);
+        byte[] palette = new byte[7 * 4];
+        random.nextBytes(palette);
+        byte[] indices = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = (byte) random.nextInt(7);
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try (IndexedPngWriter writer = new IndexedPngWriter()) {
+            writer.setFilter(IndexedPngWriter.Filter.PAETH);
+            writer.write(Channels.newChannel(png), WIDTH, HEIGHT, palette, 7, indices, 0);
+        }
+        TestImage image = new TestImage(PALETTE, 8, random);
+        image.png = png.toByteArray();
+        int[] decoded = decode(image, HEIGHT);
+        ByteBuffer table = ByteBuffer.wrap(palette);
+        for (int i = 0; i < decoded.length; i++) {
+            assertEquals(table.getInt(indices[i] * 4), decoded[i]);
+        }
+    }
+}
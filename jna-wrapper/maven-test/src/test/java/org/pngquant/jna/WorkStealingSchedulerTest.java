@@ -0,0 +1,105 @@
+package org.pngquant.jna;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link WorkStealingScheduler}：LPT顺序、结果顺序、异常记录和窃取
+ */
+public class WorkStealingSchedulerTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void singleWorkerRunsLargestFirst() throws InterruptedException {
+        long[] cost = {5, 40, 1, 30, 20};
+        List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < cost.length; i++) {
+            int index = i;
+            tasks.add(() -> {
+                executed.add(index);
+                return index;
+            });
+        }
+        new WorkStealingScheduler(executor, 1).run(tasks, cost);
+        assertEquals(Arrays.asList(1, 3, 4, 0, 2), executed);
+    }
+
+    @Test
+    public void resultsFollowTaskOrder() throws InterruptedException {
+        int count = 50;
+        long[] cost = new long[count];
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            cost[i] = (i * 37) % 11;
+            int index = i;
+            tasks.add(() -> "task" + index);
+        }
+        WorkStealingScheduler.Outcome<String> outcome = new WorkStealingScheduler(executor, 4).run(tasks, cost);
+        for (int i = 0; i < count; i++) {
+            assertEquals("task" + i, outcome.getResults().get(i));
+            assertNull(outcome.getErrors()[i]);
+        }
+    }
+
+    @Test
+    public void exceptionsAreRecordedPerTask() throws InterruptedException {
+        IllegalStateException failure = new IllegalStateException("boom");
+        List<Callable<Integer>> tasks = Arrays.asList(() -> 1, () -> {
+            throw failure;
+        }, () -> 3);
+        WorkStealingScheduler.Outcome<Integer> outcome =
+            new WorkStealingScheduler(executor, 2).run(tasks, new long[]{1, 2, 3});
+        assertEquals(Arrays.asList(1, null, 3), outcome.getResults());
+        assertNull(outcome.getErrors()[0]);
+        assertSame(failure, outcome.getErrors()[1]);
+        assertNull(outcome.getErrors()[2]);
+    }
+
+    @Test
+    public void idleWorkerStealsFromBusyWorker() throws InterruptedException {
+        // 预测耗时相同，LPT交替分配：0,2,4,6 给第一个线程，1,3,5,7 给第二个。
+        // 任务0实际很慢，第一个线程卡在它上面，它队列里剩下的任务只能被第二个线程窃取
+        long[] cost = new long[8];
+        Arrays.fill(cost, 10);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < cost.length; i++) {
+            int index = i;
+            tasks.add(() -> {
+                if (index == 0) {
+                    Thread.sleep(300);
+                }
+                return index;
+            });
+        }
+        WorkStealingScheduler.Outcome<Integer> outcome = new WorkStealingScheduler(executor, 2).run(tasks, cost);
+        int stolen = 0;
+        for (int s : outcome.getStolenCounts()) {
+            stolen += s;
+        }
+        assertTrue("stolen=" + stolen, stolen >= 3);
+        for (int i = 0; i < cost.length; i++) {
+            assertEquals(Integer.valueOf(i), outcome.getResults().get(i));
+        }
+        assertTrue(outcome.getActualNanos()[0] >= 300_000_000L);
+    }
+}
@@ -20,12 +20,14 @@
 typedef intptr_t jna_ptr_t;
 
 // 简化的图像数据结构，用于JNA
-typedef struct {
+typedef struct liq_jna_image {
     liq_image *image;
     unsigned char *data;
     int width;
     int height;
     int components;
+    int owns_data;  // 为0时data由调用方持有（借用），销毁时不释放
+    struct liq_jna_image *background;  // jna_liq_image_set_background 接管的背景，其 image 已归 liq 所有，这里只保留像素内存
 } liq_jna_image;
 
 // =============================================================================
@@ -110,6 +112,16 @@ JNA_EXPORT jna_ptr_t jna_setMinPosterization(jna_ptr_t handle, int bits) {
     return (error == LIQ_OK) ? LIQ_JNA_OK : LIQ_JNA_ERROR;
 }
 
+/**
+ * 设置单线程模式：使用该属性的量化和重映射在调用线程自己的单线程池上执行
+ * 对应 Java: public native boolean setSingleThreaded(boolean enabled);
+ */
+JNA_EXPORT int jna_setSingleThreaded(jna_ptr_t handle, int enabled) {
+    if (handle == 0) return LIQ_JNA_ERROR;
+    liq_error error = liq_set_single_threaded((liq_attr*)handle, enabled);
+    return (error == LIQ_OK) ? LIQ_JNA_OK : LIQ_JNA_ERROR;
+}
+
 // =============================================================================
 // Image 类的 native 函数实现
 // =============================================================================
@@ -141,30 +153,88 @@ static void convert_rgb(liq_color row_out[], int row_index, int width, void* use
     }
 }
 
+// 批量转换：ABGR -> RGBA，每个像素4字节逆序
+// 循环体没有分支和跨像素依赖，-O3 下编译器会生成SIMD字节重排指令
+static void swizzle_abgr_to_rgba(const unsigned char *restrict src, unsigned char *restrict dst, size_t pixels) {
+    size_t i;
+    for (i = 0; i < pixels; i++) {
+        dst[4*i + 0] = src[4*i + 3];
+        dst[4*i + 1] = src[4*i + 2];
+        dst[4*i + 2] = src[4*i + 1];
+        dst[4*i + 3] = src[4*i + 0];
+    }
+}
+
+// 批量转换：RGB -> RGBA，alpha 填 255
+static void swizzle_rgb_to_rgba(const unsigned char *restrict src, unsigned char *restrict dst, size_t pixels) {
+    size_t i;
+    for (i = 0; i < pixels; i++) {
+        dst[4*i + 0] = src[3*i + 0];
+        dst[4*i + 1] = src[3*i + 1];
+        dst[4*i + 2] = src[3*i + 2];
+        dst[4*i + 3] = 255;
+    }
+}
+
 /**
  * 创建图像对象
  * 对应 Java: private static native long liq_image_create(long attr, byte[] bitmap, int width, int height, int components);
+ * 像素在这里一次性转换为连续的RGBA内存，之后直方图、重映射、抖动各趟都直接读内存，不再逐行回调
  */
 JNA_EXPORT jna_ptr_t jna_liq_image_create(jna_ptr_t attr, unsigned char* bitmap, int width, int height, int components) {
-    if (attr == 0 || bitmap == NULL) return 0;
+    if (attr == 0 || bitmap == NULL || width <= 0 || height <= 0) return 0;
     
     liq_jna_image *jnaimg = malloc(sizeof(liq_jna_image));
     if (!jnaimg) return 0;
     
-    // 复制图像数据
-    int size = width * height * components;
-    jnaimg->data = malloc(size);
+    // 转换为RGBA（同时完成复制）
+    size_t pixels = (size_t)width * (size_t)height;
+    jnaimg->data = malloc(pixels * 4);
     if (!jnaimg->data) {
         free(jnaimg);
         return 0;
     }
-    memcpy(jnaimg->data, bitmap, size);
+    if (components == 4) {
+        swizzle_abgr_to_rgba(bitmap, jnaimg->data, pixels);
+    } else {
+        swizzle_rgb_to_rgba(bitmap, jnaimg->data, pixels);
+    }
+    
+    jnaimg->width = width;
+    jnaimg->height = height;
+    jnaimg->components = 4;
+    jnaimg->owns_data = 1;
+    jnaimg->background = NULL;
+    
+    jnaimg->image = liq_image_create_rgba((liq_attr*)attr, jnaimg->data, width, height, 0);
+    
+    if (!jnaimg->image) {
+        free(jnaimg->data);
+        free(jnaimg);
+        return 0;
+    }
+    
+    return (jna_ptr_t)jnaimg;
+}
+
+/**
+ * 创建图像对象（借用调用方内存，不复制）
+ * bitmap 必须在图像销毁前保持有效，通常是 Java 端的 direct ByteBuffer 或 native Pointer
+ * 由于不分配转换缓冲区，这里仍通过行回调转换像素；已经是RGBA的数据请用 jna_liq_image_create_rgba_borrowed
+ */
+JNA_EXPORT jna_ptr_t jna_liq_image_create_borrowed(jna_ptr_t attr, unsigned char* bitmap, int width, int height, int components) {
+    if (attr == 0 || bitmap == NULL) return 0;
     
+    liq_jna_image *jnaimg = malloc(sizeof(liq_jna_image));
+    if (!jnaimg) return 0;
+    
+    jnaimg->data = bitmap;
     jnaimg->width = width;
     jnaimg->height = height;
     jnaimg->components = components;
+    jnaimg->owns_data = 0;
+    jnaimg->background = NULL;
     
-    // 根据组件数选择合适的转换函数并创建图像
     if (components == 4) {
         jnaimg->image = liq_image_create_custom((liq_attr*)attr, convert_rgba, jnaimg, width, height, 0);
     } else {
@@ -172,7 +242,32 @@ JNA_EXPORT jna_ptr_t jna_liq_image_create(jna_ptr_t attr, unsigned char* bitmap,
     }
     
     if (!jnaimg->image) {
-        free(jnaimg->data);
+        free(jnaimg);
+        return 0;
+    }
+    
+    return (jna_ptr_t)jnaimg;
+}
+
+/**
+ * 从连续的RGBA内存创建图像对象（借用调用方内存，不复制，不使用行回调）
+ * bitmap 必须按 R-G-B-A 字节顺序排列，并在图像销毁前保持有效
+ */
+JNA_EXPORT jna_ptr_t jna_liq_image_create_rgba_borrowed(jna_ptr_t attr, unsigned char* bitmap, int width, int height) {
+    if (attr == 0 || bitmap == NULL) return 0;
+    
+    liq_jna_image *jnaimg = malloc(sizeof(liq_jna_image));
+    if (!jnaimg) return 0;
+    
+    jnaimg->data = bitmap;
+    jnaimg->width = width;
+    jnaimg->height = height;
+    jnaimg->components = 4;
+    jnaimg->owns_data = 0;
+    jnaimg->background = NULL;
+    
+    jnaimg->image = liq_image_create_rgba((liq_attr*)attr, bitmap, width, height, 0);
+    if (!jnaimg->image) {
         free(jnaimg);
         return 0;
     }
@@ -191,12 +286,43 @@ JNA_EXPORT void jna_liq_image_destroy(jna_ptr_t handle) {
     if (jnaimg->image) {
         liq_image_destroy(jnaimg->image);
     }
-    if (jnaimg->data) {
+    if (jnaimg->data && jnaimg->owns_data) {
         free(jnaimg->data);
     }
+    // 背景像素在 liq_image_destroy 释放背景图像之后才能释放
+    jna_liq_image_destroy((jna_ptr_t)jnaimg->background);
     free(jnaimg);
 }
 
+/**
+ * 设置背景图像，重映射时与背景相同的像素尽量映射为调色板中的全透明颜色（GIF/APNG 保留上一帧的合成方式）
+ * 调色板中没有全透明颜色时背景不起作用
+ * liq_image_set_background 无论成功与否都会接管背景图像，所以 background_handle 在调用后总是归本函数处理：
+ * 成功时随 image_handle 一起销毁，失败时立即销毁，调用方都不能再使用它
+ * 两张图像尺寸必须相同，背景本身不能再设置背景
+ */
+JNA_EXPORT jna_ptr_t jna_liq_image_set_background(jna_ptr_t image_handle, jna_ptr_t background_handle) {
+    if (background_handle == 0) return LIQ_JNA_ERROR;
+    liq_jna_image *background = (liq_jna_image*)background_handle;
+    if (image_handle == 0 || image_handle == background_handle || background->background) {
+        jna_liq_image_destroy(background_handle);
+        return LIQ_JNA_ERROR;
+    }
+    
+    liq_jna_image *jnaimg = (liq_jna_image*)image_handle;
+    liq_error error = liq_image_set_background(jnaimg->image, background->image);
+    background->image = NULL;
+    if (error != LIQ_OK) {
+        jna_liq_image_destroy(background_handle);
+        return LIQ_JNA_ERROR;
+    }
+    
+    // liq 已经释放了之前的背景图像，这里释放它的像素内存
+    jna_liq_image_destroy((jna_ptr_t)jnaimg->background);
+    jnaimg->background = background;
+    return LIQ_JNA_OK;
+}
+
 /**
  * 添加固定颜色
  * 对应 Java: public native boolean addFixedColor(int r, int g, int b, int a);
@@ -312,6 +438,21 @@ JNA_EXPORT jna_ptr_t jna_liq_write_remapped_image(jna_ptr_t result_handle, jna_p
     return (error == LIQ_OK) ? LIQ_JNA_OK : LIQ_JNA_ERROR;
 }
 
+/**
+ * 从给定的调色板创建结果对象，跳过直方图和K-means，之后可以把任意多张图像重映射到该调色板
+ * palette 为 count 个 R-G-B-A 颜色，gamma<=0 时使用库默认值
+ * attr 的最大颜色数需不小于 count
+ */
+JNA_EXPORT jna_ptr_t jna_liq_result_from_palette(jna_ptr_t attr, const unsigned char* palette, int count, double gamma) {
+    if (attr == 0 || palette == NULL || count <= 0 || count > 256) return 0;
+    
+    liq_result *result = NULL;
+    if (liq_result_from_palette((liq_attr*)attr, (const liq_color*)palette, (unsigned int)count, gamma, &result) != LIQ_OK) {
+        return 0;
+    }
+    return (jna_ptr_t)result;
+}
+
 /**
  * 销毁结果对象
  * 对应 Java: private static native void liq_result_destroy(jna_ptr_t handle);
@@ -369,6 +510,594 @@ JNA_EXPORT jna_ptr_t jna_getQuality(jna_ptr_t handle) {
     return liq_get_quantization_quality((liq_result*)handle);
 }
 
+/**
+ * 获取最近一次重映射的均方误差
+ * 对应 Java: public double getRemappingError();
+ */
+JNA_EXPORT double jna_getRemappingError(jna_ptr_t handle) {
+    if (handle == 0) return -1.0;
+    return liq_get_remapping_error((liq_result*)handle);
+}
+
+/**
+ * 获取最近一次重映射的质量
+ * 对应 Java: public int getRemappingQuality();
+ */
+JNA_EXPORT jna_ptr_t jna_getRemappingQuality(jna_ptr_t handle) {
+    if (handle == 0) return -1;
+    return liq_get_remapping_quality((liq_result*)handle);
+}
+
+// =============================================================================
+// 单次调用的量化+重映射
+// =============================================================================
+
+// 量化参数，与 Java 端 QuantizeSettings 结构体字段顺序一致
+// 取消令牌：Java端置位 cancelled，libimagequant 的进度回调读到后中止当前调用
+typedef struct jna_cancel_token {
+    volatile int cancelled;
+    volatile float progress;  // 最近一次回调的进度 (0-100)
+} jna_cancel_token;
+
+static int jna_progress_callback(float progress_percent, void *user_info) {
+    jna_cancel_token *token = (jna_cancel_token*)user_info;
+    token->progress = progress_percent;
+    return token->cancelled ? 0 : 1;
+}
+
+typedef struct {
+    int max_colors;
+    int quality_min;
+    int quality_max;
+    int speed;
+    int min_posterization;
+    float dithering_level;  // <0 表示使用库默认值
+    double output_gamma;    // <=0 表示使用库默认值
+    int single_threaded;    // 非0时在调用线程自己的单线程池上执行，不占用共享线程池
+    jna_cancel_token *cancel_token;  // 可为NULL；取消后量化和重映射在下一次进度回调时中止
+} jna_quantize_settings;
+
+// 量化输出，与 Java 端 QuantizeOutput 结构体字段顺序一致
+typedef struct {
+    double mse;
+    int palette_count;
+    int quality;
+    unsigned char palette[256 * 4];  // RGBA
+} jna_quantize_output;
+
+// 把 jna_quantize_settings 中的属性级参数写入 attr
+static liq_error jna_apply_settings(liq_attr *attr, const jna_quantize_settings *settings) {
+    liq_error err = liq_set_max_colors(attr, settings->max_colors);
+    if (err == LIQ_OK) err = liq_set_quality(attr, settings->quality_min, settings->quality_max);
+    if (err == LIQ_OK) err = liq_set_speed(attr, settings->speed);
+    if (err == LIQ_OK) err = liq_set_min_posterization(attr, settings->min_posterization);
+    if (err == LIQ_OK) err = liq_set_single_threaded(attr, settings->single_threaded);
+    if (err == LIQ_OK && settings->cancel_token) {
+        liq_attr_set_progress_callback(attr, jna_progress_callback, settings->cancel_token);
+    }
+    return err;
+}
+
+// 结果对象不继承属性的进度回调，重映射之前单独设置
+static void jna_watch_result(liq_result *result, jna_cancel_token *token) {
+    if (token) liq_result_set_progress_callback(result, jna_progress_callback, token);
+}
+
+// 设置结果级参数，重映射并读取调色板、质量和均方误差
+static liq_error jna_remap_result(liq_result *result, liq_image *image, const jna_quantize_settings *settings,
+                                  unsigned char *indices, int indices_size, jna_quantize_output *output) {
+    jna_watch_result(result, settings->cancel_token);
+    
+    liq_error err = LIQ_OK;
+    if (settings->dithering_level >= 0) err = liq_set_dithering_level(result, settings->dithering_level);
+    if (err == LIQ_OK && settings->output_gamma > 0) err = liq_set_output_gamma(result, settings->output_gamma);
+    if (err != LIQ_OK) return err;
+    
+    err = liq_write_remapped_image(result, image, indices, indices_size);
+    if (err != LIQ_OK) return err;
+    
+    // 重映射可能会微调调色板，所以在重映射之后读取
+    const liq_palette *pal = liq_get_palette(result);
+    output->palette_count = pal->count;
+    memcpy(output->palette, pal->entries, pal->count * 4);
+    output->quality = liq_get_quantization_quality(result);
+    output->mse = liq_get_quantization_error(result);
+    return LIQ_OK;
+}
+
+/**
+ * 一次调用完成 创建属性 -> 设置参数 -> 创建图像 -> 量化 -> 重映射 -> 读取调色板和质量
+ * rgba 为连续的 R-G-B-A 像素（借用，不复制），indices 至少 width*height 字节
+ * 所有native对象在任何返回路径上都会在函数内部释放
+ * 返回 liq_error 错误码，0 (LIQ_JNA_OK) 表示成功
+ */
+JNA_EXPORT int jna_quantize_remap_rgba(const jna_quantize_settings *settings, const unsigned char *rgba, int width, int height,
+                                       unsigned char *indices, int indices_size, jna_quantize_output *output) {
+    if (!settings || !rgba || !indices || !output || width <= 0 || height <= 0) return LIQ_INVALID_POINTER;
+    if (indices_size < 0 || (size_t)indices_size < (size_t)width * (size_t)height) return LIQ_BUFFER_TOO_SMALL;
+    
+    memset(output, 0, sizeof(*output));
+    
+    liq_image *image = NULL;
+    liq_result *result = NULL;
+    liq_attr *attr = liq_attr_create();
+    if (!attr) return LIQ_OUT_OF_MEMORY;
+    
+    liq_error err = jna_apply_settings(attr, settings);
+    if (err != LIQ_OK) goto done;
+    
+    image = liq_image_create_rgba(attr, rgba, width, height, 0);
+    if (!image) {
+        err = LIQ_OUT_OF_MEMORY;
+        goto done;
+    }
+    
+    err = liq_image_quantize(image, attr, &result);
+    if (err != LIQ_OK) goto done;
+    
+    err = jna_remap_result(result, image, settings, indices, indices_size, output);
+    
+done:
+    if (result) liq_result_destroy(result);
+    if (image) liq_image_destroy(image);
+    liq_attr_destroy(attr);
+    return err;
+}
+
+/**
+ * 一次调用把图像重映射到给定的调色板，不做量化：
+ * 创建属性 -> 由调色板创建结果 -> 创建图像 -> 重映射 -> 读取调色板和质量
+ * palette 为 palette_count 个 R-G-B-A 颜色，palette_gamma<=0 时使用库默认值；settings 中只有抖动、伽马、单线程和取消令牌生效，
+ * 最大颜色数按调色板大小设置，质量下限不检查（调色板是给定的，不能因质量不足而失败）
+ * 每次调用从调色板重新创建结果对象（只有不超过256个固定颜色，开销可以忽略），多个线程可以同时使用同一个调色板
+ * 输出调色板的顺序可能与输入不同，索引以 output->palette 为准
+ * 返回 liq_error 错误码，0 (LIQ_JNA_OK) 表示成功
+ */
+JNA_EXPORT int jna_remap_palette_rgba(const jna_quantize_settings *settings, const unsigned char *palette, int palette_count,
+                                      double palette_gamma, const unsigned char *rgba, int width, int height,
+                                      unsigned char *indices, int indices_size, jna_quantize_output *output) {
+    if (!settings || !palette || !rgba || !indices || !output || width <= 0 || height <= 0) return LIQ_INVALID_POINTER;
+    if (palette_count <= 0 || palette_count > 256) return LIQ_VALUE_OUT_OF_RANGE;
+    if (indices_size < 0 || (size_t)indices_size < (size_t)width * (size_t)height) return LIQ_BUFFER_TOO_SMALL;
+    
+    memset(output, 0, sizeof(*output));
+    
+    liq_image *image = NULL;
+    liq_result *result = NULL;
+    liq_attr *attr = liq_attr_create();
+    if (!attr) return LIQ_OUT_OF_MEMORY;
+    
+    liq_error err = liq_set_max_colors(attr, palette_count);
+    if (err == LIQ_OK) err = liq_set_single_threaded(attr, settings->single_threaded);
+    if (err != LIQ_OK) goto done;
+    
+    err = liq_result_from_palette(attr, (const liq_color*)palette, (unsigned int)palette_count, palette_gamma, &result);
+    if (err != LIQ_OK) goto done;
+    
+    image = liq_image_create_rgba(attr, rgba, width, height, 0);
+    if (!image) {
+        err = LIQ_OUT_OF_MEMORY;
+        goto done;
+    }
+    
+    err = jna_remap_result(result, image, settings, indices, indices_size, output);
+    
+done:
+    if (result) liq_result_destroy(result);
+    if (image) liq_image_destroy(image);
+    liq_attr_destroy(attr);
+    return err;
+}
+
+// =============================================================================
+// 批量量化+重映射
+// =============================================================================
+
+// 批量接口的公共部分，shared 非0时所有图像共用一个调色板
+static int jna_run_batch(const jna_quantize_settings *settings, const unsigned char *rgba, int64_t pixels_count,
+                         const int64_t *offsets, const int *sizes, int count,
+                         unsigned char *indices, unsigned char *palettes, int *stats, double *mse, int shared) {
+    liq_batch_image *images = malloc(sizeof(liq_batch_image) * (size_t)count);
+    liq_batch_result *results = malloc(sizeof(liq_batch_result) * (size_t)count);
+    liq_attr *attr = liq_attr_create();
+    liq_result *shared_result = NULL;
+    liq_error err = LIQ_OUT_OF_MEMORY;
+    if (!images || !results || !attr) goto done;
+    
+    for (int i = 0; i < count; i++) {
+        if (offsets[i] < 0 || sizes[2 * i] <= 0 || sizes[2 * i + 1] <= 0) {
+            err = LIQ_VALUE_OUT_OF_RANGE;
+            goto done;
+        }
+        images[i].offset = (size_t)offsets[i];
+        images[i].width = (unsigned int)sizes[2 * i];
+        images[i].height = (unsigned int)sizes[2 * i + 1];
+    }
+    
+    err = jna_apply_settings(attr, settings);
+    if (err != LIQ_OK) goto done;
+    
+    float dither = settings->dithering_level >= 0 ? settings->dithering_level : 1.0f;
+    if (shared) {
+        err = liq_quantize_shared_batch(attr, (const liq_color*)rgba, (size_t)pixels_count, images, (unsigned int)count,
+                                        dither, indices, results, &shared_result);
+    } else {
+        err = liq_quantize_batch(attr, (const liq_color*)rgba, (size_t)pixels_count, images, (unsigned int)count,
+                                 dither, indices, results);
+    }
+    if (err != LIQ_OK) goto done;
+    
+    for (int i = 0; i < count; i++) {
+        const liq_batch_result *r = &results[i];
+        stats[3 * i] = r->error;
+        stats[3 * i + 1] = r->palette.count;
+        stats[3 * i + 2] = r->quality;
+        mse[i] = r->mse;
+        memcpy(palettes + (size_t)i * 256 * 4, r->palette.entries, r->palette.count * 4);
+    }
+    
+done:
+    if (shared_result) liq_result_destroy(shared_result);
+    if (attr) liq_attr_destroy(attr);
+    free(results);
+    free(images);
+    return err;
+}
+
+/**
+ * 一次调用量化并重映射 count 张紧密排列在 rgba 中的图像，在 libimagequant 的线程池上并行执行
+ * offsets[i] 为第i张图像的起始像素下标，sizes[2i]/sizes[2i+1] 为宽和高；
+ * 第i张图像的索引写入 indices + offsets[i]，调色板写入 palettes + i*1024，
+ * stats[3i..3i+2] 依次为 错误码、调色板颜色数、质量，mse[i] 为均方误差
+ * output_gamma 不适用于批量接口
+ * 返回值只反映参数错误，单张图像的失败记录在 stats 中
+ */
+JNA_EXPORT int jna_quantize_batch_rgba(const jna_quantize_settings *settings, const unsigned char *rgba, int64_t pixels_count,
+                                       const int64_t *offsets, const int *sizes, int count,
+                                       unsigned char *indices, unsigned char *palettes, int *stats, double *mse) {
+    if (!settings || !rgba || !offsets || !sizes || !indices || !palettes || !stats || !mse) return LIQ_INVALID_POINTER;
+    if (count <= 0 || pixels_count < 0) return count == 0 ? LIQ_OK : LIQ_VALUE_OUT_OF_RANGE;
+    
+    return jna_run_batch(settings, rgba, pixels_count, offsets, sizes, count, indices, palettes, stats, mse, 0);
+}
+
+/**
+ * 与 jna_quantize_batch_rgba 的参数和输出布局相同，但所有图像共用一个调色板：
+ * 先在线程池上并行统计所有图像的直方图并合并，只量化一次，再把每张图像重映射到共享调色板
+ * 每张图像的调色板槽位都写入同一个共享调色板
+ * 返回值还包括共享调色板生成失败（例如质量达不到下限或已取消），此时 stats 不会被写入
+ */
+JNA_EXPORT int jna_quantize_shared_rgba(const jna_quantize_settings *settings, const unsigned char *rgba, int64_t pixels_count,
+                                        const int64_t *offsets, const int *sizes, int count,
+                                        unsigned char *indices, unsigned char *palettes, int *stats, double *mse) {
+    if (!settings || !rgba || !offsets || !sizes || !indices || !palettes || !stats || !mse) return LIQ_INVALID_POINTER;
+    if (count <= 0 || pixels_count < 0) return LIQ_VALUE_OUT_OF_RANGE;
+    return jna_run_batch(settings, rgba, pixels_count, offsets, sizes, count, indices, palettes, stats, mse, 1);
+}
+
+// =============================================================================
+// 可复用的属性：按参数配置一次，同一线程上的多次调用共用
+// =============================================================================
+
+// 进度回调在创建时只安装一次，每次调用前后切换 token，不需要重新创建属性
+typedef struct {
+    liq_attr *attr;
+    jna_cancel_token *token;  // 当前调用的取消令牌，没有调用时为NULL
+} jna_engine_attr;
+
+static int jna_engine_progress_callback(float progress_percent, void *user_info) {
+    jna_engine_attr *engine = (jna_engine_attr*)user_info;
+    jna_cancel_token *token = engine->token;
+    return token ? jna_progress_callback(progress_percent, token) : 1;
+}
+
+/**
+ * 按 settings 中的属性级参数（颜色数、质量、速度、色调分离、单线程）创建可复用的属性
+ * 抖动、伽马和取消令牌在每次调用时从调用的 settings 读取；属性只能同时被一个调用使用
+ * 失败时返回0
+ */
+JNA_EXPORT jna_ptr_t jna_engine_attr_create(const jna_quantize_settings *settings) {
+    if (!settings) return 0;
+    jna_engine_attr *engine = calloc(1, sizeof(jna_engine_attr));
+    if (!engine) return 0;
+    
+    jna_quantize_settings attr_settings = *settings;
+    attr_settings.cancel_token = NULL;
+    engine->attr = liq_attr_create();
+    if (!engine->attr || jna_apply_settings(engine->attr, &attr_settings) != LIQ_OK) {
+        if (engine->attr) liq_attr_destroy(engine->attr);
+        free(engine);
+        return 0;
+    }
+    liq_attr_set_progress_callback(engine->attr, jna_engine_progress_callback, engine);
+    return (jna_ptr_t)engine;
+}
+
+JNA_EXPORT void jna_engine_attr_destroy(jna_ptr_t handle) {
+    jna_engine_attr *engine = (jna_engine_attr*)handle;
+    if (!engine) return;
+    liq_attr_destroy(engine->attr);
+    free(engine);
+}
+
+/**
+ * 与 jna_quantize_remap_rgba 相同，但使用 jna_engine_attr_create 创建的属性，不再创建和配置属性
+ * settings 中的属性级参数被忽略（以创建属性时的为准），只读取抖动、伽马和取消令牌
+ */
+JNA_EXPORT int jna_engine_quantize_remap_rgba(jna_ptr_t engine_handle, const jna_quantize_settings *settings,
+                                              const unsigned char *rgba, int width, int height,
+                                              unsigned char *indices, int indices_size, jna_quantize_output *output) {
+    jna_engine_attr *engine = (jna_engine_attr*)engine_handle;
+    if (!engine || !settings || !rgba || !indices || !output || width <= 0 || height <= 0) return LIQ_INVALID_POINTER;
+    if (indices_size < 0 || (size_t)indices_size < (size_t)width * (size_t)height) return LIQ_BUFFER_TOO_SMALL;
+    
+    memset(output, 0, sizeof(*output));
+    
+    liq_result *result = NULL;
+    liq_image *image = liq_image_create_rgba(engine->attr, rgba, width, height, 0);
+    if (!image) return LIQ_OUT_OF_MEMORY;
+    
+    engine->token = settings->cancel_token;
+    liq_error err = liq_image_quantize(image, engine->attr, &result);
+    if (err == LIQ_OK) err = jna_remap_result(result, image, settings, indices, indices_size, output);
+    engine->token = NULL;
+    
+    if (result) liq_result_destroy(result);
+    liq_image_destroy(image);
+    return err;
+}
+
+// =============================================================================
+// 流式量化：边解码边统计直方图
+// =============================================================================
+
+// 流式量化会话，像素保存在native内存中，Java端按行带写入
+typedef struct {
+    liq_attr *attr;
+    jna_engine_attr *engine;  // 非NULL时 attr 借用自它，销毁会话时不释放
+    liq_histogram *hist;
+    unsigned char *rgba;
+    unsigned char *indices;  // jna_stream_remap 的输出，按需分配
+    int width;
+    int height;
+    float dithering_level;
+    double output_gamma;
+    jna_cancel_token *cancel_token;
+} jna_stream;
+
+/**
+ * 创建流式量化会话，分配 width*height*4 字节的native像素缓冲区
+ * 失败时返回0
+ */
+static jna_ptr_t jna_stream_open(const jna_quantize_settings *settings, jna_engine_attr *engine, int width, int height) {
+    if (!settings || width <= 0 || height <= 0) return 0;
+    
+    jna_stream *stream = calloc(1, sizeof(jna_stream));
+    if (!stream) return 0;
+    stream->width = width;
+    stream->height = height;
+    stream->dithering_level = settings->dithering_level;
+    stream->output_gamma = settings->output_gamma;
+    stream->cancel_token = settings->cancel_token;
+    stream->engine = engine;
+    stream->rgba = malloc((size_t)width * (size_t)height * 4);
+    if (engine) {
+        stream->attr = engine->attr;
+    } else {
+        stream->attr = liq_attr_create();
+        if (stream->attr && jna_apply_settings(stream->attr, settings) != LIQ_OK) goto fail;
+    }
+    if (!stream->attr || !stream->rgba) goto fail;
+    stream->hist = liq_histogram_create(stream->attr);
+    if (!stream->hist) goto fail;
+    if (engine) engine->token = settings->cancel_token;
+    return (jna_ptr_t)stream;
+    
+fail:
+    if (stream->attr && !engine) liq_attr_destroy(stream->attr);
+    free(stream->rgba);
+    free(stream);
+    return 0;
+}
+
+JNA_EXPORT jna_ptr_t jna_stream_create(const jna_quantize_settings *settings, int width, int height) {
+    return jna_stream_open(settings, NULL, width, height);
+}
+
+/**
+ * 与 jna_stream_create 相同，但借用 jna_engine_attr_create 创建的属性，会话存续期间该属性不能用于其他调用
+ * settings 中只读取抖动、伽马和取消令牌
+ */
+JNA_EXPORT jna_ptr_t jna_engine_stream_create(jna_ptr_t engine_handle, const jna_quantize_settings *settings, int width, int height) {
+    if (engine_handle == 0) return 0;
+    return jna_stream_open(settings, (jna_engine_attr*)engine_handle, width, height);
+}
+
+/**
+ * 会话的像素缓冲区，R-G-B-A 顺序，每行 width*4 字节
+ */
+JNA_EXPORT unsigned char* jna_stream_pixels(jna_ptr_t handle) {
+    jna_stream *stream = (jna_stream*)handle;
+    return stream ? stream->rgba : NULL;
+}
+
+/**
+ * 把 [first_row, first_row+row_count) 这些已经写入的行加入直方图
+ * 行带之间互不重叠时，可以在解码后续行的同时调用；同一会话的调用必须串行
+ */
+JNA_EXPORT int jna_stream_add_rows(jna_ptr_t handle, int first_row, int row_count) {
+    jna_stream *stream = (jna_stream*)handle;
+    if (!stream) return LIQ_INVALID_POINTER;
+    if (!stream->rgba) return LIQ_UNSUPPORTED;
+    if (first_row < 0 || row_count <= 0 || row_count > stream->height - first_row) return LIQ_VALUE_OUT_OF_RANGE;
+    
+    const unsigned char *band = stream->rgba + (size_t)first_row * (size_t)stream->width * 4;
+    liq_image *image = liq_image_create_rgba(stream->attr, band, stream->width, row_count, 0);
+    if (!image) return LIQ_OUT_OF_MEMORY;
+    liq_error err = liq_histogram_add_image(stream->hist, stream->attr, image);
+    liq_image_destroy(image);
+    return err;
+}
+
+// 由直方图生成调色板，并把整张图像逐行重映射到 rows 指向的各行
+static liq_error jna_stream_remap_rows(jna_stream *stream, unsigned char **rows, jna_quantize_output *output) {
+    memset(output, 0, sizeof(*output));
+    if (!stream->rgba) return LIQ_UNSUPPORTED;  // 已经重映射过，像素已释放
+    
+    liq_image *image = NULL;
+    liq_result *result = NULL;
+    liq_error err = liq_histogram_quantize(stream->hist, stream->attr, &result);
+    if (err != LIQ_OK) goto done;
+    jna_watch_result(result, stream->cancel_token);
+    
+    if (stream->dithering_level >= 0) err = liq_set_dithering_level(result, stream->dithering_level);
+    if (err == LIQ_OK && stream->output_gamma > 0) err = liq_set_output_gamma(result, stream->output_gamma);
+    if (err != LIQ_OK) goto done;
+    
+    image = liq_image_create_rgba(stream->attr, stream->rgba, stream->width, stream->height, 0);
+    if (!image) {
+        err = LIQ_OUT_OF_MEMORY;
+        goto done;
+    }
+    err = liq_write_remapped_image_rows(result, image, rows);
+    if (err != LIQ_OK) goto done;
+    
+    const liq_palette *pal = liq_get_palette(result);
+    output->palette_count = pal->count;
+    memcpy(output->palette, pal->entries, pal->count * 4);
+    output->quality = liq_get_quantization_quality(result);
+    output->mse = liq_get_quantization_error(result);
+    
+done:
+    if (image) liq_image_destroy(image);
+    if (result) liq_result_destroy(result);
+    return err;
+}
+
+/**
+ * 由直方图生成调色板，并把整张图像重映射到 indices（至少 width*height 字节）
+ * 调用前所有行都必须已经通过 jna_stream_add_rows 加入直方图
+ */
+JNA_EXPORT int jna_stream_finish(jna_ptr_t handle, unsigned char *indices, int indices_size, jna_quantize_output *output) {
+    jna_stream *stream = (jna_stream*)handle;
+    if (!stream || !indices || !output) return LIQ_INVALID_POINTER;
+    if (indices_size < 0 || (size_t)indices_size < (size_t)stream->width * (size_t)stream->height) return LIQ_BUFFER_TOO_SMALL;
+    
+    unsigned char **rows = malloc(sizeof(unsigned char*) * (size_t)stream->height);
+    if (!rows) return LIQ_OUT_OF_MEMORY;
+    for (int y = 0; y < stream->height; y++) {
+        rows[y] = indices + (size_t)y * (size_t)stream->width;
+    }
+    liq_error err = jna_stream_remap_rows(stream, rows, output);
+    free(rows);
+    return err;
+}
+
+/**
+ * 由直方图生成调色板，并把整张图像重映射到会话自己的native索引缓冲区（通过 jna_stream_indices 读取）
+ * 重映射完成后立即释放RGBA像素缓冲区，之后不能再调用 jna_stream_add_rows / jna_stream_finish
+ */
+JNA_EXPORT int jna_stream_remap(jna_ptr_t handle, jna_quantize_output *output) {
+    jna_stream *stream = (jna_stream*)handle;
+    if (!stream || !output) return LIQ_INVALID_POINTER;
+    
+    size_t width = (size_t)stream->width;
+    unsigned char **rows = malloc(sizeof(unsigned char*) * (size_t)stream->height);
+    if (!stream->indices) stream->indices = malloc(width * (size_t)stream->height);
+    if (!rows || !stream->indices) {
+        free(rows);
+        return LIQ_OUT_OF_MEMORY;
+    }
+    for (int y = 0; y < stream->height; y++) {
+        rows[y] = stream->indices + (size_t)y * width;
+    }
+    liq_error err = jna_stream_remap_rows(stream, rows, output);
+    free(rows);
+    if (err == LIQ_OK) {
+        free(stream->rgba);
+        stream->rgba = NULL;
+    }
+    return err;
+}
+
+/**
+ * jna_stream_remap 输出的索引缓冲区，每行 width 字节，重映射之前为NULL
+ */
+JNA_EXPORT unsigned char* jna_stream_indices(jna_ptr_t handle) {
+    jna_stream *stream = (jna_stream*)handle;
+    return stream ? stream->indices : NULL;
+}
+
+/**
+ * 销毁会话并释放像素缓冲区
+ */
+JNA_EXPORT void jna_stream_destroy(jna_ptr_t handle) {
+    jna_stream *stream = (jna_stream*)handle;
+    if (!stream) return;
+    liq_histogram_destroy(stream->hist);
+    if (stream->engine) {
+        stream->engine->token = NULL;
+    } else {
+        liq_attr_destroy(stream->attr);
+    }
+    free(stream->rgba);
+    free(stream->indices);
+    free(stream);
+}
+
+// =============================================================================
+// 取消令牌
+// =============================================================================
+
+/**
+ * 创建取消令牌，通过 jna_quantize_settings.cancel_token 传给量化函数
+ */
+JNA_EXPORT jna_ptr_t jna_cancel_token_create(void) {
+    return (jna_ptr_t)calloc(1, sizeof(jna_cancel_token));
+}
+
+/**
+ * 请求取消，可以在任意线程上调用，正在执行的量化/重映射在下一次进度回调时返回 LIQ_ABORTED
+ */
+JNA_EXPORT void jna_cancel_token_cancel(jna_ptr_t handle) {
+    jna_cancel_token *token = (jna_cancel_token*)handle;
+    if (token) token->cancelled = 1;
+}
+
+/**
+ * 最近一次进度回调报告的进度 (0-100)
+ */
+JNA_EXPORT float jna_cancel_token_progress(jna_ptr_t handle) {
+    jna_cancel_token *token = (jna_cancel_token*)handle;
+    return token ? token->progress : 0.0f;
+}
+
+/**
+ * 释放令牌，调用方必须保证没有正在使用它的native调用
+ */
+JNA_EXPORT void jna_cancel_token_destroy(jna_ptr_t handle) {
+    free((jna_cancel_token*)handle);
+}
+
+// =============================================================================
+// 线程池
+// =============================================================================
+
+/**
+ * 设置所有调用共享的native线程池大小，0 恢复默认
+ */
+JNA_EXPORT int jna_set_thread_pool_size(int threads) {
+    if (threads < 0) return LIQ_VALUE_OUT_OF_RANGE;
+    return liq_set_thread_pool_size((unsigned int)threads);
+}
+
+/**
+ * 获取共享native线程池的线程数
+ */
+JNA_EXPORT int jna_get_thread_pool_size(void) {
+    return (int)liq_get_thread_pool_size();
+}
+
 // =============================================================================
 // 额外的实用函数
 // =============================================================================
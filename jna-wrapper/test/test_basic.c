@@ -126,6 +126,174 @@ int main() {
     printf("Invalid handle (0): %s\n", 
            jna_is_valid_handle(0) == LIQ_JNA_OK ? "YES" : "NO");
     
+    printf("\n11. Creating borrowed RGBA image...\n");
+    long borrowed = jna_liq_image_create_rgba_borrowed(attr, test_image_data, 2, 2);
+    if (borrowed == 0) {
+        printf("Failed to create borrowed image\n");
+    } else {
+        unsigned char borrowed_output[4];
+        if (jna_liq_write_remapped_image(result, borrowed, borrowed_output, sizeof(borrowed_output)) == LIQ_JNA_OK) {
+            printf("Remapped borrowed image data: ");
+            for (int i = 0; i < 4; i++) {
+                printf("%d ", borrowed_output[i]);
+            }
+            printf("\n");
+        }
+        jna_liq_image_destroy(borrowed);
+        printf("Borrowed image destroyed\n");
+    }
+    
+    printf("\n12. Single-call quantize and remap...\n");
+    jna_quantize_settings settings = { 256, 0, 100, 4, 0, -1.0f, 0.0, 0, NULL };
+    jna_quantize_output single_output;
+    unsigned char single_indices[4];
+    int single_error = jna_quantize_remap_rgba(&settings, test_image_data, 2, 2,
+                                               single_indices, sizeof(single_indices), &single_output);
+    if (single_error != LIQ_JNA_OK) {
+        printf("Single-call quantize failed: %d\n", single_error);
+    } else {
+        printf("Palette colors: %d, quality: %d, MSE: %f\n",
+               single_output.palette_count, single_output.quality, single_output.mse);
+    }
+    
+    printf("\n13. Batch quantize and remap...\n");
+    int64_t batch_offsets[2] = { 0, 2 };
+    int batch_sizes[4] = { 2, 1, 1, 2 };   // 两张图像：2x1 和 1x2
+    unsigned char batch_indices[4];
+    unsigned char batch_palettes[2 * 256 * 4];
+    int batch_stats[2 * 3];
+    double batch_mse[2];
+    int batch_error = jna_quantize_batch_rgba(&settings, test_image_data, 4, batch_offsets, batch_sizes, 2,
+                                              batch_indices, batch_palettes, batch_stats, batch_mse);
+    if (batch_error != LIQ_JNA_OK) {
+        printf("Batch quantize failed: %d\n", batch_error);
+    } else {
+        for (int i = 0; i < 2; i++) {
+            printf("Image %d: error %d, palette colors: %d, quality: %d\n",
+                   i, batch_stats[3 * i], batch_stats[3 * i + 1], batch_stats[3 * i + 2]);
+        }
+    }
+    
+    printf("\n14. Streaming quantize by row bands...\n");
+    long stream = jna_stream_create(&settings, 2, 2);
+    if (stream == 0) {
+        printf("Failed to create stream\n");
+    } else {
+        memcpy(jna_stream_pixels(stream), test_image_data, sizeof(test_image_data));
+        jna_quantize_output stream_output;
+        unsigned char stream_indices[4];
+        int stream_error = jna_stream_add_rows(stream, 0, 1);
+        if (stream_error == LIQ_JNA_OK) stream_error = jna_stream_add_rows(stream, 1, 1);
+        if (stream_error == LIQ_JNA_OK) {
+            stream_error = jna_stream_finish(stream, stream_indices, sizeof(stream_indices), &stream_output);
+        }
+        if (stream_error != LIQ_JNA_OK) {
+            printf("Streaming quantize failed: %d\n", stream_error);
+        } else {
+            printf("Palette colors: %d, quality: %d\n", stream_output.palette_count, stream_output.quality);
+        }
+        jna_stream_destroy(stream);
+    }
+    
+    printf("\n15. Streaming remap into native index rows...\n");
+    stream = jna_stream_create(&settings, 2, 2);
+    if (stream == 0) {
+        printf("Failed to create stream\n");
+    } else {
+        memcpy(jna_stream_pixels(stream), test_image_data, sizeof(test_image_data));
+        jna_quantize_output remap_output;
+        int remap_error = jna_stream_add_rows(stream, 0, 2);
+        if (remap_error == LIQ_JNA_OK) remap_error = jna_stream_remap(stream, &remap_output);
+        if (remap_error != LIQ_JNA_OK) {
+            printf("Streaming remap failed: %d\n", remap_error);
+        } else {
+            const unsigned char *rows = jna_stream_indices(stream);
+            printf("Row 0: %d %d, row 1: %d %d\n", rows[0], rows[1], rows[2], rows[3]);
+        }
+        jna_stream_destroy(stream);
+    }
+    
+    printf("\n16. Thread pool control...\n");
+    int pool_error = jna_set_thread_pool_size(2);
+    printf("Set pool size to 2: %d, pool size: %d\n", pool_error, jna_get_thread_pool_size());
+    jna_set_thread_pool_size(0);
+    settings.single_threaded = 1;
+    unsigned char pool_indices[4];
+    jna_quantize_output pool_output;
+    if (jna_quantize_remap_rgba(&settings, test_image_data, 2, 2, pool_indices, 4, &pool_output) != LIQ_JNA_OK) {
+        printf("Single-threaded quantize failed\n");
+    } else {
+        printf("Single-threaded palette colors: %d\n", pool_output.palette_count);
+    }
+    settings.single_threaded = 0;
+    
+    printf("\n17. Cancellation token...\n");
+    long token = jna_cancel_token_create();
+    if (token == 0) {
+        printf("Failed to create cancel token\n");
+    } else {
+        settings.cancel_token = (jna_cancel_token*)token;
+        jna_cancel_token_cancel(token);
+        int cancel_error = jna_quantize_remap_rgba(&settings, test_image_data, 2, 2, pool_indices, 4, &pool_output);
+        printf("Quantize after cancel: %d (aborted: %d), progress: %.0f%%\n",
+               cancel_error, cancel_error == 102, jna_cancel_token_progress(token));
+        settings.cancel_token = NULL;
+        jna_cancel_token_destroy(token);
+    }
+    
+    printf("\n18. Remap onto a fixed palette...\n");
+    const unsigned char fixed_palette[] = {0, 0, 0, 255,  255, 255, 255, 255};
+    if (jna_remap_palette_rgba(&settings, fixed_palette, 2, 0, test_image_data, 2, 2, pool_indices, 4, &pool_output) != LIQ_JNA_OK) {
+        printf("Palette remap failed\n");
+    } else {
+        printf("Palette remap colors: %d, indices: %d %d %d %d\n", pool_output.palette_count,
+               pool_indices[0], pool_indices[1], pool_indices[2], pool_indices[3]);
+    }
+    long palette_result = jna_liq_result_from_palette(attr, fixed_palette, 2, 0);
+    printf("Result from palette: %s\n", palette_result ? "OK" : "failed");
+    if (palette_result) jna_liq_result_destroy(palette_result);
+    
+    printf("\n19. Shared-palette batch quantize...\n");
+    int shared_error = jna_quantize_shared_rgba(&settings, test_image_data, 4, batch_offsets, batch_sizes, 2,
+                                                batch_indices, batch_palettes, batch_stats, batch_mse);
+    if (shared_error != LIQ_JNA_OK) {
+        printf("Shared batch quantize failed: %d\n", shared_error);
+    } else {
+        printf("Shared palette colors: %d, same palette: %s\n", batch_stats[1],
+               memcmp(batch_palettes, batch_palettes + 256 * 4, (size_t)batch_stats[1] * 4) == 0 ? "yes" : "no");
+    }
+    
+    printf("\n20. Remap a frame onto the previous result with a background...\n");
+    long frame = jna_liq_image_create_rgba_borrowed(attr, test_image_data, 2, 2);
+    long previous_frame = jna_liq_image_create_rgba_borrowed(attr, test_image_data, 2, 2);
+    if (frame == 0 || previous_frame == 0) {
+        printf("Failed to create frame images\n");
+        if (previous_frame) jna_liq_image_destroy(previous_frame);
+    } else {
+        if (jna_liq_image_set_background(frame, previous_frame) != LIQ_JNA_OK) {
+            printf("Set background failed\n");
+        }
+        unsigned char frame_indices[4];
+        if (jna_liq_write_remapped_image(result, frame, frame_indices, sizeof(frame_indices)) == LIQ_JNA_OK) {
+            printf("Remapping quality: %d, error: %f\n", jna_getRemappingQuality(result), jna_getRemappingError(result));
+        }
+    }
+    if (frame) jna_liq_image_destroy(frame);
+    
+    printf("\n21. Quantize twice with a reusable attribute...\n");
+    long engine = jna_engine_attr_create(&settings);
+    if (engine == 0) {
+        printf("Failed to create engine attribute\n");
+    } else {
+        for (int run = 0; run < 2; run++) {
+            int engine_error = jna_engine_quantize_remap_rgba(engine, &settings, test_image_data, 2, 2,
+                                                              pool_indices, 4, &pool_output);
+            printf("Engine run %d: %s, colors: %d\n", run + 1,
+                   engine_error == LIQ_JNA_OK ? "OK" : "failed", pool_output.palette_count);
+        }
+        jna_engine_attr_destroy(engine);
+    }
+    
     printf("\nAll tests completed successfully!\n");
     
     // 清理资源
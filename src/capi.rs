@@ -7,9 +7,11 @@
 use crate::no_std_compat::*;
 
 use crate::pal::Palette;
+use crate::rayoff::*;
 use crate::rows::RowCallback;
 use crate::seacow::{Pointer, RowBitmapMut, SeaCow};
-use crate::{Attributes, Error, Image, QuantizationResult, RGBA};
+use crate::{Attributes, CacheLineAlign, Error, Histogram, Image, QuantizationResult, RGBA};
+use core::cell::RefCell;
 use core::ffi::c_void;
 use core::mem::{self, MaybeUninit};
 
@@ -45,17 +47,185 @@ pub unsafe fn liq_image_create_custom_impl<'rows>(attr: &Attributes, row_callbac
     Image::new_internal(attr, crate::rows::PixelsSource::Callback(row_callback), width, height, gamma).ok()
 }
 
-pub unsafe fn liq_write_remapped_image_impl(result: &mut QuantizationResult, input_image: &mut Image, buffer_bytes: &mut [MaybeUninit<u8>]) -> Result<(), Error> {
+pub unsafe fn liq_write_remapped_image_impl(result: &mut QuantizationResult, input_image: &mut Image, buffer_bytes: &mut [MaybeUninit<u8>], single_threaded: bool) -> Result<(), Error> {
     let rows = RowBitmapMut::new_contiguous(buffer_bytes, input_image.width());
-    result.write_remapped_image_rows_internal(input_image, rows)
+    liq_install_impl(single_threaded, move || result.write_remapped_image_rows_internal(input_image, rows))
 }
 
-pub unsafe fn liq_write_remapped_image_rows_impl(result: &mut QuantizationResult, input_image: &mut Image, rows: &mut [*mut MaybeUninit<u8>]) -> Result<(), Error> {
+pub unsafe fn liq_write_remapped_image_rows_impl(result: &mut QuantizationResult, input_image: &mut Image, rows: &mut [*mut MaybeUninit<u8>], single_threaded: bool) -> Result<(), Error> {
     let rows = RowBitmapMut::new(rows, input_image.width());
-    result.write_remapped_image_rows_internal(input_image, rows)
+    liq_install_impl(single_threaded, move || result.write_remapped_image_rows_internal(input_image, rows))
 }
 
 /// Not recommended
 pub unsafe fn liq_image_set_memory_ownership_impl(image: &mut Image<'_>, own_rows: bool, own_pixels: bool, free_fn: unsafe extern "C" fn(*mut c_void)) -> Result<(), Error> {
     image.px.set_memory_ownership(own_rows, own_pixels, free_fn)
 }
+
+/// Thread pool used by the C API.
+///
+/// By default calls run on rayon's global pool, which has one thread per CPU. Callers that already run many
+/// images in parallel (e.g. a Java worker pool) can shrink it to a shared pool of a fixed size, or run
+/// individual calls single-threaded, so that the two levels of parallelism don't oversubscribe the machine.
+#[cfg(feature = "threads")]
+mod pool {
+    use crate::Error;
+    use std::sync::{Arc, Mutex};
+
+    static SHARED: Mutex<Option<Arc<rayon::ThreadPool>>> = Mutex::new(None);
+
+    std::thread_local! {
+        // Each calling thread gets its own one-thread pool, so single-threaded calls don't queue behind each other
+        // (created lazily on the thread's first single-threaded call)
+        static SINGLE: Option<rayon::ThreadPool> = rayon::ThreadPoolBuilder::new()
+            .num_threads(1)
+            .thread_name(|_| "liq-single".into())
+            .build()
+            .ok();
+    }
+
+    pub fn set_size(threads: usize) -> Result<(), Error> {
+        let pool = if threads == 0 { None } else {
+            let pool = rayon::ThreadPoolBuilder::new()
+                .num_threads(threads)
+                .thread_name(|i| format!("liq-worker-{i}"))
+                .build()
+                .map_err(|_| Error::OutOfMemory)?;
+            Some(Arc::new(pool))
+        };
+        // calls in progress keep their own reference to the old pool
+        *SHARED.lock().map_err(|_| Error::Unsupported)? = pool;
+        Ok(())
+    }
+
+    pub fn size() -> usize {
+        match SHARED.lock().ok().and_then(|p| p.clone()) {
+            Some(pool) => pool.current_num_threads(),
+            None => rayon::current_num_threads(),
+        }
+    }
+
+    pub fn install<R: Send>(single_threaded: bool, op: impl FnOnce() -> R + Send) -> R {
+        if single_threaded {
+            return SINGLE.with(|pool| {
+                match pool {
+                    Some(pool) => pool.install(op),
+                    None => op(),
+                }
+            });
+        }
+        let shared = SHARED.lock().ok().and_then(|p| p.clone());
+        match shared {
+            Some(pool) => pool.install(op),
+            None => op(),
+        }
+    }
+}
+
+#[cfg(not(feature = "threads"))]
+mod pool {
+    use crate::Error;
+
+    pub fn set_size(_threads: usize) -> Result<(), Error> {
+        Err(Error::Unsupported)
+    }
+
+    pub fn size() -> usize {
+        1
+    }
+
+    pub fn install<R: Send>(_single_threaded: bool, op: impl FnOnce() -> R + Send) -> R {
+        op()
+    }
+}
+
+/// Sets the size of the shared pool used by all C API calls. 0 restores rayon's global pool.
+pub fn liq_set_thread_pool_size_impl(threads: usize) -> Result<(), Error> {
+    pool::set_size(threads)
+}
+
+/// Number of threads that C API calls will use
+#[must_use]
+pub fn liq_get_thread_pool_size_impl() -> usize {
+    pool::size()
+}
+
+/// Runs `op` on the shared pool, or on a private one-thread pool when `single_threaded` is set
+pub fn liq_install_impl<R: Send>(single_threaded: bool, op: impl FnOnce() -> R + Send) -> R {
+    pool::install(single_threaded, op)
+}
+
+/// One image of a batch. `result` is overwritten by [`liq_quantize_batch_impl`] or [`liq_quantize_shared_impl`].
+pub struct BatchItem<'a> {
+    pub pixels: &'a [RGBA],
+    pub width: usize,
+    pub height: usize,
+    pub indices: &'a mut [MaybeUninit<u8>],
+    pub result: Result<QuantizationResult, Error>,
+}
+
+/// Quantizes and remaps all items on the shared thread pool, one task per image.
+/// Each image keeps its own palette; a failure only affects that item's `result`.
+pub fn liq_quantize_batch_impl(attr: &Attributes, dithering_level: f32, items: &mut [BatchItem<'_>]) {
+    items.iter_mut().par_bridge().for_each(|item| {
+        item.result = quantize_batch_item(attr, dithering_level, item.pixels, item.width, item.height, item.indices);
+    });
+}
+
+/// Quantizes all items to one shared palette and remaps each of them against it.
+///
+/// Every worker thread counts its share of the images into its own partial histogram, the partial histograms
+/// are merged and quantized once, then the items are remapped in parallel, each against a copy of the shared result.
+/// The returned result holds the shared palette; a remapping failure only affects that item's `result`.
+pub fn liq_quantize_shared_impl(attr: &Attributes, dithering_level: f32, items: &mut [BatchItem<'_>]) -> Result<QuantizationResult, Error> {
+    let tls = ThreadLocal::new();
+    items.iter_mut().par_bridge().for_each_init(
+        || tls.get_or(move || CacheLineAlign(RefCell::new(Ok(Histogram::new(attr))))),
+        move |hist, item| {
+            let Ok(mut hist) = hist.0.try_borrow_mut() else {
+                debug_assert!(false);
+                return;
+            };
+            let added = match *hist {
+                Ok(ref mut h) => attr.new_image_borrowed(item.pixels, item.width, item.height, 0.)
+                    .and_then(|mut image| h.add_image(attr, &mut image)),
+                Err(_) => return,
+            };
+            if let Err(e) = added {
+                *hist = Err(e);
+            }
+        });
+
+    let mut hist = tls.into_iter()
+        .map(|h| h.0.into_inner())
+        .reduce(|a, b| {
+            let mut a = a?;
+            a.merge(b?);
+            Ok(a)
+        })
+        .unwrap_or(Err(Error::Unsupported))?;
+
+    let mut shared = hist.quantize(attr)?;
+    shared.set_dithering_level(dithering_level)?;
+
+    let shared_ref = &shared;
+    items.iter_mut().par_bridge().for_each(move |item| {
+        item.result = remap_shared_item(attr, shared_ref, item.pixels, item.width, item.height, item.indices);
+    });
+    Ok(shared)
+}
+
+fn remap_shared_item(attr: &Attributes, shared: &QuantizationResult, pixels: &[RGBA], width: usize, height: usize, indices: &mut [MaybeUninit<u8>]) -> Result<QuantizationResult, Error> {
+    let mut image = attr.new_image_borrowed(pixels, width, height, 0.)?;
+    let mut result = shared.clone();
+    result.remap_into(&mut image, indices)?;
+    Ok(result)
+}
+
+fn quantize_batch_item(attr: &Attributes, dithering_level: f32, pixels: &[RGBA], width: usize, height: usize, indices: &mut [MaybeUninit<u8>]) -> Result<QuantizationResult, Error> {
+    let mut image = attr.new_image_borrowed(pixels, width, height, 0.)?;
+    let mut result = attr.quantize(&mut image)?;
+    result.set_dithering_level(dithering_level)?;
+    result.remap_into(&mut image, indices)?;
+    Ok(result)
+}
@@ -186,6 +186,30 @@ impl Histogram {
         Ok(())
     }
 
+    /// Adds all colors counted by `other`, e.g. a partial histogram built on another thread with the same attributes.
+    ///
+    /// Both histograms are brought to the coarser posterization first, so the merged counts stay consistent.
+    pub(crate) fn merge(&mut self, mut other: Histogram) {
+        if self.gamma.is_none() {
+            self.gamma = other.gamma;
+        }
+        let posterize_bits = self.posterize_bits.max(other.posterize_bits);
+        self.init_posterize_bits(posterize_bits);
+        other.init_posterize_bits(posterize_bits);
+
+        self.fixed_colors.extend(other.fixed_colors);
+        self.reserve(other.hashmap.len());
+        for (px_int, (boost, rgba)) in other.hashmap {
+            self.hashmap.entry(px_int)
+                .and_modify(move |e| e.0 = e.0.saturating_add(boost))
+                .or_insert((boost, rgba));
+        }
+
+        if self.hashmap.len() > self.max_histogram_entries as usize && self.posterize_bits < 3 {
+            self.init_posterize_bits(self.posterize_bits + 1);
+        }
+    }
+
     /// Generate palette for all images/colors added to the histogram.
     ///
     /// Palette generated using this function won't be improved during remapping.
@@ -46,7 +46,8 @@ mod rayoff;
 
 #[cfg(feature = "threads")]
 mod rayoff {
-    pub(crate) fn num_cpus() -> usize { std::thread::available_parallelism().map(|n| n.get()).unwrap_or(1) }
+    /// Threads in the pool the current call runs on (the C API may install a smaller one)
+    pub(crate) fn num_cpus() -> usize { rayon::current_num_threads() }
     pub(crate) use rayon::in_place_scope as scope;
     pub(crate) use rayon::prelude::{ParallelBridge, ParallelIterator, ParallelSliceMut};
     pub(crate) use thread_local::ThreadLocal;